@@ -32,6 +32,8 @@ public class EdgeRegularityAnalysis {
 			OptionMode.OPTIONAL);
 	public static final OptionArgumentMap.StringOption watchlistCategories = OptionArgumentMap.createStringOption('c',
 			OptionMode.OPTIONAL);
+	public static final OptionArgumentMap.IntegerOption threadCount = OptionArgumentMap.createIntegerOption('t',
+			Runtime.getRuntime().availableProcessors());
 
 	private final ArgumentStack args;
 	private final OptionArgumentMap argMap;
@@ -41,7 +43,7 @@ public class EdgeRegularityAnalysis {
 
 	private EdgeRegularityAnalysis(ArgumentStack args) {
 		this.args = args;
-		argMap = new OptionArgumentMap(args, verbose, watchlistFile, watchlistCategories);
+		argMap = new OptionArgumentMap(args, verbose, watchlistFile, watchlistCategories, threadCount);
 
 	}
 
@@ -73,6 +75,7 @@ public class EdgeRegularityAnalysis {
 			Log.log("Analyzing uncommon edges in %d request-edge.run files.", requestLoader.getPathCount());
 
 			requestGraph = new RequestGraph();
+			requestLoader.setThreadCount(Math.max(1, threadCount.getValue()));
 			requestLoader.load(requestGraph);
 
 			List<RequestCallSiteSummary> callSitesByRegularity = new ArrayList<RequestCallSiteSummary>();
@@ -95,7 +98,7 @@ public class EdgeRegularityAnalysis {
 					else
 						majorityUserLevel = "eq";
 					Log.log("\t%04d: -%s-> %s (0x%x)", (edge.getAdminCount() + edge.getAnonymousCount()),
-							majorityUserLevel, edge.calleeId.id, edge.callee.hash);
+							majorityUserLevel, edge.calleeId.getId(), edge.callee.hash);
 				}
 			}
 		} catch (Throwable t) {
@@ -104,7 +107,8 @@ public class EdgeRegularityAnalysis {
 	}
 
 	private void printUsage() {
-		System.err.println(String.format("Usage: %s <run-dir> [ <run-dir> ... ]", getClass().getSimpleName()));
+		System.err.println(String.format("Usage: %s [ -t <thread-count> ] <run-dir> [ <run-dir> ... ]",
+				getClass().getSimpleName()));
 	}
 
 	public static void main(String[] args) {
@@ -14,6 +14,7 @@ import edu.uci.plrg.cfi.common.log.Log;
 import edu.uci.plrg.cfi.common.util.ArgumentStack;
 import edu.uci.plrg.cfi.common.util.OptionArgumentMap;
 import edu.uci.plrg.cfi.common.util.OptionArgumentMap.OptionMode;
+import edu.uci.plrg.cfi.php.analysis.request.RequestEdgeIndex;
 import edu.uci.plrg.cfi.php.merge.ScriptMergeWatchList;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptDataFilename;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptNode;
@@ -126,7 +127,6 @@ public class ReachabilityAnalysis {
 			OptionMode.OPTIONAL);
 
 	private static final int ENTRY_POINT_HASH = 1;
-	private static final int REQUEST_HEADER_TAG = 2;
 
 	private final ArgumentStack args;
 	private final OptionArgumentMap argMap;
@@ -172,7 +172,7 @@ public class ReachabilityAnalysis {
 				int firstField;
 				while (in.ready(0x10)) {
 					firstField = in.readInt();
-					if (firstField == REQUEST_HEADER_TAG) {
+					if (RequestEdgeIndex.isRequestHeader(firstField)) {
 						anonymousEdges.checkReachability(requestId, "anonymous");
 						adminEdges.checkReachability(requestId, "admin");
 						anonymousEdges.initialize();
@@ -11,6 +11,7 @@ import edu.uci.plrg.cfi.common.log.Log;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptBranchNode;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptFlowGraph;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptNode;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptNode.TypeFlag;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptRoutineGraph;
 
 class ApplicationFile {
@@ -46,28 +47,29 @@ class ApplicationFile {
 			boolean changedUserLevel = false;
 
 			List<Integer> userLevelPhi = new ArrayList<Integer>();
-			for (ScriptNode node : routine.getNodes()) {
+			for (int i = 0; i < routine.getNodeCount(); i++) {
 				userLevelPhi.add(ScriptNode.USER_LEVEL_TOP);
 			}
-			for (ScriptNode node : routine.getNodes()) {
-				if (node.lineNumber > (lineCoverage.size() + 1)) {
+			for (int i = 0; i < routine.getNodeCount(); i++) {
+				int lineNumber = routine.getLineNumber(i);
+				if (lineNumber > (lineCoverage.size() + 1)) {
 					Log.error("Node with opcode 0x%x in 0x%x has line number %d, but the file only has %d lines",
-							node.opcode, routine.hash, node.lineNumber, lineCoverage.size());
+							routine.getOpcode(i), routine.hash, lineNumber, lineCoverage.size());
 					continue;
 				}
-				if (node.opcode == 0)
+				if (routine.getOpcode(i) == 0)
 					continue; // there is no opcode zero
 
-				if (node instanceof ScriptBranchNode) {
-					ScriptBranchNode branch = (ScriptBranchNode) node;
-					if (branch.getBranchUserLevel() != entryUserLevel) {
-						if (branch.getBranchUserLevel() != ScriptNode.USER_LEVEL_TOP) {
-							int targetIndex = branch.getTargetIndex();
+				if (TypeFlag.BRANCH.isSet(routine.getTypeFlags(i))) {
+					int branchUserLevel = routine.getBranchUserLevel(i);
+					if (branchUserLevel != entryUserLevel) {
+						if (branchUserLevel != ScriptNode.USER_LEVEL_TOP) {
+							int targetIndex = routine.getBranchTargetIndex(i);
 							if (targetIndex != ScriptBranchNode.UNASSIGNED_BRANCH_TARGET_ID) {
-								userLevelPhi.set(targetIndex, branch.getBranchUserLevel());
+								userLevelPhi.set(targetIndex, branchUserLevel);
 								changedUserLevel = true;
-								Log.message("Starting phi %d on node %d, line %d of 0x%x", branch.getBranchUserLevel(),
-										targetIndex, routine.getNode(targetIndex).lineNumber, routine.hash);
+								Log.message("Starting phi %d on node %d, line %d of 0x%x", branchUserLevel,
+										targetIndex, routine.getLineNumber(targetIndex), routine.hash);
 							} else {
 								Log.message("Skipping phi for branch with unknown target in 0x%x", routine.hash);
 							}
@@ -77,8 +79,8 @@ class ApplicationFile {
 					}
 				}
 
-				lineCoverage.set(getLineIndex(node), routine.hash);
-				userLevelCoverage.set(getLineIndex(node), entryUserLevel);
+				lineCoverage.set(getLineIndex(lineNumber), routine.hash);
+				userLevelCoverage.set(getLineIndex(lineNumber), entryUserLevel);
 			}
 
 			int iteration = 0, maxIterations = 50;
@@ -90,32 +92,32 @@ class ApplicationFile {
 					int phi = userLevelPhi.get(i);
 					if (phi != ScriptNode.USER_LEVEL_TOP) {
 						for (int j = i; j < routine.getNodeCount(); j++) {
-							ScriptNode node = routine.getNode(j);
-							if (userLevelCoverage.get(getLineIndex(node)) != phi) {
-								userLevelCoverage.set(getLineIndex(node), phi);
-								Log.message("Changing user level on line %d of 0x%x to %d", node.lineNumber,
+							int lineIndex = getLineIndex(routine.getLineNumber(j));
+							if (userLevelCoverage.get(lineIndex) != phi) {
+								userLevelCoverage.set(lineIndex, phi);
+								Log.message("Changing user level on line %d of 0x%x to %d", routine.getLineNumber(j),
 										routine.hash, phi);
 								changedUserLevel = true;
 							}
-							if (node instanceof ScriptBranchNode) {
-								ScriptBranchNode branch = (ScriptBranchNode) node;
-								int targetIndex = branch.getTargetIndex();
+							if (TypeFlag.BRANCH.isSet(routine.getTypeFlags(j))) {
+								int branchUserLevel = routine.getBranchUserLevel(j);
+								int targetIndex = routine.getBranchTargetIndex(j);
 								if (targetIndex != ScriptBranchNode.UNASSIGNED_BRANCH_TARGET_ID) {
 									int targetPhi = userLevelPhi.get(targetIndex);
-									if (branch.getBranchUserLevel() < targetPhi) {
-										userLevelPhi.set(targetIndex, branch.getBranchUserLevel());
+									if (branchUserLevel < targetPhi) {
+										userLevelPhi.set(targetIndex, branchUserLevel);
 										changedUserLevel = true;
 										Log.message("Propagating phi %d on node %d, line %d of 0x%x",
-												branch.getBranchUserLevel(), targetIndex,
-												routine.getNode(targetIndex).lineNumber, routine.hash);
+												branchUserLevel, targetIndex, routine.getLineNumber(targetIndex),
+												routine.hash);
 									}
-									if (branch.isConditional()
-											&& userLevelCoverage.get(getLineIndex(node)) < userLevelPhi.get(j + 1)) {
-										userLevelPhi.set(j + 1, userLevelCoverage.get(getLineIndex(node)));
+									if (ScriptBranchNode.isConditional(routine.getOpcode(j))
+											&& userLevelCoverage.get(lineIndex) < userLevelPhi.get(j + 1)) {
+										userLevelPhi.set(j + 1, userLevelCoverage.get(lineIndex));
 										changedUserLevel = true;
 										Log.message("Propagating phi %d on node %d, line %d of 0x%x",
-												userLevelCoverage.get(getLineIndex(node)), j + 1,
-												routine.getNode(j + 1).lineNumber, routine.hash);
+												userLevelCoverage.get(lineIndex), j + 1,
+												routine.getLineNumber(j + 1), routine.hash);
 									}
 									break;
 								}
@@ -127,7 +129,7 @@ class ApplicationFile {
 		}
 	}
 
-	int getLineIndex(ScriptNode node) {
-		return Math.max(0, node.lineNumber - 1);
+	int getLineIndex(int lineNumber) {
+		return Math.max(0, lineNumber - 1);
 	}
 }
@@ -22,8 +22,7 @@ import edu.uci.plrg.cfi.php.merge.graph.ScriptDataFilename;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptFlowGraph;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptNode;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptRoutineGraph;
-import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptDatasetLoader;
-import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptGraphDataFiles.Type;
+import edu.uci.plrg.cfi.php.merge.graph.loader.MappedScriptFlowGraph;
 
 public class DictionaryTest {
 
@@ -57,7 +56,6 @@ public class DictionaryTest {
 	private final RoutineLineMap routineLineMap = new RoutineLineMap();
 	private final TestSelector testSelector = new TestSelector();
 
-	private final ScriptDatasetLoader datasetLoader = new ScriptDatasetLoader();
 	private ScriptFlowGraph dataset;
 
 	private File outputFile;
@@ -110,8 +108,7 @@ public class DictionaryTest {
 			datasetDirectory = new File(datasetDir.getValue());
 			File datasetFile = ScriptDataFilename.CFG.requireFile(datasetDirectory);
 			File routineCatalogFile = ScriptDataFilename.ROUTINE_CATALOG.requireFile(datasetDirectory);
-			dataset = new ScriptFlowGraph(Type.DATASET, datasetFile.getAbsolutePath(), false);
-			datasetLoader.loadDataset(datasetFile, routineCatalogFile, dataset, false);
+			dataset = new MappedScriptFlowGraph(datasetFile, routineCatalogFile);
 
 			for (ScriptRoutineGraph routine : dataset.getRoutines()) {
 				if (dataset.edges.getIncomingEdgeCount(routine.hash) == 0)
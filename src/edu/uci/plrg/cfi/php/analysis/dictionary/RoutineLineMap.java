@@ -152,7 +152,7 @@ public class RoutineLineMap {
 
 	private static final WordAppearanceCount.SetBuilder wordListAggregator = new WordAppearanceCount.SetBuilder();
 
-	private final ScriptDatasetLoader cfgLoader = new ScriptDatasetLoader();
+	private final ScriptDatasetLoader cfgLoader = new ScriptDatasetLoader(true/* compact */);
 
 	private final Map<ColoredRoutineSpan, RoutineSpan> routineSpans = new HashMap<ColoredRoutineSpan, RoutineSpan>();
 
@@ -255,6 +255,7 @@ public class RoutineLineMap {
 
 		ScriptFlowGraph cfg = new ScriptFlowGraph(Type.DATASET, dataset.getAbsolutePath(), false);
 		cfgLoader.loadDataset(dataset, routineCatalog, cfg, false);
+		cfg = cfg.freeze();
 
 		for (ApplicationFile appFile : datasetFiles)
 			appFile.mapLineCoverage(cfg);
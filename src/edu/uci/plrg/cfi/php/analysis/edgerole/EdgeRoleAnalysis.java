@@ -15,8 +15,7 @@ import edu.uci.plrg.cfi.php.merge.graph.ScriptDataFilename;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptFlowGraph;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptNode;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptRoutineGraph;
-import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptDatasetLoader;
-import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptGraphDataFiles.Type;
+import edu.uci.plrg.cfi.php.merge.graph.loader.MappedScriptFlowGraph;
 
 public class EdgeRoleAnalysis {
 	public static final OptionArgumentMap.StringOption phpDir = OptionArgumentMap.createStringOption('s');
@@ -31,7 +30,6 @@ public class EdgeRoleAnalysis {
 	private final ArgumentStack args;
 	private final OptionArgumentMap argMap;
 
-	private final ScriptDatasetLoader datasetLoader = new ScriptDatasetLoader();
 	private ScriptFlowGraph dataset;
 
 	private File datasetDirectory;
@@ -72,8 +70,7 @@ public class EdgeRoleAnalysis {
 			datasetDirectory = new File(datasetDir.getValue());
 			File datasetFile = ScriptDataFilename.CFG.requireFile(datasetDirectory);
 			File routineCatalogFile = ScriptDataFilename.ROUTINE_CATALOG.requireFile(datasetDirectory);
-			dataset = new ScriptFlowGraph(Type.DATASET, datasetFile.getAbsolutePath(), false);
-			datasetLoader.loadDataset(datasetFile, routineCatalogFile, dataset, false);
+			dataset = new MappedScriptFlowGraph(datasetFile, routineCatalogFile);
 
 			for (Path file : RoutineId.Cache.INSTANCE.getAllKnownFiles()) {
 				Log.log(" === %s", file);
@@ -6,8 +6,10 @@ import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
+import edu.uci.plrg.cfi.php.analysis.request.RequestSequenceLoader.PartitionedRequestCollection;
 import edu.uci.plrg.cfi.php.feature.FeatureCrossValidationSets;
 import edu.uci.plrg.cfi.php.feature.FeatureResponse;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptRoutineGraph;
 
 public class CrossValidationRequestGraph extends RequestGraph {
 
@@ -75,6 +77,11 @@ public class CrossValidationRequestGraph extends RequestGraph {
 	private RequestGroup currentGroup;
 
 	public CrossValidationRequestGraph(FeatureCrossValidationSets kSets) {
+		this(kSets, new HashMap<Integer, ScriptRoutineGraph>());
+	}
+
+	private CrossValidationRequestGraph(FeatureCrossValidationSets kSets, Map<Integer, ScriptRoutineGraph> routines) {
+		super(routines);
 		this.kSets = kSets;
 
 		rawRequestsByK = new RequestGroup[kSets.getNumberOfSets()];
@@ -101,6 +108,29 @@ public class CrossValidationRequestGraph extends RequestGraph {
 		return true;
 	}
 
+	@Override
+	public PartitionedRequestCollection createPartial() {
+		return new CrossValidationRequestGraph(kSets, routines);
+	}
+
+	/**
+	 * Keeps the first edge of each group, unless a later one is anonymous and it is not, as `addEdge()` does.
+	 */
+	@Override
+	public void combine(PartitionedRequestCollection partial) {
+		super.combine(partial);
+
+		CrossValidationRequestGraph graph = (CrossValidationRequestGraph) partial;
+		for (int k = 0; k < rawRequestsByK.length; k++) {
+			Map<RawEdge.EndpointKey, RawEdge> edges = rawRequestsByK[k].edges;
+			for (RawEdge edge : graph.rawRequestsByK[k].edges.values()) {
+				RawEdge existing = edges.get(edge.key);
+				if (existing == null || (!edge.isAdmin && existing.isAdmin))
+					edges.put(edge.key, edge);
+			}
+		}
+	}
+
 	public void train(int k) throws NumberFormatException, IOException {
 		for (RawEdge edge : rawRequestsByK[k].edges.values()) {
 			super.addEdge(edge.key.fromRoutineHash, edge.key.fromIndex, edge.key.toRoutineHash,
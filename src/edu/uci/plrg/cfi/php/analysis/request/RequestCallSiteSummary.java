@@ -1,54 +1,25 @@
 package edu.uci.plrg.cfi.php.analysis.request;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 import edu.uci.plrg.cfi.php.merge.graph.RoutineId;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptNode;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptRoutineGraph;
+import edu.uci.plrg.cfi.php.util.LongHashMap;
 
 public class RequestCallSiteSummary {
 
-	public static class CallSiteKey {
-		final int routineHash;
-		final int nodeIndex;
-
-		public CallSiteKey(int routineHash, int nodeIndex) {
-			this.routineHash = routineHash;
-			this.nodeIndex = nodeIndex;
-		}
-
-		@Override
-		public int hashCode() {
-			final int prime = 31;
-			int result = 1;
-			result = prime * result + nodeIndex;
-			result = prime * result + routineHash;
-			return result;
-		}
-
-		@Override
-		public boolean equals(Object obj) {
-			if (this == obj)
-				return true;
-			if (obj == null)
-				return false;
-			if (getClass() != obj.getClass())
-				return false;
-			CallSiteKey other = (CallSiteKey) obj;
-			if (nodeIndex != other.nodeIndex)
-				return false;
-			if (routineHash != other.routineHash)
-				return false;
-			return true;
-		}
-	}
+	private static final int EDGE_INDEX_THRESHOLD = 8;
 
 	public final RoutineId id;
 	public final ScriptRoutineGraph routine;
 	public final ScriptNode node;
 	
 	private final List<RequestEdgeSummary> edges = new ArrayList<RequestEdgeSummary>();
+	private LongHashMap<RequestEdgeSummary> edgeIndex = null; // by callee hash, once the site has many callees
 
 	double regularity = 0.0;
 
@@ -59,6 +30,9 @@ public class RequestCallSiteSummary {
 	}
 
 	public RequestEdgeSummary getEdge(int targetRoutineHash) {
+		if (edgeIndex != null)
+			return edgeIndex.get(targetRoutineHash);
+
 		for (RequestEdgeSummary edge : edges) {
 			if (edge.callee.hash == targetRoutineHash)
 				return edge;
@@ -74,24 +48,43 @@ public class RequestCallSiteSummary {
 		return regularity;
 	}
 
-	void addEdge(RoutineId calleeId, ScriptRoutineGraph callee, int userLevel) {
-		RequestEdgeSummary edge = null;
-		for (RequestEdgeSummary e : edges) {
-			if (e.matches(callee)) {
-				edge = e;
-				break;
-			}
-		}
-		if (edge == null) {
-			edge = new RequestEdgeSummary(this, calleeId, callee);
-			edges.add(edge);
-		}
+	void addEdge(int calleeHash, ScriptRoutineGraph callee, int userLevel, File routineCatalog)
+			throws NumberFormatException, IOException {
+		RequestEdgeSummary edge = getEdge(calleeHash);
+		if (edge == null)
+			edge = appendEdge(new RequestEdgeSummary(this, RoutineId.Cache.INSTANCE.getId(routineCatalog, calleeHash),
+					callee));
 		if (userLevel < 2)
 			edge.anonymousCount++;
 		else
 			edge.adminCount++;
 	}
 
+	/**
+	 * Add the edges of the same call site in a partial request graph, which follow the edges of this one.
+	 */
+	void combine(RequestCallSiteSummary other) {
+		for (RequestEdgeSummary otherEdge : other.edges) {
+			RequestEdgeSummary edge = getEdge(otherEdge.callee.hash);
+			if (edge == null)
+				edge = appendEdge(new RequestEdgeSummary(this, otherEdge.calleeId, otherEdge.callee));
+			edge.anonymousCount += otherEdge.anonymousCount;
+			edge.adminCount += otherEdge.adminCount;
+		}
+	}
+
+	private RequestEdgeSummary appendEdge(RequestEdgeSummary edge) {
+		edges.add(edge);
+		if (edgeIndex != null) {
+			edgeIndex.put(edge.callee.hash, edge);
+		} else if (edges.size() > EDGE_INDEX_THRESHOLD) {
+			edgeIndex = new LongHashMap<RequestEdgeSummary>(edges.size() * 2);
+			for (RequestEdgeSummary e : edges)
+				edgeIndex.put(e.callee.hash, e);
+		}
+		return edge;
+	}
+
 	public void calculateRegularity() {
 		if (edges.size() == 1) {
 			regularity = 1.0;
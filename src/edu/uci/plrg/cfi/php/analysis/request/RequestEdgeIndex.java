@@ -0,0 +1,233 @@
+package edu.uci.plrg.cfi.php.analysis.request;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import edu.uci.plrg.cfi.common.log.Log;
+import edu.uci.plrg.cfi.php.merge.graph.loader.MappedRunFile;
+
+/**
+ * Byte offsets of the requests in a request-edge.run, kept next to it as "request-edge.run.idx", so that the request
+ * count and the start of any request can be found without scanning the edges. The index file is little-endian:
+ *
+ * <pre>
+ * header:  [ INDEX_TAG, request count, request edge file size (long) ]
+ * entries: [ request id, edge count, header offset (long) ]*
+ * </pre>
+ *
+ * An index is stale if it records a different file size or is older than the request edge file. `load()` then
+ * rebuilds it with one scan of the file and rewrites it if it can.
+ */
+public class RequestEdgeIndex {
+
+	public static class Builder {
+		private int requestIds[] = new int[0x100];
+		private int edgeCounts[] = new int[0x100];
+		private long offsets[] = new long[0x100];
+		private int requestCount = 0;
+
+		public void addRequest(int requestId, long headerOffset, int edgeCount) {
+			if (requestCount == requestIds.length) {
+				requestIds = Arrays.copyOf(requestIds, requestCount * 2);
+				edgeCounts = Arrays.copyOf(edgeCounts, requestCount * 2);
+				offsets = Arrays.copyOf(offsets, requestCount * 2);
+			}
+			requestIds[requestCount] = requestId;
+			edgeCounts[requestCount] = edgeCount;
+			offsets[requestCount] = headerOffset;
+			requestCount++;
+		}
+
+		public RequestEdgeIndex build(long fileSize) {
+			return new RequestEdgeIndex(Arrays.copyOf(requestIds, requestCount), Arrays.copyOf(edgeCounts,
+					requestCount), Arrays.copyOf(offsets, requestCount), fileSize);
+		}
+	}
+
+	public static final int INDEX_TAG = 0x78646971; // "qidx"
+	public static final int RECORD_SIZE = 0x10;
+	private static final int ENTRY_SIZE = 0x10; // also the size of the index header
+
+	/**
+	 * Runs start each request with a header record of tag 2, and `RequestMerge` writes tag 3.
+	 */
+	public static boolean isRequestHeader(int firstField) {
+		return firstField == 2 || firstField == 3;
+	}
+
+	public static File getIndexFile(File requestEdgeFile) {
+		return new File(requestEdgeFile.getParentFile(), requestEdgeFile.getName() + ".idx");
+	}
+
+	/**
+	 * @return the index of `requestEdgeFile`, which is rebuilt and rewritten if it is missing or stale
+	 */
+	public static RequestEdgeIndex load(File requestEdgeFile) throws IOException {
+		RequestEdgeIndex index = open(requestEdgeFile);
+		if (index != null)
+			return index;
+
+		index = build(requestEdgeFile);
+		File indexFile = getIndexFile(requestEdgeFile);
+		try {
+			index.write(indexFile);
+		} catch (IOException e) {
+			Log.warn("Warning: failed to write request edge index %s: %s", indexFile.getAbsolutePath(),
+					e.getMessage());
+		}
+		return index;
+	}
+
+	/**
+	 * @return the index of `requestEdgeFile`, or null if it is missing or stale
+	 */
+	public static RequestEdgeIndex open(File requestEdgeFile) throws IOException {
+		File indexFile = getIndexFile(requestEdgeFile);
+		if (!indexFile.exists() || indexFile.lastModified() < requestEdgeFile.lastModified())
+			return null;
+
+		ByteBuffer data;
+		RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+		} finally {
+			file.close();
+		}
+
+		if (data.remaining() < ENTRY_SIZE || data.getInt() != INDEX_TAG)
+			return null;
+		int requestCount = data.getInt();
+		long fileSize = data.getLong();
+		if (fileSize != requestEdgeFile.length() || data.remaining() != (requestCount * (long) ENTRY_SIZE))
+			return null;
+
+		int requestIds[] = new int[requestCount], edgeCounts[] = new int[requestCount];
+		long offsets[] = new long[requestCount];
+		for (int i = 0; i < requestCount; i++) {
+			requestIds[i] = data.getInt();
+			edgeCounts[i] = data.getInt();
+			offsets[i] = data.getLong();
+		}
+		return new RequestEdgeIndex(requestIds, edgeCounts, offsets, fileSize);
+	}
+
+	/**
+	 * Index `requestEdgeFile` with one scan, without writing the index.
+	 */
+	public static RequestEdgeIndex build(File requestEdgeFile) throws IOException {
+		Builder builder = new Builder();
+		MappedRunFile in = new MappedRunFile(requestEdgeFile, 4);
+		long offset = 0L, headerOffset = 0L;
+		int firstField, requestId = 0, edgeCount = 0;
+		boolean inRequest = false;
+
+		try {
+			for (; in.nextRecord(); offset += RECORD_SIZE) {
+				firstField = in.getInt();
+				if (isRequestHeader(firstField)) {
+					if (inRequest)
+						builder.addRequest(requestId, headerOffset, edgeCount);
+					inRequest = true;
+					requestId = in.getInt();
+					headerOffset = offset;
+					edgeCount = 0;
+				} else {
+					in.getInt();
+					edgeCount++;
+				}
+				in.getInt();
+				in.getInt();
+			}
+			if (inRequest)
+				builder.addRequest(requestId, headerOffset, edgeCount);
+		} finally {
+			in.close();
+		}
+		return builder.build(requestEdgeFile.length());
+	}
+
+	private final int requestIds[];
+	private final int edgeCounts[];
+	private final long offsets[];
+	private final long fileSize;
+	private final boolean isSorted; // by request id
+
+	private RequestEdgeIndex(int requestIds[], int edgeCounts[], long offsets[], long fileSize) {
+		this.requestIds = requestIds;
+		this.edgeCounts = edgeCounts;
+		this.offsets = offsets;
+		this.fileSize = fileSize;
+
+		boolean isSorted = true;
+		for (int i = 1; i < requestIds.length && isSorted; i++)
+			isSorted = requestIds[i - 1] < requestIds[i];
+		this.isSorted = isSorted;
+	}
+
+	public int getRequestCount() {
+		return requestIds.length;
+	}
+
+	public int getRequestId(int requestIndex) {
+		return requestIds[requestIndex];
+	}
+
+	public int getEdgeCount(int requestIndex) {
+		return edgeCounts[requestIndex];
+	}
+
+	/**
+	 * @return the byte offset of the header of the request at `requestIndex` (in file order)
+	 */
+	public long getHeaderOffset(int requestIndex) {
+		return offsets[requestIndex];
+	}
+
+	/**
+	 * @return the byte offset just past the last edge of the request at `requestIndex`
+	 */
+	public long getEndOffset(int requestIndex) {
+		if (requestIndex + 1 < offsets.length)
+			return offsets[requestIndex + 1];
+		return fileSize - (fileSize % RECORD_SIZE);
+	}
+
+	/**
+	 * @return the position of the request with `requestId` in file order, or -1 if it is not in the file
+	 */
+	public int indexOf(int requestId) {
+		if (isSorted) {
+			int i = Arrays.binarySearch(requestIds, requestId);
+			return (i < 0) ? -1 : i;
+		}
+		for (int i = 0; i < requestIds.length; i++) {
+			if (requestIds[i] == requestId)
+				return i;
+		}
+		return -1;
+	}
+
+	public void write(File indexFile) throws IOException {
+		ByteBuffer data = ByteBuffer.allocate(ENTRY_SIZE * (requestIds.length + 1)).order(ByteOrder.LITTLE_ENDIAN);
+		data.putInt(INDEX_TAG).putInt(requestIds.length).putLong(fileSize);
+		for (int i = 0; i < requestIds.length; i++)
+			data.putInt(requestIds[i]).putInt(edgeCounts[i]).putLong(offsets[i]);
+		data.flip();
+
+		FileOutputStream out = new FileOutputStream(indexFile);
+		try {
+			FileChannel channel = out.getChannel();
+			while (data.hasRemaining())
+				channel.write(data);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -8,21 +8,36 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import edu.uci.plrg.cfi.php.analysis.request.RequestCallSiteSummary.CallSiteKey;
+import edu.uci.plrg.cfi.php.analysis.request.RequestSequenceLoader.PartitionedRequestCollection;
+import edu.uci.plrg.cfi.php.merge.graph.GraphEdgeSet;
 import edu.uci.plrg.cfi.php.merge.graph.RoutineId;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptRoutineGraph;
 import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptNodeLoader;
+import edu.uci.plrg.cfi.php.util.LongHashMap;
 
-public class RequestGraph implements RequestSequenceLoader.RequestCollection {
+public class RequestGraph implements PartitionedRequestCollection {
 
-	public final Map<Integer, ScriptRoutineGraph> routines = new HashMap<Integer, ScriptRoutineGraph>();
+	public final Map<Integer, ScriptRoutineGraph> routines;
 	public final Map<Integer, Integer> calledRoutineUserLevel = new HashMap<Integer, Integer>();
-	public final Map<CallSiteKey, RequestCallSiteSummary> callSites = new HashMap<CallSiteKey, RequestCallSiteSummary>();
+	// keyed by `GraphEdgeSet.getNodeKey()` of the call site, since it is looked up for every edge
+	public final LongHashMap<RequestCallSiteSummary> callSites = new LongHashMap<RequestCallSiteSummary>();
 	public final Map<Integer, List<RequestCallSiteSummary>> callSitesByRoutine = new HashMap<Integer, List<RequestCallSiteSummary>>();
 	public final Map<Path, List<ScriptRoutineGraph>> routinesBySourceFile = new HashMap<Path, List<ScriptRoutineGraph>>();
 
 	private int totalRequests;
 
+	public RequestGraph() {
+		this(new HashMap<Integer, ScriptRoutineGraph>());
+	}
+
+	/**
+	 * @param routines
+	 *            shared with the graph that this is a partial graph of
+	 */
+	RequestGraph(Map<Integer, ScriptRoutineGraph> routines) {
+		this.routines = routines;
+	}
+
 	public int getTotalRequests() {
 		return totalRequests;
 	}
@@ -32,8 +47,7 @@ public class RequestGraph implements RequestSequenceLoader.RequestCollection {
 	}
 
 	public RequestCallSiteSummary getCallSite(int routineHash, int opcode) {
-		CallSiteKey key = new CallSiteKey(routineHash, opcode);
-		return callSites.get(key);
+		return callSites.get(GraphEdgeSet.getNodeKey(routineHash, opcode));
 	}
 
 	public RequestEdgeSummary getEdge(int fromRoutineHash, int fromIndex, int toRoutineHash) {
@@ -46,14 +60,10 @@ public class RequestGraph implements RequestSequenceLoader.RequestCollection {
 
 	public boolean addEdge(int fromRoutineHash, int fromIndex, int toRoutineHash, int toIndex, int userLevel,
 			File routineCatalog) throws NumberFormatException, IOException {
-		RequestCallSiteSummary callSite = establishCallSite(
-				RoutineId.Cache.INSTANCE.getId(routineCatalog, fromRoutineHash), fromRoutineHash, fromIndex);
-		callSite.addEdge(RoutineId.Cache.INSTANCE.getId(routineCatalog, toRoutineHash), routines.get(toRoutineHash),
-				userLevel);
+		RequestCallSiteSummary callSite = establishCallSite(routineCatalog, fromRoutineHash, fromIndex);
+		callSite.addEdge(toRoutineHash, routines.get(toRoutineHash), userLevel, routineCatalog);
 
-		Integer currentUserLevel = calledRoutineUserLevel.get(toRoutineHash);
-		if (currentUserLevel == null || currentUserLevel > userLevel)
-			calledRoutineUserLevel.put(toRoutineHash, userLevel);
+		lowerCalledRoutineUserLevel(toRoutineHash, userLevel);
 
 		return true;
 	}
@@ -66,6 +76,36 @@ public class RequestGraph implements RequestSequenceLoader.RequestCollection {
 		return true;
 	}
 
+	@Override
+	public PartitionedRequestCollection createPartial() {
+		return new RequestGraph(routines);
+	}
+
+	/**
+	 * Call sites of `partial` are taken over if they are new, so `partial` must not be used afterwards.
+	 */
+	@Override
+	public void combine(PartitionedRequestCollection partial) {
+		RequestGraph graph = (RequestGraph) partial;
+		for (Map.Entry<Integer, Integer> entry : graph.calledRoutineUserLevel.entrySet())
+			lowerCalledRoutineUserLevel(entry.getKey(), entry.getValue());
+
+		/* in order of first occurrence within each routine, as the sequential load adds them */
+		for (Map.Entry<Integer, List<RequestCallSiteSummary>> entry : graph.callSitesByRoutine.entrySet()) {
+			for (RequestCallSiteSummary site : entry.getValue()) {
+				long key = GraphEdgeSet.getNodeKey(entry.getKey(), site.node.index);
+				RequestCallSiteSummary existing = callSites.get(key);
+				if (existing == null) {
+					callSites.put(key, site);
+					establishRoutineCallSites(entry.getKey()).add(site);
+					establishFileRoutines(site.id.sourceFile);
+				} else {
+					existing.combine(site);
+				}
+			}
+		}
+	}
+
 	@Override
 	public ScriptRoutineGraph createRoutine(int routineHash) {
 		ScriptRoutineGraph routine = new ScriptRoutineGraph(routineHash, RoutineId.Cache.INSTANCE.getId(routineHash),
@@ -79,12 +119,17 @@ public class RequestGraph implements RequestSequenceLoader.RequestCollection {
 		return routines.get(routineHash);
 	}
 
-	private RequestCallSiteSummary establishCallSite(RoutineId routineId, int routineHash, int nodeIndex) {
-		CallSiteKey key = new CallSiteKey(routineHash, nodeIndex);
+	/**
+	 * The `RoutineId` cache is shared by all loading threads, so it is only consulted for a new call site.
+	 */
+	private RequestCallSiteSummary establishCallSite(File routineCatalog, int routineHash, int nodeIndex)
+			throws NumberFormatException, IOException {
+		long key = GraphEdgeSet.getNodeKey(routineHash, nodeIndex);
 		RequestCallSiteSummary site = callSites.get(key);
 		if (site == null) {
 			ScriptRoutineGraph routine = routines.get(routineHash);
-			site = new RequestCallSiteSummary(routineId, routine, routine.getNode(nodeIndex));
+			site = new RequestCallSiteSummary(RoutineId.Cache.INSTANCE.getId(routineCatalog, routineHash), routine,
+					routine.getNode(nodeIndex));
 			callSites.put(key, site);
 			establishRoutineCallSites(routineHash).add(site);
 			establishFileRoutines(site.id.sourceFile);
@@ -92,6 +137,12 @@ public class RequestGraph implements RequestSequenceLoader.RequestCollection {
 		return site;
 	}
 
+	private void lowerCalledRoutineUserLevel(int routineHash, int userLevel) {
+		Integer currentUserLevel = calledRoutineUserLevel.get(routineHash);
+		if (currentUserLevel == null || currentUserLevel > userLevel)
+			calledRoutineUserLevel.put(routineHash, userLevel);
+	}
+
 	private List<RequestCallSiteSummary> establishRoutineCallSites(int routineHash) {
 		List<RequestCallSiteSummary> sites = callSitesByRoutine.get(routineHash);
 		if (sites == null) {
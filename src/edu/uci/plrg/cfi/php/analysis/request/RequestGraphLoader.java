@@ -2,34 +2,100 @@ package edu.uci.plrg.cfi.php.analysis.request;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.FileVisitResult;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import edu.uci.plrg.cfi.common.io.LittleEndianInputStream;
 import edu.uci.plrg.cfi.common.log.Log;
 import edu.uci.plrg.cfi.php.analysis.AnalysisException;
 import edu.uci.plrg.cfi.php.merge.graph.RoutineId;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptDataFilename;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptFlowGraph;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptNode;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptRoutineGraph;
 import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptDatasetLoader;
 import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptGraphDataFiles.Type;
 import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptNodeLoader;
 
+/**
+ * Loads the requests of all request-edge.run files under the added paths into one `RequestGraph`. The directories are
+ * searched in parallel, and the routines of each file set are loaded ahead on a pool of threads, while the requests are
+ * replayed in the order the files were found. A cfg.set is only loaded once, however many file sets refer to it, and
+ * is dropped after the last of them has taken its routines. Its routines are shared by the request graph until the
+ * nodes of a run are added to one, which is then copied first.
+ */
 public class RequestGraphLoader {
 
-	private class RequestFileCollector extends SimpleFileVisitor<Path> {
-		private final List<RequestFileSet> fileSets = new ArrayList<RequestFileSet>();
+	/**
+	 * Finds the file sets in a directory tree in the order of `Files.walkFileTree()`, searching subdirectories in
+	 * parallel.
+	 */
+	private static class RequestFileCollector extends RecursiveTask<List<RequestFileSet>> {
+		private static final long serialVersionUID = 1L;
+
+		private final Path path;
+
+		RequestFileCollector(Path path) {
+			this.path = path;
+		}
 
 		@Override
-		public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+		protected List<RequestFileSet> compute() {
+			List<RequestFileSet> fileSets = new ArrayList<RequestFileSet>();
+			try {
+				if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+					visitFile(path, fileSets);
+					return fileSets;
+				}
+
+				List<Object> entries = new ArrayList<Object>(); // files, or collectors of subdirectories
+				DirectoryStream<Path> directory = Files.newDirectoryStream(path);
+				try {
+					for (Path entry : directory) {
+						if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+							RequestFileCollector collector = new RequestFileCollector(entry);
+							collector.fork();
+							entries.add(collector);
+						} else {
+							entries.add(entry);
+						}
+					}
+				} finally {
+					directory.close();
+				}
+
+				for (Object entry : entries) {
+					if (entry instanceof RequestFileCollector)
+						fileSets.addAll(((RequestFileCollector) entry).join());
+					else
+						visitFile((Path) entry, fileSets);
+				}
+				return fileSets;
+			} catch (IOException e) {
+				throw new AnalysisException(e);
+			}
+		}
+
+		private void visitFile(Path file, List<RequestFileSet> fileSets) {
 			if (ScriptDataFilename.REQUEST_GRAPH.matches(file)) {
 				File routineCatalog = ScriptDataFilename.ROUTINE_CATALOG.requireFile(file.getParent().toFile());
 				File nodeFile = ScriptDataFilename.NODE.getFile(file.getParent().toFile());
@@ -42,14 +108,42 @@ public class RequestGraphLoader {
 					throw new AnalysisException("Cannot find the %s or %s file corresponding to %s",
 							ScriptDataFilename.NODE.filename, ScriptDataFilename.CFG.filename, file.toAbsolutePath());
 			}
-			return FileVisitResult.CONTINUE;
 		}
 	}
 
+	/**
+	 * The routines of one file set, which are loaded apart from the request graph and added to it just before the
+	 * requests are replayed.
+	 */
+	private static class FileSetRoutines implements ScriptNodeLoader.LoadContext {
+		private final Map<Integer, ScriptRoutineGraph> routines = new LinkedHashMap<Integer, ScriptRoutineGraph>();
+
+		@Override
+		public ScriptRoutineGraph createRoutine(int routineHash) {
+			ScriptRoutineGraph routine = new ScriptRoutineGraph(routineHash,
+					RoutineId.Cache.INSTANCE.getId(routineHash), false);
+			routines.put(routine.hash, routine);
+			return routine;
+		}
+
+		@Override
+		public ScriptRoutineGraph getRoutine(int routineHash) {
+			return routines.get(routineHash);
+		}
+	}
+
+	private static final int LOAD_AHEAD_PER_THREAD = 2;
+
 	private final List<Path> paths = new ArrayList<Path>();
 	private final Map<Integer, Path> routineFiles = new HashMap<Integer, Path>();
+	private final ConcurrentHashMap<String, Future<ScriptFlowGraph>> datasets =
+			new ConcurrentHashMap<String, Future<ScriptFlowGraph>>();
+	private final Map<String, AtomicInteger> datasetUses = new HashMap<String, AtomicInteger>(); // file sets to load
+	private final Set<ScriptRoutineGraph> datasetRoutines = Collections
+			.newSetFromMap(new IdentityHashMap<ScriptRoutineGraph, Boolean>()); // in the request graph, not yet copied
 
 	private RequestGraph requestGraph;
+	private int threadCount = Runtime.getRuntime().availableProcessors();
 
 	public void addPath(Path path) {
 		paths.add(path);
@@ -59,32 +153,170 @@ public class RequestGraphLoader {
 		return paths.size();
 	}
 
+	/**
+	 * @param threadCount
+	 *            number of threads that search directories, load routines and load ranges of requests from each
+	 *            request file, or 1 to do everything in order
+	 */
+	public void setThreadCount(int threadCount) {
+		this.threadCount = threadCount;
+	}
+
 	public RequestGraph load(RequestGraph requestGraph) throws IOException {
 		this.requestGraph = requestGraph;
-		RequestFileCollector requestFileCollector = new RequestFileCollector();
-		for (Path path : paths)
-			Files.walkFileTree(path, requestFileCollector);
+		List<RequestFileSet> fileSets = findFileSets();
+		List<File> routineCatalogs = new ArrayList<File>();
+		for (RequestFileSet fileSet : fileSets) {
+			routineCatalogs.add(fileSet.routineCatalog);
+			if (fileSet.datasetFile != null) {
+				String path = fileSet.datasetFile.getCanonicalPath();
+				AtomicInteger uses = datasetUses.get(path);
+				if (uses == null)
+					datasetUses.put(path, uses = new AtomicInteger());
+				uses.incrementAndGet();
+			}
+		}
+
+		RoutineId.Cache.INSTANCE.load(routineCatalogs); // publishes them together, instead of once per file set
 
 		int totalRequests = 0;
-		ScriptNodeLoader nodeLoader = new ScriptNodeLoader();
-		ScriptDatasetLoader cfgLoader = new ScriptDatasetLoader();
-		for (RequestFileSet fileSet : requestFileCollector.fileSets) {
-			nodeLoader.setLoadContext(requestGraph);
-			if (fileSet.nodeFile != null) {
-				nodeLoader.loadNodes(fileSet.nodeFile);
-			} else {
-				ScriptFlowGraph cfg = new ScriptFlowGraph(Type.DATASET, fileSet.datasetFile.getAbsolutePath(), false);
-				cfgLoader.loadDataset(fileSet.datasetFile, fileSet.routineCatalog, cfg, false);
-				for (ScriptRoutineGraph routine : cfg.getRoutines())
-					requestGraph.addRoutine(routine);
+		ExecutorService executor = null;
+		if (threadCount > 1)
+			executor = Executors.newFixedThreadPool(threadCount);
+		try {
+			/* routines are loaded a few file sets ahead, so that they are not all in memory at once */
+			List<Future<FileSetRoutines>> routines = new ArrayList<Future<FileSetRoutines>>();
+			int loadAhead = Math.max(1, threadCount) * LOAD_AHEAD_PER_THREAD;
+			for (int i = 0; i < fileSets.size(); i++) {
+				for (int j = routines.size(); j < Math.min(fileSets.size(), i + loadAhead); j++) {
+					if (executor == null) {
+						FutureTask<FileSetRoutines> load = new FutureTask<FileSetRoutines>(
+								createRoutineLoader(fileSets.get(j)));
+						load.run();
+						routines.add(load);
+					} else {
+						routines.add(executor.submit(createRoutineLoader(fileSets.get(j))));
+					}
+				}
+
+				addRoutines(fileSets.get(i), getResult(routines.get(i)));
+				routines.set(i, null);
+				totalRequests += RequestSequenceLoader.load(fileSets.get(i), requestGraph, threadCount);
 			}
-			totalRequests += RequestSequenceLoader.load(fileSet, requestGraph);
+		} finally {
+			if (executor != null)
+				executor.shutdownNow();
 		}
 
 		Log.log("Loaded %d total requests to analyze", totalRequests);
 
 		this.requestGraph = null;
+		datasets.clear();
+		datasetUses.clear();
+		datasetRoutines.clear();
 		requestGraph.setTotalRequests(totalRequests);
 		return requestGraph;
 	}
+
+	private List<RequestFileSet> findFileSets() {
+		List<RequestFileSet> fileSets = new ArrayList<RequestFileSet>();
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threadCount));
+		try {
+			for (Path path : paths)
+				fileSets.addAll(pool.invoke(new RequestFileCollector(path)));
+		} finally {
+			pool.shutdown();
+		}
+		return fileSets;
+	}
+
+	private Callable<FileSetRoutines> createRoutineLoader(final RequestFileSet fileSet) {
+		return new Callable<FileSetRoutines>() {
+			@Override
+			public FileSetRoutines call() throws Exception {
+				FileSetRoutines routines = new FileSetRoutines();
+				if (fileSet.nodeFile != null) {
+					new ScriptNodeLoader(routines).loadNodes(fileSet.nodeFile);
+				} else {
+					for (ScriptRoutineGraph routine : getDataset(fileSet).getRoutines())
+						routines.routines.put(routine.hash, routine);
+				}
+				return routines;
+			}
+		};
+	}
+
+	/**
+	 * @return the dataset of `fileSet`, which is loaded by the first thread that asks for it and dropped from the cache
+	 *         when the last file set that refers to it asks for it
+	 */
+	private ScriptFlowGraph getDataset(final RequestFileSet fileSet) throws Exception {
+		String path = fileSet.datasetFile.getCanonicalPath();
+		FutureTask<ScriptFlowGraph> load = new FutureTask<ScriptFlowGraph>(new Callable<ScriptFlowGraph>() {
+			@Override
+			public ScriptFlowGraph call() throws Exception {
+				ScriptFlowGraph cfg = new ScriptFlowGraph(Type.DATASET, fileSet.datasetFile.getAbsolutePath(), false);
+				new ScriptDatasetLoader().loadDataset(fileSet.datasetFile, fileSet.routineCatalog, cfg, false);
+				return cfg;
+			}
+		});
+		Future<ScriptFlowGraph> dataset = datasets.putIfAbsent(path, load);
+		if (dataset == null) {
+			dataset = load;
+			load.run();
+		}
+		try {
+			return getResult(dataset);
+		} finally {
+			if (datasetUses.get(path).decrementAndGet() == 0) // every other file set already has the future
+				datasets.remove(path);
+		}
+	}
+
+	/**
+	 * Add the routines as if they were loaded directly into the request graph: the nodes of a run replace the nodes at
+	 * the same index in a routine that is already there, and the routines of a dataset replace the routine. A routine
+	 * of a dataset is shared with the other file sets of that dataset, so it is copied before it is changed.
+	 */
+	private void addRoutines(RequestFileSet fileSet, FileSetRoutines routines) {
+		for (ScriptRoutineGraph routine : routines.routines.values()) {
+			ScriptRoutineGraph existing = requestGraph.getRoutine(routine.hash);
+			if (fileSet.nodeFile == null) {
+				if (existing != null)
+					datasetRoutines.remove(existing);
+				requestGraph.addRoutine(routine);
+				datasetRoutines.add(routine);
+			} else if (existing == null) {
+				requestGraph.addRoutine(routine);
+			} else {
+				if (datasetRoutines.remove(existing)) {
+					ScriptRoutineGraph copy = existing.copy(false);
+					copy.ensureNodeCapacity(Math.max(existing.getNodeCount(), routine.getNodeCount()));
+					for (ScriptNode node : existing.getNodes())
+						copy.addNode(node);
+					requestGraph.addRoutine(copy);
+					existing = copy;
+				}
+				existing.ensureNodeCapacity(routine.getNodeCount());
+				for (ScriptNode node : routine.getNodes())
+					existing.addNode(node);
+			}
+		}
+	}
+
+	private static <T> T getResult(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new AnalysisException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw new AnalysisException(e);
+		}
+	}
 }
@@ -2,11 +2,14 @@ package edu.uci.plrg.cfi.php.analysis.request;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import edu.uci.plrg.cfi.common.io.LittleEndianInputStream;
 import edu.uci.plrg.cfi.common.log.Log;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptFlowGraph;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptRoutineGraph;
+import edu.uci.plrg.cfi.php.merge.graph.loader.MappedRunFile;
 import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptDatasetLoader;
 import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptGraphDataFiles.Type;
 import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptNodeLoader;
@@ -22,52 +25,183 @@ public class RequestSequenceLoader {
 		public void addRoutine(ScriptRoutineGraph routine);
 	}
 
-	private static final int REQUEST_HEADER_TAG = 2;
+	/**
+	 * A collection that only aggregates its requests, so that ranges of requests can be loaded concurrently into
+	 * separate partial collections. Loading a partial collection must not modify anything it shares with the others,
+	 * and must not stop early. Combining the partial collections in file order must give the same result as loading
+	 * all the requests into one collection.
+	 */
+	public interface PartitionedRequestCollection extends RequestCollection {
+		/**
+		 * @return an empty collection for a range of requests, which may share the routines of this one
+		 */
+		PartitionedRequestCollection createPartial();
 
-	public static int peekRequestCount(File requestFile) throws IOException {
-		LittleEndianInputStream in = new LittleEndianInputStream(requestFile);
-		int firstField, totalRequests = 0;
+		/**
+		 * Add everything in `partial`, which holds the requests that follow the ones in this collection.
+		 */
+		void combine(PartitionedRequestCollection partial);
+	}
 
-		try {
-			while (in.ready(0x10)) {
-				firstField = in.readInt();
-				in.readInt();
-				in.readInt();
-				in.readInt();
-				if (firstField == REQUEST_HEADER_TAG)
-					totalRequests++;
+	/**
+	 * Loads a range of requests into a partial collection, splitting the range until it is small enough.
+	 */
+	private static class LoadRangeTask extends RecursiveTask<PartitionedRequestCollection> {
+		private static final long serialVersionUID = 1L;
+
+		private final RequestFileSet fileSet;
+		private final PartitionedRequestCollection requests;
+		private final RequestEdgeIndex index;
+		private final int start, end, rangeSize;
+		private final AtomicInteger totalRequests;
+
+		LoadRangeTask(RequestFileSet fileSet, PartitionedRequestCollection requests, RequestEdgeIndex index,
+				int start, int end, int rangeSize, AtomicInteger totalRequests) {
+			this.fileSet = fileSet;
+			this.requests = requests;
+			this.index = index;
+			this.start = start;
+			this.end = end;
+			this.rangeSize = rangeSize;
+			this.totalRequests = totalRequests;
+		}
+
+		@Override
+		protected PartitionedRequestCollection compute() {
+			if ((end - start) <= rangeSize) {
+				PartitionedRequestCollection partial = requests.createPartial();
+				totalRequests.addAndGet(load(fileSet, partial, index, start, end - start));
+				return partial;
+			} else {
+				int middle = (start + end) >>> 1;
+				LoadRangeTask first = new LoadRangeTask(fileSet, requests, index, start, middle, rangeSize,
+						totalRequests);
+				LoadRangeTask second = new LoadRangeTask(fileSet, requests, index, middle, end, rangeSize,
+						totalRequests);
+				invokeAll(first, second);
+				PartitionedRequestCollection combined = first.join();
+				combined.combine(second.join());
+				return combined;
 			}
+		}
+	}
+
+	private static final int MIN_RANGE_REQUEST_COUNT = 0x400;
+	private static final int RANGES_PER_THREAD = 4;
+
+	/**
+	 * Reads the request edge index, which is built and written on first use.
+	 */
+	public static int peekRequestCount(File requestFile) throws IOException {
+		try {
+			return RequestEdgeIndex.load(requestFile).getRequestCount();
 		} catch (Exception e) {
 			Log.error("Failed to load request count from file %s:", requestFile.getAbsolutePath());
 			Log.log(e);
-		} finally {
-			in.close();
+			return 0;
 		}
-		return totalRequests;
 	}
 
 	public static int load(RequestFileSet fileSet, RequestCollection requests) throws IOException {
-		LittleEndianInputStream in = new LittleEndianInputStream(fileSet.requestFile);
+		return load(fileSet, requests, 0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Load `requestCount` requests, starting with the request at `firstRequest` in file order. The request edge index
+	 * locates the first request, unless it is the first in the file.
+	 *
+	 * @return the number of requests that were started
+	 */
+	public static int load(RequestFileSet fileSet, RequestCollection requests, int firstRequest, int requestCount)
+			throws IOException {
+		RequestEdgeIndex index = null;
+		if (firstRequest > 0) {
+			try {
+				index = RequestEdgeIndex.load(fileSet.requestFile);
+			} catch (Exception e) {
+				Log.error("Failed to load the request index of file %s (skipping it):",
+						fileSet.requestFile.getAbsolutePath());
+				Log.log(e);
+				return 0;
+			}
+		}
+		return load(fileSet, requests, index, firstRequest, requestCount);
+	}
+
+	/**
+	 * Load the requests into partial collections on `threadCount` threads, and combine them into `requests`. Each
+	 * thread loads whole ranges of consecutive requests, which are found through the request edge index.
+	 *
+	 * @return the number of requests that were started
+	 */
+	public static int load(RequestFileSet fileSet, PartitionedRequestCollection requests, int threadCount)
+			throws IOException {
+		/* a file with fewer records than two ranges is not worth indexing */
+		long recordCount = fileSet.requestFile.length() / RequestEdgeIndex.RECORD_SIZE;
+		if (threadCount <= 1 || recordCount < (MIN_RANGE_REQUEST_COUNT * 2))
+			return load(fileSet, requests);
+
+		RequestEdgeIndex index;
+		try {
+			index = RequestEdgeIndex.load(fileSet.requestFile);
+		} catch (Exception e) {
+			Log.warn("Warning: failed to load the request index of file %s. Loading it on one thread.",
+					fileSet.requestFile.getAbsolutePath());
+			Log.log(e);
+			return load(fileSet, requests);
+		}
+
+		int rangeSize = Math.max(MIN_RANGE_REQUEST_COUNT, index.getRequestCount() / (threadCount * RANGES_PER_THREAD));
+		if (index.getRequestCount() <= rangeSize)
+			return load(fileSet, requests);
+
+		AtomicInteger totalRequests = new AtomicInteger();
+		ForkJoinPool pool = new ForkJoinPool(threadCount);
+		try {
+			requests.combine(pool.invoke(new LoadRangeTask(fileSet, requests, index, 0, index.getRequestCount(),
+					rangeSize, totalRequests)));
+		} finally {
+			pool.shutdown();
+		}
+		return totalRequests.get();
+	}
+
+	/**
+	 * @param index
+	 *            locates `firstRequest`, and may be null if it is 0
+	 */
+	private static int load(RequestFileSet fileSet, RequestCollection requests, RequestEdgeIndex index,
+			int firstRequest, int requestCount) {
 		int firstField, requestId, fromIndex, toRoutineHash, toIndex, userLevel, totalRequests = 0;
+		MappedRunFile in = null;
 
 		try {
-			while (in.ready(0x10)) {
-				firstField = in.readInt();
-				if (firstField == REQUEST_HEADER_TAG) {
-					requestId = in.readInt();
-					in.readInt();
-					in.readInt();
+			in = new MappedRunFile(fileSet.requestFile, 4);
+			if (firstRequest > 0) {
+				if (firstRequest >= index.getRequestCount())
+					return 0;
+				in.seek(index.getHeaderOffset(firstRequest));
+			}
+
+			while (in.nextRecord()) {
+				firstField = in.getInt();
+				if (RequestEdgeIndex.isRequestHeader(firstField)) {
+					if (totalRequests == requestCount)
+						break;
+					requestId = in.getInt();
+					in.getInt();
+					in.getInt();
 					totalRequests++;
 					if (requests.startRequest(requestId, fileSet.routineCatalog))
 						continue;
 					else
 						break;
 				}
-				fromIndex = in.readInt();
+				fromIndex = in.getInt();
 				userLevel = (fromIndex >>> 26);
 				fromIndex = (fromIndex & 0x3ffffff);
-				toRoutineHash = in.readInt();
-				toIndex = in.readInt();
+				toRoutineHash = in.getInt();
+				toIndex = in.getInt();
 
 				if (!requests.addEdge(firstField, fromIndex, toRoutineHash, toIndex, userLevel, fileSet.routineCatalog))
 					break;
@@ -76,7 +210,13 @@ public class RequestSequenceLoader {
 			Log.error("Failed to load file %s (skipping it):", fileSet.requestFile.getAbsolutePath());
 			Log.log(e);
 		} finally {
-			in.close();
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					Log.log(e);
+				}
+			}
 		}
 		return totalRequests;
 	}
@@ -55,23 +55,17 @@ class EdgeFeatureCollector {
 				callSiteCounts.addCounts(edge);
 		}
 
+		/* one call site lookup per incoming edge, which also filters edges outside the current training set */
 		for (RoutineEdge edge : dataSource.dataset.edges.getIncomingEdges(toRoutineHash)) {
-			if (dataSource.trainingRequestGraph.getEdge(edge.getFromRoutineHash(), edge.getFromRoutineIndex(),
-					edge.getToRoutineHash()) != null) { // filter edges outside the current training set
-				callSite = dataSource.trainingRequestGraph.getCallSite(edge.getFromRoutineHash(),
-						edge.getFromRoutineIndex());
-				if (callSite != null) {
-					for (RequestEdgeSummary callingSiteSummary : callSite.getEdges())
-						callingSiteCounts.addCounts(callingSiteSummary);
-				}
-			}
-		}
-
-		for (RoutineEdge edge : dataSource.dataset.edges.getIncomingEdges(toRoutineHash)) {
-			if (dataSource.trainingRequestGraph.getEdge(edge.getFromRoutineHash(), edge.getFromRoutineIndex(),
-					edge.getToRoutineHash()) != null) { // filter edges outside the current training set
-				targetIncomingCounts.addCounts(dataSource.trainingRequestGraph.getEdge(edge.getFromRoutineHash(),
-						edge.getFromRoutineIndex(), toRoutineHash));
+			callSite = dataSource.trainingRequestGraph.getCallSite(edge.getFromRoutineHash(),
+					edge.getFromRoutineIndex());
+			if (callSite == null)
+				continue;
+			RequestEdgeSummary incoming = callSite.getEdge(edge.getToRoutineHash());
+			if (incoming != null) {
+				for (RequestEdgeSummary callingSiteSummary : callSite.getEdges())
+					callingSiteCounts.addCounts(callingSiteSummary);
+				targetIncomingCounts.addCounts(incoming);
 			}
 		}
 
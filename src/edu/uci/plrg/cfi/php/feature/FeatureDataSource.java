@@ -9,13 +9,11 @@ import edu.uci.plrg.cfi.php.analysis.request.CrossValidationRequestGraph;
 import edu.uci.plrg.cfi.php.analysis.request.RequestGraphLoader;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptDataFilename;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptFlowGraph;
-import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptDatasetLoader;
-import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptGraphDataFiles.Type;
+import edu.uci.plrg.cfi.php.merge.graph.loader.MappedScriptFlowGraph;
 
 public class FeatureDataSource {
 
 	private final RequestGraphLoader requestLoader = new RequestGraphLoader();
-	private final ScriptDatasetLoader datasetLoader = new ScriptDatasetLoader();
 
 	final RoutineLineMap routineLineMap = new RoutineLineMap();
 	final ScriptFlowGraph dataset;
@@ -28,8 +26,7 @@ public class FeatureDataSource {
 		File phpDirectory = new File(phpDir);
 		File datasetFile = ScriptDataFilename.CFG.requireFile(datasetDirectory);
 		File routineCatalogFile = ScriptDataFilename.ROUTINE_CATALOG.requireFile(datasetDirectory);
-		dataset = new ScriptFlowGraph(Type.DATASET, datasetFile.getAbsolutePath(), false);
-		datasetLoader.loadDataset(datasetFile, routineCatalogFile, dataset, false);
+		dataset = new MappedScriptFlowGraph(datasetFile, routineCatalogFile);
 		routineLineMap.load(routineCatalogFile, phpDirectory, datasetFile);
 		requestLoader.addPath(datasetDirectory.toPath());
 		trainingRequestGraph = new CrossValidationRequestGraph(crossValidationSets);
@@ -6,7 +6,9 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -18,39 +20,31 @@ public class CatalogMerge {
 		return hash.startsWith("0x8000");
 	}
 
-	private File left;
-	private File right;
+	private final List<File> catalogs;
 
 	private Map<String, String> routines = new HashMap<String, String>();
 
 	public CatalogMerge(File left, File right) {
-		this.left = left;
-		this.right = right;
+		this(Arrays.asList(left, right));
+	}
+
+	public CatalogMerge(List<File> catalogs) {
+		this.catalogs = catalogs;
 	}
 
 	public void merge() throws IOException {
-		BufferedReader inLeft = new BufferedReader(new FileReader(left));
-		BufferedReader inRight = new BufferedReader(new FileReader(right));
+		for (File catalog : catalogs)
+			mergeCatalog(catalog);
+	}
+
+	private void mergeCatalog(File catalog) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(catalog));
 		String line, hash, name, duplicateName;
 		int split;
 
 		try {
-			while (inLeft.ready()) {
-				line = inLeft.readLine();
-				split = line.indexOf(' ');
-				hash = line.substring(0, split);
-				name = line.substring(split + 1);
-
-				duplicateName = routines.get(hash);
-				if (duplicateName == null) {
-					routines.put(hash, name);
-				} else {
-					if (!duplicateName.equals(name) && !isDynamicRoutine(hash))
-						throw new MergeException("Hash collision on %s: %s vs. %s", hash, name, duplicateName);
-				}
-			}
-			while (inRight.ready()) {
-				line = inRight.readLine();
+			while (in.ready()) {
+				line = in.readLine();
 				split = line.indexOf(' ');
 				hash = line.substring(0, split);
 				name = line.substring(split + 1);
@@ -64,8 +58,7 @@ public class CatalogMerge {
 				}
 			}
 		} finally {
-			inLeft.close();
-			inRight.close();
+			in.close();
 		}
 	}
 
@@ -1,8 +1,11 @@
 package edu.uci.plrg.cfi.php.merge;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import edu.uci.plrg.cfi.common.log.Log;
 import edu.uci.plrg.cfi.php.merge.graph.GraphEdgeSet;
@@ -10,6 +13,7 @@ import edu.uci.plrg.cfi.php.merge.graph.RoutineEdge;
 import edu.uci.plrg.cfi.php.merge.graph.RoutineEdge.Type;
 import edu.uci.plrg.cfi.php.merge.graph.RoutineExceptionEdge;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptFlowGraph;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptGraphCloner;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptNode;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptRoutineGraph;
 import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptGraphDataFiles;
@@ -21,6 +25,54 @@ public class DatasetMerge implements ScriptDatasetGenerator.DataSource {
 		RIGHT;
 	}
 
+	/**
+	 * The merged routines that differ from the right side, written as a dataset segment with the dynamic routines
+	 * among the static routines (see `ScriptDatasetSegments`).
+	 */
+	private class ChangedRoutineSource implements ScriptDatasetGenerator.DataSource {
+		private final List<ScriptRoutineGraph> routines = new ArrayList<ScriptRoutineGraph>();
+
+		ChangedRoutineSource() {
+			for (Integer routineHash : changedRoutines) {
+				if (ScriptRoutineGraph.isDynamicRoutine(routineHash))
+					routines.add(dynamicRoutineMerge.mergedGraphs.get(ScriptRoutineGraph
+							.getDynamicRoutineIndex(routineHash)));
+				else
+					routines.add(mergedStaticRoutines.get(routineHash));
+			}
+		}
+
+		@Override
+		public int getDynamicRoutineCount() {
+			return 0;
+		}
+
+		@Override
+		public int getStaticRoutineCount() {
+			return routines.size();
+		}
+
+		@Override
+		public Iterable<ScriptRoutineGraph> getDynamicRoutines() {
+			return new ArrayList<ScriptRoutineGraph>();
+		}
+
+		@Override
+		public Iterable<ScriptRoutineGraph> getStaticRoutines() {
+			return routines;
+		}
+
+		@Override
+		public int getOutgoingEdgeCount(ScriptNode node) {
+			return mergedEdges.getOutgoingEdgeCount(node);
+		}
+
+		@Override
+		public Iterable<RoutineEdge> getOutgoingEdges(ScriptNode node) {
+			return mergedEdges.getOutgoingEdges(node);
+		}
+	}
+
 	final ScriptFlowGraph left;
 	final ScriptFlowGraph right;
 
@@ -28,6 +80,8 @@ public class DatasetMerge implements ScriptDatasetGenerator.DataSource {
 	private final GraphEdgeSet mergedEdges = new GraphEdgeSet();
 	private final DynamicRoutineMerge dynamicRoutineMerge;
 
+	// merged hashes of the routines that are new or changed on the left
+	private final Set<Integer> changedRoutines = new HashSet<Integer>();
 	private final Map<Integer, Integer> userLevelDeltas = new HashMap<Integer, Integer>(); // routineHash->userLevel
 	private int maxUserLevelDelta = 0;
 
@@ -42,17 +96,82 @@ public class DatasetMerge implements ScriptDatasetGenerator.DataSource {
 	}
 
 	public void merge() {
+		addRightDynamicRoutines();
 		Log.log("Add right routines");
 		for (ScriptRoutineGraph rightRoutine : right.getRoutines()) {
-			if (ScriptRoutineGraph.isDynamicRoutine(rightRoutine.hash))
-				dynamicRoutineMerge.addDynamicRoutine(rightRoutine, Side.RIGHT);
-			else
+			if (!ScriptRoutineGraph.isDynamicRoutine(rightRoutine.hash))
 				mergedStaticRoutines.put(rightRoutine.hash, rightRoutine);
 		}
+		addLeftRoutines();
+
+		addRoutineEdges(right, Side.RIGHT);
+		addRoutineEdges(left, Side.LEFT);
+		reportUserLevelDeltas();
+
+		// dataset generator writes from here (interface so it can also write plain graphs?)
+		// nix cloner (hopefully)
+	}
+
+	/**
+	 * Merge only the routines of the left into the right dataset, for writing `getChangedRoutines()` as a dataset
+	 * segment. Apart from its dynamic routines, which are matched against the left ones, the right dataset is only
+	 * read for the routines that the left has, so it can be a `MappedScriptFlowGraph` and the cost follows the size of
+	 * the left. Only for an incremental merge, and afterwards nothing but the changed routines is complete.
+	 */
+	public void mergeChanges() {
+		if (!(dynamicRoutineMerge instanceof IncrementalDynamicRoutineMerge))
+			throw new MergeException("Only an incremental merge can be limited to the changed routines");
+
+		addRightDynamicRoutines();
+		int rightDynamicRoutineCount = dynamicRoutineMerge.mergedGraphs.size();
+
+		Log.log("Copy the right routines of the left");
+		ScriptGraphCloner cloner = new ScriptGraphCloner();
+		for (ScriptRoutineGraph leftRoutine : left.getRoutines()) {
+			if (ScriptRoutineGraph.isDynamicRoutine(leftRoutine.hash))
+				continue;
+			ScriptRoutineGraph rightRoutine = right.getRoutine(leftRoutine.hash);
+			if (rightRoutine != null)
+				mergedStaticRoutines.put(rightRoutine.hash, cloner.copyRoutine(rightRoutine, false));
+		}
+		addLeftRoutines();
+
+		/* a segment replaces each routine along with all of its outgoing edges, so those of the right are needed */
+		Set<Integer> rightRoutines = new HashSet<Integer>(mergedStaticRoutines.keySet());
+		for (ScriptRoutineGraph leftRoutine : left.getRoutines()) {
+			if (ScriptRoutineGraph.isDynamicRoutine(leftRoutine.hash)) {
+				int mergedIndex = dynamicRoutineMerge.getNewLeftDynamicRoutineIndex(ScriptRoutineGraph
+						.getDynamicRoutineIndex(leftRoutine.hash));
+				if (mergedIndex < rightDynamicRoutineCount)
+					rightRoutines.add(ScriptRoutineGraph.constructDynamicHash(mergedIndex));
+			}
+		}
+		for (Integer routineHash : rightRoutines)
+			addRightRoutineEdges(routineHash);
+		addRoutineEdges(left, Side.LEFT);
+		reportUserLevelDeltas();
+	}
+
+	/**
+	 * In index order, so that an incremental merge keeps each right dynamic routine at its own index.
+	 */
+	private void addRightDynamicRoutines() {
+		Log.log("Add right dynamic routines");
+		for (int i = 0; i <= right.getMaxDynamicRoutineIndex(); i++) {
+			ScriptRoutineGraph rightRoutine = right.getDynamicRoutine(i);
+			if (rightRoutine != null)
+				dynamicRoutineMerge.addDynamicRoutine(rightRoutine, Side.RIGHT);
+		}
+	}
+
+	private void addLeftRoutines() {
 		Log.log("Add left routines");
 		for (ScriptRoutineGraph leftRoutine : left.getRoutines()) {
 			if (ScriptRoutineGraph.isDynamicRoutine(leftRoutine.hash)) {
+				int dynamicRoutineCount = dynamicRoutineMerge.mergedGraphs.size();
 				dynamicRoutineMerge.addDynamicRoutine(leftRoutine, Side.LEFT);
+				if (dynamicRoutineMerge.mergedGraphs.size() > dynamicRoutineCount)
+					changedRoutines.add(ScriptRoutineGraph.constructDynamicHash(dynamicRoutineCount));
 			} else {
 				ScriptRoutineGraph rightRoutine = mergedStaticRoutines.get(leftRoutine.hash);
 
@@ -62,88 +181,128 @@ public class DatasetMerge implements ScriptDatasetGenerator.DataSource {
 
 				if (rightRoutine == null) {
 					mergedStaticRoutines.put(leftRoutine.hash, leftRoutine); // adding new routine
+					changedRoutines.add(leftRoutine.hash);
 				} else {
 					try {
-						rightRoutine.mergeRoutine(leftRoutine);
+						if (rightRoutine.mergeRoutine(leftRoutine))
+							changedRoutines.add(leftRoutine.hash);
 					} catch (MergeException e) {
 						Log.error("Incompatible routine graphs for 0x%x: %s", leftRoutine.hash, e.getMessage());
 					}
 				}
 			}
 		}
+	}
 
-		addRoutineEdges(right, Side.RIGHT);
-		addRoutineEdges(left, Side.LEFT);
-		reportUserLevelDeltas();
+	/**
+	 * Wrap the merged routines and edges in a graph, so the result can itself be merged again. The graph shares the
+	 * merged state, so this merge should not be used afterwards.
+	 */
+	public ScriptFlowGraph createMergedGraph(String description) {
+		ScriptFlowGraph graph = new ScriptFlowGraph(ScriptGraphDataFiles.Type.RUN, description, true, mergedEdges);
+		for (ScriptRoutineGraph routine : mergedStaticRoutines.values())
+			graph.addRoutine(routine);
+		for (ScriptRoutineGraph routine : dynamicRoutineMerge.mergedGraphs)
+			graph.addRoutine(routine);
+		return graph;
+	}
 
-		// dataset generator writes from here (interface so it can also write plain graphs?)
-		// nix cloner (hopefully)
+	/**
+	 * Routines from the left that are new or changed in the merge, including those with new or lowered outgoing
+	 * edges. Only valid after `merge()`.
+	 */
+	public ScriptDatasetGenerator.DataSource getChangedRoutines() {
+		return new ChangedRoutineSource();
 	}
 
-	private void addRoutineEdges(ScriptFlowGraph graph, Side fromSide) {
-		boolean added;
-		int toRoutineHash, minUserLevel;
+	public int getChangedRoutineCount() {
+		return changedRoutines.size();
+	}
 
+	private void addRoutineEdges(ScriptFlowGraph graph, Side fromSide) {
 		for (List<RoutineEdge> edges : graph.edges.getOutgoingEdges()) {
-			for (RoutineEdge edge : edges) {
-				try {
-					toRoutineHash = resolveRoutineIndex(edge.getToRoutineHash(), fromSide);
-					minUserLevel = mergedEdges.getMinUserLevel(toRoutineHash);
-					if (edge.getUserLevel() > maxUserLevelDelta)
-						maxUserLevelDelta = edge.getUserLevel();
-
-					if (edge.getEntryType() == Type.THROW) {
-						RoutineExceptionEdge throwEdge = (RoutineExceptionEdge) edge;
-						added = (mergedEdges.addExceptionEdge(
-								resolveRoutineIndex(throwEdge.getFromRoutineHash(), fromSide),
-								getNode(throwEdge.getFromRoutineHash(), fromSide, throwEdge.getFromRoutineIndex()),
-								resolveRoutineIndex(throwEdge.getToRoutineHash(), fromSide),
-								throwEdge.getToRoutineIndex(), throwEdge.getUserLevel()) != null);
-
-						if (ScriptMergeWatchList.watchAny(throwEdge.getFromRoutineHash(),
-								throwEdge.getFromRoutineIndex())
-								|| ScriptMergeWatchList.watch(throwEdge.getToRoutineHash())
-								|| (added && graph.dataSourceType == ScriptGraphDataFiles.Type.RUN && ScriptMergeWatchList
-										.getInstance().isActive(ScriptMergeWatchList.Category.EXCEPTION_EDGE))) {
-							Log.log("Merged exception edge from the %s: %s (0x%x) -%s-> %s",
-									fromSide,
-									throwEdge.printFromNode(),
-									getNode(throwEdge.getFromRoutineHash(), fromSide, throwEdge.getFromRoutineIndex()).opcode,
-									throwEdge.printUserLevel(), throwEdge.printToNode());
-						}
-					} else {
-						added = (mergedEdges.addCallEdge(resolveRoutineIndex(edge.getFromRoutineHash(), fromSide),
-								getNode(edge.getFromRoutineHash(), fromSide, edge.getFromRoutineIndex()),
-								toRoutineHash, edge.getUserLevel()) != null);
-
-						if (ScriptMergeWatchList.watchAny(edge.getFromRoutineHash(), edge.getFromRoutineIndex())
-								|| ScriptMergeWatchList.watch(edge.getToRoutineHash())
-								|| (added && graph.dataSourceType == ScriptGraphDataFiles.Type.RUN && ScriptMergeWatchList
-										.getInstance().isActive(ScriptMergeWatchList.Category.ROUTINE_EDGE))) {
-							Log.log("Merged call edge from the %s: %s (0x%x) -%s-> %s", fromSide, edge.printFromNode(),
-									getNode(edge.getFromRoutineHash(), fromSide, edge.getFromRoutineIndex()).opcode,
-									edge.printUserLevel(), edge.printToNode());
-						}
-					}
-					if (added && graph.dataSourceType == ScriptGraphDataFiles.Type.RUN
-							&& minUserLevel > edge.getUserLevel()) {
-						if (ScriptMergeWatchList.getInstance().isActive(ScriptMergeWatchList.Category.FLOW_USER_LEVEL))
-							userLevelDeltas.put(edge.getToRoutineHash(), edge.getUserLevel());
-						if (ScriptMergeWatchList.getInstance().isActive(
-								ScriptMergeWatchList.Category.ROUTINE_USER_LEVEL)) {
-							Log.log("<UL> %s -> %d 0x%x", RoutineEdge.printUserLevel(minUserLevel),
-									edge.getUserLevel(), edge.getToRoutineHash());
-						}
-					}
-				} catch (Throwable t) {
-					Log.error("Failed to add routine edge from the %S side: 0x%x[0x%x]:%d -%s-> 0x%x:%d (%s: %s)",
-							fromSide, edge.getFromRoutineHash(),
-							resolveRoutineIndex(edge.getFromRoutineHash(), fromSide), edge.getFromRoutineIndex(), edge
-									.printUserLevel(), edge.getToRoutineHash(), edge.getEntryType() == Type.CALL ? 0
-									: ((RoutineExceptionEdge) edge).getToRoutineIndex(), t.getClass().getSimpleName(),
-							t.getMessage());
+			for (RoutineEdge edge : edges)
+				addRoutineEdge(graph, edge, fromSide);
+		}
+	}
+
+	/**
+	 * Add the right edges from one routine, which is already among the merged routines.
+	 */
+	private void addRightRoutineEdges(int routineHash) {
+		ScriptRoutineGraph rightRoutine = right.getRoutine(routineHash);
+		if (rightRoutine == null)
+			return;
+
+		for (ScriptNode node : rightRoutine.getNodes()) {
+			for (RoutineEdge edge : right.edges.getOutgoingEdges(node))
+				addRoutineEdge(right, edge, Side.RIGHT);
+		}
+	}
+
+	private void addRoutineEdge(ScriptFlowGraph graph, RoutineEdge edge, Side fromSide) {
+		boolean added;
+		int fromRoutineHash, toRoutineHash, minUserLevel;
+
+		try {
+			toRoutineHash = resolveRoutineIndex(edge.getToRoutineHash(), fromSide);
+			minUserLevel = mergedEdges.getMinUserLevel(toRoutineHash);
+			if (edge.getUserLevel() > maxUserLevelDelta)
+				maxUserLevelDelta = edge.getUserLevel();
+
+			if (edge.getEntryType() == Type.THROW) {
+				RoutineExceptionEdge throwEdge = (RoutineExceptionEdge) edge;
+				fromRoutineHash = resolveRoutineIndex(throwEdge.getFromRoutineHash(), fromSide);
+				added = (mergedEdges.addExceptionEdge(fromRoutineHash,
+						getNode(throwEdge.getFromRoutineHash(), fromSide, throwEdge.getFromRoutineIndex()),
+						resolveRoutineIndex(throwEdge.getToRoutineHash(), fromSide),
+						throwEdge.getToRoutineIndex(), throwEdge.getUserLevel()) != null);
+
+				if (ScriptMergeWatchList.watchAny(throwEdge.getFromRoutineHash(),
+						throwEdge.getFromRoutineIndex())
+						|| ScriptMergeWatchList.watch(throwEdge.getToRoutineHash())
+						|| (added && graph.dataSourceType == ScriptGraphDataFiles.Type.RUN && ScriptMergeWatchList
+								.getInstance().isActive(ScriptMergeWatchList.Category.EXCEPTION_EDGE))) {
+					Log.log("Merged exception edge from the %s: %s (0x%x) -%s-> %s",
+							fromSide,
+							throwEdge.printFromNode(),
+							getNode(throwEdge.getFromRoutineHash(), fromSide, throwEdge.getFromRoutineIndex()).opcode,
+							throwEdge.printUserLevel(), throwEdge.printToNode());
+				}
+			} else {
+				fromRoutineHash = resolveRoutineIndex(edge.getFromRoutineHash(), fromSide);
+				added = (mergedEdges.addCallEdge(fromRoutineHash,
+						getNode(edge.getFromRoutineHash(), fromSide, edge.getFromRoutineIndex()),
+						toRoutineHash, edge.getUserLevel()) != null);
+
+				if (ScriptMergeWatchList.watchAny(edge.getFromRoutineHash(), edge.getFromRoutineIndex())
+						|| ScriptMergeWatchList.watch(edge.getToRoutineHash())
+						|| (added && graph.dataSourceType == ScriptGraphDataFiles.Type.RUN && ScriptMergeWatchList
+								.getInstance().isActive(ScriptMergeWatchList.Category.ROUTINE_EDGE))) {
+					Log.log("Merged call edge from the %s: %s (0x%x) -%s-> %s", fromSide, edge.printFromNode(),
+							getNode(edge.getFromRoutineHash(), fromSide, edge.getFromRoutineIndex()).opcode,
+							edge.printUserLevel(), edge.printToNode());
+				}
+			}
+			if (added && fromSide == Side.LEFT)
+				changedRoutines.add(fromRoutineHash);
+			if (added && graph.dataSourceType == ScriptGraphDataFiles.Type.RUN
+					&& minUserLevel > edge.getUserLevel()) {
+				if (ScriptMergeWatchList.getInstance().isActive(ScriptMergeWatchList.Category.FLOW_USER_LEVEL))
+					userLevelDeltas.put(edge.getToRoutineHash(), edge.getUserLevel());
+				if (ScriptMergeWatchList.getInstance().isActive(
+						ScriptMergeWatchList.Category.ROUTINE_USER_LEVEL)) {
+					Log.log("<UL> %s -> %d 0x%x", RoutineEdge.printUserLevel(minUserLevel),
+							edge.getUserLevel(), edge.getToRoutineHash());
 				}
 			}
+		} catch (Throwable t) {
+			Log.error("Failed to add routine edge from the %S side: 0x%x[0x%x]:%d -%s-> 0x%x:%d (%s: %s)",
+					fromSide, edge.getFromRoutineHash(),
+					resolveRoutineIndex(edge.getFromRoutineHash(), fromSide), edge.getFromRoutineIndex(), edge
+							.printUserLevel(), edge.getToRoutineHash(), edge.getEntryType() == Type.CALL ? 0
+							: ((RoutineExceptionEdge) edge).getToRoutineIndex(), t.getClass().getSimpleName(),
+					t.getMessage());
 		}
 	}
 
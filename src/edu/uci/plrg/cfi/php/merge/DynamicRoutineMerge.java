@@ -1,7 +1,9 @@
 package edu.uci.plrg.cfi.php.merge;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import edu.uci.plrg.cfi.php.merge.graph.ScriptFlowGraph;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptRoutineGraph;
@@ -11,20 +13,41 @@ public abstract class DynamicRoutineMerge {
 	final List<ScriptRoutineGraph> mergedGraphs = new ArrayList<ScriptRoutineGraph>();
 	final int leftRemapping[];
 
+	// fingerprint -> merged graphs having it, so each routine is only compared to its likely duplicates
+	private final Map<Integer, List<ScriptRoutineGraph>> candidates = new HashMap<Integer, List<ScriptRoutineGraph>>();
+
 	public DynamicRoutineMerge(ScriptFlowGraph left) {
 		leftRemapping = new int[left.getMaxDynamicRoutineIndex() + 1];
 	}
 
 	abstract void remapRoutine(ScriptRoutineGraph routine, int toHash, DatasetMerge.Side fromSide);
 
+	/**
+	 * @return false if routines from `fromSide` are always appended, even when the same routine was already merged
+	 */
+	boolean isMatched(DatasetMerge.Side fromSide) {
+		return true;
+	}
+
 	public void addDynamicRoutine(ScriptRoutineGraph routine, DatasetMerge.Side fromSide) {
-		for (ScriptRoutineGraph merged : mergedGraphs) {
-			if (routine.isSameRoutine(merged)) {
-				remapRoutine(routine, merged.hash, fromSide);
-				return;
+		int fingerprint = routine.getFingerprint();
+		List<ScriptRoutineGraph> sameFingerprint = candidates.get(fingerprint);
+		if (sameFingerprint == null) {
+			sameFingerprint = new ArrayList<ScriptRoutineGraph>(1);
+			candidates.put(fingerprint, sameFingerprint);
+		} else if (isMatched(fromSide)) {
+			for (ScriptRoutineGraph merged : sameFingerprint) {
+				if (routine.isSameRoutine(merged)) {
+					remapRoutine(routine, merged.hash, fromSide);
+					return;
+				}
 			}
 		}
-		mergedGraphs.add(routine.renameDynamicRoutine(mergedGraphs.size(), routine.id, false));
+
+		ScriptRoutineGraph appended = routine.renameDynamicRoutine(mergedGraphs.size(), routine.id, false);
+		mergedGraphs.add(appended);
+		sameFingerprint.add(appended);
+		remapRoutine(routine, appended.hash, fromSide);
 	}
 
 	public Iterable<ScriptRoutineGraph> getMergedGraphs() {
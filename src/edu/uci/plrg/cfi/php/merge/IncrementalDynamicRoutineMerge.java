@@ -10,10 +10,22 @@ public class IncrementalDynamicRoutineMerge extends DynamicRoutineMerge {
 		super(left);
 	}
 
+	/**
+	 * The dynamic routines of the right dataset keep their index, even where the dataset has duplicates.
+	 */
+	@Override
+	boolean isMatched(Side fromSide) {
+		return fromSide == Side.LEFT;
+	}
+
 	@Override
 	protected void remapRoutine(ScriptRoutineGraph routine, int toHash, Side fromSide) {
-		if (fromSide == Side.RIGHT)
-			throw new MergeException("Attempt to append a dynamic routine from the right!");
+		if (fromSide == Side.RIGHT) {
+			if (toHash != routine.hash)
+				throw new MergeException("Attempt to remap dynamic routine 0x%x of the right dataset to 0x%x!",
+						routine.hash, toHash);
+			return;
+		}
 
 		leftRemapping[ScriptRoutineGraph.getDynamicRoutineIndex(routine.hash)] = ScriptRoutineGraph
 				.getDynamicRoutineIndex(toHash);
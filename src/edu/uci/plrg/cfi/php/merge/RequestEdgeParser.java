@@ -2,57 +2,66 @@ package edu.uci.plrg.cfi.php.merge;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
-import edu.uci.plrg.cfi.common.io.LittleEndianInputStream;
-import edu.uci.plrg.cfi.common.io.LittleEndianOutputStream;
+import edu.uci.plrg.cfi.php.analysis.request.RequestEdgeIndex;
 
-public class RequestEdgeParser {
+/**
+ * Reads the requests of a request-edge.run in order. The file is a sequence of 4-int records, where each request
+ * starts with a header record of its tag and id. Only the headers are rewritten; the edge records between them are
+ * copied unchanged. If the file has a current `RequestEdgeIndex`, the requests are found there instead of by scanning.
+ */
+public class RequestEdgeParser extends RequestFileScanner {
 
 	private static final int REQUEST_HEADER_TAG = 3;
+	private static final int RECORD_SIZE = RequestEdgeIndex.RECORD_SIZE;
 
-	final LittleEndianInputStream in;
-	final LittleEndianOutputStream out;
+	private final ByteBuffer header = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	private final long recordsEnd; // any partial record at the end is dropped
+	private final RequestEdgeIndex index; // null if the requests are found by scanning
+	private int requestIndex = 0;
 
-	int firstField;
+	public RequestEdgeParser(File inputFile) throws IOException {
+		super(inputFile);
 
-	public RequestEdgeParser(File inputFile, File outputFile) throws IOException {
-		this(new LittleEndianInputStream(inputFile), new LittleEndianOutputStream(outputFile));
-	}
-
-	public RequestEdgeParser(LittleEndianInputStream in, LittleEndianOutputStream out) throws IOException {
-		this.in = in;
-		this.out = out;
+		recordsEnd = size - (size % RECORD_SIZE);
+		position = RECORD_SIZE; // skip first request header and request id
 
-		// skip first request header and request id
-		in.readInt();
-		in.readInt();
-		in.readInt();
-		in.readInt();
+		RequestEdgeIndex index = RequestEdgeIndex.open(inputFile);
+		if (index != null && index.getRequestCount() > 0 && index.getHeaderOffset(0) != 0L)
+			index = null; // edges before the first header, which the scan copies with the first request
+		this.index = index;
 	}
 
-	void writeNextRequest(int requestId) throws IOException {
-		out.writeInt(REQUEST_HEADER_TAG);
-		out.writeInt(requestId);
-		out.writeInt(0);
-		out.writeInt(0);
-
-		while (in.ready(0x10)) {
-			firstField = in.readInt();
-			if (firstField == REQUEST_HEADER_TAG) {
-				in.readInt(); // skip request id
-				in.readInt();
-				in.readInt();
-				break;
-			} else {
-				out.writeInt(firstField);
-				out.writeInt(in.readInt());
-				out.writeInt(in.readInt());
-				out.writeInt(in.readInt());
+	/**
+	 * @return the number of edges written for the request
+	 */
+	int writeNextRequest(int requestId, RequestFileOutput out) throws IOException {
+		header.clear();
+		header.putInt(REQUEST_HEADER_TAG).putInt(requestId).putInt(0).putInt(0);
+		header.flip();
+		out.write(header);
+
+		long start = position;
+		if (index != null) {
+			if (requestIndex < index.getRequestCount()) {
+				position = index.getEndOffset(requestIndex++);
+				transfer(start, position, out);
+				position += RECORD_SIZE;
+				return (int) ((position - start) / RECORD_SIZE) - 1;
 			}
+			return 0;
 		}
-	}
 
-	void close() throws IOException {
-		in.close();
+		for (; position < recordsEnd; position += RECORD_SIZE) {
+			if (RequestEdgeIndex.isRequestHeader(peekInt())) {
+				transfer(start, position, out);
+				position += RECORD_SIZE; // skip the header of the next request
+				return (int) ((position - start) / RECORD_SIZE) - 1;
+			}
+		}
+		transfer(start, recordsEnd, out);
+		return (int) ((recordsEnd - start) / RECORD_SIZE);
 	}
 }
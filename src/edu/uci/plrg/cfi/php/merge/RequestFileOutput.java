@@ -0,0 +1,60 @@
+package edu.uci.plrg.cfi.php.merge;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Output of a request merge. Most requests are short, so their bytes are gathered in a direct buffer and written in
+ * large blocks; longer spans go from the input file to this file with `FileChannel.transferTo()`.
+ */
+class RequestFileOutput {
+
+	private final FileOutputStream out;
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(RequestFileScanner.BUFFER_SIZE);
+	private long size = 0L;
+
+	RequestFileOutput(File file) throws IOException {
+		out = new FileOutputStream(file);
+		channel = out.getChannel();
+	}
+
+	/**
+	 * @return the number of bytes written so far
+	 */
+	long getSize() {
+		return size;
+	}
+
+	void write(ByteBuffer bytes) throws IOException {
+		if (bytes.remaining() > buffer.remaining())
+			flush();
+		size += bytes.remaining();
+		buffer.put(bytes);
+	}
+
+	/**
+	 * Copy [start, end) of `input` to this file.
+	 */
+	void transferFrom(FileChannel input, long start, long end) throws IOException {
+		flush();
+		size += (end - start);
+		while (start < end)
+			start += input.transferTo(start, end - start, channel);
+	}
+
+	void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	void close() throws IOException {
+		flush();
+		out.close();
+	}
+}
@@ -0,0 +1,97 @@
+package edu.uci.plrg.cfi.php.merge;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Forward scan over a request file through a large direct buffer. Spans of the file are copied to the output from the
+ * buffer, or with `FileChannel.transferTo()` if they are long or no longer buffered, so the bytes of a request never
+ * pass through the heap.
+ */
+abstract class RequestFileScanner {
+
+	static final int BUFFER_SIZE = 1 << 20; // a multiple of the request edge record size
+	static final int MAX_BUFFERED_SPAN = 1 << 16;
+
+	final File file;
+
+	private final FileInputStream in;
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	private final ByteBuffer span = buffer.duplicate(); // view of the buffer for copying spans
+	private long bufferStart = 0L; // file position of the first byte in the buffer
+
+	final long size;
+	long position = 0L; // of the next byte to scan
+
+	RequestFileScanner(File file) throws IOException {
+		this.file = file;
+
+		in = new FileInputStream(file);
+		channel = in.getChannel();
+		size = channel.size();
+		buffer.limit(0);
+	}
+
+	/**
+	 * @return the byte at `position`, advancing past it, or -1 at the end of the file
+	 */
+	int nextByte() throws IOException {
+		if (!fill(position, 1))
+			return -1;
+		return buffer.get((int) (position++ - bufferStart)) & 0xff;
+	}
+
+	/**
+	 * @return the little-endian int at `position`, without advancing
+	 */
+	int peekInt() throws IOException {
+		if (!fill(position, 4))
+			throw new MergeException("Request file %s is truncated at byte %d", file.getAbsolutePath(), position);
+		return buffer.getInt((int) (position - bufferStart));
+	}
+
+	/**
+	 * Copy [start, end) of this file to `out`.
+	 */
+	void transfer(long start, long end, RequestFileOutput out) throws IOException {
+		if (start == end)
+			return;
+		if ((end - start) <= MAX_BUFFERED_SPAN && fill(start, (int) (end - start))) {
+			span.limit((int) (end - bufferStart)).position((int) (start - bufferStart));
+			out.write(span);
+			return;
+		}
+
+		out.transferFrom(channel, start, end);
+	}
+
+	void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Make sure the buffer holds the `length` bytes at `start`, reading the window of the file from `start` if not.
+	 *
+	 * @return false if the file ends first
+	 */
+	private boolean fill(long start, int length) throws IOException {
+		if (start >= bufferStart && (start + length) <= (bufferStart + buffer.limit()))
+			return true;
+		if ((start + length) > size)
+			return false;
+
+		bufferStart = start;
+		buffer.clear();
+		while (buffer.position() < length) {
+			if (channel.read(buffer, bufferStart + buffer.position()) < 0)
+				break;
+		}
+		buffer.flip();
+		return buffer.limit() >= length;
+	}
+}
@@ -1,16 +1,22 @@
 package edu.uci.plrg.cfi.php.merge;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
 
-import edu.uci.plrg.cfi.common.io.LittleEndianInputStream;
-import edu.uci.plrg.cfi.common.io.LittleEndianOutputStream;
 import edu.uci.plrg.cfi.common.log.Log;
+import edu.uci.plrg.cfi.php.analysis.request.RequestEdgeIndex;
 import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptGraphDataFiles;
 
+/**
+ * Merges the request files of any number of sources into one, in order of request time, renumbering the requests.
+ * All sources are merged in a single pass, which reads each request once and copies its bytes between files without
+ * decoding them.
+ */
 public class RequestMerge {
 
 	public static int peekRequestCount(File requestFile) throws NumberFormatException, IOException {
@@ -21,108 +27,136 @@ public class RequestMerge {
 		return rightRequestCount;
 	}
 
-	private ScriptGraphDataFiles leftDataSource;
-	private ScriptGraphDataFiles rightDataSource;
+	/**
+	 * One input of the merge, ordered by the time of its next request, and on equal times by its position in the
+	 * merge.
+	 */
+	private static class RequestSource implements Comparable<RequestSource> {
+		final int index;
+		final RequestParser requests;
+		final RequestEdgeParser edges; // null if the edges are not merged
+
+		RequestSource(int index, RequestParser requests, RequestEdgeParser edges) {
+			this.index = index;
+			this.requests = requests;
+			this.edges = edges;
+		}
+
+		@Override
+		public int compareTo(RequestSource other) {
+			if (requests.timestamp != other.requests.timestamp)
+				return (requests.timestamp < other.requests.timestamp) ? -1 : 1;
+			return index - other.index;
+		}
+	}
+
+	private final List<ScriptGraphDataFiles> sources;
 
 	public RequestMerge(ScriptGraphDataFiles leftDataSource, ScriptGraphDataFiles rightDataSource) {
-		this.leftDataSource = leftDataSource;
-		this.rightDataSource = rightDataSource;
+		this(Arrays.asList(rightDataSource, leftDataSource));
+	}
+
+	/**
+	 * @param sources
+	 *            in the order of a sequential merge, where each source is the right side for the ones after it. Of
+	 *            requests with the same time, the one from the earliest source is written first.
+	 */
+	public RequestMerge(List<ScriptGraphDataFiles> sources) {
+		this.sources = sources;
 	}
 
 	public void merge(ScriptGraphDataFiles outputFiles) throws NumberFormatException, IOException {
-		boolean inPlaceMerge = rightDataSource.getRequestFile().getAbsolutePath()
-				.equals(outputFiles.getRequestFile().getAbsolutePath());
-		File rightRequestFile = rightDataSource.getRequestFile();
-		File rightEdgeFile = rightDataSource.getRequestEdgeFile().exists() ? rightDataSource.getRequestEdgeFile()
-				: null;
-		// File rightPersistenceFile = rightDataSource.getPersistenceFile();
-
-		Log.message("Is in place? %b for '%s' vs. '%s'", inPlaceMerge, rightDataSource.getRequestFile(),
-				outputFiles.getRequestFile());
-
-		if (inPlaceMerge) {
-			rightRequestFile = new File(rightDataSource.getRequestFile().getParentFile(), rightDataSource
-					.getRequestFile().getName() + ".tmp");
-			if (rightEdgeFile != null) {
-				rightEdgeFile = new File(rightDataSource.getRequestEdgeFile().getParentFile(), rightDataSource
-						.getRequestEdgeFile().getName() + ".tmp");
+		boolean mergeEdges = true;
+		for (ScriptGraphDataFiles source : sources) {
+			if (!source.getRequestEdgeFile().exists())
+				mergeEdges = false;
+		}
+		if (!mergeEdges)
+			Log.warn("Warning: not all request sources have a request edge file. Skipping the request edges.");
+
+		/* move aside any input that is also the output, as in an in-place merge */
+		List<File> requestFiles = new ArrayList<File>(), edgeFiles = new ArrayList<File>();
+		List<File> movedFiles = new ArrayList<File>();
+		for (ScriptGraphDataFiles source : sources) {
+			requestFiles.add(moveAsideOutput(source.getRequestFile(), outputFiles.getRequestFile(), movedFiles));
+			if (mergeEdges) {
+				edgeFiles.add(moveAsideOutput(source.getRequestEdgeFile(), outputFiles.getRequestEdgeFile(),
+						movedFiles));
 			}
-			// rightPersistenceFile = new File(rightDataSource.getPersistenceFile().getParentFile(), rightDataSource
-			// .getPersistenceFile().getName() + ".tmp");
-			Log.log("Moving right request file to '%s' for in-place merge", rightRequestFile.getAbsolutePath());
-			rightDataSource.getRequestFile().renameTo(rightRequestFile);
-			if (rightEdgeFile != null)
-				rightDataSource.getRequestEdgeFile().renameTo(rightEdgeFile);
-			// rightDataSource.getPersistenceFile().renameTo(rightPersistenceFile);
 		}
 
-		FileOutputStream requestOutput = new FileOutputStream(outputFiles.getRequestFile());
-		RequestParser leftRequestParser = new RequestParser(new FileInputStream(leftDataSource.getRequestFile()),
-				requestOutput);
-		RequestParser rightRequestParser = new RequestParser(new FileInputStream(rightRequestFile), requestOutput);
-
-		LittleEndianOutputStream requestEdgeOutput = null;
-		RequestEdgeParser leftEdgeParser = null;
-		RequestEdgeParser rightEdgeParser = null;
-
-		if (rightEdgeFile != null) {
-			requestEdgeOutput = new LittleEndianOutputStream(new FileOutputStream(outputFiles.getRequestEdgeFile(),
-					true), "file:" + outputFiles.getRequestEdgeFile().getAbsolutePath());
-			leftEdgeParser = new RequestEdgeParser(new LittleEndianInputStream(leftDataSource.getRequestEdgeFile()),
-					requestEdgeOutput);
-			rightEdgeParser = new RequestEdgeParser(new LittleEndianInputStream(rightEdgeFile), requestEdgeOutput);
+		RequestFileOutput requestOutput = new RequestFileOutput(outputFiles.getRequestFile());
+		RequestFileOutput requestEdgeOutput = null;
+		RequestEdgeIndex.Builder requestEdgeIndex = null;
+		if (mergeEdges) {
+			requestEdgeOutput = new RequestFileOutput(outputFiles.getRequestEdgeFile());
+			requestEdgeIndex = new RequestEdgeIndex.Builder();
 		}
 
-		/**
-		 * <pre>
-		FileOutputStream persistenceOutput = new FileOutputStream(outputFiles.getPersistenceFile());
-		PersistenceParser leftPersistenceParser = new PersistenceParser(new FileInputStream(
-				leftDataSource.getPersistenceFile()), persistenceOutput);
-		PersistenceParser rightPersistenceParser = new PersistenceParser(new FileInputStream(rightPersistenceFile),
-				persistenceOutput);
-		 */
-
-		int nextRequestId = 0;
-		leftRequestParser.readRequestStart();
-		rightRequestParser.readRequestStart();
-		do {
-			if (rightRequestParser.eof
-					|| (!leftRequestParser.eof && leftRequestParser.timestamp < rightRequestParser.timestamp)) {
-				Log.message("Merge left request");
-				leftRequestParser.writeNextRequest(nextRequestId);
-				leftRequestParser.readRequestStart();
-				if (rightEdgeFile != null)
-					leftEdgeParser.writeNextRequest(nextRequestId);
-				// leftPersistenceParser.writeNextRequest();
-			} else {
-				Log.message("Merge right request");
-				rightRequestParser.writeNextRequest(nextRequestId);
-				rightRequestParser.readRequestStart();
-				if (rightEdgeFile != null)
-					rightEdgeParser.writeNextRequest(nextRequestId);
-				// rightPersistenceParser.writeNextRequest();
+		List<RequestSource> inputs = new ArrayList<RequestSource>();
+		PriorityQueue<RequestSource> queue = new PriorityQueue<RequestSource>(sources.size());
+		try {
+			for (int i = 0; i < sources.size(); i++) {
+				RequestSource input = new RequestSource(i, new RequestParser(requestFiles.get(i)),
+						mergeEdges ? new RequestEdgeParser(edgeFiles.get(i)) : null);
+				inputs.add(input);
+				input.requests.readRequestStart();
+				if (!input.requests.eof)
+					queue.add(input);
+			}
+
+			int nextRequestId = 0;
+			while (!queue.isEmpty()) {
+				RequestSource input = queue.poll();
+				Log.message("Merge request from source %d", input.index);
+				input.requests.writeNextRequest(nextRequestId, requestOutput);
+				if (input.edges != null) {
+					long offset = requestEdgeOutput.getSize();
+					int edgeCount = input.edges.writeNextRequest(nextRequestId, requestEdgeOutput);
+					requestEdgeIndex.addRequest(nextRequestId, offset, edgeCount);
+				}
+				input.requests.readRequestStart();
+				if (!input.requests.eof)
+					queue.add(input);
+
+				if (++nextRequestId == Integer.MAX_VALUE) {
+					nextRequestId = 0;
+					Log.warn("Warning: request count exceeds maximum %d. Resetting to zero.", Integer.MAX_VALUE);
+				}
 			}
-			if (++nextRequestId == Integer.MAX_VALUE) {
-				nextRequestId = 0;
-				Log.warn("Warning: request count exceeds maximum %d. Resetting to zero.", Integer.MAX_VALUE);
+			Log.log("Merged %d requests from %d sources", nextRequestId, sources.size());
+		} finally {
+			for (RequestSource input : inputs) {
+				input.requests.close();
+				if (input.edges != null)
+					input.edges.close();
 			}
-		} while (!(leftRequestParser.eof && rightRequestParser.eof));
-
-		leftRequestParser.close();
-		rightRequestParser.close();
-		requestOutput.flush();
-		requestOutput.close();
-		if (rightEdgeFile != null) {
-			leftEdgeParser.close();
-			rightEdgeParser.close();
-			requestEdgeOutput.flush();
-			requestEdgeOutput.close();
+			requestOutput.close();
+			if (requestEdgeOutput != null)
+				requestEdgeOutput.close();
 		}
 
-		if (inPlaceMerge) {
-			rightRequestFile.delete();
-			if (rightEdgeFile != null)
-				rightEdgeFile.delete();
+		if (mergeEdges) {
+			File edgeFile = outputFiles.getRequestEdgeFile();
+			requestEdgeIndex.build(edgeFile.length()).write(RequestEdgeIndex.getIndexFile(edgeFile));
 		}
+
+		for (File movedFile : movedFiles)
+			movedFile.delete();
+	}
+
+	/**
+	 * @return the file to read `inputFile` from, which is a temporary copy if it is `outputFile`
+	 */
+	private File moveAsideOutput(File inputFile, File outputFile, List<File> movedFiles) {
+		if (!inputFile.getAbsolutePath().equals(outputFile.getAbsolutePath()))
+			return inputFile;
+
+		File movedFile = new File(inputFile.getParentFile(), inputFile.getName() + ".tmp");
+		Log.log("Moving request file '%s' to '%s' for in-place merge", inputFile.getAbsolutePath(),
+				movedFile.getAbsolutePath());
+		inputFile.renameTo(movedFile);
+		movedFiles.add(movedFile);
+		return movedFile;
 	}
 }
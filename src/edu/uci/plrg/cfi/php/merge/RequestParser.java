@@ -1,179 +1,112 @@
 package edu.uci.plrg.cfi.php.merge;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
-import edu.uci.plrg.cfi.common.log.Log;
+/**
+ * Reads the requests of a request.tab in order. A request starts with a `<request-time> 0x<hex>` line and ends with
+ * its `<request-id> |<id>` line. When a request is written, its time is normalized and its id is replaced, and the
+ * rest of the request is copied unchanged.
+ */
+class RequestParser extends RequestFileScanner {
 
-class RequestParser {
+	static final byte REQUEST_TIME_TAG[] = "<request-time> ".getBytes();
+	static final byte REQUEST_ID_TAG[] = "<request-id> |".getBytes();
+	static final int REQUEST_ID_DIGITS = 8;
 
-	private static boolean isRequestTime(String previousSnippet) {
-		Log.message("Checking for request time in snippet '%s'", previousSnippet);
-		if (previousSnippet == null)
-			return false;
-		else
-			return previousSnippet.substring(1).equals("<request-time> ");
-	}
-
-	private static boolean isRequestId(String previousSnippet) {
-		Log.message("Checking for request id in snippet '%s'", previousSnippet);
-		if (previousSnippet == null)
-			return false;
-		else
-			return previousSnippet.substring(3).equals("<request-id> ");
-	}
-
-	static final int BUFFER_SIZE = 8192;
-	static final int BUFFER_TAIL_SIZE = 0x10;
-	static final String REQUEST_TIME_TAG = "<request-time>";
-	static final int REQUEST_TIME_TAG_LENGTH = REQUEST_TIME_TAG.length();
-
-	final FileInputStream in;
-	final FileOutputStream out;
+	private final ByteBuffer header = ByteBuffer.allocate(REQUEST_TIME_TAG.length + 0x12);
+	private final ByteBuffer requestId = ByteBuffer.allocate(REQUEST_ID_DIGITS + 1);
 
 	long timestamp = 0;
-	int nextRequestId;
 	boolean eof = false;
 
-	StringBuilder requestStart = new StringBuilder(), tempString = new StringBuilder();
-	int i, currentBufferLength, fileRemaining;
-	byte buffer[] = null;
-	String lastBufferTail = null;
-
-	public RequestParser(FileInputStream in, FileOutputStream out) throws IOException {
-		this.in = in;
-		this.out = out;
+	private long bodyStart; // the end of the request time line
 
-		fileRemaining = in.available();
-		readBuffer();
+	RequestParser(File requestFile) throws IOException {
+		super(requestFile);
 	}
 
-	private boolean readBuffer() throws IOException {
-		if (fileRemaining <= 0) {
+	/**
+	 * Read the time at the start of the next request, or set `eof` if there are no more requests.
+	 */
+	void readRequestStart() throws IOException {
+		int b;
+		do {
+			b = nextByte();
+		} while (b == '\n' || b == '\r' || b == ' ');
+		if (b < 0) {
 			eof = true;
-			return false;
+			return;
 		}
 
-		if (buffer == null)
-			buffer = new byte[BUFFER_SIZE];
-		else
-			lastBufferTail = new String(buffer, BUFFER_SIZE - BUFFER_TAIL_SIZE, BUFFER_TAIL_SIZE);
-		currentBufferLength = in.read(buffer);
-		if (currentBufferLength <= 0) {
-			eof = true;
-			return false;
+		position--;
+		for (int i = 0; i < REQUEST_TIME_TAG.length; i++) {
+			if (nextByte() != REQUEST_TIME_TAG[i])
+				throw new MergeException("Missing request time at byte %d of %s", position, file.getAbsolutePath());
 		}
-		fileRemaining -= currentBufferLength;
-		i = 0;
-		return true;
-	}
-
-	private String getPreviousSnippet() {
-		String previousSnippet = null;
-		if (i < BUFFER_TAIL_SIZE) {
-			if (lastBufferTail != null && lastBufferTail.length() > i) /* else not a match */
-				previousSnippet = lastBufferTail.substring(i) + new String(buffer, 0, i);
-		} else {
-			previousSnippet = new String(buffer, i - BUFFER_TAIL_SIZE, BUFFER_TAIL_SIZE);
+		if (nextByte() != '0' || nextByte() != 'x')
+			throw new MergeException("Invalid request time at byte %d of %s", position, file.getAbsolutePath());
+
+		timestamp = 0;
+		while ((b = nextByte()) != '\n') {
+			if (b >= '0' && b <= '9')
+				timestamp = (timestamp << 4) | (b - '0');
+			else if (b >= 'a' && b <= 'f')
+				timestamp = (timestamp << 4) | (b - 'a' + 10);
+			else if (b >= 'A' && b <= 'F')
+				timestamp = (timestamp << 4) | (b - 'A' + 10);
+			else
+				throw new MergeException("Invalid request time at byte %d of %s", position, file.getAbsolutePath());
 		}
-		return previousSnippet;
+		bodyStart = position - 1; // the newline is copied with the body
 	}
 
-	private String readString(int readLength) throws IOException {
-		String s;
-		if (currentBufferLength - i > readLength) {
-			s = new String(buffer, i, readLength);
-			i += readLength;
-		} else {
-			String start = new String(buffer, i, currentBufferLength - i);
-			if (readBuffer()) {
-				s = start + new String(buffer, 0, readLength - start.length());
-				i += (readLength - start.length());
+	/**
+	 * Write the request whose start was last read, with the id `requestId`.
+	 */
+	void writeNextRequest(int requestId, RequestFileOutput out) throws IOException {
+		writeHeader(out);
+
+		int b, matched = 0;
+		while ((b = nextByte()) >= 0) {
+			if (b == REQUEST_ID_TAG[matched]) {
+				if (++matched == REQUEST_ID_TAG.length) {
+					transfer(bodyStart, position, out);
+					writeRequestId(requestId, out);
+					while ((b = nextByte()) >= 0 && b != '\n')
+						; // skip the original id
+					return;
+				}
 			} else {
-				s = start;
+				matched = (b == REQUEST_ID_TAG[0]) ? 1 : 0;
 			}
 		}
-		return s;
-	}
-
-	private String readString(char delimiter) throws IOException {
-		tempString.setLength(0);
 
-		do {
-			for (; i < currentBufferLength; i++) {
-				if (buffer[i] == delimiter)
-					return tempString.toString();
-				else
-					tempString.append((char) buffer[i]);
-			}
-		} while (readBuffer());
-
-		return tempString.toString();
+		transfer(bodyStart, size, out); // the request was cut off before its id
+		eof = true;
 	}
 
-	void readRequestStart() throws IOException {
-		int set = i, j = 0, k = 0;
-		char timestampBuffer[] = new char[0x10];
-
-		do {
-			for (; i < currentBufferLength; i++) {
-				if (j < REQUEST_TIME_TAG_LENGTH + 1/* space */) {
-					j++;
-				} else {
-					if (buffer[i] == '\n') {
-						timestamp = Long.parseLong(new String(timestampBuffer, 2, k - 2), 16);
-						Log.message("Found request time at %d: 0x%x. Set is %d.", i, timestamp, set);
-						requestStart.append(String.format("%s 0x%x", REQUEST_TIME_TAG, timestamp));
-						return;
-					} else {
-						timestampBuffer[k++] = (char) buffer[i];
-					}
-				}
-			}
-			set = 0;
-		} while (readBuffer());
+	private void writeHeader(RequestFileOutput out) throws IOException {
+		header.clear();
+		header.put(REQUEST_TIME_TAG);
+		header.put((byte) '0').put((byte) 'x');
+		int shift = 60;
+		while (shift > 0 && ((timestamp >>> shift) & 0xf) == 0)
+			shift -= 4;
+		for (; shift >= 0; shift -= 4)
+			header.put((byte) Character.forDigit((int) ((timestamp >>> shift) & 0xf), 0x10));
+		header.flip();
+		out.write(header);
 	}
 
-	void writeNextRequest(int requestId) throws IOException {
-		Log.message("Writing request start of %d bytes", requestStart.length());
-		out.write(requestStart.toString().getBytes(), 0, requestStart.length());
-		requestStart.setLength(0);
-
-		do {
-			int set = i;
-			for (; i < currentBufferLength; i++) {
-				if (buffer[i] == '|') {
-					if (isRequestId(getPreviousSnippet())) {
-						Log.message("Found request id at %d. Set is at %d, buffer has %d bytes.", i, set,
-								currentBufferLength);
-						Log.message("Writing [%d,%d] plus request id", set, i + 1);
-						out.write(buffer, set, (i - set) + 1);
-						out.write(String.format("%08d", requestId).getBytes(), 0, 8);
-						out.write('\n');
-
-						set = i + 11;
-						if (set + 1 >= currentBufferLength && fileRemaining == 0) {
-							Log.message("eof");
-							eof = true;
-						} else if (set > currentBufferLength) {
-							set = set - currentBufferLength;
-							readBuffer();
-						}
-						i = set - 1;
-						return;
-					}
-				}
-			}
-			if (set < currentBufferLength) {
-				Log.message("Writing [%d,%d]", set, currentBufferLength);
-				out.write(buffer, set, currentBufferLength - set);
-			}
-			set = 0;
-		} while (readBuffer());
-	}
-
-	void close() throws IOException {
-		in.close();
+	private void writeRequestId(int id, RequestFileOutput out) throws IOException {
+		requestId.clear();
+		for (int i = REQUEST_ID_DIGITS - 1; i >= 0; i--) {
+			requestId.put(i, (byte) ('0' + (id % 10)));
+			id /= 10;
+		}
+		requestId.put(REQUEST_ID_DIGITS, (byte) '\n');
+		out.write(requestId);
 	}
 }
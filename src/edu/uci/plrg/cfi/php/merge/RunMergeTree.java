@@ -0,0 +1,147 @@
+package edu.uci.plrg.cfi.php.merge;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import edu.uci.plrg.cfi.common.log.Log;
+import edu.uci.plrg.cfi.php.merge.graph.ConcurrentGraphEdgeSet;
+import edu.uci.plrg.cfi.php.merge.graph.RoutineId;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptFlowGraph;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptGraphDataFiles.Type;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptGraphLoader;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptRunFiles;
+
+/**
+ * Merges any number of runs, and optionally an existing dataset, in a single pass. The runs are loaded concurrently
+ * and reduced pairwise through `DatasetMerge` in a balanced tree, and the combined runs are then merged into the
+ * dataset, so the dataset is loaded and written only once regardless of the number of runs. As in a sequential merge,
+ * the earlier run is always the right side of a pairwise merge.
+ */
+public class RunMergeTree {
+
+	/**
+	 * Loads the runs in [start, end) and merges them into one graph.
+	 */
+	private class MergeRunsTask extends RecursiveTask<ScriptFlowGraph> {
+		private static final long serialVersionUID = 1L;
+
+		private final int start, end;
+
+		MergeRunsTask(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected ScriptFlowGraph compute() {
+			if ((end - start) == 1)
+				return loadRun(runs.get(start));
+
+			int middle = (start + end) >>> 1;
+			MergeRunsTask leftTask = new MergeRunsTask(middle, end);
+			leftTask.fork();
+			ScriptFlowGraph right = new MergeRunsTask(start, middle).compute();
+			ScriptFlowGraph left = leftTask.join();
+
+			DatasetMerge merge = new DatasetMerge(left, right, false);
+			merge.merge();
+			Log.log("Merged runs %d through %d into %d routines", start, end - 1, merge.getRoutineCount());
+			return merge.createMergedGraph(String.format("Merge of runs %d through %d", start, end - 1));
+		}
+	}
+
+	private final List<ScriptRunFiles> runs;
+	private final ScriptFlowGraph dataset;
+	private final int threadCount;
+	private final int linkThreadCount;
+
+	/**
+	 * @param dataset
+	 *            the existing dataset to merge the runs into, or null to create a new dataset. It is only read until
+	 *            all the runs have been combined.
+	 * @param threadCount
+	 *            maximum number of runs to load or merge at the same time. Threads that are not needed for that are
+	 *            shared out among the run loads for linking.
+	 */
+	public RunMergeTree(List<ScriptRunFiles> runs, ScriptFlowGraph dataset, int threadCount) {
+		if (runs.isEmpty())
+			throw new MergeException("No runs to merge");
+
+		this.runs = runs;
+		this.dataset = dataset;
+		this.threadCount = threadCount;
+		linkThreadCount = Math.max(1, threadCount / Math.min(runs.size(), threadCount));
+	}
+
+	public DatasetMerge merge() {
+		return merge(false);
+	}
+
+	/**
+	 * Merge the combined runs into only those routines of the dataset that they have, for appending the changes as a
+	 * dataset segment (see `DatasetMerge.mergeChanges()`).
+	 */
+	public DatasetMerge mergeChanges() {
+		if (dataset == null)
+			throw new MergeException("No dataset to merge the changes of the runs into");
+		return merge(true);
+	}
+
+	private DatasetMerge merge(boolean changesOnly) {
+		List<File> routineCatalogs = new ArrayList<File>();
+		for (ScriptRunFiles run : runs)
+			routineCatalogs.add(run.routineCatalog);
+		try {
+			RoutineId.Cache.INSTANCE.load(routineCatalogs); // publishes them together, instead of once per run
+		} catch (IOException e) {
+			throw new MergeException(e);
+		}
+
+		ScriptFlowGraph left, right;
+		ForkJoinPool pool = new ForkJoinPool(threadCount);
+		try {
+			if (dataset != null) {
+				left = pool.invoke(new MergeRunsTask(0, runs.size()));
+				right = dataset;
+			} else if (runs.size() == 1) {
+				left = pool.invoke(new MergeRunsTask(0, 1));
+				right = new ScriptFlowGraph(Type.RUN, "Empty run", false);
+			} else {
+				int middle = runs.size() >>> 1;
+				ForkJoinTask<ScriptFlowGraph> leftTask = pool.submit(new MergeRunsTask(middle, runs.size()));
+				right = pool.invoke(new MergeRunsTask(0, middle));
+				left = leftTask.join();
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		DatasetMerge merge = new DatasetMerge(left, right, dataset != null);
+		if (changesOnly)
+			merge.mergeChanges();
+		else
+			merge.merge();
+		return merge;
+	}
+
+	private ScriptFlowGraph loadRun(ScriptRunFiles run) {
+		ScriptFlowGraph graph;
+		if (linkThreadCount > 1)
+			graph = new ScriptFlowGraph(Type.RUN, run.getDescription(), true, new ConcurrentGraphEdgeSet());
+		else
+			graph = new ScriptFlowGraph(Type.RUN, run.getDescription(), true);
+		try {
+			new ScriptGraphLoader(linkThreadCount).loadRun(run, graph, dataset, DatasetMerge.Side.LEFT);
+		} catch (IOException e) {
+			throw new MergeException(e);
+		}
+		Log.log("Loaded %s with %d routines and %d edges", run.getDescription(), graph.getRoutineCount(),
+				graph.edges.getOutgoingEdgeCount());
+		return graph;
+	}
+}
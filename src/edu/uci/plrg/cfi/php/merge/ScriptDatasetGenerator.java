@@ -1,22 +1,27 @@
 package edu.uci.plrg.cfi.php.merge;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
-import edu.uci.plrg.cfi.common.io.LittleEndianOutputStream;
 import edu.uci.plrg.cfi.common.log.Log;
 import edu.uci.plrg.cfi.php.merge.graph.RoutineEdge;
 import edu.uci.plrg.cfi.php.merge.graph.RoutineEdge.Type;
 import edu.uci.plrg.cfi.php.merge.graph.RoutineExceptionEdge;
 import edu.uci.plrg.cfi.php.merge.graph.RoutineId;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptBranchNode;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptFlowGraph;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptNode;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptNode.OpcodeTargetType;
-import edu.uci.plrg.cfi.php.merge.graph.ScriptNode.TypeFlag;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptRoutineGraph;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptDatasetIndex;
 
 public class ScriptDatasetGenerator {
 
@@ -34,6 +39,64 @@ public class ScriptDatasetGenerator {
 		Iterable<RoutineEdge> getOutgoingEdges(ScriptNode node);
 	}
 
+	/**
+	 * Writes a loaded graph as it is, e.g. to compact a dataset with its segments into one cfg.set. The dynamic
+	 * routines of the graph must be numbered densely from 0.
+	 */
+	public static class GraphDataSource implements DataSource {
+		private final ScriptFlowGraph graph;
+		private final List<ScriptRoutineGraph> staticRoutines = new ArrayList<ScriptRoutineGraph>();
+		private final List<ScriptRoutineGraph> dynamicRoutines = new ArrayList<ScriptRoutineGraph>();
+
+		public GraphDataSource(ScriptFlowGraph graph) {
+			this.graph = graph;
+
+			int dynamicRoutineCount = 0;
+			for (ScriptRoutineGraph routine : graph.getRoutines()) {
+				if (ScriptRoutineGraph.isDynamicRoutine(routine.hash))
+					dynamicRoutineCount++;
+				else
+					staticRoutines.add(routine);
+			}
+			for (int i = 0; i < dynamicRoutineCount; i++) {
+				ScriptRoutineGraph dynamicRoutine = graph.getDynamicRoutine(i);
+				if (dynamicRoutine == null)
+					throw new MergeException("Dynamic routine %d is missing from %s", i, graph.description);
+				dynamicRoutines.add(dynamicRoutine);
+			}
+		}
+
+		@Override
+		public int getDynamicRoutineCount() {
+			return dynamicRoutines.size();
+		}
+
+		@Override
+		public int getStaticRoutineCount() {
+			return staticRoutines.size();
+		}
+
+		@Override
+		public Iterable<ScriptRoutineGraph> getDynamicRoutines() {
+			return dynamicRoutines;
+		}
+
+		@Override
+		public Iterable<ScriptRoutineGraph> getStaticRoutines() {
+			return staticRoutines;
+		}
+
+		@Override
+		public int getOutgoingEdgeCount(ScriptNode node) {
+			return graph.edges.getOutgoingEdgeCount(node);
+		}
+
+		@Override
+		public Iterable<RoutineEdge> getOutgoingEdges(ScriptNode node) {
+			return graph.edges.getOutgoingEdges(node);
+		}
+	}
+
 	private static class Hashtable {
 		HashtableConfiguration configuration;
 		HashtableEntry table[];
@@ -50,6 +113,7 @@ public class ScriptDatasetGenerator {
 			while (entry != null) {
 				if (entry.routineHash == routineHash)
 					return entry;
+				entry = entry.next;
 			}
 			return null;
 		}
@@ -84,6 +148,59 @@ public class ScriptDatasetGenerator {
 		}
 	}
 
+	/**
+	 * Little-endian int writer that fills a set of direct buffers and drains all of them to the file in one gathering
+	 * write.
+	 */
+	private static class DatasetWriter {
+		private static final int BUFFER_COUNT = 4;
+		private static final int BUFFER_SIZE = 0x100000; // 1 MB
+
+		private final FileChannel channel;
+		private final ByteBuffer buffers[] = new ByteBuffer[BUFFER_COUNT];
+		private int current = 0;
+
+		DatasetWriter(File outputFile) throws IOException {
+			channel = new FileOutputStream(outputFile).getChannel();
+			for (int i = 0; i < BUFFER_COUNT; i++)
+				buffers[i] = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		void writeInt(int value) throws IOException {
+			if (!buffers[current].hasRemaining()) {
+				if (++current == BUFFER_COUNT)
+					drain();
+			}
+			buffers[current].putInt(value);
+		}
+
+		void close() throws IOException {
+			try {
+				drain();
+			} finally {
+				channel.close();
+			}
+		}
+
+		private void drain() throws IOException {
+			for (ByteBuffer buffer : buffers)
+				buffer.flip();
+			while (hasRemaining())
+				channel.write(buffers);
+			for (ByteBuffer buffer : buffers)
+				buffer.clear();
+			current = 0;
+		}
+
+		private boolean hasRemaining() {
+			for (ByteBuffer buffer : buffers) {
+				if (buffer.hasRemaining())
+					return true;
+			}
+			return false;
+		}
+	}
+
 	private static class HashtableEntry {
 		final int routineHash;
 		HashtableEntry next = null;
@@ -97,50 +214,107 @@ public class ScriptDatasetGenerator {
 	}
 
 	private final DataSource dataSource;
+	private final List<ScriptRoutineGraph> staticRoutines = new ArrayList<ScriptRoutineGraph>(); // in hash order
 	private final File outputFile;
-	private final LittleEndianOutputStream out;
+	private final DatasetWriter out;
 
 	private final HashtableConfiguration hashtableConfiguration;
 	private final Hashtable hashtable;
 	private final List<Integer> dynamicRoutineOffsets = new ArrayList<Integer>();
 
 	private int filePtr = 0;
-	private int callTargetPtr;
 	private int hashtableStart;
 
 	public ScriptDatasetGenerator(DataSource dataSource, File outputFile) throws IOException {
 		this.dataSource = dataSource;
 		this.outputFile = outputFile;
-		out = new LittleEndianOutputStream(outputFile);
+		out = new DatasetWriter(outputFile);
+
+		/* the same routines always have the same layout, whichever source they are written from */
+		for (ScriptRoutineGraph routine : dataSource.getStaticRoutines())
+			staticRoutines.add(routine);
+		Collections.sort(staticRoutines, new Comparator<ScriptRoutineGraph>() {
+			@Override
+			public int compare(ScriptRoutineGraph first, ScriptRoutineGraph second) {
+				return Long.compare(first.hash & 0xffffffffL, second.hash & 0xffffffffL);
+			}
+		});
 
 		hashtableConfiguration = new HashtableConfiguration();
 		hashtableConfiguration.configure(dataSource.getStaticRoutineCount());
 		hashtable = new Hashtable(hashtableConfiguration);
 	}
 
+	/**
+	 * Lay out every section of the dataset first, so that the whole file, including the header, can be written in a
+	 * single sequential pass. The routine index is written to its sidecar file after the dataset is complete.
+	 */
 	public void generateDataset() throws IOException {
-		out.writeInt(0); // placeholder for hashtableStart
-		out.writeInt(dataSource.getStaticRoutineCount());
-		out.writeInt(dataSource.getDynamicRoutineCount());
-		filePtr += 3;
-
-		writeRoutines();
-		writeRoutineHashtableChains();
-		writeRoutineHashtable();
-		writeDynamicRoutineList();
-
-		out.flush();
-		out.close();
-
-		byte buffer[] = new byte[4];
-		buffer[0] = (byte) hashtableStart;
-		buffer[1] = (byte) (hashtableStart >> 8);
-		buffer[2] = (byte) (hashtableStart >> 0x10);
-		buffer[3] = (byte) (hashtableStart >> 0x18);
-		RandomAccessFile insertOut = new RandomAccessFile(outputFile, "rw");
-		insertOut.seek(0);
-		insertOut.write(buffer);
-		insertOut.close();
+		File indexFile = ScriptDatasetIndex.getIndexFile(outputFile);
+		if (indexFile.exists() && !indexFile.delete())
+			throw new MergeException("Failed to delete the routine index %s", indexFile.getAbsolutePath());
+
+		try {
+			layoutDataset();
+
+			filePtr = 0;
+			out.writeInt(hashtableStart);
+			out.writeInt(dataSource.getStaticRoutineCount());
+			out.writeInt(dataSource.getDynamicRoutineCount());
+			filePtr += 3;
+
+			writeRoutines();
+			writeRoutineHashtableChains();
+			writeRoutineHashtable();
+			writeDynamicRoutineList();
+		} finally {
+			out.close();
+		}
+
+		try {
+			writeRoutineIndex(indexFile);
+		} catch (IOException e) {
+			Log.warn("Failed to write the routine index %s: %s", indexFile.getAbsolutePath(), e.getMessage());
+			indexFile.delete(); // lookups fall back to the hashtable chains
+		}
+	}
+
+	private void layoutDataset() {
+		filePtr = 3; // header
+		dynamicRoutineOffsets.clear();
+		for (ScriptRoutineGraph routine : staticRoutines) {
+			if (hashtable.getEntry(routine.hash) != null)
+				throw new MergeException("Duplicate static routine 0x%x in dataset %s", routine.hash, outputFile);
+			hashtable.putEntry(routine.hash, filePtr);
+			filePtr += getRoutineSpace(routine);
+		}
+		for (ScriptRoutineGraph routine : dataSource.getDynamicRoutines()) {
+			dynamicRoutineOffsets.add(filePtr);
+			filePtr += getRoutineSpace(routine);
+		}
+
+		for (int i = 0; i < hashtableConfiguration.size; i++) {
+			HashtableEntry entry = hashtable.table[i];
+			if (entry != null) {
+				entry.chainOffset = filePtr;
+				do {
+					filePtr++;
+					entry = entry.next;
+				} while (entry != null);
+				filePtr++; // null terminator
+			}
+		}
+		hashtableStart = filePtr;
+	}
+
+	private int getRoutineSpace(ScriptRoutineGraph routine) {
+		int space = 2 + (routine.getNodeCount() * 3);
+		for (int i = 0; i < routine.getNodeCount(); i++) {
+			ScriptNode node = routine.getNode(i);
+			if (node.isEval() || node.isCall())
+				space += getEdgeSpace(node);
+		}
+		return space;
 	}
 
 	private void writeDynamicRoutineList() throws IOException {
@@ -151,8 +325,43 @@ public class ScriptDatasetGenerator {
 		filePtr += (1 + dynamicRoutineOffsets.size());
 	}
 
+	/**
+	 * Write the open-addressed routine index described in `ScriptDatasetIndex`, which is stamped with the dataset it
+	 * was written for.
+	 */
+	private void writeRoutineIndex(File indexFile) throws IOException {
+		int mask = ScriptDatasetIndex.getIndexMask(dataSource.getStaticRoutineCount());
+		int index[] = new int[(mask + 1) * 2];
+		for (int i = 0; i < hashtableConfiguration.size; i++) {
+			for (HashtableEntry entry = hashtable.table[i]; entry != null; entry = entry.next) {
+				int slot = ScriptDatasetIndex.getIndexSlot(entry.routineHash, mask);
+				while (index[(slot * 2) + 1] != 0)
+					slot = (slot + 1) & mask;
+				index[slot * 2] = entry.routineHash;
+				index[(slot * 2) + 1] = entry.dataOffset;
+			}
+		}
+
+		long lastModified = outputFile.lastModified();
+		DatasetWriter indexOut = new DatasetWriter(indexFile);
+		try {
+			indexOut.writeInt(ScriptDatasetIndex.INDEX_TAG);
+			indexOut.writeInt(mask);
+			indexOut.writeInt(filePtr);
+			indexOut.writeInt(hashtableStart);
+			indexOut.writeInt(dataSource.getStaticRoutineCount());
+			indexOut.writeInt(dataSource.getDynamicRoutineCount());
+			indexOut.writeInt((int) lastModified);
+			indexOut.writeInt((int) (lastModified >>> 32));
+			for (int i = 0; i < index.length; i++)
+				indexOut.writeInt(index[i]);
+		} finally {
+			indexOut.close();
+		}
+	}
+
 	private void writeRoutineHashtable() throws IOException {
-		hashtableStart = filePtr;
+		checkLayout(hashtableStart, "hashtable");
 		out.writeInt(hashtableConfiguration.mask);
 		for (int i = 0; i < hashtableConfiguration.size; i++) {
 			if (hashtable.table[i] == null)
@@ -167,7 +376,7 @@ public class ScriptDatasetGenerator {
 		for (int i = 0; i < hashtableConfiguration.size; i++) {
 			HashtableEntry entry = hashtable.table[i];
 			if (entry != null) {
-				entry.chainOffset = filePtr;
+				checkLayout(entry.chainOffset, "hashtable chain");
 				do {
 					out.writeInt(entry.dataOffset);
 					filePtr++;
@@ -183,21 +392,28 @@ public class ScriptDatasetGenerator {
 		return (1 + (2 * dataSource.getOutgoingEdgeCount(node)));
 	}
 
+	private void checkLayout(int plannedOffset, String section) {
+		if (filePtr != plannedOffset) {
+			throw new MergeException("Dataset %s: %s was laid out at 0x%x but written at 0x%x", outputFile, section,
+					plannedOffset, filePtr);
+		}
+	}
+
 	private void writeRoutineData(ScriptRoutineGraph routine) throws IOException {
 		List<ScriptNode> calls = new ArrayList<ScriptNode>();
 		int targetIndexField = 0, callTargetsField = 0;
 		out.writeInt(routine.hash);
 		out.writeInt(routine.getNodeCount());
 		int nodeSpace = (2/* accounts for the previous 2 lines */+ (routine.getNodeCount() * 3));
-		callTargetPtr = filePtr + nodeSpace;
+		int callTargetPtr = filePtr + nodeSpace;
 
 		for (int i = 0; i < routine.getNodeCount(); i++) {
 			ScriptNode node = routine.getNode(i);
-			int nodeId = (node.lineNumber << 0x10) | (TypeFlag.encode(node.typeFlags) << 8) | node.opcode;
+			int nodeId = (node.lineNumber << 0x10) | (node.getTypeFlags() << 8) | node.opcode;
 			out.writeInt(nodeId);
 
 			targetIndexField = 0;
-			if (node.typeFlags.contains(TypeFlag.BRANCH)) {
+			if (node.isBranch()) {
 				ScriptBranchNode branch = (ScriptBranchNode) node;
 				targetIndexField = branch.getTargetIndex();
 				if (targetIndexField == ScriptBranchNode.UNASSIGNED_BRANCH_TARGET_ID
@@ -212,20 +428,9 @@ public class ScriptDatasetGenerator {
 			out.writeInt(targetIndexField);
 
 			callTargetsField = 0;
-			if (node.typeFlags.contains(TypeFlag.EVAL) || node.typeFlags.contains(TypeFlag.CALL)) {
-				int callTargetCount = 0, exceptionTargetCount = 0;
+			if (node.isEval() || node.isCall()) {
 				calls.add(node);
 				callTargetsField = callTargetPtr;
-				for (RoutineEdge target : dataSource.getOutgoingEdges(node)) {
-					if (target.getEntryType() == Type.CALL)
-						callTargetCount++;
-					else
-						exceptionTargetCount++;
-				}
-				if (ScriptMergeWatchList.watchAny(routine.hash, node.index)) {
-					Log.log("Dataset generator reserved %d call targets and %d exception targets for 0x%x %d at 0x%x",
-							callTargetCount, exceptionTargetCount, routine.hash, node.index, callTargetPtr);
-				}
 				callTargetPtr += getEdgeSpace(node);
 			} else if (dataSource.getOutgoingEdgeCount(node) > 0) {
 				Log.error("Error: skipping %d outgoing edges from opcode 0x%x at 0x%x %d",
@@ -234,7 +439,7 @@ public class ScriptDatasetGenerator {
 					RoutineId targetId = RoutineId.Cache.INSTANCE.getId(target.getToRoutineHash());
 					String edgeType = (target.getEntryType() == Type.CALL) ? "Call" : "Exception";
                     int toIndex = (target.getEntryType() == Type.CALL) ? 0 : ((RoutineExceptionEdge) target).getToRoutineIndex();
-					Log.error("\t%s to op %d of %s", edgeType, toIndex, targetId.id);
+					Log.error("\t%s to op %d of %s", edgeType, toIndex, targetId.getId());
 				}
 			}
 			out.writeInt(callTargetsField);
@@ -242,50 +447,53 @@ public class ScriptDatasetGenerator {
 		filePtr += nodeSpace;
 
 		for (ScriptNode call : calls) {
-			if (call.typeFlags.contains(TypeFlag.CALL)) {
-				out.writeInt(dataSource.getOutgoingEdgeCount(call));
-				for (RoutineEdge target : dataSource.getOutgoingEdges(call)) {
+			int callTargetCount = 0, exceptionTargetCount = 0, edgeCount = dataSource.getOutgoingEdgeCount(call);
+			int callTargetsOffset = filePtr;
+			boolean watchCall = ScriptMergeWatchList.watchAny(routine.hash, call.index);
+
+			out.writeInt(edgeCount);
+			filePtr++;
+			for (RoutineEdge target : dataSource.getOutgoingEdges(call)) {
+				if (call.isCall())
 					out.writeInt(target.getToRoutineHash());
-					if (target.getEntryType() == Type.CALL)
-						targetIndexField = 0; // routine entry point
-					else
-						targetIndexField = ((RoutineExceptionEdge) target).getToRoutineIndex();
-					targetIndexField |= (target.getUserLevel() << 26); // sign?
-					out.writeInt(targetIndexField);
-
-					if (ScriptMergeWatchList.watchAny(routine.hash, call.index)
-							|| ScriptMergeWatchList.watch(target.getToRoutineHash())) {
-						Log.log("Wrote edge [%s -> %s] with user level %d as [ -> 0x%x 0x%x] at offset 0x%x",
-								target.printFromNode(), target.printToNode(), target.getUserLevel(),
-								target.getToRoutineHash(), targetIndexField, filePtr);
-					}
-				}
-				filePtr += (1 + (2 * dataSource.getOutgoingEdgeCount(call)));
-			} else if (call.typeFlags.contains(TypeFlag.EVAL)) {
-				out.writeInt(dataSource.getOutgoingEdgeCount(call));
-				for (RoutineEdge target : dataSource.getOutgoingEdges(call)) {
+				else
 					out.writeInt(ScriptRoutineGraph.getDynamicRoutineIndex(target.getToRoutineHash()));
-					if (target.getEntryType() == Type.CALL)
-						targetIndexField = 0; // routine entry point
-					else
-						targetIndexField = ((RoutineExceptionEdge) target).getToRoutineIndex();
-					targetIndexField |= (target.getUserLevel() << 26); // sign?
-					out.writeInt(targetIndexField);
+				if (target.getEntryType() == Type.CALL) {
+					targetIndexField = 0; // routine entry point
+					callTargetCount++;
+				} else {
+					targetIndexField = ((RoutineExceptionEdge) target).getToRoutineIndex();
+					exceptionTargetCount++;
+				}
+				targetIndexField |= (target.getUserLevel() << 26); // sign?
+				out.writeInt(targetIndexField);
+
+				if (call.isCall() && (watchCall || ScriptMergeWatchList.watch(target.getToRoutineHash()))) {
+					Log.log("Wrote edge [%s -> %s] with user level %d as [ -> 0x%x 0x%x] at offset 0x%x",
+							target.printFromNode(), target.printToNode(), target.getUserLevel(),
+							target.getToRoutineHash(), targetIndexField, filePtr);
 				}
-				filePtr += (1 + (2 * dataSource.getOutgoingEdgeCount(call)));
+				filePtr += 2;
+			}
+			if (callTargetCount + exceptionTargetCount != edgeCount) {
+				throw new MergeException("Dataset %s: 0x%x %d reported %d outgoing edges but iterated %d", outputFile,
+						routine.hash, call.index, edgeCount, callTargetCount + exceptionTargetCount);
+			}
+			if (watchCall) {
+				Log.log("Dataset generator wrote %d call targets and %d exception targets for 0x%x %d at 0x%x",
+						callTargetCount, exceptionTargetCount, routine.hash, call.index, callTargetsOffset);
 			}
 		}
 	}
 
 	private void writeRoutines() throws IOException {
-		callTargetPtr = 0;
-		dynamicRoutineOffsets.clear();
-		for (ScriptRoutineGraph routine : dataSource.getStaticRoutines()) {
-			hashtable.putEntry(routine.hash, filePtr);
+		for (ScriptRoutineGraph routine : staticRoutines) {
+			checkLayout(hashtable.getEntry(routine.hash).dataOffset, "static routine");
 			writeRoutineData(routine);
 		}
+		int dynamicRoutineIndex = 0;
 		for (ScriptRoutineGraph routine : dataSource.getDynamicRoutines()) {
-			dynamicRoutineOffsets.add(filePtr);
+			checkLayout(dynamicRoutineOffsets.get(dynamicRoutineIndex++), "dynamic routine");
 			writeRoutineData(routine);
 		}
 	}
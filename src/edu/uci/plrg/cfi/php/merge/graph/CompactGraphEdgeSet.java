@@ -0,0 +1,183 @@
+package edu.uci.plrg.cfi.php.merge.graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.uci.plrg.cfi.php.merge.MergeException;
+import edu.uci.plrg.cfi.php.util.LongHashMap;
+
+/**
+ * Read-only edge set in compressed sparse row form, created by `GraphEdgeSet.freeze()` once a graph is complete. The
+ * outgoing edges are grouped by source node in sorted `GraphEdgeSet.getNodeKey()` order and the incoming edges by
+ * target routine, all in primitive arrays, so a large dataset costs a few words per edge instead of several objects.
+ * Each query returns freshly created `RoutineEdge`s, so changing them has no effect on the set.
+ */
+public class CompactGraphEdgeSet extends GraphEdgeSet {
+
+	private static final int MAX_USER_LEVEL = 0x7f;
+
+	// outgoing: the edges of node nodeKeys[i] are [outgoingStart[i], outgoingStart[i + 1])
+	private final long nodeKeys[];
+	private final int outgoingStart[];
+	private final int fromRoutineHashes[]; // as given to the add method, which may differ from the node's
+	private final int fromIndexes[];
+	private final int toRoutineHashes[];
+	private final int toRoutineIndexes[];
+	private final byte userLevels[];
+	private final BitSet throwEdges;
+
+	// incoming: the edges into routine targetHashes[i] are incomingEdges[incomingStart[i], incomingStart[i + 1])
+	private final int targetHashes[];
+	private final int incomingStart[];
+	private final int incomingEdges[];
+	private final int minUserLevels[];
+
+	CompactGraphEdgeSet(LongHashMap<List<RoutineEdge>> outgoing, LongHashMap<? extends List<RoutineEdge>> incoming) {
+		nodeKeys = outgoing.keys();
+		Arrays.sort(nodeKeys);
+		outgoingStart = new int[nodeKeys.length + 1];
+		int edgeCount = 0;
+		for (int i = 0; i < nodeKeys.length; i++) {
+			outgoingStart[i] = edgeCount;
+			edgeCount += outgoing.get(nodeKeys[i]).size();
+		}
+		outgoingStart[nodeKeys.length] = edgeCount;
+
+		fromRoutineHashes = new int[edgeCount];
+		fromIndexes = new int[edgeCount];
+		toRoutineHashes = new int[edgeCount];
+		toRoutineIndexes = new int[edgeCount];
+		userLevels = new byte[edgeCount];
+		throwEdges = new BitSet(edgeCount);
+		Map<RoutineEdge, Integer> edgeIds = new IdentityHashMap<RoutineEdge, Integer>(edgeCount);
+		int edgeId = 0;
+		for (int i = 0; i < nodeKeys.length; i++) {
+			for (RoutineEdge edge : outgoing.get(nodeKeys[i])) {
+				if (edge.getUserLevel() < 0 || edge.getUserLevel() > MAX_USER_LEVEL) {
+					throw new MergeException("Cannot freeze edge %s -> %s with user level %d", edge.printFromNode(),
+							edge.printToNode(), edge.getUserLevel());
+				}
+				fromRoutineHashes[edgeId] = edge.getFromRoutineHash();
+				fromIndexes[edgeId] = edge.getFromRoutineIndex();
+				toRoutineHashes[edgeId] = edge.getToRoutineHash();
+				userLevels[edgeId] = (byte) edge.getUserLevel();
+				if (edge.getEntryType() == RoutineEdge.Type.THROW) {
+					toRoutineIndexes[edgeId] = ((RoutineExceptionEdge) edge).getToRoutineIndex();
+					throwEdges.set(edgeId);
+				}
+				edgeIds.put(edge, edgeId++);
+			}
+		}
+
+		long targetKeys[] = incoming.keys();
+		targetHashes = new int[targetKeys.length];
+		for (int i = 0; i < targetKeys.length; i++)
+			targetHashes[i] = (int) targetKeys[i];
+		Arrays.sort(targetHashes);
+		incomingStart = new int[targetHashes.length + 1];
+		incomingEdges = new int[edgeCount];
+		minUserLevels = new int[targetHashes.length];
+		int incomingCount = 0;
+		for (int i = 0; i < targetHashes.length; i++) {
+			incomingStart[i] = incomingCount;
+			minUserLevels[i] = Integer.MAX_VALUE;
+			for (RoutineEdge edge : incoming.get(targetHashes[i])) {
+				Integer id = edgeIds.get(edge);
+				if (id == null) // not an outgoing edge of any node
+					continue;
+				incomingEdges[incomingCount++] = id;
+				minUserLevels[i] = Math.min(minUserLevels[i], userLevels[id]);
+			}
+		}
+		incomingStart[targetHashes.length] = incomingCount;
+	}
+
+	@Override
+	public Iterable<RoutineEdge> getOutgoingEdges(ScriptNode fromNode) {
+		int node = Arrays.binarySearch(nodeKeys, getNodeKey(fromNode.routineHash, fromNode.index));
+		if (node < 0)
+			return Collections.emptyList();
+		return getOutgoingEdges(node);
+	}
+
+	@Override
+	public Iterable<List<RoutineEdge>> getOutgoingEdges() {
+		List<List<RoutineEdge>> allEdges = new ArrayList<List<RoutineEdge>>(nodeKeys.length);
+		for (int i = 0; i < nodeKeys.length; i++)
+			allEdges.add(getOutgoingEdges(i));
+		return allEdges;
+	}
+
+	@Override
+	public int getOutgoingEdgeCount() {
+		return toRoutineHashes.length;
+	}
+
+	@Override
+	public int getOutgoingEdgeCount(ScriptNode fromNode) {
+		int node = Arrays.binarySearch(nodeKeys, getNodeKey(fromNode.routineHash, fromNode.index));
+		return (node < 0) ? 0 : (outgoingStart[node + 1] - outgoingStart[node]);
+	}
+
+	@Override
+	public int getIncomingEdgeCount(int routineHash) {
+		int target = Arrays.binarySearch(targetHashes, routineHash);
+		return (target < 0) ? 0 : (incomingStart[target + 1] - incomingStart[target]);
+	}
+
+	@Override
+	public Iterable<RoutineEdge> getIncomingEdges(int routineHash) {
+		int target = Arrays.binarySearch(targetHashes, routineHash);
+		if (target < 0)
+			return Collections.emptyList();
+
+		List<RoutineEdge> edges = new ArrayList<RoutineEdge>(incomingStart[target + 1] - incomingStart[target]);
+		for (int i = incomingStart[target]; i < incomingStart[target + 1]; i++)
+			edges.add(createEdge(incomingEdges[i]));
+		return edges;
+	}
+
+	@Override
+	public int getMinUserLevel(int routineHash) {
+		int target = Arrays.binarySearch(targetHashes, routineHash);
+		return (target < 0) ? Integer.MAX_VALUE : minUserLevels[target];
+	}
+
+	@Override
+	public AddEdgeResult addCallEdge(int fromRoutineHash, ScriptNode fromNode, int toRoutineHash, int userLevel,
+			boolean evaluating) {
+		throw new MergeException("Cannot add an edge to a frozen edge set");
+	}
+
+	@Override
+	public AddEdgeResult addExceptionEdge(int fromRoutineHash, ScriptNode fromNode, int toRoutineHash,
+			int toRoutineIndex, int userLevel) {
+		throw new MergeException("Cannot add an edge to a frozen edge set");
+	}
+
+	@Override
+	public GraphEdgeSet freeze() {
+		return this;
+	}
+
+	private List<RoutineEdge> getOutgoingEdges(int node) {
+		List<RoutineEdge> edges = new ArrayList<RoutineEdge>(outgoingStart[node + 1] - outgoingStart[node]);
+		for (int i = outgoingStart[node]; i < outgoingStart[node + 1]; i++)
+			edges.add(createEdge(i));
+		return edges;
+	}
+
+	private RoutineEdge createEdge(int edge) {
+		if (throwEdges.get(edge)) {
+			return new RoutineExceptionEdge(fromRoutineHashes[edge], fromIndexes[edge], toRoutineHashes[edge],
+					toRoutineIndexes[edge], userLevels[edge]);
+		} else {
+			return new RoutineEdge(fromRoutineHashes[edge], fromIndexes[edge], toRoutineHashes[edge], userLevels[edge]);
+		}
+	}
+}
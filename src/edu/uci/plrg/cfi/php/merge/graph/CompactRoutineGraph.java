@@ -0,0 +1,98 @@
+package edu.uci.plrg.cfi.php.merge.graph;
+
+/**
+ * Read-only routine graph that stores its nodes in parallel arrays instead of `ScriptNode` objects. The per-index
+ * accessors of `ScriptRoutineGraph` read the arrays directly, which is preferable for sequential scans.
+ */
+public class CompactRoutineGraph extends ReadOnlyRoutineGraph {
+
+	private final int nodeCount;
+	private final short[] opcodes; // opcode in the low byte, type flags in the high byte
+	private final int[] lineNumbers;
+	private final byte[] userLevels;
+	private final int[] branchTargets; // only meaningful for branch nodes
+	private final byte[] branchUserLevels; // only meaningful for branch nodes
+
+	public CompactRoutineGraph(int hash, RoutineId id, int nodeCount) {
+		super(hash, id);
+
+		this.nodeCount = nodeCount;
+		opcodes = new short[nodeCount];
+		lineNumbers = new int[nodeCount];
+		userLevels = new byte[nodeCount];
+		branchTargets = new int[nodeCount];
+		branchUserLevels = new byte[nodeCount];
+	}
+
+	private CompactRoutineGraph(int hash, RoutineId id, CompactRoutineGraph original) {
+		super(hash, id);
+
+		nodeCount = original.nodeCount;
+		opcodes = original.opcodes;
+		lineNumbers = original.lineNumbers;
+		userLevels = original.userLevels;
+		branchTargets = original.branchTargets;
+		branchUserLevels = original.branchUserLevels;
+	}
+
+	public void setNode(int index, int opcode, int typeFlags, int lineNumber, int userLevel) {
+		opcodes[index] = (short) (((typeFlags & 0xff) << 8) | (opcode & 0xff));
+		lineNumbers[index] = lineNumber;
+		userLevels[index] = (byte) userLevel;
+		branchTargets[index] = ScriptBranchNode.UNASSIGNED_BRANCH_TARGET_ID;
+		branchUserLevels[index] = (byte) ScriptNode.USER_LEVEL_TOP;
+	}
+
+	public void setBranch(int index, int targetIndex, int branchUserLevel) {
+		branchTargets[index] = targetIndex;
+		branchUserLevels[index] = (byte) branchUserLevel;
+	}
+
+	@Override
+	public ScriptRoutineGraph renameDynamicRoutine(int routineIndex, RoutineId id, boolean isFragmentary) {
+		return new CompactRoutineGraph(ScriptRoutineGraph.constructDynamicHash(routineIndex), id, this);
+	}
+
+	@Override
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	@Override
+	public int getOpcode(int index) {
+		checkIndex(index);
+		return opcodes[index] & 0xff;
+	}
+
+	@Override
+	public int getLineNumber(int index) {
+		checkIndex(index);
+		return lineNumbers[index];
+	}
+
+	@Override
+	public int getTypeFlags(int index) {
+		checkIndex(index);
+		return (opcodes[index] >> 8) & 0xff;
+	}
+
+	@Override
+	public int getNodeUserLevel(int index) {
+		checkIndex(index);
+		return userLevels[index];
+	}
+
+	@Override
+	public int getBranchTargetIndex(int index) {
+		if (!ScriptNode.TypeFlag.BRANCH.isSet(getTypeFlags(index)))
+			return ScriptBranchNode.UNASSIGNED_BRANCH_TARGET_ID;
+		return branchTargets[index];
+	}
+
+	@Override
+	public int getBranchUserLevel(int index) {
+		if (!ScriptNode.TypeFlag.BRANCH.isSet(getTypeFlags(index)))
+			return ScriptNode.USER_LEVEL_TOP;
+		return branchUserLevels[index];
+	}
+}
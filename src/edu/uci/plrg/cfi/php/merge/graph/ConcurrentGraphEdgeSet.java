@@ -0,0 +1,218 @@
+package edu.uci.plrg.cfi.php.merge.graph;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import edu.uci.plrg.cfi.php.util.LongHashMap;
+
+/**
+ * Edge set that can be added to and queried from several threads at once. The outgoing edges are split into stripes
+ * by the key of their source node, each a `GraphEdgeSet` guarded by its own lock, so edges from different nodes are
+ * mostly added in parallel and the `AddEdgeResult` of each add is the same as in a `GraphEdgeSet`. The incoming edges
+ * are striped separately by target routine. A thread only ever takes an incoming lock while holding an outgoing lock,
+ * never the reverse, so the locks can't deadlock.
+ *
+ * While edges are being added, queries lock and return copies of the edge lists, since the lists may grow while the
+ * caller iterates them. After `completeLinking()` they return the lists of the set, as a `GraphEdgeSet` does, so the
+ * graph is read at the cost of a plain edge set through the merge and the generator. The edges in the lists are
+ * always shared with the set.
+ */
+public class ConcurrentGraphEdgeSet extends GraphEdgeSet {
+
+	private static final int STRIPE_BITS = 6;
+	private static final int STRIPE_COUNT = (1 << STRIPE_BITS);
+
+	private static int getStripeIndex(long key) {
+		int mixed = ((int) (key ^ (key >>> 32))) * 0x9e3779b9;
+		return mixed >>> (32 - STRIPE_BITS);
+	}
+
+	/**
+	 * The outgoing edges of the nodes whose keys map to one stripe. Its incoming edges are kept by the enclosing set.
+	 */
+	private class Stripe extends GraphEdgeSet {
+		@Override
+		void addIncomingEdge(RoutineEdge edge) {
+			LongHashMap<IncomingEdgeList> incoming = getIncomingStripe(edge.getToRoutineHash());
+			synchronized (incoming) {
+				IncomingEdgeList edges = incoming.get(edge.getToRoutineHash());
+				if (edges == null) {
+					edges = new IncomingEdgeList();
+					incoming.put(edge.getToRoutineHash(), edges);
+				}
+				edges.addEdge(edge);
+			}
+		}
+
+		@Override
+		void lowerUserLevel(RoutineEdge edge, int userLevel) {
+			LongHashMap<IncomingEdgeList> incoming = getIncomingStripe(edge.getToRoutineHash());
+			synchronized (incoming) {
+				edge.setUserLevel(userLevel);
+				IncomingEdgeList edges = incoming.get(edge.getToRoutineHash());
+				if (userLevel < edges.minUserLevel)
+					edges.minUserLevel = userLevel;
+			}
+		}
+	}
+
+	private final Stripe outgoingStripes[] = new Stripe[STRIPE_COUNT];
+	private final List<LongHashMap<IncomingEdgeList>> incomingStripes = new ArrayList<LongHashMap<IncomingEdgeList>>(
+			STRIPE_COUNT);
+	private volatile boolean isLinkingComplete = false;
+
+	public ConcurrentGraphEdgeSet() {
+		for (int i = 0; i < STRIPE_COUNT; i++) {
+			outgoingStripes[i] = new Stripe();
+			incomingStripes.add(new LongHashMap<IncomingEdgeList>());
+		}
+	}
+
+	/**
+	 * Declare that edges are no longer added from several threads. Queries then neither lock nor copy, so afterwards
+	 * the set must only be used by one thread at a time, or by several that only read it.
+	 */
+	public void completeLinking() {
+		isLinkingComplete = true;
+	}
+
+	private Stripe getOutgoingStripe(ScriptNode fromNode) {
+		return outgoingStripes[getStripeIndex(getNodeKey(fromNode.routineHash, fromNode.index))];
+	}
+
+	private LongHashMap<IncomingEdgeList> getIncomingStripe(int routineHash) {
+		return incomingStripes.get(getStripeIndex(routineHash));
+	}
+
+	@Override
+	public Iterable<RoutineEdge> getOutgoingEdges(ScriptNode fromNode) {
+		Stripe stripe = getOutgoingStripe(fromNode);
+		if (isLinkingComplete)
+			return stripe.getOutgoingEdges(fromNode);
+
+		synchronized (stripe) {
+			List<RoutineEdge> edges = new ArrayList<RoutineEdge>();
+			for (RoutineEdge edge : stripe.getOutgoingEdges(fromNode))
+				edges.add(edge);
+			return edges;
+		}
+	}
+
+	@Override
+	public Iterable<List<RoutineEdge>> getOutgoingEdges() {
+		List<List<RoutineEdge>> allEdges = new ArrayList<List<RoutineEdge>>();
+		if (isLinkingComplete) {
+			for (Stripe stripe : outgoingStripes) {
+				for (List<RoutineEdge> edges : stripe.getOutgoingEdges())
+					allEdges.add(edges);
+			}
+			return allEdges;
+		}
+
+		for (Stripe stripe : outgoingStripes) {
+			synchronized (stripe) {
+				for (List<RoutineEdge> edges : stripe.getOutgoingEdges())
+					allEdges.add(new ArrayList<RoutineEdge>(edges));
+			}
+		}
+		return allEdges;
+	}
+
+	@Override
+	public int getOutgoingEdgeCount() {
+		int edgeCount = 0;
+		for (Stripe stripe : outgoingStripes) {
+			synchronized (stripe) {
+				edgeCount += stripe.getOutgoingEdgeCount();
+			}
+		}
+		return edgeCount;
+	}
+
+	@Override
+	public int getOutgoingEdgeCount(ScriptNode fromNode) {
+		Stripe stripe = getOutgoingStripe(fromNode);
+		synchronized (stripe) {
+			return stripe.getOutgoingEdgeCount(fromNode);
+		}
+	}
+
+	@Override
+	public int getIncomingEdgeCount(int routineHash) {
+		LongHashMap<IncomingEdgeList> incoming = getIncomingStripe(routineHash);
+		synchronized (incoming) {
+			IncomingEdgeList edges = incoming.get(routineHash);
+			return (edges == null) ? 0 : edges.size();
+		}
+	}
+
+	@Override
+	public Iterable<RoutineEdge> getIncomingEdges(int routineHash) {
+		LongHashMap<IncomingEdgeList> incoming = getIncomingStripe(routineHash);
+		if (isLinkingComplete) {
+			IncomingEdgeList edges = incoming.get(routineHash);
+			if (edges == null)
+				return Collections.emptyList();
+			else
+				return edges;
+		}
+
+		synchronized (incoming) {
+			IncomingEdgeList edges = incoming.get(routineHash);
+			if (edges == null)
+				return Collections.emptyList();
+			else
+				return new ArrayList<RoutineEdge>(edges);
+		}
+	}
+
+	@Override
+	public int getMinUserLevel(int routineHash) {
+		LongHashMap<IncomingEdgeList> incoming = getIncomingStripe(routineHash);
+		synchronized (incoming) {
+			IncomingEdgeList edges = incoming.get(routineHash);
+			return (edges == null) ? Integer.MAX_VALUE : edges.minUserLevel;
+		}
+	}
+
+	@Override
+	public AddEdgeResult addCallEdge(int fromRoutineHash, ScriptNode fromNode, int toRoutineHash, int userLevel,
+			boolean evaluating) {
+		if (fromNode == null) // fails in the stripe, but needs a node to find it
+			return super.addCallEdge(fromRoutineHash, fromNode, toRoutineHash, userLevel, evaluating);
+
+		Stripe stripe = getOutgoingStripe(fromNode);
+		synchronized (stripe) {
+			return stripe.addCallEdge(fromRoutineHash, fromNode, toRoutineHash, userLevel, evaluating);
+		}
+	}
+
+	@Override
+	public AddEdgeResult addExceptionEdge(int fromRoutineHash, ScriptNode fromNode, int toRoutineHash,
+			int toRoutineIndex, int userLevel) {
+		Stripe stripe = getOutgoingStripe(fromNode);
+		synchronized (stripe) {
+			return stripe.addExceptionEdge(fromRoutineHash, fromNode, toRoutineHash, toRoutineIndex, userLevel);
+		}
+	}
+
+	/**
+	 * Must not be called while edges are still being added.
+	 */
+	@Override
+	public GraphEdgeSet freeze() {
+		LongHashMap<List<RoutineEdge>> outgoing = new LongHashMap<List<RoutineEdge>>();
+		for (Stripe stripe : outgoingStripes) {
+			LongHashMap<List<RoutineEdge>> stripeOutgoing = stripe.getOutgoingEdgeMap();
+			for (long nodeKey : stripeOutgoing.keys())
+				outgoing.put(nodeKey, stripeOutgoing.get(nodeKey));
+		}
+		LongHashMap<IncomingEdgeList> incoming = new LongHashMap<IncomingEdgeList>();
+		for (LongHashMap<IncomingEdgeList> stripeIncoming : incomingStripes) {
+			for (long routineHash : stripeIncoming.keys())
+				incoming.put(routineHash, stripeIncoming.get(routineHash));
+		}
+		return new CompactGraphEdgeSet(outgoing, incoming);
+	}
+}
@@ -2,13 +2,12 @@ package edu.uci.plrg.cfi.php.merge.graph;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import edu.uci.plrg.cfi.common.log.Log;
 import edu.uci.plrg.cfi.php.merge.MergeException;
 import edu.uci.plrg.cfi.php.merge.ScriptMergeWatchList;
+import edu.uci.plrg.cfi.php.util.LongHashMap;
 
 public class GraphEdgeSet {
 
@@ -44,12 +43,58 @@ public class GraphEdgeSet {
 		}
 	}
 
-	private final Map<ScriptNode, List<RoutineEdge>> outgoingEdges = new HashMap<ScriptNode, List<RoutineEdge>>();
-	private final Map<Integer, List<RoutineEdge>> incomingEdges = new HashMap<Integer, List<RoutineEdge>>();
+	/**
+	 * Nodes with more outgoing edges than this also get an index of them by target (see `getEdgeKey()`), so that
+	 * finding a duplicate at a megamorphic call site doesn't scan all of its edges. The list remains the output order.
+	 */
+	private static final int OUTGOING_EDGE_INDEX_THRESHOLD = 8;
+
+	private static long getEdgeKey(RoutineEdge.Type type, int toRoutineHash, int toRoutineIndex) {
+		return (((long) toRoutineHash) << 32) | (type == RoutineEdge.Type.THROW ? 0x80000000L : 0L)
+				| (toRoutineIndex & 0x7fffffff);
+	}
+
+	private static long getEdgeKey(RoutineEdge edge) {
+		if (edge.getEntryType() == RoutineEdge.Type.THROW)
+			return getEdgeKey(RoutineEdge.Type.THROW, edge.getToRoutineHash(),
+					((RoutineExceptionEdge) edge).getToRoutineIndex());
+		else
+			return getEdgeKey(RoutineEdge.Type.CALL, edge.getToRoutineHash(), 0);
+	}
+
+	/**
+	 * Incoming edges of one routine, with the minimum of their user levels maintained as edges are added or lowered.
+	 */
+	@SuppressWarnings("serial")
+	static class IncomingEdgeList extends ArrayList<RoutineEdge> {
+		int minUserLevel = Integer.MAX_VALUE;
+
+		void addEdge(RoutineEdge edge) {
+			add(edge);
+			if (edge.getUserLevel() < minUserLevel)
+				minUserLevel = edge.getUserLevel();
+		}
+	}
+
+	/**
+	 * @return the key of a node in the edge maps, which like `ScriptNode.equals()` identifies it by routine and index
+	 */
+	public static long getNodeKey(int routineHash, int index) {
+		return (((long) routineHash) << 32) | (index & 0xffffffffL);
+	}
+
+	private static long getNodeKey(ScriptNode node) {
+		return getNodeKey(node.routineHash, node.index);
+	}
+
+	// all keyed by primitives, since a large dataset has millions of edges
+	private final LongHashMap<List<RoutineEdge>> outgoingEdges = new LongHashMap<List<RoutineEdge>>();
+	private final LongHashMap<LongHashMap<RoutineEdge>> outgoingEdgeIndex = new LongHashMap<LongHashMap<RoutineEdge>>();
+	private final LongHashMap<IncomingEdgeList> incomingEdges = new LongHashMap<IncomingEdgeList>();
 	private int edgeCount = 0;
 
 	public Iterable<RoutineEdge> getOutgoingEdges(ScriptNode fromNode) {
-		Iterable<RoutineEdge> edges = outgoingEdges.get(fromNode);
+		Iterable<RoutineEdge> edges = outgoingEdges.get(getNodeKey(fromNode));
 		if (edges == null)
 			return Collections.emptyList();
 		else
@@ -65,7 +110,7 @@ public class GraphEdgeSet {
 	}
 
 	public int getOutgoingEdgeCount(ScriptNode fromNode) {
-		List<RoutineEdge> edges = outgoingEdges.get(fromNode);
+		List<RoutineEdge> edges = outgoingEdges.get(getNodeKey(fromNode));
 		if (edges == null)
 			return 0;
 		else
@@ -85,16 +130,23 @@ public class GraphEdgeSet {
 			return edges;
 	}
 
+	/**
+	 * @return the lowest user level of any edge into the routine, or `Integer.MAX_VALUE` if it has none
+	 */
 	public int getMinUserLevel(int routineHash) {
-		int min = Integer.MAX_VALUE;
-		List<RoutineEdge> edges = incomingEdges.get(routineHash);
-		if (edges != null) {
-			for (RoutineEdge edge : edges) {
-				if (edge.getUserLevel() < min)
-					min = edge.getUserLevel();
-			}
-		}
-		return min;
+		IncomingEdgeList edges = incomingEdges.get(routineHash);
+		return (edges == null) ? Integer.MAX_VALUE : edges.minUserLevel;
+	}
+
+	/**
+	 * @return a compact read-only copy of this edge set, for a graph that is complete
+	 */
+	public GraphEdgeSet freeze() {
+		return new CompactGraphEdgeSet(outgoingEdges, incomingEdges);
+	}
+
+	LongHashMap<List<RoutineEdge>> getOutgoingEdgeMap() {
+		return outgoingEdges;
 	}
 
 	public AddEdgeResult addCallEdge(int fromRoutineHash, ScriptNode fromNode, int toRoutineHash, int userLevel) {
@@ -106,29 +158,28 @@ public class GraphEdgeSet {
 		if (fromNode == null)
 			throw new MergeException("Cannot create a routine edge from a missing from node.");
 		
-		List<RoutineEdge> nodeOutgoing = outgoingEdges.get(fromNode);
+		List<RoutineEdge> nodeOutgoing = outgoingEdges.get(getNodeKey(fromNode));
 		if (nodeOutgoing == null) {
 			nodeOutgoing = new ArrayList<RoutineEdge>();
-			outgoingEdges.put(fromNode, nodeOutgoing);
+			outgoingEdges.put(getNodeKey(fromNode), nodeOutgoing);
 		} else {
-			for (RoutineEdge edge : nodeOutgoing) {
-				if (edge.getEntryType() == RoutineEdge.Type.CALL && edge.getToRoutineHash() == toRoutineHash) {
-					if (edge.getUserLevel() == userLevel) {
-						Log.message("Skipping duplicate call edge from %s to routine 0x%x at user level %d", fromNode,
-								toRoutineHash, userLevel);
-						if (ScriptMergeWatchList.watchAny(fromRoutineHash, fromNode.index)
-								|| ScriptMergeWatchList.watch(toRoutineHash)) {
-							Log.log("Skipping duplicate call edge %s -%s-> %s", edge.printFromNode(),
-									edge.printUserLevel(), edge.printToNode());
-						}
-					} else if (userLevel < edge.getUserLevel()) {
-						LowerUserLevelResult result = new LowerUserLevelResult(edge, userLevel);
-						if (!evaluating)
-							edge.setUserLevel(userLevel);
-						return result;
+			RoutineEdge edge = findOutgoingEdge(fromNode, nodeOutgoing, RoutineEdge.Type.CALL, toRoutineHash, 0);
+			if (edge != null) {
+				if (edge.getUserLevel() == userLevel) {
+					Log.message("Skipping duplicate call edge from %s to routine 0x%x at user level %d", fromNode,
+							toRoutineHash, userLevel);
+					if (ScriptMergeWatchList.watchAny(fromRoutineHash, fromNode.index)
+							|| ScriptMergeWatchList.watch(toRoutineHash)) {
+						Log.log("Skipping duplicate call edge %s -%s-> %s", edge.printFromNode(),
+								edge.printUserLevel(), edge.printToNode());
 					}
-					return null;
+				} else if (userLevel < edge.getUserLevel()) {
+					LowerUserLevelResult result = new LowerUserLevelResult(edge, userLevel);
+					if (!evaluating)
+						lowerUserLevel(edge, userLevel);
+					return result;
 				}
+				return null;
 			}
 		}
 
@@ -137,13 +188,9 @@ public class GraphEdgeSet {
 
 		if (!evaluating) {
 			nodeOutgoing.add(newEdge);
+			indexOutgoingEdge(fromNode, nodeOutgoing, newEdge);
 
-			List<RoutineEdge> nodeIncoming = incomingEdges.get(toRoutineHash);
-			if (nodeIncoming == null) {
-				nodeIncoming = new ArrayList<RoutineEdge>();
-				incomingEdges.put(toRoutineHash, nodeIncoming);
-			}
-			nodeIncoming.add(newEdge);
+			addIncomingEdge(newEdge);
 
 			if (ScriptMergeWatchList.watchAny(fromRoutineHash, fromNode.index)
 					|| ScriptMergeWatchList.watch(toRoutineHash)) {
@@ -157,24 +204,22 @@ public class GraphEdgeSet {
 
 	public AddEdgeResult addExceptionEdge(int fromRoutineHash, ScriptNode fromNode, int toRoutineHash,
 			int toRoutineIndex, int userLevel) {
-		List<RoutineEdge> edges = outgoingEdges.get(fromNode);
+		List<RoutineEdge> edges = outgoingEdges.get(getNodeKey(fromNode));
 		if (edges == null) {
 			edges = new ArrayList<RoutineEdge>();
-			outgoingEdges.put(fromNode, edges);
+			outgoingEdges.put(getNodeKey(fromNode), edges);
 		} else {
-			for (RoutineEdge edge : edges) {
-				if (edge.getEntryType() == RoutineEdge.Type.THROW && edge.getToRoutineHash() == toRoutineHash
-						&& ((RoutineExceptionEdge) edge).getToRoutineIndex() == toRoutineIndex) {
-					if (edge.getUserLevel() == userLevel) {
-						Log.message("Merging duplicate throw edge from %s to %d in routine 0x%x at user level %d",
-								fromNode, toRoutineIndex, toRoutineHash, userLevel);
-					} else if (userLevel < edge.getUserLevel()) {
-						LowerUserLevelResult result = new LowerUserLevelResult(edge, userLevel);
-						edge.setUserLevel(userLevel);
-						return result;
-					}
-					return null;
+			RoutineEdge edge = findOutgoingEdge(fromNode, edges, RoutineEdge.Type.THROW, toRoutineHash, toRoutineIndex);
+			if (edge != null) {
+				if (edge.getUserLevel() == userLevel) {
+					Log.message("Merging duplicate throw edge from %s to %d in routine 0x%x at user level %d",
+							fromNode, toRoutineIndex, toRoutineHash, userLevel);
+				} else if (userLevel < edge.getUserLevel()) {
+					LowerUserLevelResult result = new LowerUserLevelResult(edge, userLevel);
+					lowerUserLevel(edge, userLevel);
+					return result;
 				}
+				return null;
 			}
 		}
 
@@ -182,17 +227,64 @@ public class GraphEdgeSet {
 		RoutineExceptionEdge newEdge = new RoutineExceptionEdge(fromRoutineHash, fromNode.index, toRoutineHash,
 				toRoutineIndex, userLevel);
 		edges.add(newEdge);
+		indexOutgoingEdge(fromNode, edges, newEdge);
 
-		List<RoutineEdge> nodeIncoming = incomingEdges.get(toRoutineHash);
-		if (nodeIncoming == null) {
-			nodeIncoming = new ArrayList<RoutineEdge>();
-			incomingEdges.put(toRoutineHash, nodeIncoming);
-		}
-		nodeIncoming.add(newEdge);
+		addIncomingEdge(newEdge);
 
 		if (ScriptMergeWatchList.watchAny(fromRoutineHash, fromNode.index) || ScriptMergeWatchList.watch(toRoutineHash)) {
 			Log.log("Add exception edge to set: %s -> %s", newEdge.printFromNode(), newEdge.printToNode());
 		}
 		return new NewEdgeResult(newEdge);
 	}
+
+	/**
+	 * Hook for every new edge. Called after the edge is added to the outgoing edges of its node.
+	 */
+	void addIncomingEdge(RoutineEdge edge) {
+		IncomingEdgeList edges = incomingEdges.get(edge.getToRoutineHash());
+		if (edges == null) {
+			edges = new IncomingEdgeList();
+			incomingEdges.put(edge.getToRoutineHash(), edges);
+		}
+		edges.addEdge(edge);
+	}
+
+	void lowerUserLevel(RoutineEdge edge, int userLevel) {
+		edge.setUserLevel(userLevel);
+		IncomingEdgeList edges = incomingEdges.get(edge.getToRoutineHash());
+		if (userLevel < edges.minUserLevel)
+			edges.minUserLevel = userLevel;
+	}
+
+	/**
+	 * @return the first outgoing edge of `fromNode` of the type to the target, or null if there is none
+	 */
+	private RoutineEdge findOutgoingEdge(ScriptNode fromNode, List<RoutineEdge> nodeOutgoing, RoutineEdge.Type type,
+			int toRoutineHash, int toRoutineIndex) {
+		if (nodeOutgoing.size() > OUTGOING_EDGE_INDEX_THRESHOLD)
+			return outgoingEdgeIndex.get(getNodeKey(fromNode)).get(getEdgeKey(type, toRoutineHash, toRoutineIndex));
+
+		for (RoutineEdge edge : nodeOutgoing) {
+			if (edge.getEntryType() != type || edge.getToRoutineHash() != toRoutineHash)
+				continue;
+			if (type == RoutineEdge.Type.CALL || ((RoutineExceptionEdge) edge).getToRoutineIndex() == toRoutineIndex)
+				return edge;
+		}
+		return null;
+	}
+
+	private void indexOutgoingEdge(ScriptNode fromNode, List<RoutineEdge> nodeOutgoing, RoutineEdge newEdge) {
+		if (nodeOutgoing.size() <= OUTGOING_EDGE_INDEX_THRESHOLD)
+			return;
+
+		LongHashMap<RoutineEdge> index = outgoingEdgeIndex.get(getNodeKey(fromNode));
+		if (index == null) {
+			index = new LongHashMap<RoutineEdge>(nodeOutgoing.size() * 2);
+			for (RoutineEdge edge : nodeOutgoing)
+				index.putIfAbsent(getEdgeKey(edge), edge);
+			outgoingEdgeIndex.put(getNodeKey(fromNode), index);
+		} else {
+			index.putIfAbsent(getEdgeKey(newEdge), newEdge);
+		}
+	}
 }
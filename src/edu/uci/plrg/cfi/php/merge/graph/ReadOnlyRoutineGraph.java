@@ -0,0 +1,126 @@
+package edu.uci.plrg.cfi.php.merge.graph;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import edu.uci.plrg.cfi.php.merge.MergeException;
+
+/**
+ * Base for routine graphs that do not hold `ScriptNode` objects, but answer the per-index accessors of
+ * `ScriptRoutineGraph` from some other representation. `getNode()` and `getNodes()` materialize a detached view of
+ * the node on each call: a branch view has a view of its target, but views have no `next` pointer, and changes to a
+ * view are not written back to the routine.
+ */
+public abstract class ReadOnlyRoutineGraph extends ScriptRoutineGraph {
+
+	protected ReadOnlyRoutineGraph(int hash, RoutineId id) {
+		super(hash, id, false);
+	}
+
+	@Override
+	public abstract int getNodeCount();
+
+	@Override
+	public abstract int getOpcode(int index);
+
+	@Override
+	public abstract int getLineNumber(int index);
+
+	@Override
+	public abstract int getTypeFlags(int index);
+
+	@Override
+	public abstract int getNodeUserLevel(int index);
+
+	@Override
+	public abstract int getBranchTargetIndex(int index);
+
+	@Override
+	public abstract int getBranchUserLevel(int index);
+
+	@Override
+	public void addNode(ScriptNode node) {
+		throw new MergeException("Cannot add a node to read-only routine 0x%x", hash);
+	}
+
+	@Override
+	public void ensureNodeCapacity(int nodeCount) {
+		throw new MergeException("Cannot add nodes to read-only routine 0x%x", hash);
+	}
+
+	@Override
+	public void clearNodes() {
+		throw new MergeException("Cannot clear the nodes of read-only routine 0x%x", hash);
+	}
+
+	/**
+	 * Lowering a user level on the detached node views would be lost, so a routine to merge into must be copied first.
+	 */
+	@Override
+	public boolean mergeRoutine(ScriptRoutineGraph other) {
+		throw new MergeException("Cannot merge into read-only routine 0x%x", hash);
+	}
+
+	@Override
+	public ScriptRoutineGraph renameDynamicRoutine(int routineIndex, RoutineId id, boolean isFragmentary) {
+		throw new MergeException("Cannot rename read-only routine 0x%x", hash);
+	}
+
+	@Override
+	public ScriptNode getNode(int index) {
+		return createView(index, true);
+	}
+
+	@Override
+	public Iterable<ScriptNode> getNodes() {
+		return new Iterable<ScriptNode>() {
+			@Override
+			public Iterator<ScriptNode> iterator() {
+				return new Iterator<ScriptNode>() {
+					private int index = 0;
+
+					@Override
+					public boolean hasNext() {
+						return index < getNodeCount();
+					}
+
+					@Override
+					public ScriptNode next() {
+						if (index >= getNodeCount())
+							throw new NoSuchElementException();
+						return createView(index++, true);
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	private ScriptNode createView(int index, boolean withTarget) {
+		int typeFlags = getTypeFlags(index);
+		ScriptNode node;
+		if (ScriptNode.TypeFlag.BRANCH.isSet(typeFlags)) {
+			ScriptBranchNode branch = new ScriptBranchNode(hash, typeFlags, getOpcode(index), index,
+					getLineNumber(index), getBranchUserLevel(index));
+			int targetIndex = getBranchTargetIndex(index);
+			if (withTarget && targetIndex != ScriptBranchNode.UNASSIGNED_BRANCH_TARGET_ID
+					&& targetIndex < getNodeCount())
+				branch.setTarget(createView(targetIndex, false));
+			node = branch;
+		} else {
+			node = new ScriptNode(hash, typeFlags, getOpcode(index), getLineNumber(index), index);
+		}
+		node.setNodeUserLevel(getNodeUserLevel(index));
+		return node;
+	}
+
+	protected void checkIndex(int index) {
+		if (index < 0 || index >= getNodeCount())
+			throw new IndexOutOfBoundsException(String.format("Index %d in routine 0x%x of size %d", index, hash,
+					getNodeCount()));
+	}
+}
@@ -6,43 +6,108 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
 import java.util.TreeMap;
 
 import edu.uci.plrg.cfi.php.analysis.AnalysisException;
+import edu.uci.plrg.cfi.php.util.LongHashMap;
 
 public class RoutineId {
 
+	/**
+	 * Shared by all loaders, which may run concurrently. Loads are synchronized and publish a new `Snapshot` instead of
+	 * changing the current one, so readers never lock, and the arrays and lists they get never change. Each snapshot
+	 * is a full copy, so callers that know their catalogs up front load them together, which publishes one snapshot
+	 * for all of them. A catalog is only parsed again if its modification time or length changes.
+	 */
 	public static class Cache {
 
+		/**
+		 * Modification time and length of a catalog when it was loaded. The time alone misses a rewrite within the
+		 * resolution of the file system clock.
+		 */
+		private static class CatalogStamp {
+			final long lastModified;
+			final long length;
+
+			CatalogStamp(File catalog) {
+				lastModified = catalog.lastModified();
+				length = catalog.length();
+			}
+
+			boolean isSame(CatalogStamp other) {
+				return (other != null) && (other.lastModified == lastModified) && (other.length == length);
+			}
+		}
+
+		/**
+		 * The routines that differ from the current snapshot, in order of appearance over all catalogs of one load.
+		 */
+		private static class LoadedRoutines {
+			int hashes[] = new int[0x100];
+			final List<RoutineId> ids = new ArrayList<RoutineId>();
+			final LongHashMap<RoutineId> latestIds = new LongHashMap<RoutineId>(); // by hash
+
+			void add(int hash, RoutineId id) {
+				if (ids.size() == hashes.length)
+					hashes = Arrays.copyOf(hashes, hashes.length * 2);
+				hashes[ids.size()] = hash;
+				ids.add(id);
+				latestIds.put(hash, id);
+			}
+		}
+
+		private static class Snapshot {
+			final LongHashMap<RoutineId> routineIds;
+			final SortedMap<Path, int[]> routinesBySourceFile;
+			final Map<Path, List<Path>> sourceFilesByDirectory;
+
+			Snapshot(LongHashMap<RoutineId> routineIds, SortedMap<Path, int[]> routinesBySourceFile,
+					Map<Path, List<Path>> sourceFilesByDirectory) {
+				this.routineIds = routineIds;
+				this.routinesBySourceFile = routinesBySourceFile;
+				this.sourceFilesByDirectory = sourceFilesByDirectory;
+			}
+		}
+
 		public static final Cache INSTANCE = new Cache();
 
-		private final Map<Integer, RoutineId> routineIds = new HashMap<Integer, RoutineId>();
-		private final Map<Path, List<Integer>> routinesBySourceFile = new TreeMap<Path, List<Integer>>();
-		private final Map<Path, List<Path>> sourceFilesByDirectory = new HashMap<Path, List<Path>>();
+		private volatile Snapshot snapshot;
+
+		private final Map<String, CatalogStamp> catalogStamps = new HashMap<String, CatalogStamp>(); // by absolute path
+		private final Map<String, Path> sourceFiles = new HashMap<String, Path>(); // one `Path` per source file
 
 		private Cache() {
+			LongHashMap<RoutineId> routineIds = new LongHashMap<RoutineId>();
 			routineIds.put(1, ENTRY_ID);
+			snapshot = new Snapshot(routineIds, new TreeMap<Path, int[]>(), new HashMap<Path, List<Path>>());
 		}
 
 		public RoutineId getId(int routineHash) {
 			if (ScriptRoutineGraph.isDynamicRoutine(routineHash))
 				return DYNAMIC_ID;
-			return routineIds.get(routineHash);
+			return snapshot.routineIds.get(routineHash);
 		}
 
-		public List<Integer> getRoutinesInFile(Path file) {
-			return routinesBySourceFile.get(file);
+		/**
+		 * @return the hashes of the routines in `file`, which must not be modified, or null if the file is unknown
+		 */
+		public int[] getRoutinesInFile(Path file) {
+			return snapshot.routinesBySourceFile.get(file);
 		}
 
 		public List<Path> getFilesInDirectory(Path directory) {
-			return sourceFilesByDirectory.get(directory);
+			return snapshot.sourceFilesByDirectory.get(directory);
 		}
 
 		public Iterable<Path> getAllKnownFiles() {
-			return routinesBySourceFile.keySet();
+			return Collections.unmodifiableSet(snapshot.routinesBySourceFile.keySet());
 		}
 
 		/**
@@ -52,12 +117,42 @@ public class RoutineId {
 			RoutineId routineId = getId(routineHash);
 			if (routineId == null) {
 				load(catalog);
-				routineId = routineIds.get(routineHash);
+				routineId = getId(routineHash);
 			}
 			return routineId;
 		}
 
 		public void load(File catalog) throws NumberFormatException, IOException {
+			load(Collections.singletonList(catalog));
+		}
+
+		/**
+		 * Load the catalogs that changed since they were last loaded, and publish all of their routines at once.
+		 */
+		public synchronized void load(List<File> catalogs) throws NumberFormatException, IOException {
+			Snapshot current = snapshot;
+			LoadedRoutines loaded = new LoadedRoutines();
+			Map<String, CatalogStamp> loadedStamps = new HashMap<String, CatalogStamp>();
+			for (File catalog : catalogs) {
+				String catalogPath = catalog.getAbsolutePath();
+				CatalogStamp stamp = new CatalogStamp(catalog);
+				if (stamp.isSame(catalogStamps.get(catalogPath)) || stamp.isSame(loadedStamps.get(catalogPath)))
+					continue;
+
+				parseCatalog(catalog, current, loaded);
+				loadedStamps.put(catalogPath, stamp);
+			}
+
+			if (!loaded.ids.isEmpty())
+				snapshot = createSnapshot(current, loaded.hashes, loaded.ids);
+			catalogStamps.putAll(loadedStamps);
+		}
+
+		/**
+		 * Only the routines that differ from the current snapshot and from the catalogs parsed before are kept.
+		 */
+		private void parseCatalog(File catalog, Snapshot current, LoadedRoutines loaded)
+				throws NumberFormatException, IOException {
 			BufferedReader in = new BufferedReader(new FileReader(catalog));
 			try {
 				String line;
@@ -67,67 +162,116 @@ public class RoutineId {
 					if (space < 0)
 						continue;
 					int hash = (int) Long.parseLong(line.substring(2, space), 16);
-					String id = line.substring(space + 1);
-					int pipeIndex = id.indexOf('|');
+					int pipeIndex = line.indexOf('|', space + 1);
 					if (pipeIndex < 0) {
-						throw new AnalysisException("Invalid routine id '%s' found in routine catalog %s", id,
-								catalog.getAbsolutePath());
+						throw new AnalysisException("Invalid routine id '%s' found in routine catalog %s",
+								line.substring(space + 1), catalog.getAbsolutePath());
 					}
-					Path file = new File(id.substring(0, pipeIndex)).toPath();
-					String name = id.substring(pipeIndex + 1);
-					routineIds.put(hash, new RoutineId(id, name, file));
-					addFileRoutine(file, hash);
-					addDirectoryFile(file);
+					Path file = internSourceFile(line.substring(space + 1, pipeIndex));
+					String name = line.substring(pipeIndex + 1);
+					RoutineId existing = loaded.latestIds.get(hash);
+					if (existing == null)
+						existing = current.routineIds.get(hash);
+					if (existing != null && existing.sourceFile == file && existing.name.equals(name))
+						continue;
+
+					loaded.add(hash, new RoutineId(name, file));
 				}
 			} finally {
 				in.close();
 			}
 		}
 
-		private void addFileRoutine(Path sourceFile, int routineHash) {
-			List<Integer> routines = routinesBySourceFile.get(sourceFile);
-			if (routines == null) {
-				routines = new ArrayList<Integer>();
-				routinesBySourceFile.put(sourceFile, routines);
+		private Snapshot createSnapshot(Snapshot current, int hashes[], List<RoutineId> ids) {
+			LongHashMap<RoutineId> routineIds = new LongHashMap<RoutineId>(current.routineIds);
+			Map<Path, List<Integer>> addedRoutines = new LinkedHashMap<Path, List<Integer>>(); // in order of appearance
+			for (int i = 0; i < ids.size(); i++) {
+				RoutineId id = ids.get(i);
+				RoutineId previous = routineIds.put(hashes[i], id);
+				if (previous != null && previous.sourceFile == id.sourceFile)
+					continue;
+
+				List<Integer> added = addedRoutines.get(id.sourceFile);
+				if (added == null) {
+					added = new ArrayList<Integer>();
+					addedRoutines.put(id.sourceFile, added);
+				}
+				if (previous == null || !contains(current.routinesBySourceFile.get(id.sourceFile), added, hashes[i]))
+					added.add(hashes[i]); // a hash that moves between files stays listed in both
+			}
+
+			SortedMap<Path, int[]> routinesBySourceFile = new TreeMap<Path, int[]>(current.routinesBySourceFile);
+			Map<Path, List<Path>> sourceFilesByDirectory = new HashMap<Path, List<Path>>(
+					current.sourceFilesByDirectory);
+			for (Map.Entry<Path, List<Integer>> entry : addedRoutines.entrySet()) {
+				Path file = entry.getKey();
+				int routines[] = routinesBySourceFile.get(file);
+				if (routines == null) {
+					routines = new int[0];
+					List<Path> files = new ArrayList<Path>();
+					List<Path> directoryFiles = sourceFilesByDirectory.get(file.getParent());
+					if (directoryFiles != null)
+						files.addAll(directoryFiles);
+					files.add(file);
+					sourceFilesByDirectory.put(file.getParent(), Collections.unmodifiableList(files));
+				}
+
+				int offset = routines.length;
+				routines = Arrays.copyOf(routines, offset + entry.getValue().size());
+				for (int hash : entry.getValue())
+					routines[offset++] = hash;
+				routinesBySourceFile.put(file, routines);
+			}
+			return new Snapshot(routineIds, routinesBySourceFile, sourceFilesByDirectory);
+		}
+
+		private Path internSourceFile(String filename) {
+			Path file = sourceFiles.get(filename);
+			if (file == null) {
+				file = new File(filename).toPath();
+				sourceFiles.put(filename, file);
 			}
-			if (!routines.contains(routineHash))
-				routines.add(routineHash);
+			return file;
 		}
 
-		private void addDirectoryFile(Path file) {
-			List<Path> files = sourceFilesByDirectory.get(file.getParent());
-			if (files == null) {
-				files = new ArrayList<Path>();
-				sourceFilesByDirectory.put(file.getParent(), files);
+		private static boolean contains(int routines[], List<Integer> added, int routineHash) {
+			if (routines != null) {
+				for (int hash : routines) {
+					if (hash == routineHash)
+						return true;
+				}
 			}
-			if (!files.contains(file))
-				files.add(file);
+			return added.contains(routineHash);
 		}
 	}
 
-	public static RoutineId ENTRY_ID = new RoutineId("<entry-point>", "<entry-point>", null);
-	public static RoutineId DYNAMIC_ID = new RoutineId("<eval-routine>", "<eval-routine>", null);
+	public static RoutineId ENTRY_ID = new RoutineId("<entry-point>", null);
+	public static RoutineId DYNAMIC_ID = new RoutineId("<eval-routine>", null);
 
-	/**
-	 * Fully qualified name as "<file-path>:<scope>:<routine-name>"
-	 */
-	public final String id;
 	/**
 	 * Just the "<scope>:<routine-name>", e.g. Custom_Image_Header:ajax_header_add() or
 	 * wordpress/wp-admin/admin.php:<script-body>.
 	 */
 	public final String name;
 	/**
-	 * Relative path to the php file containing this routine.
+	 * Relative path to the php file containing this routine, shared by all routines of the file.
 	 */
 	public Path sourceFile;
 
-	private RoutineId(String id, String name, Path sourceFile) {
-		this.id = id;
+	private RoutineId(String name, Path sourceFile) {
 		this.name = name;
 		this.sourceFile = sourceFile;
 	}
-	
+
+	/**
+	 * @return the fully qualified name as "<file-path>|<scope>:<routine-name>", which is built on each call
+	 */
+	public String getId() {
+		if (sourceFile == null)
+			return name;
+		return sourceFile + "|" + name;
+	}
+
 	public boolean isBuiltin() {
 		return name.startsWith("builtin:");
 	}
@@ -1,7 +1,5 @@
 package edu.uci.plrg.cfi.php.merge.graph;
 
-import java.util.Set;
-
 import edu.uci.plrg.cfi.common.log.Log;
 import edu.uci.plrg.cfi.php.merge.MergeException;
 
@@ -12,7 +10,7 @@ public class ScriptBranchNode extends ScriptNode {
 	private int branchUserLevel;
 	private ScriptNode target = null;
 
-	public ScriptBranchNode(int routineHash, Set<TypeFlag> typeFlags, int opcode, int index, int lineNumber,
+	public ScriptBranchNode(int routineHash, int typeFlags, int opcode, int index, int lineNumber,
 			int branchUserLevel) {
 		super(routineHash, typeFlags, opcode, lineNumber, index);
 
@@ -52,6 +50,10 @@ public class ScriptBranchNode extends ScriptNode {
 	}
 
 	public boolean isConditional() {
+		return isConditional(opcode);
+	}
+
+	public static boolean isConditional(int opcode) {
 		switch (Opcode.forCode(opcode)) {
 			case ZEND_JMP:
 			case ZEND_FE_FETCH_R:
@@ -159,6 +161,6 @@ public class ScriptBranchNode extends ScriptNode {
 
 	@Override
 	public ScriptNode copy() {
-		return new ScriptBranchNode(routineHash, typeFlags, opcode, index, lineNumber, branchUserLevel);
+		return new ScriptBranchNode(routineHash, getTypeFlags(), opcode, index, lineNumber, branchUserLevel);
 	}
 }
@@ -14,13 +14,33 @@ public class ScriptFlowGraph {
 	public final String description;
 	public final boolean isNewUserLevelSample;
 	private final Map<Integer, ScriptRoutineGraph> routines = new HashMap<Integer, ScriptRoutineGraph>();
-	public final GraphEdgeSet edges = new GraphEdgeSet();
+	public final GraphEdgeSet edges;
 	private int maxDynamicRoutineIndex;
 
 	public ScriptFlowGraph(ScriptGraphDataFiles.Type dataSourceType, String description, boolean isNewUserLevelSample) {
+		this(dataSourceType, description, isNewUserLevelSample, new GraphEdgeSet());
+	}
+
+	/**
+	 * For graphs built around an existing edge set, and for subclasses that resolve routines and edges from another
+	 * representation.
+	 */
+	public ScriptFlowGraph(ScriptGraphDataFiles.Type dataSourceType, String description,
+			boolean isNewUserLevelSample, GraphEdgeSet edges) {
 		this.dataSourceType = dataSourceType;
 		this.description = description;
 		this.isNewUserLevelSample = isNewUserLevelSample;
+		this.edges = edges;
+	}
+
+	/**
+	 * @return a copy of this graph that shares its routines and has its edges frozen (see `GraphEdgeSet.freeze()`)
+	 */
+	public ScriptFlowGraph freeze() {
+		ScriptFlowGraph frozen = new ScriptFlowGraph(dataSourceType, description, isNewUserLevelSample, edges.freeze());
+		frozen.routines.putAll(routines);
+		frozen.maxDynamicRoutineIndex = maxDynamicRoutineIndex;
+		return frozen;
 	}
 
 	public void addRoutine(ScriptRoutineGraph routine) {
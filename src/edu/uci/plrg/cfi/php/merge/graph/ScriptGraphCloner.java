@@ -14,11 +14,8 @@ public class ScriptGraphCloner {
 	public ScriptFlowGraph copyRoutines(ScriptFlowGraph original, ScriptFlowGraph flowCopy) {
 		ScriptNode fromNode;
 
-		for (ScriptRoutineGraph routine : original.getRoutines()) {
-			ScriptRoutineGraph routineCopy = routine.copy(true);
-			shallowCopy(routine, routineCopy);
-			flowCopy.addRoutine(routineCopy);
-		}
+		for (ScriptRoutineGraph routine : original.getRoutines())
+			flowCopy.addRoutine(copyRoutine(routine, true));
 
 		Log.message("Copying %d dynamic routines", original.getMaxDynamicRoutineIndex());
 		for (List<RoutineEdge> edges : original.edges.getOutgoingEdges()) {
@@ -41,6 +38,15 @@ public class ScriptGraphCloner {
 		return flowCopy;
 	}
 
+	/**
+	 * Copy the routine and its nodes, but none of its edges.
+	 */
+	public ScriptRoutineGraph copyRoutine(ScriptRoutineGraph routine, boolean isFragmentary) {
+		ScriptRoutineGraph routineCopy = routine.copy(isFragmentary);
+		shallowCopy(routine, routineCopy);
+		return routineCopy;
+	}
+
 	private void shallowCopy(ScriptRoutineGraph routineOriginal, ScriptRoutineGraph routineCopy) {
 		ScriptNode previousNodeCopy = null;
 		for (int i = 0; i < routineOriginal.getNodeCount(); i++) {
@@ -53,5 +59,13 @@ public class ScriptGraphCloner {
 			
 			routineCopy.addNode(nodeCopy);
 		}
+
+		for (int i = 0; i < routineOriginal.getNodeCount(); i++) {
+			ScriptNode nodeOriginal = routineOriginal.getNode(i);
+			if (nodeOriginal instanceof ScriptBranchNode && ((ScriptBranchNode) nodeOriginal).getTarget() != null) {
+				((ScriptBranchNode) routineCopy.getNode(i)).setTarget(routineCopy
+						.getNode(((ScriptBranchNode) nodeOriginal).getTargetIndex()));
+			}
+		}
 	}
 }
@@ -1,6 +1,7 @@
 package edu.uci.plrg.cfi.php.merge.graph;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Set;
@@ -15,12 +16,18 @@ public class ScriptNode {
 		CALL(0x2),
 		EVAL(0x4);
 
+		private static final int ALL_BITS = 0x7;
+
 		private int bit;
 
 		private TypeFlag(int bit) {
 			this.bit = bit;
 		}
 
+		public boolean isSet(int bits) {
+			return (bits & bit) == bit;
+		}
+
 		public static int encode(Set<TypeFlag> flags) {
 			int bits = 0;
 			for (TypeFlag flag : flags) {
@@ -148,111 +155,137 @@ public class ScriptNode {
 			return false;
 		}
 
-		public static Opcode forCode(int code) {
+		private static final Opcode[] BY_CODE = new Opcode[0x100];
+
+		static {
+			for (int i = 0; i < BY_CODE.length; i++)
+				BY_CODE[i] = OTHER;
 			for (Opcode opcode : Opcode.values()) {
-				if (opcode.code == code)
-					return opcode;
+				if (opcode.code >= 0)
+					BY_CODE[opcode.code] = opcode;
 			}
-			return OTHER;
+		}
+
+		public static Opcode forCode(int code) {
+			if (code < 0 || code >= BY_CODE.length)
+				return OTHER;
+			return BY_CODE[code];
 		}
 	}
 
-	public static Set<TypeFlag> identifyTypes(int opcodeValue, int extendedValue) {
-		Set<TypeFlag> flags = EnumSet.noneOf(TypeFlag.class);
-		Opcode opcode = Opcode.forCode(opcodeValue);
-		if (opcode != null) {
-			switch (opcode) {
-				case ZEND_JMP:
-				case ZEND_JMPZ:
-				case ZEND_JMPNZ:
-				case ZEND_JMPNZ_EX:
-				case ZEND_JMPZ_EX:
-				case ZEND_JMPZNZ:
-				case ZEND_FE_RESET_R:
-				case ZEND_FE_FETCH_R:
-				case ZEND_CATCH:
-					flags.add(TypeFlag.BRANCH);
-					break;
-				default:
-			}
-			switch (opcode) {
-				case ZEND_NOP: /* might load a class from a script top nop! */
-				case ZEND_CONCAT: /* might call __toString()! */
-				case ZEND_ASSIGN_CONCAT: /* might call __toString()! */
-				case ZEND_CAST: /* might call __toString()! */
-				case ZEND_DO_FCALL:
-				case ZEND_INIT_FCALL:
-				case ZEND_DO_ICALL:
-				case ZEND_THROW:
-				case ZEND_NEW:
-				case ZEND_INIT_NS_FCALL_BY_NAME:
-				case ZEND_INCLUDE_OR_EVAL:
-				case ZEND_FE_RESET_R:
-				case ZEND_FE_FETCH_R:
-				case ZEND_FETCH_DIM_R:
-				case ZEND_FETCH_OBJ_R:
-				case ZEND_FETCH_DIM_W:
-				case ZEND_FETCH_OBJ_W:
-				case ZEND_FETCH_DIM_RW:
-				case ZEND_FETCH_OBJ_RW:
-				case ZEND_FETCH_DIM_IS:
-				case ZEND_FETCH_OBJ_IS:
-				case ZEND_FETCH_DIM_FUNC_ARG:
-				case ZEND_FETCH_OBJ_FUNC_ARG:
-				case ZEND_FETCH_DIM_UNSET:
-				case ZEND_FETCH_OBJ_UNSET:
-				case ZEND_FETCH_CONSTANT:
-				case ZEND_FETCH_CLASS:
-				case ZEND_INIT_METHOD_CALL:
-				case ZEND_INIT_STATIC_METHOD_CALL:
-				case ZEND_ISSET_ISEMPTY_DIM_OBJ:
-				case ZEND_ASSIGN_OBJ:
-				case ZEND_ADD_INTERFACE:
-				case ZEND_ADD_TRAIT:
-				case ZEND_DECLARE_INHERITED_CLASS:
-				case ZEND_ASSIGN_DIM:
-				case ZEND_ISSET_ISEMPTY_PROP_OBJ:
-                case ZEND_UNSET_OBJ:
-					flags.add(TypeFlag.CALL);
-				default:
-			}
-			if (opcode == Opcode.ZEND_INCLUDE_OR_EVAL && SubscriptType.forFlag(extendedValue) == SubscriptType.EVAL)
-				flags.add(TypeFlag.EVAL);
+	/**
+	 * @return the `TypeFlag` bits of a node having this opcode and extended value
+	 */
+	public static int identifyTypes(int opcodeValue, int extendedValue) {
+		int bits = 0;
+		if (opcodeValue >= 0 && opcodeValue < OPCODE_TYPE_FLAGS.length)
+			bits = OPCODE_TYPE_FLAGS[opcodeValue];
+		if (opcodeValue == Opcode.ZEND_INCLUDE_OR_EVAL.code
+				&& SubscriptType.forFlag(extendedValue) == SubscriptType.EVAL)
+			bits |= TypeFlag.EVAL.bit;
+		return bits;
+	}
+
+	/**
+	 * Type flags that follow from the opcode alone (EVAL also depends on the extended value).
+	 */
+	private static int identifyOpcodeTypes(Opcode opcode) {
+		int flags = 0;
+		switch (opcode) {
+			case ZEND_JMP:
+			case ZEND_JMPZ:
+			case ZEND_JMPNZ:
+			case ZEND_JMPNZ_EX:
+			case ZEND_JMPZ_EX:
+			case ZEND_JMPZNZ:
+			case ZEND_FE_RESET_R:
+			case ZEND_FE_FETCH_R:
+			case ZEND_CATCH:
+				flags |= TypeFlag.BRANCH.bit;
+				break;
+			default:
+		}
+		switch (opcode) {
+			case ZEND_NOP: /* might load a class from a script top nop! */
+			case ZEND_CONCAT: /* might call __toString()! */
+			case ZEND_ASSIGN_CONCAT: /* might call __toString()! */
+			case ZEND_CAST: /* might call __toString()! */
+			case ZEND_DO_FCALL:
+			case ZEND_INIT_FCALL:
+			case ZEND_DO_ICALL:
+			case ZEND_THROW:
+			case ZEND_NEW:
+			case ZEND_INIT_NS_FCALL_BY_NAME:
+			case ZEND_INCLUDE_OR_EVAL:
+			case ZEND_FE_RESET_R:
+			case ZEND_FE_FETCH_R:
+			case ZEND_FETCH_DIM_R:
+			case ZEND_FETCH_OBJ_R:
+			case ZEND_FETCH_DIM_W:
+			case ZEND_FETCH_OBJ_W:
+			case ZEND_FETCH_DIM_RW:
+			case ZEND_FETCH_OBJ_RW:
+			case ZEND_FETCH_DIM_IS:
+			case ZEND_FETCH_OBJ_IS:
+			case ZEND_FETCH_DIM_FUNC_ARG:
+			case ZEND_FETCH_OBJ_FUNC_ARG:
+			case ZEND_FETCH_DIM_UNSET:
+			case ZEND_FETCH_OBJ_UNSET:
+			case ZEND_FETCH_CONSTANT:
+			case ZEND_FETCH_CLASS:
+			case ZEND_INIT_METHOD_CALL:
+			case ZEND_INIT_STATIC_METHOD_CALL:
+			case ZEND_ISSET_ISEMPTY_DIM_OBJ:
+			case ZEND_ASSIGN_OBJ:
+			case ZEND_ADD_INTERFACE:
+			case ZEND_ADD_TRAIT:
+			case ZEND_DECLARE_INHERITED_CLASS:
+			case ZEND_ASSIGN_DIM:
+			case ZEND_ISSET_ISEMPTY_PROP_OBJ:
+			case ZEND_UNSET_OBJ:
+				flags |= TypeFlag.CALL.bit;
+			default:
 		}
 		return flags;
 	}
 
 	public static boolean isCallInit(int opcode) {
-		for (Opcode op : CALL_INIT_OPCODES) {
-			if (op.code == opcode)
-				return true;
-		}
-		return false;
+		return (opcode >= 0 && opcode < CALL_INIT.length && CALL_INIT[opcode]);
 	}
 
 	public static boolean isOpcodeCompatible(int first, int second) {
 		if (first == second)
 			return true;
+		if (first < 0 || first > 0xff || second < 0 || second > 0xff)
+			return false;
 
-		Opcode firstOp = Opcode.forCode(first);
-		Opcode secondOp = Opcode.forCode(second);
-		if (firstOp != null && secondOp != null) {
-			for (EnumSet<Opcode> compatibleSet : COMPATIBLE_OPCODE_SETS) {
-				if (compatibleSet.contains(firstOp) && compatibleSet.contains(secondOp))
-					return true;
-			}
-		}
-		return false;
+		int bit = (first << 8) | second;
+		return (COMPATIBLE_OPCODES[bit >>> 6] & (1L << bit)) != 0L;
 	}
 
 	public static void init() {
-		COMPATIBLE_OPCODE_SETS.add(EnumSet.of(Opcode.ZEND_INIT_FCALL, Opcode.ZEND_INIT_FCALL_BY_NAME));
-		COMPATIBLE_OPCODE_SETS.add(EnumSet.of(Opcode.ZEND_SEND_VAL, Opcode.ZEND_SEND_VAL_EX));
-		COMPATIBLE_OPCODE_SETS.add(EnumSet.of(Opcode.ZEND_SEND_VAR, Opcode.ZEND_SEND_VAR_EX, Opcode.ZEND_SEND_REF,
+		addCompatibleOpcodes(EnumSet.of(Opcode.ZEND_INIT_FCALL, Opcode.ZEND_INIT_FCALL_BY_NAME));
+		addCompatibleOpcodes(EnumSet.of(Opcode.ZEND_SEND_VAL, Opcode.ZEND_SEND_VAL_EX));
+		addCompatibleOpcodes(EnumSet.of(Opcode.ZEND_SEND_VAR, Opcode.ZEND_SEND_VAR_EX, Opcode.ZEND_SEND_REF,
 				Opcode.ZEND_SEND_VAR_NO_REF, Opcode.ZEND_SEND_VAR_NO_REF_EX));
-		COMPATIBLE_OPCODE_SETS.add(EnumSet.of(Opcode.ZEND_FETCH_DIM_R, Opcode.ZEND_FETCH_DIM_FUNC_ARG));
-		COMPATIBLE_OPCODE_SETS.add(EnumSet.of(Opcode.ZEND_NOP, Opcode.ZEND_FETCH_CLASS,
-				Opcode.ZEND_DECLARE_INHERITED_CLASS));
+		addCompatibleOpcodes(EnumSet.of(Opcode.ZEND_FETCH_DIM_R, Opcode.ZEND_FETCH_DIM_FUNC_ARG));
+		addCompatibleOpcodes(EnumSet.of(Opcode.ZEND_NOP, Opcode.ZEND_FETCH_CLASS, Opcode.ZEND_DECLARE_INHERITED_CLASS));
+	}
+
+	/**
+	 * Add a set of mutually compatible opcodes to `COMPATIBLE_OPCODE_SETS` and to the bit matrix that is used for
+	 * lookup, which has one bit per ordered pair of opcode values.
+	 */
+	private static void addCompatibleOpcodes(EnumSet<Opcode> compatibleSet) {
+		COMPATIBLE_OPCODE_SETS.add(compatibleSet);
+		for (Opcode first : compatibleSet) {
+			for (Opcode second : compatibleSet) {
+				if (first.code >= 0 && second.code >= 0) {
+					int bit = (first.code << 8) | second.code;
+					COMPATIBLE_OPCODES[bit >>> 6] |= (1L << bit);
+				}
+			}
+		}
 	}
 
 	public static final List<EnumSet<Opcode>> COMPATIBLE_OPCODE_SETS = new ArrayList<EnumSet<Opcode>>();
@@ -261,22 +294,33 @@ public class ScriptNode {
 			Opcode.ZEND_INIT_FCALL_BY_NAME, Opcode.ZEND_INIT_METHOD_CALL, Opcode.ZEND_INIT_NS_FCALL_BY_NAME,
 			Opcode.ZEND_INIT_STATIC_METHOD_CALL, Opcode.ZEND_INIT_USER_CALL);
 
+	private static final long[] COMPATIBLE_OPCODES = new long[(0x100 * 0x100) / 64];
+	private static final boolean[] CALL_INIT = new boolean[0x100];
+	private static final int[] OPCODE_TYPE_FLAGS = new int[0x100];
+
+	static {
+		for (Opcode opcode : CALL_INIT_OPCODES)
+			CALL_INIT[opcode.code] = true;
+		for (int i = 0; i < OPCODE_TYPE_FLAGS.length; i++)
+			OPCODE_TYPE_FLAGS[i] = identifyOpcodeTypes(Opcode.forCode(i));
+	}
+
 	public static final int USER_LEVEL_TOP = 0x3f;
 
 	public final int routineHash;
-	public final Set<TypeFlag> typeFlags;
 	public final int opcode; // TODO: use Opcode
 	public final int lineNumber;
 	public final int index;
 
+	private final int typeFlags; // `TypeFlag` bits
 	private ScriptNode next;
 	private int nodeUserLevel = USER_LEVEL_TOP;
 
-	private List<RoutineExceptionEdge> thrownExceptions = new ArrayList<RoutineExceptionEdge>();
+	private List<RoutineExceptionEdge> thrownExceptions = null; // allocated for the first thrown exception
 
-	public ScriptNode(int routineHash, Set<TypeFlag> typeFlags, int opcode, int lineNumber, int index) {
+	public ScriptNode(int routineHash, int typeFlags, int opcode, int lineNumber, int index) {
 		this.routineHash = routineHash;
-		this.typeFlags = typeFlags;
+		this.typeFlags = (typeFlags & TypeFlag.ALL_BITS);
 		this.opcode = opcode;
 		this.lineNumber = lineNumber;
 		this.index = index;
@@ -286,6 +330,26 @@ public class ScriptNode {
 		return new ScriptNode(routineHash, typeFlags, opcode, lineNumber, index);
 	}
 
+	public int getTypeFlags() {
+		return typeFlags;
+	}
+
+	public boolean hasTypeFlag(TypeFlag flag) {
+		return flag.isSet(typeFlags);
+	}
+
+	public boolean isBranch() {
+		return TypeFlag.BRANCH.isSet(typeFlags);
+	}
+
+	public boolean isCall() {
+		return TypeFlag.CALL.isSet(typeFlags);
+	}
+
+	public boolean isEval() {
+		return TypeFlag.EVAL.isSet(typeFlags);
+	}
+
 	public ScriptNode getNext() {
 		return next;
 	}
@@ -321,10 +385,14 @@ public class ScriptNode {
 	}
 
 	public void addThrownException(RoutineExceptionEdge throwEdge) {
+		if (thrownExceptions == null)
+			thrownExceptions = new ArrayList<RoutineExceptionEdge>(2);
 		thrownExceptions.add(throwEdge);
 	}
 
 	public Iterable<RoutineExceptionEdge> getThrownExceptions() {
+		if (thrownExceptions == null)
+			return Collections.emptyList();
 		return thrownExceptions;
 	}
 
@@ -1,7 +1,6 @@
 package edu.uci.plrg.cfi.php.merge.graph;
 
 import java.util.ArrayList;
-import java.util.List;
 
 import edu.uci.plrg.cfi.common.log.Log;
 import edu.uci.plrg.cfi.php.merge.MergeException;
@@ -27,7 +26,7 @@ public class ScriptRoutineGraph {
 	public final RoutineId id;
 	public final boolean isNewUserLevelSample;
 
-	private final List<ScriptNode> nodes = new ArrayList<ScriptNode>();
+	private final ArrayList<ScriptNode> nodes = new ArrayList<ScriptNode>();
 
 	public ScriptRoutineGraph(int hash, RoutineId id, boolean isNewUserLevelSample) {
 		this.hash = hash;
@@ -42,7 +41,8 @@ public class ScriptRoutineGraph {
 	public ScriptRoutineGraph renameDynamicRoutine(int routineIndex, RoutineId id, boolean isFragmentary) {
 		ScriptRoutineGraph renamed = new ScriptRoutineGraph(ScriptRoutineGraph.constructDynamicHash(routineIndex), id,
 				isFragmentary);
-		renamed.nodes.addAll(nodes);
+		for (ScriptNode node : getNodes())
+			renamed.nodes.add(node);
 		return renamed;
 	}
 
@@ -57,6 +57,13 @@ public class ScriptRoutineGraph {
 		}
 	}
 
+	/**
+	 * Allocate room for `nodeCount` nodes, when the routine size is known before its nodes are added.
+	 */
+	public void ensureNodeCapacity(int nodeCount) {
+		nodes.ensureCapacity(nodeCount);
+	}
+
 	public ScriptNode getNode(int index) {
 		// if (index >= nodes.size() || index < 0)
 		// Log.spot("halt!");
@@ -75,35 +82,89 @@ public class ScriptRoutineGraph {
 		nodes.clear();
 	}
 
+	public int getOpcode(int index) {
+		return nodes.get(index).opcode;
+	}
+
+	public int getLineNumber(int index) {
+		return nodes.get(index).lineNumber;
+	}
+
+	public int getTypeFlags(int index) {
+		return nodes.get(index).getTypeFlags();
+	}
+
+	public int getNodeUserLevel(int index) {
+		return nodes.get(index).getNodeUserLevel();
+	}
+
+	/**
+	 * @return the target index of the branch at `index`, or `ScriptBranchNode.UNASSIGNED_BRANCH_TARGET_ID` if the
+	 *         node is not a branch or has no target
+	 */
+	public int getBranchTargetIndex(int index) {
+		ScriptNode node = nodes.get(index);
+		if (node instanceof ScriptBranchNode)
+			return ((ScriptBranchNode) node).getTargetIndex();
+		return ScriptBranchNode.UNASSIGNED_BRANCH_TARGET_ID;
+	}
+
+	/**
+	 * @return the user level of the branch at `index`, or `ScriptNode.USER_LEVEL_TOP` if the node is not a branch
+	 */
+	public int getBranchUserLevel(int index) {
+		ScriptNode node = nodes.get(index);
+		if (node instanceof ScriptBranchNode)
+			return ((ScriptBranchNode) node).getBranchUserLevel();
+		return ScriptNode.USER_LEVEL_TOP;
+	}
+
+	/**
+	 * Structural hash of the node count and the opcode sequence. Routines for which `isSameRoutine()` holds always
+	 * have the same fingerprint, so it can key a lookup of candidates.
+	 */
+	public int getFingerprint() {
+		int fingerprint = getNodeCount();
+		for (int i = 0; i < getNodeCount(); i++)
+			fingerprint = (31 * fingerprint) + getOpcode(i);
+		return fingerprint;
+	}
+
 	public boolean isSameRoutine(ScriptRoutineGraph other) {
-		if (nodes.size() != other.nodes.size())
+		if (getNodeCount() != other.getNodeCount())
 			return false;
 
-		for (int i = 0; i < nodes.size(); i++) {
-			if (!nodes.get(i).isEqual(other.nodes.get(i)))
+		for (int i = 0; i < getNodeCount(); i++) {
+			if (!getNode(i).isEqual(other.getNode(i)))
 				return false;
 		}
 		return true;
 	}
 
-	public void mergeRoutine(ScriptRoutineGraph other) {
+	/**
+	 * @return true if the user level of any node was lowered
+	 */
+	public boolean mergeRoutine(ScriptRoutineGraph other) {
+		boolean lowered = false;
 
-		if (nodes.size() != other.nodes.size())
+		if (getNodeCount() != other.getNodeCount())
 			throw new MergeException("Node counts differ at the same routine hash 0x%x: %d vs. %d!", hash,
-					nodes.size(), other.nodes.size());
+					getNodeCount(), other.getNodeCount());
 
 		if (other.isNewUserLevelSample) {
-			for (int i = 0; i < nodes.size(); i++) {
-				ScriptNode thisNode = nodes.get(i);
-				ScriptNode otherNode = other.nodes.get(i);
+			for (int i = 0; i < getNodeCount(); i++) {
+				ScriptNode thisNode = getNode(i);
+				ScriptNode otherNode = other.getNode(i);
 				thisNode.verifyCompatible(otherNode);
-				if (otherNode.getNodeUserLevel() < thisNode.getNodeUserLevel())
+				if (otherNode.getNodeUserLevel() < thisNode.getNodeUserLevel()) {
 					thisNode.setNodeUserLevel(otherNode.getNodeUserLevel());
-
+					lowered = true;
+				}
 			}
 		} else {
-			for (int i = 0; i < nodes.size(); i++)
-				nodes.get(i).verifyEqual(other.nodes.get(i));
+			for (int i = 0; i < getNodeCount(); i++)
+				getNode(i).verifyEqual(other.getNode(i));
 		}
+		return lowered;
 	}
 }
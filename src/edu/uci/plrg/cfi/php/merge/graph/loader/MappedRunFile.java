@@ -0,0 +1,101 @@
+package edu.uci.plrg.cfi.php.merge.graph.loader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a run file of fixed-size records of little-endian ints through a read-only memory map, without allocating
+ * anything per record. Files larger than `MAX_CHUNK_SIZE` are mapped in consecutive chunks that are aligned to the
+ * record size, so a record never spans two chunks.
+ */
+public class MappedRunFile {
+
+	private static final long MAX_CHUNK_SIZE = 0x40000000L; // 1 GB
+
+	final File file;
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final long fileSize;
+	private final long chunkSize;
+	private final int recordInts;
+
+	private long nextChunkStart = 0L;
+	private IntBuffer records = null;
+
+	/**
+	 * @param recordInts
+	 *            number of ints in each record of the file
+	 */
+	public MappedRunFile(File file, int recordInts) throws IOException {
+		this.file = file;
+		this.recordInts = recordInts;
+
+		raf = new RandomAccessFile(file, "r");
+		channel = raf.getChannel();
+		fileSize = channel.size();
+
+		long recordSize = recordInts * 4L;
+		chunkSize = (MAX_CHUNK_SIZE / recordSize) * recordSize;
+	}
+
+	/**
+	 * Advance to the next record, mapping the next chunk of the file if necessary.
+	 *
+	 * @return false if the file has no more complete records
+	 */
+	public boolean nextRecord() throws IOException {
+		if (records != null && records.remaining() >= recordInts)
+			return true;
+
+		long remaining = getCompleteRecordBytes() - nextChunkStart;
+		if (remaining <= 0L)
+			return false;
+
+		long mapSize = Math.min(chunkSize, remaining);
+		records = channel.map(FileChannel.MapMode.READ_ONLY, nextChunkStart, mapSize)
+				.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+		nextChunkStart += mapSize;
+		return true;
+	}
+
+	/**
+	 * Continue reading at the record that starts at byte `offset`, which must be a multiple of the record size.
+	 */
+	public void seek(long offset) {
+		nextChunkStart = offset;
+		records = null;
+	}
+
+	/**
+	 * Read the next int of the current record.
+	 */
+	public int getInt() {
+		return records.get();
+	}
+
+	/**
+	 * Number of complete records in the file.
+	 */
+	public long getRecordCount() {
+		return fileSize / (recordInts * 4L);
+	}
+
+	public boolean hasTrailingData() {
+		return getCompleteRecordBytes() != fileSize;
+	}
+
+	public void close() throws IOException {
+		records = null;
+		channel.close();
+		raf.close();
+	}
+
+	private long getCompleteRecordBytes() {
+		return getRecordCount() * recordInts * 4L;
+	}
+}
@@ -0,0 +1,424 @@
+package edu.uci.plrg.cfi.php.merge.graph.loader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.uci.plrg.cfi.php.merge.MergeException;
+import edu.uci.plrg.cfi.php.merge.graph.GraphEdgeSet;
+import edu.uci.plrg.cfi.php.merge.graph.ReadOnlyRoutineGraph;
+import edu.uci.plrg.cfi.php.merge.graph.RoutineEdge;
+import edu.uci.plrg.cfi.php.merge.graph.RoutineExceptionEdge;
+import edu.uci.plrg.cfi.php.merge.graph.RoutineId;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptBranchNode;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptFlowGraph;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptNode;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptNode.TypeFlag;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptRoutineGraph;
+
+/**
+ * Read-only dataset graph that resolves routines, nodes and edges directly from a memory-mapped cfg.set and its
+ * segments, using the routine lookup of `ScriptDatasetIndex`. Nothing is inflated up front: routines are lightweight
+ * `ReadOnlyRoutineGraph` views of their file offset, and outgoing edges are decoded from the call targets of the node
+ * on each query. Incoming edges are not in the file, so the first incoming query builds an index of edge offsets.
+ */
+public class MappedScriptFlowGraph extends ScriptFlowGraph {
+
+	private class MappedRoutineGraph extends ReadOnlyRoutineGraph {
+		private final int segment;
+		private final IntBuffer words;
+		private final int offset;
+		private final int nodeCount;
+
+		MappedRoutineGraph(int hash, int segment, int offset) {
+			super(hash, RoutineId.Cache.INSTANCE.getId(hash));
+
+			this.segment = segment;
+			this.offset = offset;
+			words = data[segment];
+			nodeCount = words.get(offset + 1);
+		}
+
+		/**
+		 * An incremental merge keeps the dynamic routines of the dataset at their own index, which needs no copy.
+		 */
+		@Override
+		public ScriptRoutineGraph renameDynamicRoutine(int routineIndex, RoutineId id, boolean isFragmentary) {
+			if (hash == ScriptRoutineGraph.constructDynamicHash(routineIndex))
+				return this;
+			throw new MergeException("Cannot rename mapped routine 0x%x", hash);
+		}
+
+		@Override
+		public int getNodeCount() {
+			return nodeCount;
+		}
+
+		@Override
+		public int getOpcode(int index) {
+			return words.get(getNodeOffset(index)) & 0xff;
+		}
+
+		@Override
+		public int getLineNumber(int index) {
+			return words.get(getNodeOffset(index)) >> 0x10;
+		}
+
+		@Override
+		public int getTypeFlags(int index) {
+			return (words.get(getNodeOffset(index)) >> 8) & 0xff;
+		}
+
+		@Override
+		public int getNodeUserLevel(int index) {
+			return words.get(getNodeOffset(index) + 1) >>> 26;
+		}
+
+		@Override
+		public int getBranchTargetIndex(int index) {
+			int nodeOffset = getNodeOffset(index);
+			int nodeId = words.get(nodeOffset);
+			if (!TypeFlag.BRANCH.isSet((nodeId >> 8) & 0xff))
+				return ScriptBranchNode.UNASSIGNED_BRANCH_TARGET_ID;
+
+			int targetIndex = words.get(nodeOffset + 1) & 0x3ffffff;
+			switch (ScriptNode.Opcode.forCode(nodeId & 0xff).targetType) {
+				case DYNAMIC:
+				case NULLABLE:
+				case REQUIRED:
+					return targetIndex;
+				default:
+					throw new MergeException("Illegal opcode for branch node 0x%x", nodeId & 0xff);
+			}
+		}
+
+		/**
+		 * Approximated by the user level of the target node, as in `ScriptDatasetLoader`.
+		 */
+		@Override
+		public int getBranchUserLevel(int index) {
+			int targetIndex = getBranchTargetIndex(index);
+			if (targetIndex == ScriptBranchNode.UNASSIGNED_BRANCH_TARGET_ID)
+				return ScriptNode.USER_LEVEL_TOP;
+			return getNodeUserLevel(targetIndex);
+		}
+
+		int getCallTargetsOffset(int index) {
+			int nodeOffset = getNodeOffset(index);
+			int typeFlags = (words.get(nodeOffset) >> 8) & 0xff;
+			if (TypeFlag.CALL.isSet(typeFlags) || TypeFlag.EVAL.isSet(typeFlags))
+				return words.get(nodeOffset + 2);
+			return 0;
+		}
+
+		boolean isEvalOnly(int index) {
+			int typeFlags = getTypeFlags(index);
+			return !TypeFlag.CALL.isSet(typeFlags) && TypeFlag.EVAL.isSet(typeFlags);
+		}
+
+		private int getNodeOffset(int index) {
+			checkIndex(index);
+			return offset + 2 + (index * 3);
+		}
+	}
+
+	/**
+	 * References to the edge entries that target one routine, as quadruples of { from routine hash, from index,
+	 * segment, word offset of the edge entry }, along with their minimum user level.
+	 */
+	private static class IncomingEdgeRefs {
+		int refs[] = new int[4];
+		int size = 0;
+		int minUserLevel = Integer.MAX_VALUE;
+
+		void add(int fromRoutineHash, int fromIndex, int segment, int edgeOffset, int userLevel) {
+			if (userLevel < minUserLevel)
+				minUserLevel = userLevel;
+			if (size + 4 > refs.length) {
+				int grown[] = new int[refs.length * 2];
+				System.arraycopy(refs, 0, grown, 0, size);
+				refs = grown;
+			}
+			refs[size++] = fromRoutineHash;
+			refs[size++] = fromIndex;
+			refs[size++] = segment;
+			refs[size++] = edgeOffset;
+		}
+
+		int getEdgeCount() {
+			return size / 4;
+		}
+	}
+
+	private static class MappedGraphEdgeSet extends GraphEdgeSet {
+
+		private MappedScriptFlowGraph graph; // attached by the graph constructor
+		private Map<Integer, IncomingEdgeRefs> incomingEdges = null;
+		private int outgoingEdgeCount;
+
+		@Override
+		public Iterable<RoutineEdge> getOutgoingEdges(ScriptNode fromNode) {
+			MappedRoutineGraph routine = graph.getMappedRoutine(fromNode.routineHash);
+			if (routine == null)
+				return Collections.emptyList();
+			return getOutgoingEdges(routine, fromNode.index);
+		}
+
+		@Override
+		public Iterable<List<RoutineEdge>> getOutgoingEdges() {
+			List<List<RoutineEdge>> allEdges = new ArrayList<List<RoutineEdge>>();
+			for (ScriptRoutineGraph routine : graph.getRoutines()) {
+				for (int i = 0; i < routine.getNodeCount(); i++) {
+					List<RoutineEdge> edges = getOutgoingEdges((MappedRoutineGraph) routine, i);
+					if (!edges.isEmpty())
+						allEdges.add(edges);
+				}
+			}
+			return allEdges;
+		}
+
+		@Override
+		public int getOutgoingEdgeCount() {
+			getIncomingEdgeIndex();
+			return outgoingEdgeCount;
+		}
+
+		@Override
+		public int getOutgoingEdgeCount(ScriptNode fromNode) {
+			MappedRoutineGraph routine = graph.getMappedRoutine(fromNode.routineHash);
+			if (routine == null)
+				return 0;
+			int callTargetsOffset = routine.getCallTargetsOffset(fromNode.index);
+			return (callTargetsOffset == 0) ? 0 : routine.words.get(callTargetsOffset);
+		}
+
+		@Override
+		public int getIncomingEdgeCount(int routineHash) {
+			IncomingEdgeRefs refs = getIncomingEdgeIndex().get(routineHash);
+			return (refs == null) ? 0 : refs.getEdgeCount();
+		}
+
+		@Override
+		public Iterable<RoutineEdge> getIncomingEdges(int routineHash) {
+			IncomingEdgeRefs refs = getIncomingEdgeIndex().get(routineHash);
+			if (refs == null)
+				return Collections.emptyList();
+
+			List<RoutineEdge> edges = new ArrayList<RoutineEdge>(refs.getEdgeCount());
+			for (int i = 0; i < refs.size; i += 4) {
+				edges.add(createEdge(refs.refs[i], refs.refs[i + 1], routineHash, graph.data[refs.refs[i + 2]],
+						refs.refs[i + 3]));
+			}
+			return edges;
+		}
+
+		@Override
+		public int getMinUserLevel(int routineHash) {
+			IncomingEdgeRefs refs = getIncomingEdgeIndex().get(routineHash);
+			return (refs == null) ? Integer.MAX_VALUE : refs.minUserLevel;
+		}
+
+		@Override
+		public GraphEdgeSet freeze() {
+			return this; // already read-only
+		}
+
+		@Override
+		public AddEdgeResult addCallEdge(int fromRoutineHash, ScriptNode fromNode, int toRoutineHash, int userLevel,
+				boolean evaluating) {
+			throw new MergeException("Cannot add an edge to the mapped dataset %s", graph.description);
+		}
+
+		@Override
+		public AddEdgeResult addExceptionEdge(int fromRoutineHash, ScriptNode fromNode, int toRoutineHash,
+				int toRoutineIndex, int userLevel) {
+			throw new MergeException("Cannot add an edge to the mapped dataset %s", graph.description);
+		}
+
+		private List<RoutineEdge> getOutgoingEdges(MappedRoutineGraph routine, int index) {
+			int callTargetsOffset = routine.getCallTargetsOffset(index);
+			if (callTargetsOffset == 0)
+				return Collections.emptyList();
+
+			int edgeCount = routine.words.get(callTargetsOffset);
+			List<RoutineEdge> edges = new ArrayList<RoutineEdge>(edgeCount);
+			int edgeOffset = callTargetsOffset + 1;
+			for (int i = 0; i < edgeCount; i++, edgeOffset += 2) {
+				edges.add(createEdge(routine.hash, index, getTargetRoutineHash(routine, index, edgeOffset),
+						routine.words, edgeOffset));
+			}
+			return edges;
+		}
+
+		private synchronized Map<Integer, IncomingEdgeRefs> getIncomingEdgeIndex() {
+			if (incomingEdges != null)
+				return incomingEdges;
+
+			Map<Integer, IncomingEdgeRefs> index = new HashMap<Integer, IncomingEdgeRefs>();
+			int edgeCount = 0;
+			for (ScriptRoutineGraph routine : graph.getRoutines()) {
+				MappedRoutineGraph mappedRoutine = (MappedRoutineGraph) routine;
+				for (int i = 0; i < mappedRoutine.getNodeCount(); i++) {
+					int callTargetsOffset = mappedRoutine.getCallTargetsOffset(i);
+					if (callTargetsOffset == 0)
+						continue;
+
+					int nodeEdgeCount = mappedRoutine.words.get(callTargetsOffset);
+					int edgeOffset = callTargetsOffset + 1;
+					for (int j = 0; j < nodeEdgeCount; j++, edgeOffset += 2) {
+						int toRoutineHash = getTargetRoutineHash(mappedRoutine, i, edgeOffset);
+						IncomingEdgeRefs refs = index.get(toRoutineHash);
+						if (refs == null) {
+							refs = new IncomingEdgeRefs();
+							index.put(toRoutineHash, refs);
+						}
+						refs.add(mappedRoutine.hash, i, mappedRoutine.segment, edgeOffset,
+								mappedRoutine.words.get(edgeOffset + 1) >>> 26);
+					}
+					edgeCount += nodeEdgeCount;
+				}
+			}
+			outgoingEdgeCount = edgeCount;
+			incomingEdges = index;
+			return incomingEdges;
+		}
+
+		private int getTargetRoutineHash(MappedRoutineGraph routine, int index, int edgeOffset) {
+			if (routine.isEvalOnly(index))
+				return ScriptRoutineGraph.constructDynamicHash(routine.words.get(edgeOffset));
+			else
+				return routine.words.get(edgeOffset);
+		}
+
+		private RoutineEdge createEdge(int fromRoutineHash, int fromIndex, int toRoutineHash, IntBuffer words,
+				int edgeOffset) {
+			int targetIndexField = words.get(edgeOffset + 1);
+			int userLevel = (targetIndexField >>> 26);
+			int toIndex = (targetIndexField & 0x3ffffff);
+			if (toIndex == 0)
+				return new RoutineEdge(fromRoutineHash, fromIndex, toRoutineHash, userLevel);
+			else
+				return new RoutineExceptionEdge(fromRoutineHash, fromIndex, toRoutineHash, toIndex, userLevel);
+		}
+	}
+
+	private final IntBuffer data[]; // the dataset, followed by its segments
+	private final ScriptDatasetIndex indexes[];
+	private final int routineCount;
+	private final int maxDynamicRoutineIndex;
+
+	/**
+	 * Map the dataset and its segments, and load its routine catalog into `RoutineId.Cache`.
+	 */
+	public MappedScriptFlowGraph(File datasetFile, File routineCatalog) throws IOException {
+		this(datasetFile, routineCatalog, new MappedGraphEdgeSet());
+	}
+
+	private MappedScriptFlowGraph(File datasetFile, File routineCatalog, MappedGraphEdgeSet edges) throws IOException {
+		super(ScriptGraphDataFiles.Type.DATASET, datasetFile.getAbsolutePath(), false, edges);
+
+		RoutineId.Cache.INSTANCE.load(routineCatalog);
+
+		List<File> segments = ScriptDatasetSegments.find(datasetFile);
+		data = new IntBuffer[segments.size() + 1];
+		indexes = new ScriptDatasetIndex[segments.size() + 1];
+		data[0] = ScriptDatasetIndex.map(datasetFile);
+		indexes[0] = ScriptDatasetIndex.open(datasetFile, data[0]);
+		for (int i = 0; i < segments.size(); i++) {
+			data[i + 1] = ScriptDatasetIndex.map(segments.get(i));
+			indexes[i + 1] = ScriptDatasetIndex.open(segments.get(i), data[i + 1]);
+		}
+
+		int addedRoutineCount = 0, maxDynamicIndex = indexes[0].getDynamicRoutineCount() - 1;
+		Set<Integer> segmentRoutines = new HashSet<Integer>();
+		for (int i = 1; i < indexes.length; i++) {
+			for (int routineHash : indexes[i].getStaticRoutineHashes()) {
+				if (!segmentRoutines.add(routineHash) || indexes[0].getRoutineOffset(routineHash) != 0)
+					continue;
+				addedRoutineCount++;
+				if (ScriptRoutineGraph.isDynamicRoutine(routineHash))
+					maxDynamicIndex = Math.max(maxDynamicIndex, ScriptRoutineGraph.getDynamicRoutineIndex(routineHash));
+			}
+		}
+		routineCount = indexes[0].getStaticRoutineCount() + indexes[0].getDynamicRoutineCount() + addedRoutineCount;
+		maxDynamicRoutineIndex = maxDynamicIndex + 1;
+
+		edges.graph = this;
+	}
+
+	@Override
+	public void addRoutine(ScriptRoutineGraph routine) {
+		throw new MergeException("Cannot add routine 0x%x to the mapped dataset %s", routine.hash, description);
+	}
+
+	@Override
+	public void appendDynamicRoutine(ScriptRoutineGraph dynamicRoutine) {
+		throw new MergeException("Cannot add a dynamic routine to the mapped dataset %s", description);
+	}
+
+	@Override
+	public ScriptRoutineGraph getRoutine(Integer hash) {
+		return getMappedRoutine(hash);
+	}
+
+	@Override
+	public ScriptRoutineGraph getDynamicRoutine(int index) {
+		return getMappedRoutine(ScriptRoutineGraph.constructDynamicHash(index));
+	}
+
+	@Override
+	public int getRoutineCount() {
+		return routineCount;
+	}
+
+	/**
+	 * Lists the latest version of each routine, from the last segment back to the dataset.
+	 */
+	@Override
+	public Iterable<ScriptRoutineGraph> getRoutines() {
+		List<ScriptRoutineGraph> routines = new ArrayList<ScriptRoutineGraph>(routineCount);
+		Set<Integer> listed = new HashSet<Integer>();
+		for (int i = indexes.length - 1; i > 0; i--) {
+			for (int offset : indexes[i].getStaticRoutineOffsets()) {
+				if (listed.add(data[i].get(offset)))
+					routines.add(new MappedRoutineGraph(data[i].get(offset), i, offset));
+			}
+		}
+		for (int offset : indexes[0].getStaticRoutineOffsets()) {
+			if (!listed.contains(data[0].get(offset)))
+				routines.add(new MappedRoutineGraph(data[0].get(offset), 0, offset));
+		}
+		for (int i = 0; i < indexes[0].getDynamicRoutineCount(); i++) {
+			int routineHash = ScriptRoutineGraph.constructDynamicHash(i);
+			if (!listed.contains(routineHash))
+				routines.add(new MappedRoutineGraph(routineHash, 0, indexes[0].getDynamicRoutineOffset(i)));
+		}
+		return routines;
+	}
+
+	@Override
+	public int getMaxDynamicRoutineIndex() {
+		return maxDynamicRoutineIndex;
+	}
+
+	private MappedRoutineGraph getMappedRoutine(int hash) {
+		int offset;
+		for (int i = indexes.length - 1; i > 0; i--) {
+			offset = indexes[i].getHashedRoutineOffset(hash);
+			if (offset != 0)
+				return new MappedRoutineGraph(hash, i, offset);
+		}
+
+		offset = indexes[0].getRoutineOffset(hash);
+		if (offset == 0)
+			return null;
+		return new MappedRoutineGraph(hash, 0, offset);
+	}
+}
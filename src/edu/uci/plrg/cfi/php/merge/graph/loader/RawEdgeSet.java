@@ -0,0 +1,116 @@
+package edu.uci.plrg.cfi.php.merge.graph.loader;
+
+import java.util.Arrays;
+
+import edu.uci.plrg.cfi.php.merge.MergeException;
+
+/**
+ * Set of raw edges, each packed into `width` longs. Edges are stored contiguously in insertion order, and duplicates
+ * are detected by an open-addressing index of positions into the edge array, so no object is allocated per edge.
+ */
+class RawEdgeSet {
+
+	/**
+	 * Pack a node-local edge as { from index (26 bits) | user level (6 bits) | to index (32 bits) }, which sorts
+	 * edges by from index.
+	 */
+	static long pack(int fromIndex, int toIndex, int userLevel) {
+		return (((long) fromIndex) << 38) | (((long) (userLevel & 0x3f)) << 32) | (toIndex & 0xffffffffL);
+	}
+
+	static int unpackFromIndex(long packed) {
+		return (int) (packed >>> 38);
+	}
+
+	static int unpackToIndex(long packed) {
+		return (int) packed;
+	}
+
+	static int unpackUserLevel(long packed) {
+		return (int) (packed >>> 32) & 0x3f;
+	}
+
+	private static final int INITIAL_CAPACITY = 4;
+
+	private final int width;
+
+	private long edges[];
+	private int slots[]; // position in `edges` plus one, or zero for an empty slot
+	private int size = 0;
+
+	RawEdgeSet(int width) {
+		this.width = width;
+
+		edges = new long[INITIAL_CAPACITY * width];
+		slots = new int[INITIAL_CAPACITY * 2];
+	}
+
+	boolean add(long first) {
+		return add(first, 0L);
+	}
+
+	/**
+	 * @return true if the edge was not already in the set
+	 */
+	boolean add(long first, long second) {
+		if (slots == null)
+			throw new MergeException("Cannot add edges to a sorted raw edge set");
+
+		int mask = slots.length - 1;
+		int slot = hash(first, second) & mask;
+		while (slots[slot] != 0) {
+			int start = (slots[slot] - 1) * width;
+			if (edges[start] == first && (width == 1 || edges[start + 1] == second))
+				return false;
+			slot = (slot + 1) & mask;
+		}
+
+		if ((size + 1) * width > edges.length)
+			edges = Arrays.copyOf(edges, edges.length * 2);
+		int start = size * width;
+		edges[start] = first;
+		if (width > 1)
+			edges[start + 1] = second;
+		slots[slot] = ++size;
+
+		if (size * 2 > slots.length)
+			rehash(slots.length * 2);
+		return true;
+	}
+
+	int size() {
+		return size;
+	}
+
+	long get(int index, int field) {
+		return edges[(index * width) + field];
+	}
+
+	/**
+	 * Sort single-width edges in place and drop the duplicate index. No more edges can be added afterwards.
+	 */
+	void sort() {
+		if (width != 1)
+			throw new MergeException("Only single-width raw edge sets can be sorted");
+
+		slots = null;
+		Arrays.sort(edges, 0, size);
+	}
+
+	private void rehash(int slotCount) {
+		slots = new int[slotCount];
+		int mask = slotCount - 1, slot, start;
+		for (int i = 0; i < size; i++) {
+			start = i * width;
+			slot = hash(edges[start], width > 1 ? edges[start + 1] : 0L) & mask;
+			while (slots[slot] != 0)
+				slot = (slot + 1) & mask;
+			slots[slot] = i + 1;
+		}
+	}
+
+	private static int hash(long first, long second) {
+		long h = (first * 0x9e3779b97f4a7c15L) ^ (second * 0xc2b2ae3d27d4eb4fL);
+		return (int) (h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,281 @@
+package edu.uci.plrg.cfi.php.merge.graph.loader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+import edu.uci.plrg.cfi.common.log.Log;
+import edu.uci.plrg.cfi.php.merge.MergeException;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptRoutineGraph;
+
+/**
+ * Point lookup of routine offsets in a cfg.set, without loading the dataset. All offsets are in words of the file:
+ *
+ * <pre>
+ * header:        [ hashtable start, static routine count, dynamic routine count ]
+ * routines:      [ hash, node count, node count * (node id, target index, call targets offset), call targets ]*
+ * chains:        [ routine offset*, 0 ]*
+ * hashtable:     [ mask, (mask + 1) * chain offset ]
+ * dynamic list:  [ dynamic routine count, dynamic routine offset* ]
+ * </pre>
+ *
+ * The cfg.set is also read by the runtime, so its layout is left as it is, and the routine index is kept next to it in
+ * a sidecar file named by `getIndexFile()` (e.g. "cfg.set.idx" or "cfg.set.1.idx"):
+ *
+ * <pre>
+ * index header:  [ INDEX_TAG, mask, dataset word count, hashtable start, static routine count,
+ *                  dynamic routine count, dataset modification time (low word, high word) ]
+ * routine index: [ (mask + 1) * (routine hash, routine offset) ]
+ * </pre>
+ *
+ * The routine index is an open-addressed table of the static routines with linear probing from
+ * `getIndexSlot(hash, mask)`, kept at most half full, so a lookup takes an expected constant number of probes. An
+ * empty slot has offset 0. The sidecar is only used if its header still matches the dataset; otherwise, and for
+ * datasets written without one, routines are searched through the hashtable chains instead.
+ */
+public class ScriptDatasetIndex {
+
+	public static final int INDEX_TAG = 0x78646972; // "ridx"
+	public static final int INDEX_HEADER_SIZE = 8;
+
+	/**
+	 * Mix the routine hash before masking, since the chained hashtable already consumes its low bits.
+	 */
+	public static int getIndexSlot(int routineHash, int mask) {
+		int mixed = routineHash * 0x9e3779b9;
+		return (mixed ^ (mixed >>> 16)) & mask;
+	}
+
+	/**
+	 * @return the mask of a routine index large enough for `routineCount` routines at the maximum load
+	 */
+	public static int getIndexMask(int routineCount) {
+		int size = 2;
+		while (size < (routineCount * 2))
+			size <<= 1;
+		return size - 1;
+	}
+
+	/**
+	 * Map `datasetFile` read-only. The mapping remains valid after this returns.
+	 */
+	public static IntBuffer map(File datasetFile) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(datasetFile, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new MergeException("Dataset %s is too large to map", datasetFile.getAbsolutePath());
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN)
+					.asIntBuffer();
+		} finally {
+			file.close();
+		}
+	}
+
+	public static File getIndexFile(File datasetFile) {
+		return new File(datasetFile.getParentFile(), datasetFile.getName() + ".idx");
+	}
+
+	public static ScriptDatasetIndex open(File datasetFile) throws IOException {
+		return open(datasetFile, map(datasetFile));
+	}
+
+	/**
+	 * @param data
+	 *            the mapping of `datasetFile`
+	 */
+	public static ScriptDatasetIndex open(File datasetFile, IntBuffer data) throws IOException {
+		File indexFile = getIndexFile(datasetFile);
+		IntBuffer index = indexFile.exists() ? map(indexFile) : null;
+		return new ScriptDatasetIndex(data, index, datasetFile.lastModified(), datasetFile.getAbsolutePath());
+	}
+
+	public final String description;
+
+	private final IntBuffer data;
+	private final int staticRoutineCount;
+	private final int dynamicRoutineCount;
+	private final int hashtableStart;
+	private final int hashtableMask;
+	private final int dynamicRoutineListStart;
+	private final IntBuffer index; // null if the dataset has no current routine index
+	private final int indexMask;
+
+	/**
+	 * @param index
+	 *            the mapping of the routine index sidecar, or null if there is none
+	 * @param lastModified
+	 *            the modification time of the dataset, which the routine index must have been written for
+	 */
+	public ScriptDatasetIndex(IntBuffer data, IntBuffer index, long lastModified, String description) {
+		this.data = data;
+		this.description = description;
+
+		if (data.limit() < 3)
+			throw new MergeException("Dataset %s is too short for its header", description);
+		hashtableStart = data.get(0);
+		staticRoutineCount = data.get(1);
+		dynamicRoutineCount = data.get(2);
+		hashtableMask = checkMask(getWord(hashtableStart, "hashtable"), "hashtable");
+		dynamicRoutineListStart = hashtableStart + 1 + (hashtableMask + 1);
+		if (getWord(dynamicRoutineListStart, "dynamic routine list") != dynamicRoutineCount) {
+			throw new MergeException("Dataset %s has %d dynamic routines in its header but %d in its list",
+					description, dynamicRoutineCount, data.get(dynamicRoutineListStart));
+		}
+
+		/* words after the dynamic list are ignored, since earlier versions appended the routine index there */
+		if (isCurrentIndex(index, lastModified)) {
+			this.index = index;
+			indexMask = index.get(1);
+		} else {
+			this.index = null;
+			indexMask = 0;
+		}
+	}
+
+	public int getStaticRoutineCount() {
+		return staticRoutineCount;
+	}
+
+	public int getDynamicRoutineCount() {
+		return dynamicRoutineCount;
+	}
+
+	public boolean hasRoutineIndex() {
+		return index != null;
+	}
+
+	/**
+	 * @return the word offset of the routine in the dataset, or 0 if it is not there
+	 */
+	public int getRoutineOffset(int routineHash) {
+		if (ScriptRoutineGraph.isDynamicRoutine(routineHash))
+			return getDynamicRoutineOffset(ScriptRoutineGraph.getDynamicRoutineIndex(routineHash));
+		return getHashedRoutineOffset(routineHash);
+	}
+
+	/**
+	 * Look up a routine in the hashtable only. Dataset segments also keep their dynamic routines there.
+	 *
+	 * @return the word offset of the routine in the dataset, or 0 if it is not there
+	 */
+	public int getHashedRoutineOffset(int routineHash) {
+		if (index != null)
+			return probeRoutineIndex(routineHash);
+		return searchHashtableChain(routineHash);
+	}
+
+	/**
+	 * @return the word offset of the dynamic routine, or 0 if it is not there
+	 */
+	public int getDynamicRoutineOffset(int index) {
+		if (index < 0 || index >= dynamicRoutineCount)
+			return 0;
+		return data.get(dynamicRoutineListStart + 1 + index);
+	}
+
+	/**
+	 * @return the word offsets of all static routines, in hashtable order
+	 */
+	public int[] getStaticRoutineOffsets() {
+		int offsets[] = new int[staticRoutineCount], i = 0;
+		for (int bucket = 0; bucket <= hashtableMask; bucket++) {
+			int chainOffset = data.get(hashtableStart + 1 + bucket);
+			if (chainOffset == 0)
+				continue;
+			for (int dataOffset = data.get(chainOffset); dataOffset != 0; dataOffset = data.get(++chainOffset)) {
+				if (i == staticRoutineCount) {
+					throw new MergeException("Dataset %s has more than %d static routines in its hashtable",
+							description, staticRoutineCount);
+				}
+				offsets[i++] = dataOffset;
+			}
+		}
+		if (i < staticRoutineCount) {
+			throw new MergeException("Dataset %s has %d static routines in its header but %d in its hashtable",
+					description, staticRoutineCount, i);
+		}
+		return offsets;
+	}
+
+	public int[] getStaticRoutineHashes() {
+		int hashes[] = getStaticRoutineOffsets();
+		for (int i = 0; i < hashes.length; i++)
+			hashes[i] = data.get(hashes[i]);
+		return hashes;
+	}
+
+	private int probeRoutineIndex(int routineHash) {
+		int slot = getIndexSlot(routineHash, indexMask), entry, dataOffset;
+		for (int probes = 0; probes <= indexMask; probes++) {
+			entry = INDEX_HEADER_SIZE + (2 * slot);
+			dataOffset = index.get(entry + 1);
+			if (dataOffset == 0)
+				return 0;
+			if (index.get(entry) == routineHash) {
+				if (getWord(dataOffset, "routine index entry") != routineHash) {
+					throw new MergeException("Routine index of dataset %s maps routine 0x%x to word 0x%x of 0x%x",
+							description, routineHash, dataOffset, data.get(dataOffset));
+				}
+				return dataOffset;
+			}
+			slot = (slot + 1) & indexMask;
+		}
+		return 0;
+	}
+
+	/**
+	 * A routine index is current if it was written for this exact version of the dataset. The modification time alone
+	 * is too coarse on some file systems, so the size and the header of the dataset are compared as well.
+	 */
+	private boolean isCurrentIndex(IntBuffer index, long lastModified) {
+		if (index == null)
+			return false;
+		if (index.limit() < INDEX_HEADER_SIZE || index.get(0) != INDEX_TAG) {
+			Log.warn("Ignoring the routine index of dataset %s, which has no index header", description);
+			return false;
+		}
+		int mask = index.get(1);
+		if (mask < 0 || (mask & (mask + 1)) != 0 || index.limit() != (INDEX_HEADER_SIZE + (2 * (mask + 1)))) {
+			Log.warn("Ignoring the routine index of dataset %s, which is truncated", description);
+			return false;
+		}
+		long indexedLastModified = (index.get(6) & 0xffffffffL) | ((long) index.get(7) << 32);
+		if (index.get(2) != data.limit() || index.get(3) != hashtableStart || index.get(4) != staticRoutineCount
+				|| index.get(5) != dynamicRoutineCount || indexedLastModified != lastModified) {
+			Log.log("Ignoring the routine index of dataset %s, which was written for another version of it",
+					description);
+			return false;
+		}
+		return true;
+	}
+
+	private int searchHashtableChain(int routineHash) {
+		int chainOffset = data.get(hashtableStart + 1 + (routineHash & hashtableMask));
+		if (chainOffset == 0)
+			return 0;
+
+		for (int dataOffset = data.get(chainOffset); dataOffset != 0; dataOffset = data.get(++chainOffset)) {
+			if (data.get(dataOffset) == routineHash)
+				return dataOffset;
+		}
+		return 0;
+	}
+
+	private int getWord(int offset, String section) {
+		if (offset < 0 || offset >= data.limit()) {
+			throw new MergeException("Dataset %s is truncated in its %s (word 0x%x of 0x%x)", description, section,
+					offset, data.limit());
+		}
+		return data.get(offset);
+	}
+
+	private int checkMask(int mask, String section) {
+		if (mask < 0 || (mask & (mask + 1)) != 0)
+			throw new MergeException("Dataset %s has an invalid %s mask 0x%x", description, section, mask);
+		return mask;
+	}
+}
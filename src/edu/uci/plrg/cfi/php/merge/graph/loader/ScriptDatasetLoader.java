@@ -4,12 +4,13 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 import edu.uci.plrg.cfi.common.io.LittleEndianInputStream;
 import edu.uci.plrg.cfi.common.log.Log;
 import edu.uci.plrg.cfi.php.merge.MergeException;
 import edu.uci.plrg.cfi.php.merge.ScriptMergeWatchList;
+import edu.uci.plrg.cfi.php.merge.graph.CompactRoutineGraph;
 import edu.uci.plrg.cfi.php.merge.graph.RoutineEdge;
 import edu.uci.plrg.cfi.php.merge.graph.RoutineId;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptBranchNode;
@@ -38,28 +39,105 @@ public class ScriptDatasetLoader {
 	private LittleEndianInputStream in;
 
 	private boolean shallow;
+	private final boolean compact;
 
+	public ScriptDatasetLoader() {
+		this(false);
+	}
+
+	/**
+	 * @param compact
+	 *            load each routine as a read-only `CompactRoutineGraph`, for consumers that only analyze the dataset
+	 */
+	public ScriptDatasetLoader(boolean compact) {
+		this.compact = compact;
+	}
+
+	/**
+	 * Load the dataset along with any segments appended to it (see `ScriptDatasetSegments`).
+	 */
 	public void loadDataset(File datasetFile, File routineCatalog, ScriptFlowGraph graph, boolean shallow)
 			throws IOException {
 		RoutineId.Cache.INSTANCE.load(routineCatalog);
-		in = new LittleEndianInputStream(datasetFile);
 		this.shallow = shallow;
 
-		in.readInt(); // skip hashtable pointer
-		int routineCount = in.readInt();
-		int dynamicRoutineCount = in.readInt();
+		List<File> segments = ScriptDatasetSegments.find(datasetFile);
+		Map<Integer, Integer> latestSegments = ScriptDatasetSegments.mapLatestSegments(segments);
+		loadSegment(datasetFile, 0, latestSegments, graph);
+		for (int i = 0; i < segments.size(); i++)
+			loadSegment(segments.get(i), i + 1, latestSegments, graph);
+	}
+
+	/**
+	 * Load the routines of one segment that are not replaced by a later segment. The dataset itself is segment 0.
+	 */
+	private void loadSegment(File segmentFile, int segmentNumber, Map<Integer, Integer> latestSegments,
+			ScriptFlowGraph graph) throws IOException {
+		in = new LittleEndianInputStream(segmentFile);
+		int routineHash;
+
+		try {
+			in.readInt(); // skip hashtable pointer
+			int routineCount = in.readInt();
+			int dynamicRoutineCount = in.readInt();
+
+			for (int i = 0; i < routineCount; i++) {
+				routineHash = in.readInt();
+				if (isReplaced(routineHash, segmentNumber, latestSegments))
+					skipNextRoutine();
+				else
+					graph.addRoutine(loadNextRoutine(graph, routineHash));
+			}
+			for (int i = 0; i < dynamicRoutineCount; i++) {
+				routineHash = in.readInt();
+				if (latestSegments.isEmpty()) {
+					graph.appendDynamicRoutine(loadNextRoutine(graph, routineHash));
+				} else {
+					/* segments replace dynamic routines by hash, so the index must be kept */
+					if (routineHash != ScriptRoutineGraph.constructDynamicHash(i)) {
+						throw new MergeException("Dynamic routine %d of %s has hash 0x%x", i,
+								segmentFile.getAbsolutePath(), routineHash);
+					}
+					if (isReplaced(routineHash, segmentNumber, latestSegments))
+						skipNextRoutine();
+					else
+						graph.addRoutine(loadNextRoutine(graph, routineHash));
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
 
-		for (int i = 0; i < routineCount; i++)
-			graph.addRoutine(loadNextRoutine(graph));
-		for (int i = 0; i < dynamicRoutineCount; i++)
-			graph.appendDynamicRoutine(loadNextRoutine(graph));
+	private static boolean isReplaced(int routineHash, int segmentNumber, Map<Integer, Integer> latestSegments) {
+		Integer latestSegment = latestSegments.get(routineHash);
+		return latestSegment != null && latestSegment > segmentNumber;
+	}
 
-		in.close();
+	/**
+	 * Read past the routine following its hash.
+	 */
+	private void skipNextRoutine() throws IOException {
+		int nodeCount = in.readInt(), callCount = 0, typeFlags;
+		for (int i = 0; i < nodeCount; i++) {
+			typeFlags = (in.readInt() >> 8) & 0xff;
+			in.readInt(); // targetIndexField
+			in.readInt(); // callTargetsField
+			if (TypeFlag.CALL.isSet(typeFlags) || TypeFlag.EVAL.isSet(typeFlags))
+				callCount++;
+		}
+		for (int i = 0; i < callCount; i++) {
+			int targetCount = in.readInt();
+			for (int j = 0; j < (targetCount * 2); j++)
+				in.readInt();
+		}
 	}
 
-	private ScriptRoutineGraph loadNextRoutine(ScriptFlowGraph graph) throws IOException {
-		int routineHash = in.readInt();
-		int dynamicRoutineId, dynamicRoutineCount, targetNodeIndex, userLevel;
+	private ScriptRoutineGraph loadNextRoutine(ScriptFlowGraph graph, int routineHash) throws IOException {
+		if (compact)
+			return loadNextCompactRoutine(graph, routineHash);
+
+		int userLevel;
 		ScriptRoutineGraph routine = new ScriptRoutineGraph(routineHash, RoutineId.Cache.INSTANCE.getId(routineHash),
 				false);
 
@@ -68,13 +146,12 @@ public class ScriptDatasetLoader {
 		for (int i = 0; i < nodeCount; i++) {
 			int nodeId = in.readInt();
 			int opcode = nodeId & 0xff;
-			int typeFlagBits = (nodeId >> 8) & 0xff;
+			int typeFlags = (nodeId >> 8) & 0xff;
 			int lineNumber = (nodeId >> 0x10);
-			Set<ScriptNode.TypeFlag> typeFlags = ScriptNode.TypeFlag.decode(typeFlagBits);
 			int targetIndexField = in.readInt(), targetIndex;
 			in.readInt(); // callTargetsField (ignored--using in-order walk instead)
 			userLevel = shallow ? 0 : (targetIndexField >>> 26);
-			if (typeFlags.contains(TypeFlag.BRANCH)) {
+			if (TypeFlag.BRANCH.isSet(typeFlags)) {
 				targetIndex = (targetIndexField & 0x3ffffff);
 				ScriptBranchNode branch = new ScriptBranchNode(routineHash, typeFlags, opcode, i, lineNumber,
 						ScriptNode.USER_LEVEL_TOP);
@@ -83,7 +160,7 @@ public class ScriptDatasetLoader {
 			} else {
 				node = new ScriptNode(routineHash, typeFlags, opcode, lineNumber, i);
 			}
-			if (typeFlags.contains(TypeFlag.CALL) || typeFlags.contains(TypeFlag.EVAL))
+			if (node.isCall() || node.isEval())
 				calls.add(node); // use list seequence instead of `target` pointer
 			node.setNodeUserLevel(userLevel);
 			routine.addNode(node);
@@ -92,9 +169,11 @@ public class ScriptDatasetLoader {
 				previousNode.setNext(node);
 			previousNode = node;
 
-			Log.message("%s: @%d Opcode 0x%x (%x) [%s]", getClass().getSimpleName(), i, opcode, routineHash, typeFlags);
+			Log.message("%s: @%d Opcode 0x%x (%x) [0x%x]", getClass().getSimpleName(), i, opcode, routineHash,
+					typeFlags);
 			if (ScriptMergeWatchList.watch(routineHash))
-				Log.log("%s: @%d Opcode 0x%x (%x) [%s]", getClass().getSimpleName(), i, opcode, routineHash, typeFlags);
+				Log.log("%s: @%d Opcode 0x%x (%x) [0x%x]", getClass().getSimpleName(), i, opcode, routineHash,
+						typeFlags);
 		}
 
 		for (PendingEdges<ScriptBranchNode, Integer> pendingBranch : pendingBranches) {
@@ -115,8 +194,69 @@ public class ScriptDatasetLoader {
 			}
 		}
 
+		loadCallTargets(graph, routine);
+		pendingBranches.clear();
+
+		return routine;
+	}
+
+	private ScriptRoutineGraph loadNextCompactRoutine(ScriptFlowGraph graph, int routineHash) throws IOException {
+		int nodeCount = in.readInt();
+		CompactRoutineGraph routine = new CompactRoutineGraph(routineHash, RoutineId.Cache.INSTANCE.getId(routineHash),
+				nodeCount);
+
+		int[] branchTargets = null;
+		for (int i = 0; i < nodeCount; i++) {
+			int nodeId = in.readInt();
+			int opcode = nodeId & 0xff;
+			int typeFlags = (nodeId >> 8) & 0xff;
+			int lineNumber = (nodeId >> 0x10);
+			int targetIndexField = in.readInt();
+			in.readInt(); // callTargetsField (ignored--using in-order walk instead)
+			routine.setNode(i, opcode, typeFlags, lineNumber, shallow ? 0 : (targetIndexField >>> 26));
+			if (TypeFlag.BRANCH.isSet(typeFlags)) {
+				if (branchTargets == null)
+					branchTargets = new int[nodeCount];
+				branchTargets[i] = (targetIndexField & 0x3ffffff);
+			}
+
+			if (ScriptMergeWatchList.watch(routineHash))
+				Log.log("%s: @%d Opcode 0x%x (%x) [0x%x]", getClass().getSimpleName(), i, opcode, routineHash,
+						typeFlags);
+		}
+
+		for (int i = 0; branchTargets != null && i < nodeCount; i++) {
+			if (!TypeFlag.BRANCH.isSet(routine.getTypeFlags(i)))
+				continue;
+
+			switch (ScriptNode.Opcode.forCode(routine.getOpcode(i)).targetType) {
+				case DYNAMIC:
+				case NULLABLE:
+					if (branchTargets[i] != ScriptBranchNode.UNASSIGNED_BRANCH_TARGET_ID)
+						routine.setBranch(i, branchTargets[i], routine.getNodeUserLevel(branchTargets[i]));
+					break;
+				case REQUIRED:
+					routine.setBranch(i, branchTargets[i], routine.getNodeUserLevel(branchTargets[i]));
+					break;
+				default:
+					throw new MergeException("Illegal opcode for branch node 0x%x", routine.getOpcode(i));
+			}
+		}
+
+		for (int i = 0; i < nodeCount; i++) {
+			if (TypeFlag.CALL.isSet(routine.getTypeFlags(i)) || TypeFlag.EVAL.isSet(routine.getTypeFlags(i)))
+				calls.add(routine.getNode(i)); // edges are keyed by node views, which are equal by routine and index
+		}
+		loadCallTargets(graph, routine);
+
+		return routine;
+	}
+
+	private void loadCallTargets(ScriptFlowGraph graph, ScriptRoutineGraph routine) throws IOException {
+		int routineHash, dynamicRoutineId, dynamicRoutineCount, targetNodeIndex, userLevel;
+
 		for (ScriptNode call : calls) {
-			if (call.typeFlags.contains(TypeFlag.CALL)) {
+			if (call.isCall()) {
 				int callCount = in.readInt();
 				for (int i = 0; i < callCount; i++) {
 					routineHash = in.readInt();
@@ -161,8 +301,5 @@ public class ScriptDatasetLoader {
 		}
 
 		calls.clear();
-		pendingBranches.clear();
-
-		return routine;
 	}
 }
@@ -0,0 +1,68 @@
+package edu.uci.plrg.cfi.php.merge.graph.loader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.uci.plrg.cfi.php.merge.MergeException;
+
+/**
+ * Delta segments of a dataset, which are appended by incremental merges next to the cfg.set as "cfg.set.1",
+ * "cfg.set.2" and so on. Each segment has the cfg.set layout, and holds the complete new version of every routine that
+ * the merge added or changed, including any dynamic routines, which are keyed by their dynamic hash in the routine
+ * hashtable. The segment header therefore always has zero dynamic routines. A routine in a later segment replaces the
+ * same routine in the cfg.set and in all earlier segments, along with all of its outgoing edges.
+ */
+public class ScriptDatasetSegments {
+
+	/**
+	 * @return the segments of the dataset, in the order they were appended
+	 */
+	public static List<File> find(File datasetFile) {
+		List<File> segments = new ArrayList<File>();
+		for (int i = 1;; i++) {
+			File segment = getSegmentFile(datasetFile, i);
+			if (!segment.exists())
+				break;
+			segments.add(segment);
+		}
+		return segments;
+	}
+
+	public static File getNextSegmentFile(File datasetFile) {
+		return getSegmentFile(datasetFile, find(datasetFile).size() + 1);
+	}
+
+	/**
+	 * Delete the segments, along with their routine indexes, after they have been folded into a new cfg.set.
+	 */
+	public static void delete(File datasetFile) {
+		for (File segment : find(datasetFile)) {
+			File indexFile = ScriptDatasetIndex.getIndexFile(segment);
+			if (indexFile.exists() && !indexFile.delete())
+				throw new MergeException("Failed to delete routine index %s", indexFile.getAbsolutePath());
+			if (!segment.delete())
+				throw new MergeException("Failed to delete dataset segment %s", segment.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * @return the number of the last segment that contains each routine, where the first segment is number 1
+	 */
+	public static Map<Integer, Integer> mapLatestSegments(List<File> segments) throws IOException {
+		Map<Integer, Integer> latestSegments = new HashMap<Integer, Integer>();
+		for (int i = 0; i < segments.size(); i++) {
+			ScriptDatasetIndex index = ScriptDatasetIndex.open(segments.get(i));
+			for (int routineHash : index.getStaticRoutineHashes())
+				latestSegments.put(routineHash, i + 1);
+		}
+		return latestSegments;
+	}
+
+	private static File getSegmentFile(File datasetFile, int segmentNumber) {
+		return new File(datasetFile.getParentFile(), datasetFile.getName() + "." + segmentNumber);
+	}
+}
@@ -8,13 +8,27 @@ import edu.uci.plrg.cfi.php.merge.graph.ScriptFlowGraph;
 
 public class ScriptGraphLoader {
 
+	private final int threadCount;
+
+	public ScriptGraphLoader() {
+		this(1);
+	}
+
+	/**
+	 * @param threadCount
+	 *            number of threads for linking the routines of a run
+	 */
+	public ScriptGraphLoader(int threadCount) {
+		this.threadCount = threadCount;
+	}
+
 	public void loadGraph(ScriptGraphDataFiles dataSource, ScriptFlowGraph graph, DatasetMerge.Side side,
 			boolean shallow) throws IOException {
 		Log.log("Loading %s from the %s", dataSource.getType(), side);
 
 		switch (dataSource.getType()) {
 			case RUN:
-				ScriptRunLoader runLoader = new ScriptRunLoader();
+				ScriptRunLoader runLoader = new ScriptRunLoader(threadCount);
 				runLoader.loadRun((ScriptRunFiles) dataSource, graph, side, shallow);
 				break;
 			case DATASET:
@@ -24,4 +38,16 @@ public class ScriptGraphLoader {
 				break;
 		}
 	}
+
+	/**
+	 * Deep load a run on its own, copying any routines it has edges from or to but no nodes for out of `baseGraph`.
+	 * The base graph is only read, so several runs can be loaded against it concurrently.
+	 */
+	public void loadRun(ScriptRunFiles run, ScriptFlowGraph graph, ScriptFlowGraph baseGraph, DatasetMerge.Side side)
+			throws IOException {
+		Log.log("Loading %s from the %s", run.getType(), side);
+
+		ScriptRunLoader runLoader = new ScriptRunLoader(threadCount);
+		runLoader.loadRun(run, graph, baseGraph, side, false/* not shallow */);
+	}
 }
@@ -2,9 +2,9 @@ package edu.uci.plrg.cfi.php.merge.graph.loader;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Set;
+import java.util.HashMap;
+import java.util.Map;
 
-import edu.uci.plrg.cfi.common.io.LittleEndianInputStream;
 import edu.uci.plrg.cfi.common.log.Log;
 import edu.uci.plrg.cfi.php.merge.ScriptMergeWatchList;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptBranchNode;
@@ -33,64 +33,107 @@ public class ScriptNodeLoader {
 		this.loadContext = loadContext;
 	}
 
+	/**
+	 * Loads the nodes in two passes over the mapped node file: the first counts the nodes of each routine so that its
+	 * node list can be allocated once, and the second creates the nodes.
+	 */
 	public void loadNodes(File nodeFile) throws IOException {
+		Map<Integer, Integer> nodeCounts = countNodes(nodeFile);
+
 		int routineHash, opcodeField, opcode, extendedValue, lineNumber, nodeIndex = 0;
-		Set<TypeFlag> typeFlags;
+		int typeFlags;
 		ScriptNode node, previousNode = null;
 		ScriptRoutineGraph routine = null;
-		LittleEndianInputStream input = new LittleEndianInputStream(nodeFile);
-
-		while (input.ready(0xc)) {
-			routineHash = input.readInt();
-
-			if (routineHash == 1)
-				Log.log("entry");
-
-			if (routine == null || routine.hash != routineHash) {
-				previousNode = null;
-				routine = loadContext.getRoutine(routineHash);
+		MappedRunFile input = new MappedRunFile(nodeFile, 3);
+
+		try {
+			while (input.nextRecord()) {
+				routineHash = input.getInt();
+
+				if (routineHash == 1)
+					Log.log("entry");
+
+				if (routine == null || routine.hash != routineHash) {
+					previousNode = null;
+					routine = loadContext.getRoutine(routineHash);
+
+					if (routine == null) {
+						Log.message("Create routine %x", routineHash);
+						routine = loadContext.createRoutine(routineHash);
+					}
+					routine.ensureNodeCapacity(nodeCounts.get(routineHash));
+				}
+
+				opcodeField = input.getInt();
+				opcode = opcodeField & 0xff;
+				extendedValue = (opcodeField >> 8) & 0xff;
+				lineNumber = opcodeField >> 0x10;
+				typeFlags = ScriptNode.identifyTypes(opcode, extendedValue);
+
+				// parse out extended value for include/eval nodes
+				nodeIndex = input.getInt();
+				node = createNode(routineHash, opcode, typeFlags, lineNumber, nodeIndex);
+				if (nodeIndex > routine.getNodeCount()) {
+					Log.warn("Skipping node with disjoint index %d in routine 0x%x with %d nodes", nodeIndex,
+							routineHash, routine.getNodeCount());
+					continue;
+				}
+				if (previousNode != null)
+					previousNode.setNext(node);
+				previousNode = node;
+
+				Log.message("%s: @%d#%d Opcode 0x%x (%x) [0x%x]", getClass().getSimpleName(), nodeIndex, lineNumber,
+						opcode, routineHash, typeFlags);
+				if (ScriptMergeWatchList.watch(routineHash)) {
+					Log.log("%s: @%d Opcode 0x%x (%x) [0x%x]", getClass().getSimpleName(), nodeIndex, opcode,
+							routineHash, typeFlags);
+				}
+
+				routine.addNode(node);
 			}
 
-			if (routine == null) {
-				Log.message("Create routine %x", routineHash);
-				routine = loadContext.createRoutine(routineHash);
-			}
+			if (input.hasTrailingData())
+				Log.error("Input file " + nodeFile.getAbsolutePath() + " has trailing data!");
+		} finally {
+			input.close();
+		}
+	}
 
-			opcodeField = input.readInt();
-			opcode = opcodeField & 0xff;
-			extendedValue = (opcodeField >> 8) & 0xff;
-			lineNumber = opcodeField >> 0x10;
-			typeFlags = ScriptNode.identifyTypes(opcode, extendedValue);
-
-			// parse out extended value for include/eval nodes
-			nodeIndex = input.readInt();
-			node = createNode(routineHash, opcode, typeFlags, lineNumber, nodeIndex);
-			if (nodeIndex > routine.getNodeCount()) {
-				Log.warn("Skipping node with disjoint index %d in routine 0x%x with %d nodes", nodeIndex, routineHash,
-						routine.getNodeCount());
-				continue;
+	private Map<Integer, Integer> countNodes(File nodeFile) throws IOException {
+		Map<Integer, Integer> nodeCounts = new HashMap<Integer, Integer>();
+		int routineHash, lastRoutineHash = 0, lastRoutineCount = 0;
+		Integer count;
+		MappedRunFile input = new MappedRunFile(nodeFile, 3);
+
+		try {
+			while (input.nextRecord()) {
+				routineHash = input.getInt();
+				input.getInt();
+				input.getInt();
+
+				if (lastRoutineCount > 0 && routineHash == lastRoutineHash) {
+					lastRoutineCount++; // nodes of a routine are mostly written consecutively
+					continue;
+				}
+				if (lastRoutineCount > 0) {
+					count = nodeCounts.get(lastRoutineHash);
+					nodeCounts.put(lastRoutineHash, (count == null ? 0 : count) + lastRoutineCount);
+				}
+				lastRoutineHash = routineHash;
+				lastRoutineCount = 1;
 			}
-			if (previousNode != null)
-				previousNode.setNext(node);
-			previousNode = node;
-
-			Log.message("%s: @%d#%d Opcode 0x%x (%x) [%s]", getClass().getSimpleName(), nodeIndex, lineNumber, opcode,
-					routineHash, node.typeFlags);
-			if (ScriptMergeWatchList.watch(routineHash)) {
-				Log.log("%s: @%d Opcode 0x%x (%x) [%s]", getClass().getSimpleName(), nodeIndex, opcode, routineHash,
-						node.typeFlags);
+			if (lastRoutineCount > 0) {
+				count = nodeCounts.get(lastRoutineHash);
+				nodeCounts.put(lastRoutineHash, (count == null ? 0 : count) + lastRoutineCount);
 			}
-
-			routine.addNode(node);
+		} finally {
+			input.close();
 		}
-
-		if (input.ready())
-			Log.error("Input file " + nodeFile.getAbsolutePath() + " has trailing data!");
-		input.close();
+		return nodeCounts;
 	}
 
-	private ScriptNode createNode(int routineHash, int opcode, Set<TypeFlag> typeFlags, int lineNumber, int index) {
-		if (typeFlags.contains(TypeFlag.BRANCH)) {
+	private ScriptNode createNode(int routineHash, int opcode, int typeFlags, int lineNumber, int index) {
+		if (TypeFlag.BRANCH.isSet(typeFlags)) {
 			// int userLevel = (index >>> 26);
 			// index = (index & 0xfff);
 			return new ScriptBranchNode(routineHash, typeFlags, opcode, index, lineNumber, 0);
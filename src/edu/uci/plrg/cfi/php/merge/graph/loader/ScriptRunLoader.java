@@ -5,144 +5,46 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
-import edu.uci.plrg.cfi.common.io.LittleEndianInputStream;
 import edu.uci.plrg.cfi.common.log.Log;
 import edu.uci.plrg.cfi.php.merge.DatasetMerge;
 import edu.uci.plrg.cfi.php.merge.MergeException;
 import edu.uci.plrg.cfi.php.merge.ScriptMergeWatchList;
+import edu.uci.plrg.cfi.php.merge.graph.ConcurrentGraphEdgeSet;
 import edu.uci.plrg.cfi.php.merge.graph.RoutineEdge;
 import edu.uci.plrg.cfi.php.merge.graph.RoutineId;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptBranchNode;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptFlowGraph;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptGraphCloner;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptNode;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptNode.Opcode;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptNode.OpcodeTargetType;
-import edu.uci.plrg.cfi.php.merge.graph.ScriptNode.TypeFlag;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptRoutineGraph;
 
 class ScriptRunLoader {
 
-	private static class RawOpcodeEdge {
-		final int routineHash;
-		final int fromIndex;
-		final int toIndex;
-		final int userLevel;
-
-		public RawOpcodeEdge(int routineHash, int fromIndex, int toIndex, int userLevel) {
-			this.routineHash = routineHash;
-			this.fromIndex = fromIndex;
-			this.toIndex = toIndex;
-			this.userLevel = userLevel;
-		}
-
-		@Override
-		public int hashCode() {
-			final int prime = 31;
-			int result = 1;
-			result = prime * result + fromIndex;
-			result = prime * result + routineHash;
-			result = prime * result + toIndex;
-			result = prime * result + userLevel;
-			return result;
-		}
-
-		@Override
-		public boolean equals(Object obj) {
-			if (this == obj)
-				return true;
-			if (obj == null)
-				return false;
-			if (getClass() != obj.getClass())
-				return false;
-			RawOpcodeEdge other = (RawOpcodeEdge) obj;
-			if (fromIndex != other.fromIndex)
-				return false;
-			if (routineHash != other.routineHash)
-				return false;
-			if (toIndex != other.toIndex)
-				return false;
-			if (userLevel != other.userLevel)
-				return false;
-			return true;
-		}
-	}
-
-	private static class RawRoutineEdge {
-		final int fromRoutineHash;
-		final int fromIndex;
-		final int toRoutineHash;
-		final int toIndex;
-		final int userLevel;
-
-		public RawRoutineEdge(int fromRoutineHash, int fromIndex, int toRoutineHash, int toIndex, int userLevel) {
-			this.fromRoutineHash = fromRoutineHash;
-			this.fromIndex = fromIndex;
-			this.toRoutineHash = toRoutineHash;
-			this.toIndex = toIndex;
-			this.userLevel = userLevel;
-		}
-
-		@Override
-		public int hashCode() {
-			final int prime = 31;
-			int result = 1;
-			result = prime * result + fromIndex;
-			result = prime * result + fromRoutineHash;
-			result = prime * result + toIndex;
-			result = prime * result + toRoutineHash;
-			result = prime * result + userLevel;
-			return result;
-		}
-
-		@Override
-		public boolean equals(Object obj) {
-			if (this == obj)
-				return true;
-			if (obj == null)
-				return false;
-			if (getClass() != obj.getClass())
-				return false;
-			RawRoutineEdge other = (RawRoutineEdge) obj;
-			if (fromIndex != other.fromIndex)
-				return false;
-			if (fromRoutineHash != other.fromRoutineHash)
-				return false;
-			if (toIndex != other.toIndex)
-				return false;
-			if (toRoutineHash != other.toRoutineHash)
-				return false;
-			if (userLevel != other.userLevel)
-				return false;
-			return true;
-		}
-	}
-
+	/**
+	 * Raw edges of one routine, packed by `RawEdgeSet.pack()`. Routine edges carry the target routine hash in a
+	 * second long.
+	 */
 	private static class RawRoutineGraph {
 		final int hash;
-		final Map<Integer, Set<RawOpcodeEdge>> opcodeEdges = new HashMap<Integer, Set<RawOpcodeEdge>>();
-		final Map<Integer, Set<RawRoutineEdge>> routineEdges = new HashMap<Integer, Set<RawRoutineEdge>>();
+		final RawEdgeSet opcodeEdges = new RawEdgeSet(1);
+		final RawEdgeSet routineEdges = new RawEdgeSet(2);
+		final RawEdgeSet caughtExceptionEdges = new RawEdgeSet(1);
 
 		public RawRoutineGraph(int hash) {
 			this.hash = hash;
 		}
 
-		void addRawEdge(RawOpcodeEdge edge) {
-			Set<RawOpcodeEdge> existingEdges = opcodeEdges.get(edge.fromIndex);
-			if (existingEdges == null) {
-				existingEdges = new HashSet<RawOpcodeEdge>();
-				opcodeEdges.put(edge.fromIndex, existingEdges);
-			}
-			existingEdges.add(edge);
+		void addOpcodeEdge(int fromIndex, int toIndex, int userLevel) {
+			opcodeEdges.add(RawEdgeSet.pack(fromIndex, toIndex, userLevel));
 		}
 
-		void addRawEdge(RawRoutineEdge edge) {
-			Set<RawRoutineEdge> existingEdges = routineEdges.get(edge.fromIndex);
-			if (existingEdges == null) {
-				existingEdges = new HashSet<RawRoutineEdge>();
-				routineEdges.put(edge.fromIndex, existingEdges);
-			}
-			existingEdges.add(edge);
+		void addRoutineEdge(int fromIndex, int toRoutineHash, int toIndex, int userLevel) {
+			routineEdges.add(RawEdgeSet.pack(fromIndex, toIndex, userLevel), toRoutineHash);
 		}
 	}
 
@@ -174,35 +76,58 @@ class ScriptRunLoader {
 
 	private final Set<Integer> preloadedRoutines = new HashSet<Integer>();
 	private final Map<Integer, RawRoutineGraph> rawGraphs = new HashMap<Integer, RawRoutineGraph>();
-	private final Map<Integer, Integer> pendingNodeUserLevels = new HashMap<Integer, Integer>();
+	private RawRoutineGraph lastRawGraph;
 	private DatasetMerge.Side side;
+	private ScriptFlowGraph baseGraph;
+	private final int threadCount;
 
 	private final ScriptNodeLoadContext nodeLoadContext = new ScriptNodeLoadContext();
 	private final ScriptNodeLoader nodeLoader = new ScriptNodeLoader(nodeLoadContext);
 
-	ScriptRunLoader() {
+	/**
+	 * @param threadCount
+	 *            number of threads for linking routines, or 1 to link them on the calling thread
+	 */
+	ScriptRunLoader(int threadCount) {
+		this.threadCount = threadCount;
 	}
 
-	private RawRoutineGraph getRawGraph(Integer hash) {
+	private RawRoutineGraph getRawGraph(int hash) {
+		if (lastRawGraph != null && lastRawGraph.hash == hash)
+			return lastRawGraph; // edges of a routine are mostly written consecutively
+
 		RawRoutineGraph graph = rawGraphs.get(hash);
 		if (graph == null) {
 			graph = new RawRoutineGraph(hash);
 			rawGraphs.put(hash, graph);
 		}
+		lastRawGraph = graph;
 		return graph;
 	}
 
-	private void pendNodeUserLevel(int nodeIndex, int userLevel) {
+	private static void pendNodeUserLevel(Map<Integer, Integer> pendingNodeUserLevels, int nodeIndex, int userLevel) {
 		Integer alreadyPendingUserLevel = pendingNodeUserLevels.get(nodeIndex);
 		if (alreadyPendingUserLevel == null || alreadyPendingUserLevel > userLevel)
 			pendingNodeUserLevels.put(nodeIndex, userLevel);
 	}
 
 	void loadRun(ScriptRunFiles run, ScriptFlowGraph graph, DatasetMerge.Side side, boolean shallow) throws IOException {
+		loadRun(run, graph, null, side, shallow);
+	}
+
+	/**
+	 * @param baseGraph
+	 *            graph that routines missing from the run are copied from when the run has edges from or to them, or
+	 *            null to skip those edges
+	 */
+	void loadRun(ScriptRunFiles run, ScriptFlowGraph graph, ScriptFlowGraph baseGraph, DatasetMerge.Side side,
+			boolean shallow) throws IOException {
+		this.baseGraph = baseGraph;
 		preloadedRoutines.clear();
 		for (ScriptRoutineGraph preloadedRoutine : graph.getRoutines())
 			preloadedRoutines.add(preloadedRoutine.hash);
 		rawGraphs.clear();
+		lastRawGraph = null;
 		this.side = side;
 
 		loadOpcodeEdges(run, !shallow);
@@ -219,28 +144,29 @@ class ScriptRunLoader {
 
 	private void loadOpcodeEdges(ScriptRunFiles run, boolean loadUserLevel) throws IOException {
 		int routineHash, fromIndex, toIndex, userLevel;
-		RawRoutineGraph graph;
-		LittleEndianInputStream input = new LittleEndianInputStream(run.opcodeEdgeFile);
+		MappedRunFile input = new MappedRunFile(run.opcodeEdgeFile, 3);
 
-		while (input.ready(0xc)) {
-			routineHash = input.readInt();
+		try {
+			while (input.nextRecord()) {
+				routineHash = input.getInt();
 
-			fromIndex = input.readInt();
-			userLevel = loadUserLevel ? (fromIndex >>> 26) : 0;
-			fromIndex = (fromIndex & 0x3ffffff);
-			toIndex = input.readInt();
+				fromIndex = input.getInt();
+				userLevel = loadUserLevel ? (fromIndex >>> 26) : 0;
+				fromIndex = (fromIndex & 0x3ffffff);
+				toIndex = input.getInt();
 
-			graph = getRawGraph(routineHash);
-			graph.addRawEdge(new RawOpcodeEdge(routineHash, fromIndex, toIndex, userLevel));
-		}
+				getRawGraph(routineHash).addOpcodeEdge(fromIndex, toIndex, userLevel);
+			}
 
-		if (input.ready()) {
-			Log.error("Input file " + run.opcodeEdgeFile.getAbsolutePath() + " has trailing data!");
+			if (input.hasTrailingData()) {
+				Log.error("Input file " + run.opcodeEdgeFile.getAbsolutePath() + " has trailing data!");
+			}
+		} finally {
+			input.close();
 		}
-		input.close();
 	}
 
-	private boolean isFallThrough(ScriptNode fromNode, RawOpcodeEdge edge) {
+	private boolean isFallThrough(ScriptNode fromNode, int fromIndex, int toIndex) {
 		ScriptNode.Opcode opcode = ScriptNode.Opcode.forCode(fromNode.opcode);
 		if (opcode == null)
 			return false;
@@ -249,179 +175,347 @@ class ScriptRunLoader {
 			case ZEND_ASSIGN_DIM:
 			case ZEND_NEW:
 			case ZEND_JMP_SET:
-				return edge.toIndex <= (edge.fromIndex + 0x10);
+				return toIndex <= (fromIndex + 0x10);
 			default:
 				return false;
 		}
 	}
 
+	/**
+	 * Links the opcode edges of a range of routines, splitting the range until it is small enough to link directly.
+	 */
+	private class LinkOpcodeEdgesTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final ScriptFlowGraph graph;
+		private final RawRoutineGraph[] rawGraphs;
+		private final int start, end;
+
+		LinkOpcodeEdgesTask(ScriptFlowGraph graph, RawRoutineGraph[] rawGraphs, int start, int end) {
+			this.graph = graph;
+			this.rawGraphs = rawGraphs;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if ((end - start) <= LINK_TASK_ROUTINE_COUNT) {
+				for (int i = start; i < end; i++)
+					linkOpcodeEdges(graph, rawGraphs[i]);
+			} else {
+				int middle = (start + end) >>> 1;
+				invokeAll(new LinkOpcodeEdgesTask(graph, rawGraphs, start, middle), new LinkOpcodeEdgesTask(graph,
+						rawGraphs, middle, end));
+			}
+		}
+	}
+
+	/**
+	 * Links the routine edges of a range of routines into a `ConcurrentGraphEdgeSet`. All edges from a routine are
+	 * added by one task in load order, so the outgoing edges of each node are in the same order as a serial link.
+	 */
+	private class LinkRoutineEdgesTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final ScriptFlowGraph graph;
+		private final RawRoutineGraph[] rawGraphs;
+		private final int start, end;
+
+		LinkRoutineEdgesTask(ScriptFlowGraph graph, RawRoutineGraph[] rawGraphs, int start, int end) {
+			this.graph = graph;
+			this.rawGraphs = rawGraphs;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if ((end - start) <= LINK_TASK_ROUTINE_COUNT) {
+				for (int i = start; i < end; i++)
+					linkRoutineEdges(graph, rawGraphs[i]);
+			} else {
+				int middle = (start + end) >>> 1;
+				invokeAll(new LinkRoutineEdgesTask(graph, rawGraphs, start, middle), new LinkRoutineEdgesTask(graph,
+						rawGraphs, middle, end));
+			}
+		}
+	}
+
+	private static final int LINK_TASK_ROUTINE_COUNT = 64;
+
 	private void linkNodes(ScriptFlowGraph graph) {
-		ScriptRoutineGraph routine, toRoutine;
+		RawRoutineGraph[] linkingGraphs = rawGraphs.values().toArray(new RawRoutineGraph[rawGraphs.size()]);
+		if (baseGraph != null)
+			copyBaseRoutines(graph, linkingGraphs);
+
+		if (threadCount > 1 && linkingGraphs.length > LINK_TASK_ROUTINE_COUNT) {
+			ForkJoinPool pool = new ForkJoinPool(threadCount);
+			try {
+				pool.invoke(new LinkOpcodeEdgesTask(graph, linkingGraphs, 0, linkingGraphs.length));
+			} finally {
+				pool.shutdown();
+			}
+		} else {
+			for (RawRoutineGraph rawGraph : linkingGraphs)
+				linkOpcodeEdges(graph, rawGraph);
+		}
+
+		if (threadCount > 1 && linkingGraphs.length > LINK_TASK_ROUTINE_COUNT
+				&& graph.edges instanceof ConcurrentGraphEdgeSet) {
+			/* builtin routine creation modifies the graph, so only the edge insertions are concurrent */
+			addBuiltinRoutines(graph, linkingGraphs);
+			ForkJoinPool pool = new ForkJoinPool(threadCount);
+			try {
+				pool.invoke(new LinkRoutineEdgesTask(graph, linkingGraphs, 0, linkingGraphs.length));
+			} finally {
+				pool.shutdown();
+			}
+		} else {
+			/* edge insertions and builtin routine creation modify the graph, so they are done serially */
+			for (RawRoutineGraph rawGraph : linkingGraphs)
+				linkRoutineEdges(graph, rawGraph);
+		}
+		if (graph.edges instanceof ConcurrentGraphEdgeSet)
+			((ConcurrentGraphEdgeSet) graph.edges).completeLinking();
+	}
+
+	/**
+	 * Create the builtin routines that the run has edges to, which `linkRoutineEdges()` would otherwise create as it
+	 * encounters them.
+	 */
+	private void addBuiltinRoutines(ScriptFlowGraph graph, RawRoutineGraph[] linkingGraphs) {
+		for (RawRoutineGraph rawGraph : linkingGraphs) {
+			ScriptRoutineGraph routine = graph.getRoutine(rawGraph.hash);
+			if (routine == null)
+				continue;
+
+			for (int i = 0; i < rawGraph.routineEdges.size(); i++) {
+				int toRoutineHash = (int) rawGraph.routineEdges.get(i, 1);
+				if (RawEdgeSet.unpackFromIndex(rawGraph.routineEdges.get(i, 0)) >= routine.getNodeCount()
+						|| graph.getRoutine(toRoutineHash) != null)
+					continue;
+
+				RoutineId routineId = RoutineId.Cache.INSTANCE.getId(toRoutineHash);
+				if (routineId != null && routineId.isBuiltin())
+					graph.addRoutine(new ScriptRoutineGraph(toRoutineHash, routineId, graph.isNewUserLevelSample));
+			}
+		}
+	}
+
+	/**
+	 * Copy the base routines that the run has edges from or to, but no nodes for. This has the effect of cloning the
+	 * base graph into the run graph before loading, while only copying the routines that are needed. Dynamic routines
+	 * are copied under the same index, as the clone would have them.
+	 */
+	private void copyBaseRoutines(ScriptFlowGraph graph, RawRoutineGraph[] linkingGraphs) {
+		ScriptGraphCloner cloner = new ScriptGraphCloner();
+		for (RawRoutineGraph rawGraph : linkingGraphs) {
+			copyBaseRoutine(graph, rawGraph.hash, cloner);
+			for (int i = 0; i < rawGraph.routineEdges.size(); i++)
+				copyBaseRoutine(graph, (int) rawGraph.routineEdges.get(i, 1), cloner);
+		}
+	}
+
+	private void copyBaseRoutine(ScriptFlowGraph graph, int routineHash, ScriptGraphCloner cloner) {
+		if (graph.getRoutine(routineHash) != null)
+			return;
+
+		ScriptRoutineGraph baseRoutine = baseGraph.getRoutine(routineHash);
+		if (baseRoutine != null)
+			graph.addRoutine(cloner.copyRoutine(baseRoutine, graph.isNewUserLevelSample));
+	}
+
+	/**
+	 * Resolves the branch targets and node user levels within one routine. Only the nodes of that routine are
+	 * modified, so routines can be linked concurrently.
+	 */
+	private void linkOpcodeEdges(ScriptFlowGraph graph, RawRoutineGraph rawGraph) {
+		ScriptRoutineGraph routine = graph.getRoutine(rawGraph.hash);
+		if (routine == null) {
+			Log.warn("Cannot find routine for hash 0x%x. Skipping its edges.", rawGraph.hash);
+			return;
+		}
+
+		Map<Integer, Integer> pendingNodeUserLevels = new HashMap<Integer, Integer>();
 		ScriptNode fromNode;
 		ScriptBranchNode branchNode;
-		for (RawRoutineGraph rawGraph : rawGraphs.values()) {
-
-			routine = graph.getRoutine(rawGraph.hash);
-			pendingNodeUserLevels.clear();
-
-			if (routine == null) 
-				break; 
-
-			for (Set<RawOpcodeEdge> edges : rawGraph.opcodeEdges.values()) {
-				for (RawOpcodeEdge edge : edges) {
-					if (routine == null) {
-						Log.warn("Cannot find routine for hash 0x%x. Skipping it.", edge.routineHash);
-						continue;
-					} else if (edge.fromIndex >= routine.getNodeCount()) {
-						Log.warn(
-								"Edge originates at a non-existent node with index %d in routine 0x%x of size %d. Skipping it.",
-								edge.fromIndex, edge.routineHash, routine.getNodeCount());
-						continue;
-					} else {
-						fromNode = routine.getNode(edge.fromIndex);
-					}
-
-					if (fromNode.opcode == 0x3e) {
-						Log.error("Found a branch from a return node!");
-						continue;
-					}
-
-					if (!(fromNode instanceof ScriptBranchNode)) {
-						if (!isFallThrough(fromNode, edge)) {
-							Log.warn(
-									"Exception caught within throwing routine: %d -> %d from opcode 0x%x in routine 0x%x!",
-									edge.fromIndex, edge.toIndex, fromNode.opcode, edge.routineHash);
-							graph.edges.addExceptionEdge(edge.routineHash, fromNode, edge.routineHash, edge.toIndex,
-									edge.userLevel);
-						}
-						continue;
-					}
-
-					branchNode = (ScriptBranchNode) routine.getNode(edge.fromIndex);
-					if (edge.toIndex > routine.getNodeCount()) {
-						Log.warn(
-								"Edge points to a non-existent node with index %d in a routine 0x%x size %d. Skipping it.",
-								edge.toIndex, routine.hash, routine.getNodeCount());
-					} else {
-						if (branchNode.isFallThrough(edge.toIndex)) {
-							pendNodeUserLevel(edge.toIndex, edge.userLevel);
-						} else {
-							branchNode.setTarget(routine.getNode(edge.toIndex));
-							if (edge.toIndex > branchNode.index || branchNode.opcode == ScriptNode.Opcode.ZEND_JMP.code)
-								pendNodeUserLevel(edge.toIndex, edge.userLevel);
-						}
-					}
-					branchNode.setBranchUserLevel(edge.userLevel);
-
-					Log.message("User level %d on %d->%d in routine 0x%x", branchNode.getBranchUserLevel(),
-							edge.fromIndex, edge.toIndex, routine.hash);
-
-					if (edge.toIndex > routine.getNodeCount()) {
-						Log.warn(
-								"Edge points to a non-existent node with index %d in routine 0x%x of size %d. Skipping it.",
-								edge.toIndex, routine.hash, routine.getNodeCount());
-					} else {
-						if (routine.getNode(edge.toIndex).index != edge.toIndex) {
-							throw new MergeException("Incorrect node index: expected %d but found %d", edge.toIndex,
-									routine.getNode(edge.toIndex).index);
-						}
-					}
+		long packedEdge;
+		int fromIndex, toIndex, userLevel;
+
+		rawGraph.opcodeEdges.sort();
+		for (int i = 0; i < rawGraph.opcodeEdges.size(); i++) {
+			packedEdge = rawGraph.opcodeEdges.get(i, 0);
+			fromIndex = RawEdgeSet.unpackFromIndex(packedEdge);
+			toIndex = RawEdgeSet.unpackToIndex(packedEdge);
+			userLevel = RawEdgeSet.unpackUserLevel(packedEdge);
+
+			if (fromIndex >= routine.getNodeCount()) {
+				Log.warn(
+						"Edge originates at a non-existent node with index %d in routine 0x%x of size %d. Skipping it.",
+						fromIndex, rawGraph.hash, routine.getNodeCount());
+				continue;
+			} else {
+				fromNode = routine.getNode(fromIndex);
+			}
+
+			if (fromNode.opcode == 0x3e) {
+				Log.error("Found a branch from a return node!");
+				continue;
+			}
+
+			if (!(fromNode instanceof ScriptBranchNode)) {
+				if (!isFallThrough(fromNode, fromIndex, toIndex)) {
+					Log.warn(
+							"Exception caught within throwing routine: %d -> %d from opcode 0x%x in routine 0x%x!",
+							fromIndex, toIndex, fromNode.opcode, rawGraph.hash);
+					rawGraph.caughtExceptionEdges.add(packedEdge); // added to the graph in `linkRoutineEdges()`
+				}
+				continue;
+			}
+
+			branchNode = (ScriptBranchNode) routine.getNode(fromIndex);
+			if (toIndex > routine.getNodeCount()) {
+				Log.warn("Edge points to a non-existent node with index %d in a routine 0x%x size %d. Skipping it.",
+						toIndex, routine.hash, routine.getNodeCount());
+			} else {
+				if (branchNode.isFallThrough(toIndex)) {
+					pendNodeUserLevel(pendingNodeUserLevels, toIndex, userLevel);
+				} else {
+					branchNode.setTarget(routine.getNode(toIndex));
+					if (toIndex > branchNode.index || branchNode.opcode == ScriptNode.Opcode.ZEND_JMP.code)
+						pendNodeUserLevel(pendingNodeUserLevels, toIndex, userLevel);
+				}
+			}
+			branchNode.setBranchUserLevel(userLevel);
+
+			Log.message("User level %d on %d->%d in routine 0x%x", branchNode.getBranchUserLevel(), fromIndex,
+					toIndex, routine.hash);
+
+			if (toIndex > routine.getNodeCount()) {
+				Log.warn(
+						"Edge points to a non-existent node with index %d in routine 0x%x of size %d. Skipping it.",
+						toIndex, routine.hash, routine.getNodeCount());
+			} else {
+				if (routine.getNode(toIndex).index != toIndex) {
+					throw new MergeException("Incorrect node index: expected %d but found %d", toIndex, routine
+							.getNode(toIndex).index);
 				}
 			}
+		}
 
-			Integer pendingUserLevel;
-			int propagatingUserLevel = ScriptNode.USER_LEVEL_TOP;
-			Opcode nodeOpcode;
-			for (ScriptNode node : routine.getNodes()) {
-				nodeOpcode = ScriptNode.Opcode.forCode(node.opcode);
-				pendingUserLevel = pendingNodeUserLevels.get(node.index);
-				if (pendingUserLevel != null && pendingUserLevel < propagatingUserLevel)
-					propagatingUserLevel = pendingUserLevel;
-				if (propagatingUserLevel < node.getNodeUserLevel())
-					node.setNodeUserLevel(propagatingUserLevel);
-				if (node.typeFlags.contains(TypeFlag.BRANCH) || nodeOpcode.isReturn()) {
-					propagatingUserLevel = ScriptNode.USER_LEVEL_TOP;
-
-					if (node.typeFlags.contains(TypeFlag.BRANCH)) {
-						branchNode = (ScriptBranchNode) node;
-						if (branchNode.opcode == Opcode.ZEND_JMP.code && branchNode.getTargetIndex() > branchNode.index)
-							pendNodeUserLevel(branchNode.getTargetIndex(), branchNode.getNodeUserLevel());
-
-						// hack for silly nop JNZ
-						// if (nodeOpcode.targetType == OpcodeTargetType.REQUIRED && branchNode.getTarget() == null)
-						// branchNode.setTarget(branchNode.getNext());
-					}
+		Integer pendingUserLevel;
+		int propagatingUserLevel = ScriptNode.USER_LEVEL_TOP;
+		Opcode nodeOpcode;
+		for (ScriptNode node : routine.getNodes()) {
+			nodeOpcode = ScriptNode.Opcode.forCode(node.opcode);
+			pendingUserLevel = pendingNodeUserLevels.get(node.index);
+			if (pendingUserLevel != null && pendingUserLevel < propagatingUserLevel)
+				propagatingUserLevel = pendingUserLevel;
+			if (propagatingUserLevel < node.getNodeUserLevel())
+				node.setNodeUserLevel(propagatingUserLevel);
+			if (node.isBranch() || nodeOpcode.isReturn()) {
+				propagatingUserLevel = ScriptNode.USER_LEVEL_TOP;
+
+				if (node.isBranch()) {
+					branchNode = (ScriptBranchNode) node;
+					if (branchNode.opcode == Opcode.ZEND_JMP.code && branchNode.getTargetIndex() > branchNode.index)
+						pendNodeUserLevel(pendingNodeUserLevels, branchNode.getTargetIndex(),
+								branchNode.getNodeUserLevel());
+
+					// hack for silly nop JNZ
+					// if (nodeOpcode.targetType == OpcodeTargetType.REQUIRED && branchNode.getTarget() == null)
+					// branchNode.setTarget(branchNode.getNext());
 				}
 			}
+		}
+	}
+
+	private void linkRoutineEdges(ScriptFlowGraph graph, RawRoutineGraph rawGraph) {
+		ScriptRoutineGraph routine = graph.getRoutine(rawGraph.hash);
+		if (routine == null)
+			return;
+
+		ScriptRoutineGraph toRoutine;
+		ScriptNode fromNode;
+		long packedEdge;
+		int fromIndex, toIndex, userLevel, toRoutineHash;
+
+		for (int i = 0; i < rawGraph.caughtExceptionEdges.size(); i++) {
+			packedEdge = rawGraph.caughtExceptionEdges.get(i, 0);
+			fromNode = routine.getNode(RawEdgeSet.unpackFromIndex(packedEdge));
+			graph.edges.addExceptionEdge(rawGraph.hash, fromNode, rawGraph.hash, RawEdgeSet.unpackToIndex(packedEdge),
+					RawEdgeSet.unpackUserLevel(packedEdge));
+		}
 
-			for (Set<RawRoutineEdge> edges : rawGraph.routineEdges.values()) {
-				for (RawRoutineEdge edge : edges) {
-					if (edge.fromIndex >= routine.getNodeCount()) {
-						Log.error(
-								"Found an edge from index %d in 0x%x|0x%x, which only has %d nodes! Skipping it for now.",
-								edge.fromIndex, edge.fromRoutineHash, edge.fromRoutineHash, routine.getNodeCount());
-						continue;
-					}
-					fromNode = routine.getNode(edge.fromIndex);
-					toRoutine = graph.getRoutine(edge.toRoutineHash);
-					if (toRoutine == null) {
-						RoutineId routineId = RoutineId.Cache.INSTANCE.getId(edge.toRoutineHash);
-						if (routineId != null && routineId.isBuiltin()) {
-							toRoutine = new ScriptRoutineGraph(edge.toRoutineHash, routineId,
-									graph.isNewUserLevelSample);
-							graph.addRoutine(toRoutine);
-						} else {
-							Log.log("Skipping edge from 0x%x @%d to unknown routine 0x%x", routine.hash,
-									edge.fromIndex, edge.toRoutineHash);
-							continue;
-							// throw new IllegalArgumentException(String.format(
-							// "Found a routine edge to an unknown routine 0x%x", edge.toRoutineHash));
-						}
-					}
-
-					if (ScriptMergeWatchList.watchAny(edge.fromRoutineHash, edge.fromIndex)
-							|| ScriptMergeWatchList.watch(edge.toRoutineHash)) {
-						Log.log("Loader added routine edge to the %s graph from op 0x%x: 0x%x|0x%x %d -%s-> 0x%x|0x%x",
-								side, routine.getNode(edge.fromIndex).opcode, edge.fromRoutineHash,
-								edge.fromRoutineHash, edge.fromIndex, RoutineEdge.printUserLevel(edge.userLevel),
-								edge.toRoutineHash, edge.toRoutineHash);
-					}
-
-					if (edge.toIndex == 0)
-						graph.edges.addCallEdge(routine.hash, fromNode, toRoutine.hash, edge.userLevel);
-					else
-						graph.edges.addExceptionEdge(routine.hash, fromNode, toRoutine.hash, edge.toIndex,
-								edge.userLevel);
+		for (int i = 0; i < rawGraph.routineEdges.size(); i++) {
+			packedEdge = rawGraph.routineEdges.get(i, 0);
+			fromIndex = RawEdgeSet.unpackFromIndex(packedEdge);
+			toIndex = RawEdgeSet.unpackToIndex(packedEdge);
+			userLevel = RawEdgeSet.unpackUserLevel(packedEdge);
+			toRoutineHash = (int) rawGraph.routineEdges.get(i, 1);
+
+			if (fromIndex >= routine.getNodeCount()) {
+				Log.error("Found an edge from index %d in 0x%x|0x%x, which only has %d nodes! Skipping it for now.",
+						fromIndex, rawGraph.hash, rawGraph.hash, routine.getNodeCount());
+				continue;
+			}
+			fromNode = routine.getNode(fromIndex);
+			toRoutine = graph.getRoutine(toRoutineHash);
+			if (toRoutine == null) {
+				RoutineId routineId = RoutineId.Cache.INSTANCE.getId(toRoutineHash);
+				if (routineId != null && routineId.isBuiltin()) {
+					toRoutine = new ScriptRoutineGraph(toRoutineHash, routineId, graph.isNewUserLevelSample);
+					graph.addRoutine(toRoutine);
+				} else {
+					Log.log("Skipping edge from 0x%x @%d to unknown routine 0x%x", routine.hash, fromIndex,
+							toRoutineHash);
+					continue;
+					// throw new IllegalArgumentException(String.format(
+					// "Found a routine edge to an unknown routine 0x%x", toRoutineHash));
 				}
 			}
+
+			if (ScriptMergeWatchList.watchAny(rawGraph.hash, fromIndex) || ScriptMergeWatchList.watch(toRoutineHash)) {
+				Log.log("Loader added routine edge to the %s graph from op 0x%x: 0x%x|0x%x %d -%s-> 0x%x|0x%x", side,
+						routine.getNode(fromIndex).opcode, rawGraph.hash, rawGraph.hash, fromIndex,
+						RoutineEdge.printUserLevel(userLevel), toRoutineHash, toRoutineHash);
+			}
+
+			if (toIndex == 0)
+				graph.edges.addCallEdge(routine.hash, fromNode, toRoutine.hash, userLevel);
+			else
+				graph.edges.addExceptionEdge(routine.hash, fromNode, toRoutine.hash, toIndex, userLevel);
 		}
 	}
 
 	private void loadRoutineEdges(ScriptRunFiles run, ScriptFlowGraph graph) throws IOException {
 		int fromRoutineHash, fromIndex, toRoutineHash, toIndex, userLevel;
-		RawRoutineGraph routine;
-		LittleEndianInputStream input = new LittleEndianInputStream(run.routineEdgeFile);
-
-		while (input.ready(0x10)) {
-			fromRoutineHash = input.readInt();
-			fromIndex = input.readInt();
-			userLevel = (fromIndex >>> 26);
-			fromIndex = (fromIndex & 0x3ffffff);
-			toRoutineHash = input.readInt();
-			toIndex = input.readInt();
-
-			routine = getRawGraph(fromRoutineHash);
-			routine.addRawEdge(new RawRoutineEdge(fromRoutineHash, fromIndex, toRoutineHash, toIndex, userLevel));
-
-			if (ScriptMergeWatchList.watchAny(fromRoutineHash, fromIndex) || ScriptMergeWatchList.watch(toRoutineHash)) {
-				Log.log("Loaded routine edge 0x%x @%d -%s-> 0x%x", fromRoutineHash, fromIndex,
-						RoutineEdge.printUserLevel(userLevel), toRoutineHash);
+		MappedRunFile input = new MappedRunFile(run.routineEdgeFile, 4);
+
+		try {
+			while (input.nextRecord()) {
+				fromRoutineHash = input.getInt();
+				fromIndex = input.getInt();
+				userLevel = (fromIndex >>> 26);
+				fromIndex = (fromIndex & 0x3ffffff);
+				toRoutineHash = input.getInt();
+				toIndex = input.getInt();
+
+				getRawGraph(fromRoutineHash).addRoutineEdge(fromIndex, toRoutineHash, toIndex, userLevel);
+
+				if (ScriptMergeWatchList.watchAny(fromRoutineHash, fromIndex)
+						|| ScriptMergeWatchList.watch(toRoutineHash)) {
+					Log.log("Loaded routine edge 0x%x @%d -%s-> 0x%x", fromRoutineHash, fromIndex,
+							RoutineEdge.printUserLevel(userLevel), toRoutineHash);
+				}
 			}
-		}
 
-		if (input.ready()) {
-			Log.error("Input file " + run.routineEdgeFile.getAbsolutePath() + " has trailing data!");
+			if (input.hasTrailingData()) {
+				Log.error("Input file " + run.routineEdgeFile.getAbsolutePath() + " has trailing data!");
+			}
+		} finally {
+			input.close();
 		}
-		input.close();
 	}
 }
@@ -0,0 +1,147 @@
+package edu.uci.plrg.cfi.php.merge.main;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import edu.uci.plrg.cfi.common.log.Log;
+import edu.uci.plrg.cfi.php.merge.MergeException;
+
+/**
+ * Runs the stages of a merge as a dependency graph on a fixed number of threads. A stage is only submitted once all
+ * of its dependencies have finished, so no thread ever blocks on another stage. With one thread the stages run in the
+ * order they were added, as far as their dependencies allow. The time of each stage is logged when all are done.
+ */
+class MergeStageExecutor {
+
+	static abstract class Stage {
+		final String name;
+		private final List<Stage> dependents = new ArrayList<Stage>();
+		private int pendingDependencyCount = 0;
+		private long startTime, endTime; // from `System.nanoTime()`, or 0 if the stage never ran
+		private boolean failed = false;
+
+		Stage(String name) {
+			this.name = name;
+		}
+
+		abstract void execute() throws IOException;
+	}
+
+	private final int threadCount;
+	private final List<Stage> stages = new ArrayList<Stage>();
+
+	private ExecutorService executor;
+	private CountDownLatch remainingStages;
+	private Throwable failure;
+
+	MergeStageExecutor(int threadCount) {
+		this.threadCount = threadCount;
+	}
+
+	/**
+	 * @param dependencies
+	 *            stages that must finish before `stage` starts, which must already have been added
+	 */
+	Stage add(Stage stage, Stage... dependencies) {
+		for (Stage dependency : dependencies) {
+			if (!stages.contains(dependency))
+				throw new MergeException("Stage %s depends on unknown stage %s", stage.name, dependency.name);
+			dependency.dependents.add(stage);
+			stage.pendingDependencyCount++;
+		}
+		stages.add(stage);
+		return stage;
+	}
+
+	/**
+	 * Run all stages and wait for them. If a stage fails, the stages that depend on it are skipped and the first
+	 * failure is thrown once the others are done.
+	 */
+	void execute() throws IOException {
+		long start = System.nanoTime();
+		executor = Executors.newFixedThreadPool(Math.min(threadCount, stages.size()));
+		remainingStages = new CountDownLatch(stages.size());
+		try {
+			synchronized (this) {
+				for (Stage stage : stages) {
+					if (stage.pendingDependencyCount == 0)
+						submit(stage);
+				}
+			}
+			remainingStages.await();
+		} catch (InterruptedException e) {
+			throw new MergeException(e);
+		} finally {
+			executor.shutdown();
+		}
+
+		Log.log("Merge stages finished in %d ms:", toMillis(System.nanoTime() - start));
+		for (Stage stage : stages) {
+			if (stage.endTime == 0) {
+				Log.log("\t%-16s skipped", stage.name);
+			} else if (stage.failed) {
+				Log.log("\t%-16s failed after %d ms", stage.name, toMillis(stage.endTime - stage.startTime));
+			} else {
+				Log.log("\t%-16s %6d ms, starting at %d ms", stage.name, toMillis(stage.endTime - stage.startTime),
+						toMillis(stage.startTime - start));
+			}
+		}
+
+		if (failure instanceof IOException)
+			throw (IOException) failure;
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		if (failure instanceof Error)
+			throw (Error) failure;
+	}
+
+	private void submit(final Stage stage) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				stage.startTime = System.nanoTime();
+				try {
+					stage.execute();
+					stage.endTime = System.nanoTime();
+					finish(stage);
+				} catch (Throwable t) {
+					stage.endTime = System.nanoTime();
+					stage.failed = true;
+					fail(stage, t);
+				}
+			}
+		});
+	}
+
+	private synchronized void finish(Stage stage) {
+		for (Stage dependent : stage.dependents) {
+			if (--dependent.pendingDependencyCount == 0)
+				submit(dependent);
+		}
+		remainingStages.countDown();
+	}
+
+	private synchronized void fail(Stage stage, Throwable t) {
+		if (failure == null)
+			failure = t;
+		skip(stage);
+	}
+
+	private void skip(Stage stage) {
+		for (Stage dependent : stage.dependents) {
+			if (dependent.pendingDependencyCount > 0) {
+				dependent.pendingDependencyCount = 0; // mark it skipped, since it depends on this stage
+				skip(dependent);
+			}
+		}
+		remainingStages.countDown();
+	}
+
+	private static long toMillis(long nanos) {
+		return nanos / 1000000L;
+	}
+}
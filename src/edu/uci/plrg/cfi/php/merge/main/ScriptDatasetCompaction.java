@@ -0,0 +1,103 @@
+package edu.uci.plrg.cfi.php.merge.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import edu.uci.plrg.cfi.common.log.Log;
+import edu.uci.plrg.cfi.common.util.ArgumentStack;
+import edu.uci.plrg.cfi.common.util.OptionArgumentMap;
+import edu.uci.plrg.cfi.php.merge.DatasetMerge;
+import edu.uci.plrg.cfi.php.merge.ScriptDatasetGenerator;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptFlowGraph;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptNode;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptDatasetFiles;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptDatasetIndex;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptDatasetSegments;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptGraphDataFiles;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptGraphDataFiles.Type;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptGraphLoader;
+
+/**
+ * Folds the segments appended by `s-merge -d` back into the cfg.set of a dataset, so that the dataset is readable
+ * again by tools that only know the cfg.set.
+ */
+public class ScriptDatasetCompaction {
+
+	public static final OptionArgumentMap.StringOption datasetDir = OptionArgumentMap.createStringOption('d');
+	public static final OptionArgumentMap.IntegerOption verbose = OptionArgumentMap.createIntegerOption('v',
+			Log.Level.ERROR.ordinal());
+
+	private final ArgumentStack args;
+	private final OptionArgumentMap argMap;
+
+	private ScriptDatasetCompaction(ArgumentStack args) {
+		this.args = args;
+		argMap = new OptionArgumentMap(args, datasetDir, verbose);
+	}
+
+	private void run() {
+		try {
+			Log.addOutput(System.out);
+			ScriptNode.init();
+			argMap.parseOptions();
+
+			Log.setLevel(Log.Level.values()[verbose.getValue()]);
+
+			if (!datasetDir.hasValue() || args.size() > 0) {
+				printUsage();
+				return;
+			}
+
+			ScriptGraphDataFiles dataSource = ScriptGraphDataFiles.Factory.bind(new File(datasetDir.getValue()));
+			if (dataSource.getType() != Type.DATASET)
+				throw new IllegalArgumentException("Invalid dataset: " + datasetDir.getValue() + " is a "
+						+ dataSource.getType());
+
+			compact((ScriptDatasetFiles) dataSource);
+		} catch (Throwable t) {
+			Log.log(t);
+		}
+	}
+
+	/**
+	 * Write the dataset with its segments as a new cfg.set and delete the segments.
+	 */
+	public static void compact(ScriptDatasetFiles datasetFiles) throws IOException {
+		List<File> segments = ScriptDatasetSegments.find(datasetFiles.dataset);
+		if (segments.isEmpty()) {
+			Log.log("Dataset %s has no segments to compact", datasetFiles.dataset.getAbsolutePath());
+			return;
+		}
+
+		ScriptFlowGraph graph = new ScriptFlowGraph(Type.DATASET, datasetFiles.getDescription(), false);
+		new ScriptGraphLoader().loadGraph(datasetFiles, graph, DatasetMerge.Side.RIGHT, false/* not shallow */);
+		Log.log("Compacting %d segments into %s with %d routines and %d edges", segments.size(),
+				datasetFiles.dataset.getAbsolutePath(), graph.getRoutineCount(),
+				graph.edges.getOutgoingEdgeCount());
+
+		File compacted = new File(datasetFiles.directory, datasetFiles.dataset.getName() + ".compact");
+		ScriptDatasetGenerator generator = new ScriptDatasetGenerator(new ScriptDatasetGenerator.GraphDataSource(
+				graph), compacted);
+		generator.generateDataset();
+		File compactedIndex = ScriptDatasetIndex.getIndexFile(compacted);
+		File datasetIndex = ScriptDatasetIndex.getIndexFile(datasetFiles.dataset);
+		Files.deleteIfExists(datasetIndex.toPath());
+		Files.move(compacted.toPath(), datasetFiles.dataset.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		if (compactedIndex.exists()) // the move keeps the modification time that the index was written for
+			Files.move(compactedIndex.toPath(), datasetIndex.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		ScriptDatasetSegments.delete(datasetFiles.dataset);
+	}
+
+	private void printUsage() {
+		System.err.println(String.format("Usage: %s -d <dataset-dir>", getClass().getSimpleName()));
+	}
+
+	public static void main(String[] args) {
+		ArgumentStack stack = new ArgumentStack(args);
+		ScriptDatasetCompaction compaction = new ScriptDatasetCompaction(stack);
+		compaction.run();
+	}
+}
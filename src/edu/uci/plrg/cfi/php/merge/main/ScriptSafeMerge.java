@@ -2,9 +2,12 @@ package edu.uci.plrg.cfi.php.merge.main;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
 
 import edu.uci.plrg.cfi.common.log.Log;
 import edu.uci.plrg.cfi.common.log.Log.FileMode;
@@ -17,15 +20,20 @@ import edu.uci.plrg.cfi.php.merge.DatasetMerge;
 import edu.uci.plrg.cfi.php.merge.OpcodesMerge;
 import edu.uci.plrg.cfi.php.merge.RequestMerge;
 import edu.uci.plrg.cfi.php.merge.RequestSequenceMerge;
+import edu.uci.plrg.cfi.php.merge.RunMergeTree;
 import edu.uci.plrg.cfi.php.merge.ScriptDatasetGenerator;
 import edu.uci.plrg.cfi.php.merge.ScriptMergeWatchList;
+import edu.uci.plrg.cfi.php.merge.graph.ConcurrentGraphEdgeSet;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptFlowGraph;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptGraphCloner;
 import edu.uci.plrg.cfi.php.merge.graph.ScriptNode;
 import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptDatasetFiles;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptDatasetSegments;
+import edu.uci.plrg.cfi.php.merge.graph.loader.MappedScriptFlowGraph;
 import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptGraphDataFiles;
 import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptGraphDataFiles.Type;
 import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptGraphLoader;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptRunFiles;
 
 public class ScriptSafeMerge {
 
@@ -42,21 +50,27 @@ public class ScriptSafeMerge {
 			OptionMode.OPTIONAL);
 	public static final OptionArgumentMap.StringOption watchlistCategories = OptionArgumentMap.createStringOption('c',
 			OptionMode.OPTIONAL);
+	public static final OptionArgumentMap.IntegerOption threadCount = OptionArgumentMap.createIntegerOption('t', 1);
+	public static final OptionArgumentMap.BooleanOption appendSegment = OptionArgumentMap.createBooleanOption('d',
+			OptionMode.OPTIONAL);
 
 	private final ArgumentStack args;
 	private final OptionArgumentMap argMap;
 
-	private final ScriptGraphLoader loader = new ScriptGraphLoader();
+	private ScriptGraphLoader loader;
 
 	private ScriptGraphDataFiles leftDataSource;
 	private ScriptGraphDataFiles rightDataSource;
 	private ScriptFlowGraph leftGraph;
 	private ScriptFlowGraph rightGraph;
+	private ScriptDatasetGenerator.DataSource mergedGraph;
+	private DatasetMerge datasetMerge; // null for a sequential merge
+	private boolean isSegmentMerge; // with -d, only reads and merges the routines of the left run
 
 	private ScriptSafeMerge(ArgumentStack args) {
 		this.args = args;
 		argMap = new OptionArgumentMap(args, leftGraphDir, rightGraphDir, outputDir, requestMergeCount,
-				leftRequestsAlreadyMerged, verbose, watchlistFile, watchlistCategories);
+				leftRequestsAlreadyMerged, verbose, watchlistFile, watchlistCategories, threadCount, appendSegment);
 	}
 
 	private void run() {
@@ -66,15 +80,28 @@ public class ScriptSafeMerge {
 			argMap.parseOptions();
 			Log.clearOutputs();
 
+			List<File> runDirectories = new ArrayList<File>();
+			while (args.size() > 0)
+				runDirectories.add(new File(args.pop()));
+
 			Log.setLevel(Log.Level.values()[verbose.getValue()]);
 			System.out.println("Log level " + verbose.getValue());
 
-			if (!leftGraphDir.hasValue() || !outputDir.hasValue()) {
+			if (!outputDir.hasValue() || (leftGraphDir.hasValue() != runDirectories.isEmpty())) {
+				printUsage();
+				return;
+			}
+			if (!runDirectories.isEmpty()
+					&& (rightGraphDir.hasValue() || requestMergeCount.hasValue() || leftRequestsAlreadyMerged
+							.hasValue())) {
 				printUsage();
 				return;
 			}
 
-			ScriptDatasetFiles outputFiles = ScriptGraphDataFiles.Factory.construct(new File(outputDir.getValue()));
+			loader = new ScriptGraphLoader(Math.max(1, threadCount.getValue()));
+
+			final ScriptDatasetFiles outputFiles = ScriptGraphDataFiles.Factory.construct(new File(outputDir
+					.getValue()));
 			Log.addOutput(outputFiles.mergeLog, FileMode.APPEND);
 
 			if (watchlistFile.hasValue()) {
@@ -85,133 +112,398 @@ public class ScriptSafeMerge {
 				ScriptMergeWatchList.getInstance().activateCategories(watchlistCategories.getValue());
 			}
 
-			boolean isSequentialMerge = requestMergeCount.hasValue();
+			if (!runDirectories.isEmpty()) {
+				mergeRuns(runDirectories, outputFiles);
+				return;
+			}
+
+			final boolean isSequentialMerge = requestMergeCount.hasValue();
 
 			String rightGraphDirName = rightGraphDir.hasValue() ? rightGraphDir.getValue() : outputDir.getValue();
-			File leftPath = new File(leftGraphDir.getValue());
-			File rightPath = new File(rightGraphDirName);
+			final File leftPath = new File(leftGraphDir.getValue());
+			final File rightPath = new File(rightGraphDirName);
 			leftDataSource = ScriptGraphDataFiles.Factory.bind(leftPath);
 			rightDataSource = ScriptGraphDataFiles.Factory.bind(rightPath);
+			isSegmentMerge = appendSegment.hasValue() && !isSequentialMerge && leftDataSource.getType() == Type.RUN
+					&& rightDataSource.getType() == Type.DATASET
+					&& rightPath.getAbsolutePath().equals(outputFiles.directory.getAbsolutePath());
 
 			Log.log("\n\n--- ScriptSafeMerge ---\n\ns-merge -l %s -r %s -o %s", leftPath.getAbsolutePath(),
 					rightPath.getAbsolutePath(), outputFiles.directory.getAbsolutePath());
 
-			if (isSequentialMerge) {
-				rightGraph = new ScriptFlowGraph(rightDataSource.getType(), rightDataSource.getDescription(), false);
-				loader.loadGraph(rightDataSource, rightGraph, DatasetMerge.Side.RIGHT,
-						rightDataSource.getType() != Type.DATASET/* deep for dataset, shallow for run */);
-				leftGraph = new ScriptFlowGraph(leftDataSource.getType(), leftDataSource.getDescription(), true);
-				loader.loadGraph(leftDataSource, leftGraph, DatasetMerge.Side.LEFT, true/* shallow */);
-			} else {
-				rightGraph = new ScriptFlowGraph(rightDataSource.getType(), rightDataSource.getDescription(), false);
-				loader.loadGraph(rightDataSource, rightGraph, DatasetMerge.Side.RIGHT, false/* not shallow */);
-				if (rightDataSource.getType() == Type.DATASET) {
-					ScriptGraphCloner cloner = new ScriptGraphCloner();
-					leftGraph = cloner.copyRoutines(rightGraph, new ScriptFlowGraph(leftDataSource.getType(),
-							leftDataSource.getDescription(), true));
-					Log.log("Cloned %d routines and %d edges into the left graph", leftGraph.getRoutineCount(),
-							leftGraph.edges.getOutgoingEdgeCount());
-					/* overwrites cloned routines as they are encountered in the left graph */
-					loader.loadGraph(leftDataSource, leftGraph, DatasetMerge.Side.LEFT, false/* not shallow */);
-				} else {
-					leftGraph = new ScriptFlowGraph(leftDataSource.getType(), leftDataSource.getDescription(), true);
-					loader.loadGraph(leftDataSource, leftGraph, DatasetMerge.Side.LEFT, false/* not shallow */);
+			/* the file merges don't touch the graph files, but the catalog is read by the graph loaders */
+			MergeStageExecutor stages = new MergeStageExecutor(Math.max(1, threadCount.getValue()));
+			MergeStageExecutor.Stage rightLoad = stages.add(new MergeStageExecutor.Stage("right graph") {
+				@Override
+				void execute() throws IOException {
+					loadRightGraph(rightPath, isSequentialMerge);
 				}
-			}
-
-			Log.log("Left graph is a %s from %s with %d routines and %d edges", leftDataSource.getClass()
-					.getSimpleName(), leftPath.getAbsolutePath(), leftGraph.getRoutineCount(), leftGraph.edges
-					.getOutgoingEdgeCount());
-			Log.log("Right graph is a %s from %s with %d routines and %d edges", rightDataSource.getClass()
-					.getSimpleName(), rightPath.getAbsolutePath(), rightGraph.getRoutineCount(), rightGraph.edges
-					.getOutgoingEdgeCount());
-
-			if (leftRequestsAlreadyMerged.hasValue()) {
-				File outputEdges = outputFiles.getRequestEdgeFile();
-				File leftEdges = leftDataSource.getRequestEdgeFile();
-				// File outputPersistence = outputFiles.getPersistenceFile();
-				// File leftPersistence = leftDataSource.getPersistenceFile();
-				File outputOpcodes = outputFiles.getOpcodesFile();
-				File leftOpcodes = leftDataSource.getOpcodesFile();
-				if (!outputEdges.getAbsolutePath().equals(leftEdges.getAbsolutePath())) {
-					if (outputEdges.exists()) {
-						Log.warn(
-								"Warning: overwriting existing request edge file %s with already-merged request edge file %s.",
-								outputEdges.getAbsolutePath(), leftEdges.getAbsolutePath());
-					}
-					Files.copy(new FileInputStream(leftDataSource.getRequestFile()),
-							Paths.get(outputFiles.getRequestFile().getPath()));
-					Files.copy(new FileInputStream(leftEdges), Paths.get(outputEdges.getPath()));
-					// Files.copy(new FileInputStream(leftPersistence), Paths.get(outputPersistence.getPath()));
-					Files.copy(new FileInputStream(leftOpcodes), Paths.get(outputOpcodes.getPath()));
+			});
+			MergeStageExecutor.Stage leftLoad = new MergeStageExecutor.Stage("left graph") {
+				@Override
+				void execute() throws IOException {
+					loadLeftGraph(leftPath, isSequentialMerge);
 				}
-			} else {
-				if (isUnityMerge(leftDataSource.getRequestFile(), rightDataSource.getRequestFile(),
-						outputFiles.getRequestFile())) {
-					Files.copy(new FileInputStream(rightDataSource.getRequestFile()),
-							Paths.get(outputFiles.getRequestFile().getPath()), StandardCopyOption.REPLACE_EXISTING);
-					if (rightDataSource.getRequestEdgeFile().exists()) {
-						Files.copy(new FileInputStream(rightDataSource.getRequestEdgeFile()),
-								Paths.get(outputFiles.getRequestEdgeFile().getPath()),
-								StandardCopyOption.REPLACE_EXISTING);
+			};
+			if (!isSequentialMerge && rightDataSource.getType() == Type.DATASET)
+				stages.add(leftLoad, rightLoad); // copies routines from the right graph
+			else
+				stages.add(leftLoad);
+			MergeStageExecutor.Stage requestMerge = stages.add(new MergeStageExecutor.Stage("requests") {
+				@Override
+				void execute() throws IOException {
+					mergeRequestFiles(outputFiles);
+				}
+			});
+			if (!leftRequestsAlreadyMerged.hasValue()) {
+				stages.add(new MergeStageExecutor.Stage("opcodes") {
+					@Override
+					void execute() throws IOException {
+						mergeOpcodeFiles(outputFiles);
 					}
-				} else if (leftDataSource.getRequestFile().exists() && rightDataSource.getRequestFile().exists()) {
-					RequestMerge requestMerge = new RequestMerge(leftDataSource, rightDataSource);
-					requestMerge.merge(outputFiles);
+				});
+			}
+			MergeStageExecutor.Stage catalogMerge = stages.add(new MergeStageExecutor.Stage("catalog") {
+				@Override
+				void execute() throws IOException {
+					mergeCatalogFiles(outputFiles);
+				}
+			}, leftLoad, rightLoad);
+			MergeStageExecutor.Stage graphMerge = new MergeStageExecutor.Stage("graph merge") {
+				@Override
+				void execute() throws IOException {
+					mergeGraphs(isSequentialMerge, outputFiles);
+				}
+			};
+			if (isSequentialMerge)
+				stages.add(graphMerge, leftLoad, rightLoad, requestMerge, catalogMerge); // uses the merged requests
+			else
+				stages.add(graphMerge, leftLoad, rightLoad);
+			stages.add(new MergeStageExecutor.Stage("dataset write") {
+				@Override
+				void execute() throws IOException {
+					boolean isOutputOnRight = (rightDataSource.getType() == Type.DATASET)
+							&& rightPath.getAbsolutePath().equals(outputFiles.directory.getAbsolutePath());
+					writeDataset(mergedGraph, (isOutputOnRight ? datasetMerge : null), outputFiles);
 				}
+			}, graphMerge);
+			stages.execute();
+		} catch (Throwable t) {
+			Log.log(t);
+		}
+	}
 
-				if (rightDataSource.getOpcodesFile().exists()) {
-					if (!leftDataSource.getOpcodesFile().exists()
-							|| isUnityMerge(leftDataSource.getOpcodesFile(), rightDataSource.getOpcodesFile(),
-									outputFiles.getOpcodesFile())) {
-						Files.copy(new FileInputStream(rightDataSource.getOpcodesFile()),
-								Paths.get(outputFiles.getOpcodesFile().getPath()), StandardCopyOption.REPLACE_EXISTING);
-					} else {
-						OpcodesMerge opcodesMerge = new OpcodesMerge(leftDataSource.getOpcodesFile(),
-								rightDataSource.getOpcodesFile());
-						opcodesMerge.merge(outputFiles.getOpcodesFile());
-					}
+	private void loadRightGraph(File rightPath, boolean isSequentialMerge) throws IOException {
+		if (isSegmentMerge) {
+			ScriptDatasetFiles datasetFiles = (ScriptDatasetFiles) rightDataSource;
+			rightGraph = new MappedScriptFlowGraph(datasetFiles.dataset, datasetFiles.routineCatalog);
+			Log.log("Right graph is a mapped dataset from %s with %d routines", rightPath.getAbsolutePath(),
+					rightGraph.getRoutineCount());
+			return;
+		}
+
+		rightGraph = new ScriptFlowGraph(rightDataSource.getType(), rightDataSource.getDescription(), false);
+		if (isSequentialMerge) {
+			loader.loadGraph(rightDataSource, rightGraph, DatasetMerge.Side.RIGHT,
+					rightDataSource.getType() != Type.DATASET/* deep for dataset, shallow for run */);
+		} else {
+			loader.loadGraph(rightDataSource, rightGraph, DatasetMerge.Side.RIGHT, false/* not shallow */);
+		}
+
+		Log.log("Right graph is a %s from %s with %d routines and %d edges", rightDataSource.getClass()
+				.getSimpleName(), rightPath.getAbsolutePath(), rightGraph.getRoutineCount(), rightGraph.edges
+				.getOutgoingEdgeCount());
+	}
+
+	/**
+	 * Unless the merge is sequential, this copies routines from a right dataset, so it must come after
+	 * `loadRightGraph()`. Only a left run avoids a full copy of the right dataset: it gets a private copy of just the
+	 * right routines it refers to without having nodes for them. The left graph never shares routines or edges with the
+	 * right graph, so any other left side is still merged into a deep clone of the right dataset.
+	 */
+	private void loadLeftGraph(File leftPath, boolean isSequentialMerge) throws IOException {
+		if (isSequentialMerge) {
+			leftGraph = new ScriptFlowGraph(leftDataSource.getType(), leftDataSource.getDescription(), true);
+			loader.loadGraph(leftDataSource, leftGraph, DatasetMerge.Side.LEFT, true/* shallow */);
+		} else if (rightDataSource.getType() == Type.DATASET && leftDataSource.getType() == Type.RUN) {
+			/* only copies the right routines that the run has edges from or to, instead of cloning the dataset */
+			leftGraph = createLeftGraph();
+			loader.loadRun((ScriptRunFiles) leftDataSource, leftGraph, rightGraph, DatasetMerge.Side.LEFT);
+		} else if (rightDataSource.getType() == Type.DATASET) {
+			/* the dataset loader has no base graph to copy routines from, so the whole right dataset is cloned */
+			ScriptGraphCloner cloner = new ScriptGraphCloner();
+			leftGraph = cloner.copyRoutines(rightGraph, createLeftGraph());
+			Log.log("Cloned %d routines and %d edges into the left graph", leftGraph.getRoutineCount(),
+					leftGraph.edges.getOutgoingEdgeCount());
+			/* overwrites cloned routines as they are encountered in the left graph */
+			loader.loadGraph(leftDataSource, leftGraph, DatasetMerge.Side.LEFT, false/* not shallow */);
+		} else {
+			leftGraph = createLeftGraph();
+			loader.loadGraph(leftDataSource, leftGraph, DatasetMerge.Side.LEFT, false/* not shallow */);
+		}
+
+		Log.log("Left graph is a %s from %s with %d routines and %d edges", leftDataSource.getClass()
+				.getSimpleName(), leftPath.getAbsolutePath(), leftGraph.getRoutineCount(), leftGraph.edges
+				.getOutgoingEdgeCount());
+	}
+
+	/**
+	 * Also copies the opcodes when the left requests were already merged.
+	 */
+	private void mergeRequestFiles(ScriptDatasetFiles outputFiles) throws IOException {
+		if (leftRequestsAlreadyMerged.hasValue()) {
+			File outputEdges = outputFiles.getRequestEdgeFile();
+			File leftEdges = leftDataSource.getRequestEdgeFile();
+			// File outputPersistence = outputFiles.getPersistenceFile();
+			// File leftPersistence = leftDataSource.getPersistenceFile();
+			File outputOpcodes = outputFiles.getOpcodesFile();
+			File leftOpcodes = leftDataSource.getOpcodesFile();
+			if (!outputEdges.getAbsolutePath().equals(leftEdges.getAbsolutePath())) {
+				if (outputEdges.exists()) {
+					Log.warn(
+							"Warning: overwriting existing request edge file %s with already-merged request edge file %s.",
+							outputEdges.getAbsolutePath(), leftEdges.getAbsolutePath());
 				}
+				Files.copy(new FileInputStream(leftDataSource.getRequestFile()),
+						Paths.get(outputFiles.getRequestFile().getPath()));
+				Files.copy(new FileInputStream(leftEdges), Paths.get(outputEdges.getPath()));
+				// Files.copy(new FileInputStream(leftPersistence), Paths.get(outputPersistence.getPath()));
+				Files.copy(new FileInputStream(leftOpcodes), Paths.get(outputOpcodes.getPath()));
 			}
+		} else if (isUnityMerge(leftDataSource.getRequestFile(), rightDataSource.getRequestFile(),
+				outputFiles.getRequestFile())) {
+			Files.copy(new FileInputStream(rightDataSource.getRequestFile()),
+					Paths.get(outputFiles.getRequestFile().getPath()), StandardCopyOption.REPLACE_EXISTING);
+			if (rightDataSource.getRequestEdgeFile().exists()) {
+				Files.copy(new FileInputStream(rightDataSource.getRequestEdgeFile()),
+						Paths.get(outputFiles.getRequestEdgeFile().getPath()), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} else if (leftDataSource.getRequestFile().exists() && rightDataSource.getRequestFile().exists()) {
+			RequestMerge requestMerge = new RequestMerge(leftDataSource, rightDataSource);
+			requestMerge.merge(outputFiles);
+		}
+	}
 
-			if (isUnityMerge(leftDataSource.getRoutineCatalogFile(), rightDataSource.getRoutineCatalogFile(),
-					outputFiles.getRoutineCatalogFile())) {
-				Files.copy(new FileInputStream(rightDataSource.getRoutineCatalogFile()),
-						Paths.get(outputFiles.getRoutineCatalogFile().getPath()), StandardCopyOption.REPLACE_EXISTING);
+	private void mergeOpcodeFiles(ScriptDatasetFiles outputFiles) throws IOException {
+		if (rightDataSource.getOpcodesFile().exists()) {
+			if (!leftDataSource.getOpcodesFile().exists()
+					|| isUnityMerge(leftDataSource.getOpcodesFile(), rightDataSource.getOpcodesFile(),
+							outputFiles.getOpcodesFile())) {
+				Files.copy(new FileInputStream(rightDataSource.getOpcodesFile()),
+						Paths.get(outputFiles.getOpcodesFile().getPath()), StandardCopyOption.REPLACE_EXISTING);
 			} else {
-				CatalogMerge catalogMerge = new CatalogMerge(leftDataSource.getRoutineCatalogFile(),
-						rightDataSource.getRoutineCatalogFile());
+				OpcodesMerge opcodesMerge = new OpcodesMerge(leftDataSource.getOpcodesFile(),
+						rightDataSource.getOpcodesFile());
+				opcodesMerge.merge(outputFiles.getOpcodesFile());
+			}
+		}
+	}
+
+	private void mergeCatalogFiles(ScriptDatasetFiles outputFiles) throws IOException {
+		if (isUnityMerge(leftDataSource.getRoutineCatalogFile(), rightDataSource.getRoutineCatalogFile(),
+				outputFiles.getRoutineCatalogFile())) {
+			Files.copy(new FileInputStream(rightDataSource.getRoutineCatalogFile()),
+					Paths.get(outputFiles.getRoutineCatalogFile().getPath()), StandardCopyOption.REPLACE_EXISTING);
+		} else {
+			CatalogMerge catalogMerge = new CatalogMerge(leftDataSource.getRoutineCatalogFile(),
+					rightDataSource.getRoutineCatalogFile());
+			catalogMerge.merge();
+			catalogMerge.generateCatalog(outputFiles.getRoutineCatalogFile());
+		}
+	}
+
+	/**
+	 * A sequential merge reads the merged request edges and catalog, so it must come after those are written.
+	 */
+	private void mergeGraphs(boolean isSequentialMerge, ScriptDatasetFiles outputFiles) throws IOException {
+		if (isSequentialMerge) {
+			int baseRequestCount = 0;
+			if (rightDataSource.getType() == Type.DATASET)
+				baseRequestCount = RequestMerge.peekRequestCount(rightDataSource.getRequestFile());
+			// use the merged request sequence
+			RequestFileSet requestFiles = new RequestFileSet(outputFiles.getRequestEdgeFile(), null, null,
+					outputFiles.getRoutineCatalogFile());
+			RequestSequenceMerge sequenceMerge = new RequestSequenceMerge(baseRequestCount,
+					requestMergeCount.getValue(), requestFiles, leftGraph, rightGraph);
+			sequenceMerge.merge();
+			mergedGraph = sequenceMerge;
+		} else {
+			datasetMerge = new DatasetMerge(leftGraph, rightGraph, rightDataSource.getType() == Type.DATASET);
+			mergedGraph = datasetMerge;
+			if (isSegmentMerge) {
+				datasetMerge.mergeChanges();
+				Log.log("Merged %d changed routines", datasetMerge.getChangedRoutineCount());
+				return;
+			}
+			datasetMerge.merge();
+		}
+
+		Log.log("Merged graph is a %s with %d routines (%d eval routines)", mergedGraph.getClass().getSimpleName(),
+				mergedGraph.getStaticRoutineCount() + mergedGraph.getDynamicRoutineCount(),
+				mergedGraph.getDynamicRoutineCount());
+	}
+
+	/**
+	 * Merge all the runs into the dataset in the output directory, or into a new dataset if there is none yet. The
+	 * result is the same as merging the runs one at a time in order, but the dataset is only loaded and written once.
+	 */
+	private void mergeRuns(List<File> runDirectories, final ScriptDatasetFiles outputFiles) throws IOException {
+		final List<ScriptRunFiles> runs = new ArrayList<ScriptRunFiles>();
+		for (File runDirectory : runDirectories) {
+			ScriptGraphDataFiles run = ScriptGraphDataFiles.Factory.bind(runDirectory);
+			if (run.getType() != Type.RUN)
+				throw new IllegalArgumentException("Invalid script run: " + runDirectory + " is not a run directory");
+			runs.add((ScriptRunFiles) run);
+		}
+
+		/* in the order of a sequential merge, where each source is the right side for the ones after it */
+		final List<ScriptGraphDataFiles> sources = new ArrayList<ScriptGraphDataFiles>();
+		final boolean isSegmentMerge = appendSegment.hasValue() && outputFiles.exists();
+		final ScriptFlowGraph dataset;
+		if (isSegmentMerge) {
+			dataset = new MappedScriptFlowGraph(outputFiles.dataset, outputFiles.routineCatalog);
+			sources.add(outputFiles);
+		} else if (outputFiles.exists()) {
+			dataset = new ScriptFlowGraph(Type.DATASET, outputFiles.getDescription(), false);
+			sources.add(outputFiles);
+		} else {
+			dataset = null;
+		}
+		sources.addAll(runs);
+
+		Log.log("\n\n--- ScriptSafeMerge ---\n\ns-merge -o %s with %d runs", outputFiles.directory.getAbsolutePath(),
+				runs.size());
+
+		/* the catalog is written to the output dataset, whose loader reads it */
+		MergeStageExecutor stages = new MergeStageExecutor(Math.max(1, threadCount.getValue()));
+		MergeStageExecutor.Stage datasetLoad = stages.add(new MergeStageExecutor.Stage("dataset") {
+			@Override
+			void execute() throws IOException {
+				if (dataset != null && !isSegmentMerge)
+					loader.loadGraph(outputFiles, dataset, DatasetMerge.Side.RIGHT, false/* not shallow */);
+			}
+		});
+		stages.add(new MergeStageExecutor.Stage("requests") {
+			@Override
+			void execute() throws IOException {
+				mergeRequests(sources, outputFiles);
+			}
+		});
+		stages.add(new MergeStageExecutor.Stage("opcodes") {
+			@Override
+			void execute() throws IOException {
+				mergeOpcodes(sources, outputFiles);
+			}
+		});
+		stages.add(new MergeStageExecutor.Stage("catalog") {
+			@Override
+			void execute() throws IOException {
+				List<File> catalogs = new ArrayList<File>();
+				for (ScriptGraphDataFiles source : sources)
+					catalogs.add(source.getRoutineCatalogFile());
+				CatalogMerge catalogMerge = new CatalogMerge(catalogs);
 				catalogMerge.merge();
 				catalogMerge.generateCatalog(outputFiles.getRoutineCatalogFile());
 			}
+		}, datasetLoad);
+		MergeStageExecutor.Stage runMerge = stages.add(new MergeStageExecutor.Stage("run merge") {
+			@Override
+			void execute() throws IOException {
+				RunMergeTree mergeTree = new RunMergeTree(runs, dataset, Math.max(1, threadCount.getValue()));
+				if (isSegmentMerge) {
+					datasetMerge = mergeTree.mergeChanges();
+					Log.log("Merged %d changed routines", datasetMerge.getChangedRoutineCount());
+					return;
+				}
+				datasetMerge = mergeTree.merge();
+				Log.log("Merged graph is a %s with %d routines (%d eval routines)", datasetMerge.getClass()
+						.getSimpleName(), datasetMerge.getStaticRoutineCount() + datasetMerge.getDynamicRoutineCount(),
+						datasetMerge.getDynamicRoutineCount());
+			}
+		}, datasetLoad);
+		stages.add(new MergeStageExecutor.Stage("dataset write") {
+			@Override
+			void execute() throws IOException {
+				writeDataset(datasetMerge, (dataset == null) ? null : datasetMerge, outputFiles);
+			}
+		}, runMerge);
+		stages.execute();
+	}
 
-			ScriptDatasetGenerator.DataSource merge;
-			if (isSequentialMerge) {
-				int baseRequestCount = 0;
-				if (rightDataSource.getType() == Type.DATASET)
-					baseRequestCount = RequestMerge.peekRequestCount(rightDataSource.getRequestFile());
-				// use the merged request sequence
-				RequestFileSet requestFiles = new RequestFileSet(outputFiles.getRequestEdgeFile(), null, null,
-						outputFiles.getRoutineCatalogFile());
-				RequestSequenceMerge sequenceMerge = new RequestSequenceMerge(baseRequestCount,
-						requestMergeCount.getValue(), requestFiles, leftGraph, rightGraph);
-				sequenceMerge.merge();
-				merge = sequenceMerge;
-			} else {
-				DatasetMerge datasetMerge = new DatasetMerge(leftGraph, rightGraph,
-						rightDataSource.getType() == Type.DATASET);
-				datasetMerge.merge();
-				merge = datasetMerge;
+	/**
+	 * Write the merged dataset, or with -d only append its changes as a new segment of the output dataset.
+	 * 
+	 * @param incrementalMerge
+	 *            the merge, if its right side was the output dataset, otherwise null
+	 */
+	private void writeDataset(ScriptDatasetGenerator.DataSource merge, DatasetMerge incrementalMerge,
+			ScriptDatasetFiles outputFiles) throws IOException {
+		if (appendSegment.hasValue()) {
+			if (incrementalMerge != null) {
+				File segment = ScriptDatasetSegments.getNextSegmentFile(outputFiles.dataset);
+				Log.log("Appending %d changed routines to dataset segment %s",
+						incrementalMerge.getChangedRoutineCount(), segment.getAbsolutePath());
+				ScriptDatasetGenerator segmentGenerator = new ScriptDatasetGenerator(
+						incrementalMerge.getChangedRoutines(), segment);
+				segmentGenerator.generateDataset();
+				return;
 			}
+			Log.warn("Warning: ignoring -d because the merge does not extend the output dataset. "
+					+ "Writing the complete dataset instead.");
+		}
+
+		ScriptDatasetGenerator datasetGenerator = new ScriptDatasetGenerator(merge, outputFiles.dataset);
+		datasetGenerator.generateDataset();
+		ScriptDatasetSegments.delete(outputFiles.dataset); // now folded into the dataset
+	}
 
-			Log.log("Merged graph is a %s with %d routines (%d eval routines)", merge.getClass().getSimpleName(),
-					merge.getStaticRoutineCount() + merge.getDynamicRoutineCount(), merge.getDynamicRoutineCount());
+	private void mergeRequests(List<ScriptGraphDataFiles> sources, ScriptDatasetFiles outputFiles)
+			throws IOException {
+		List<ScriptGraphDataFiles> requestSources = new ArrayList<ScriptGraphDataFiles>();
+		for (ScriptGraphDataFiles source : sources) {
+			if (source.getRequestFile().exists())
+				requestSources.add(source);
+		}
 
-			ScriptDatasetGenerator datasetGenerator = new ScriptDatasetGenerator(merge, outputFiles.dataset);
-			datasetGenerator.generateDataset();
-		} catch (Throwable t) {
-			Log.log(t);
+		if (requestSources.size() > 1) {
+			RequestMerge requestMerge = new RequestMerge(requestSources);
+			requestMerge.merge(outputFiles);
+		} else if (requestSources.size() == 1 && requestSources.get(0) != outputFiles) {
+			ScriptGraphDataFiles source = requestSources.get(0);
+			Files.copy(new FileInputStream(source.getRequestFile()), Paths.get(outputFiles.getRequestFile().getPath()),
+					StandardCopyOption.REPLACE_EXISTING);
+			if (source.getRequestEdgeFile().exists()) {
+				Files.copy(new FileInputStream(source.getRequestEdgeFile()),
+						Paths.get(outputFiles.getRequestEdgeFile().getPath()), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+	}
+
+	private void mergeOpcodes(List<ScriptGraphDataFiles> sources, ScriptDatasetFiles outputFiles)
+			throws IOException {
+		for (ScriptGraphDataFiles source : sources) {
+			if (source == outputFiles || !source.getOpcodesFile().exists())
+				continue;
+
+			if (outputFiles.getOpcodesFile().exists()) {
+				OpcodesMerge opcodesMerge = new OpcodesMerge(source.getOpcodesFile(), outputFiles.getOpcodesFile());
+				opcodesMerge.merge(outputFiles.getOpcodesFile());
+			} else {
+				Files.copy(new FileInputStream(source.getOpcodesFile()),
+						Paths.get(outputFiles.getOpcodesFile().getPath()), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+	}
+
+	/**
+	 * A run on the left is linked on several threads when `-t` asks for them, which needs a concurrent edge set.
+	 */
+	private ScriptFlowGraph createLeftGraph() {
+		if (threadCount.getValue() > 1 && leftDataSource.getType() == Type.RUN) {
+			return new ScriptFlowGraph(leftDataSource.getType(), leftDataSource.getDescription(), true,
+					new ConcurrentGraphEdgeSet());
 		}
+		return new ScriptFlowGraph(leftDataSource.getType(), leftDataSource.getDescription(), true);
 	}
 
 	private boolean isUnityMerge(File left, File right, File out) {
@@ -220,8 +512,12 @@ public class ScriptSafeMerge {
 	}
 
 	private void printUsage() {
-		System.err.println(String.format("Usage: %s -l <left-data-source> -r <right-data-source> -o <output-dir>",
+		System.err.println(String.format(
+				"Usage: %s -l <left-data-source> -r <right-data-source> -o <output-dir> [ -t <thread-count> ] [ -d ]",
 				getClass().getSimpleName()));
+		System.err.println(String.format(
+				"       %s -o <output-dir> [ -t <thread-count> ] [ -d ] <run-dir> [ <run-dir> ... ]", getClass()
+						.getSimpleName()));
 	}
 
 	public static void main(String[] args) {
@@ -0,0 +1,146 @@
+package edu.uci.plrg.cfi.php.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Open-addressed map from primitive `long` keys to non-null values, for hot lookups that would otherwise box a
+ * composite key on every call. Entries can't be removed.
+ */
+public class LongHashMap<V> {
+
+	private static final int MIN_CAPACITY = 8;
+
+	private long keys[];
+	private Object values[]; // null marks an empty slot
+	private int mask;
+	private int size = 0;
+
+	public LongHashMap() {
+		this(MIN_CAPACITY);
+	}
+
+	public LongHashMap(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < (expectedSize * 2))
+			capacity <<= 1;
+		allocate(capacity);
+	}
+
+	/**
+	 * Copy of `original`, which can then be changed without affecting it.
+	 */
+	public LongHashMap(LongHashMap<? extends V> original) {
+		keys = original.keys.clone();
+		values = original.values.clone();
+		mask = original.mask;
+		size = original.size;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		for (int slot = getSlot(key);; slot = (slot + 1) & mask) {
+			if (values[slot] == null)
+				return null;
+			if (keys[slot] == key)
+				return (V) values[slot];
+		}
+	}
+
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * @return the previous value of `key`, or null if it was not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null)
+			throw new IllegalArgumentException("LongHashMap does not support null values");
+
+		int slot = getSlot(key);
+		for (; values[slot] != null; slot = (slot + 1) & mask) {
+			if (keys[slot] == key) {
+				V previous = (V) values[slot];
+				values[slot] = value;
+				return previous;
+			}
+		}
+
+		keys[slot] = key;
+		values[slot] = value;
+		if (++size * 2 > values.length)
+			grow();
+		return null;
+	}
+
+	/**
+	 * Put `value` only if `key` is not in the map yet.
+	 *
+	 * @return the value already in the map, or null if `value` was added
+	 */
+	public V putIfAbsent(long key, V value) {
+		V existing = get(key);
+		if (existing == null)
+			put(key, value);
+		return existing;
+	}
+
+	/**
+	 * @return the keys, in the same order as `values()`
+	 */
+	public long[] keys() {
+		long list[] = new long[size];
+		int i = 0;
+		for (int slot = 0; slot < values.length; slot++) {
+			if (values[slot] != null)
+				list[i++] = keys[slot];
+		}
+		return list;
+	}
+
+	@SuppressWarnings("unchecked")
+	public Iterable<V> values() {
+		List<V> list = new ArrayList<V>(size);
+		for (Object value : values) {
+			if (value != null)
+				list.add((V) value);
+		}
+		return list;
+	}
+
+	private int getSlot(long key) {
+		long mixed = key * 0x9e3779b97f4a7c15L;
+		return (int) (mixed ^ (mixed >>> 32)) & mask;
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+	}
+
+	private void grow() {
+		long oldKeys[] = keys;
+		Object oldValues[] = values;
+		allocate(values.length * 2);
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] == null)
+				continue;
+			int slot = getSlot(oldKeys[i]);
+			while (values[slot] != null)
+				slot = (slot + 1) & mask;
+			keys[slot] = oldKeys[i];
+			values[slot] = oldValues[i];
+		}
+	}
+}
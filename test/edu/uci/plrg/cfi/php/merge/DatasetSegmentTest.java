@@ -0,0 +1,123 @@
+package edu.uci.plrg.cfi.php.merge;
+
+import static edu.uci.plrg.cfi.php.merge.ScriptDatasetFixture.ADDED;
+import static edu.uci.plrg.cfi.php.merge.ScriptDatasetFixture.EVAL_2;
+import static edu.uci.plrg.cfi.php.merge.ScriptDatasetFixture.HELPER;
+import static edu.uci.plrg.cfi.php.merge.ScriptDatasetFixture.MAIN;
+import static edu.uci.plrg.cfi.php.merge.ScriptRunWriter.DO_FCALL;
+import static edu.uci.plrg.cfi.php.merge.ScriptRunWriter.ECHO;
+import static edu.uci.plrg.cfi.php.merge.ScriptRunWriter.RETURN;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.uci.plrg.cfi.php.merge.graph.ScriptDataFilename;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptFlowGraph;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptNode;
+import edu.uci.plrg.cfi.php.merge.graph.loader.MappedScriptFlowGraph;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptDatasetFiles;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptDatasetSegments;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptGraphDataFiles;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptGraphLoader;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptRunFiles;
+import edu.uci.plrg.cfi.php.merge.main.ScriptDatasetCompaction;
+
+/**
+ * Appending the changes of each run of the `ScriptDatasetFixture` as a segment, merged against the mapped dataset, must
+ * read back as the same graph as writing the complete dataset after each run, and compacting the segments must write
+ * the same cfg.set.
+ */
+public class DatasetSegmentTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File fullDirectory, segmentDirectory;
+	private final List<ScriptRunFiles> runs = new ArrayList<ScriptRunFiles>();
+
+	@BeforeClass
+	public static void initNodes() {
+		ScriptNode.init();
+	}
+
+	@Before
+	public void createDataset() throws IOException {
+		ScriptDatasetFixture fixture = new ScriptDatasetFixture(folder);
+		fullDirectory = folder.newFolder("full");
+		segmentDirectory = folder.newFolder("segmented");
+		fixture.writeDataset(fullDirectory);
+		fixture.writeDataset(segmentDirectory);
+		runs.addAll(fixture.runs);
+
+		/* adds an edge from the eval routine of the first run, which is now in a segment, and lowers a dataset edge */
+		ScriptRunWriter last = new ScriptRunWriter();
+		last.routine(EVAL_2, null, ECHO, DO_FCALL, ECHO, RETURN);
+		last.routineEdge(EVAL_2, 1, ADDED, 1).routineEdge(MAIN, 3, HELPER, 1);
+		runs.add(ScriptDatasetFixture.bind(last.write(folder.newFolder("last"))));
+	}
+
+	private static File getDataset(File directory) {
+		return ScriptDataFilename.CFG.getFile(directory);
+	}
+
+	private static ScriptFlowGraph loadDataset(File directory) throws IOException {
+		return ScriptDatasetFixture.loadDataset(getDataset(directory),
+				ScriptDataFilename.ROUTINE_CATALOG.getFile(directory));
+	}
+
+	private static ScriptFlowGraph mapDataset(File directory) throws IOException {
+		return new MappedScriptFlowGraph(getDataset(directory), ScriptDataFilename.ROUTINE_CATALOG.getFile(directory));
+	}
+
+	private static ScriptFlowGraph loadRun(ScriptRunFiles run, ScriptFlowGraph dataset) throws IOException {
+		ScriptFlowGraph left = new ScriptFlowGraph(ScriptGraphDataFiles.Type.RUN, run.getDescription(), true);
+		new ScriptGraphLoader().loadRun(run, left, dataset, DatasetMerge.Side.LEFT);
+		return left;
+	}
+
+	private void mergeFull(ScriptRunFiles run) throws IOException {
+		ScriptFlowGraph right = loadDataset(fullDirectory);
+		DatasetMerge merge = new DatasetMerge(loadRun(run, right), right, true);
+		merge.merge();
+		new ScriptDatasetGenerator(merge, getDataset(fullDirectory)).generateDataset();
+	}
+
+	private void appendSegment(ScriptRunFiles run) throws IOException {
+		ScriptFlowGraph right = mapDataset(segmentDirectory);
+		DatasetMerge merge = new DatasetMerge(loadRun(run, right), right, true);
+		merge.mergeChanges();
+		new ScriptDatasetGenerator(merge.getChangedRoutines(),
+				ScriptDatasetSegments.getNextSegmentFile(getDataset(segmentDirectory))).generateDataset();
+	}
+
+	@Test
+	public void segmentsEqualFullWrites() throws IOException {
+		for (ScriptRunFiles run : runs) {
+			mergeFull(run);
+			appendSegment(run);
+
+			String expected = ScriptDatasetFixture.describe(loadDataset(fullDirectory));
+			assertEquals(expected, ScriptDatasetFixture.describe(loadDataset(segmentDirectory)));
+			assertEquals(expected, ScriptDatasetFixture.describe(mapDataset(segmentDirectory)));
+		}
+		assertEquals(runs.size(), ScriptDatasetSegments.find(getDataset(segmentDirectory)).size());
+		assertEquals(7, loadDataset(fullDirectory).getRoutineCount());
+
+		ScriptDatasetCompaction.compact((ScriptDatasetFiles) ScriptGraphDataFiles.Factory.bind(segmentDirectory));
+		assertTrue(ScriptDatasetSegments.find(getDataset(segmentDirectory)).isEmpty());
+		assertArrayEquals(Files.readAllBytes(getDataset(fullDirectory).toPath()),
+				Files.readAllBytes(getDataset(segmentDirectory).toPath()));
+	}
+}
@@ -0,0 +1,72 @@
+package edu.uci.plrg.cfi.php.merge;
+
+import static edu.uci.plrg.cfi.php.merge.ScriptRunWriter.ECHO;
+import static edu.uci.plrg.cfi.php.merge.ScriptRunWriter.RETURN;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.uci.plrg.cfi.common.log.Log;
+import edu.uci.plrg.cfi.php.merge.graph.RoutineId;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptFlowGraph;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptNode;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptRoutineGraph;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptGraphDataFiles;
+
+/**
+ * Merges a run into a dataset with 100k eval routines, which is far past the 32768 routines where the `HashMap` order
+ * of the dataset routines stops following their index. An incremental merge must keep every eval routine of the
+ * dataset at its index, including duplicates, and match the eval routines of the run against them.
+ */
+public class DynamicRoutineMergeTest {
+
+	private static final int DATASET_ROUTINE_COUNT = 100000;
+	private static final int RUN_ROUTINE_COUNT = 1000;
+	private static final int ROUTINE_BITS = 18; // enough for the routines of the dataset and the new ones of the run
+
+	@BeforeClass
+	public static void initNodes() {
+		ScriptNode.init();
+	}
+
+	/**
+	 * @return an eval routine with an opcode sequence that is distinct for each `shape`
+	 */
+	private static ScriptRoutineGraph createRoutine(int index, int shape) {
+		int hash = ScriptRoutineGraph.constructDynamicHash(index);
+		ScriptRoutineGraph routine = new ScriptRoutineGraph(hash, RoutineId.DYNAMIC_ID, false);
+		for (int i = 0; i < ROUTINE_BITS; i++)
+			routine.addNode(new ScriptNode(hash, 0, ((shape >> i) & 1) == 0 ? ECHO : RETURN, i, i));
+		routine.addNode(new ScriptNode(hash, 0, RETURN, ROUTINE_BITS, ROUTINE_BITS));
+		return routine;
+	}
+
+	@Test
+	public void mergeIntoDatasetWith100kEvalRoutines() {
+		ScriptFlowGraph right = new ScriptFlowGraph(ScriptGraphDataFiles.Type.DATASET, "dataset", false);
+		for (int i = 0; i < DATASET_ROUTINE_COUNT; i++)
+			right.addRoutine(createRoutine(i, i % (DATASET_ROUTINE_COUNT - 1))); // the last is a duplicate of the first
+
+		/* even routines of the run are in the dataset, odd ones are new */
+		ScriptFlowGraph left = new ScriptFlowGraph(ScriptGraphDataFiles.Type.RUN, "run", true);
+		for (int i = 0; i < RUN_ROUTINE_COUNT; i++)
+			left.addRoutine(createRoutine(i, (i % 2) == 0 ? i * 97 : DATASET_ROUTINE_COUNT + i));
+
+		long start = System.currentTimeMillis();
+		DatasetMerge merge = new DatasetMerge(left, right, true);
+		merge.merge();
+		Log.log("Merged %d eval routines into a dataset with %d in %d ms", RUN_ROUTINE_COUNT, DATASET_ROUTINE_COUNT,
+				System.currentTimeMillis() - start);
+
+		assertEquals(DATASET_ROUTINE_COUNT + (RUN_ROUTINE_COUNT / 2), merge.getDynamicRoutineCount());
+		assertEquals(RUN_ROUTINE_COUNT / 2, merge.getChangedRoutineCount());
+		int index = 0;
+		for (ScriptRoutineGraph routine : merge.getDynamicRoutines()) {
+			if (index < DATASET_ROUTINE_COUNT)
+				assertSame(right.getDynamicRoutine(index).getNode(0), routine.getNode(0)); // renamed in place
+			assertEquals(ScriptRoutineGraph.constructDynamicHash(index++), routine.hash);
+		}
+	}
+}
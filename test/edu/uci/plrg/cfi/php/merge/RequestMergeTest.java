@@ -0,0 +1,169 @@
+package edu.uci.plrg.cfi.php.merge;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.uci.plrg.cfi.php.analysis.request.RequestEdgeIndex;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptDatasetFiles;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptGraphDataFiles;
+
+/**
+ * Merges small request.tab and request-edge.run files. The merge orders the requests of all sources by time and
+ * renumbers them, writes each time back as lowercase hex, writes each id as its last 8 digits, and replaces any
+ * existing output instead of appending to it.
+ */
+public class RequestMergeTest {
+
+	private static final int RUN_HEADER_TAG = 2, MERGED_HEADER_TAG = 3;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static String request(String time, String url, String id) {
+		return String.format("<request-time> %s\n<request-url> |%s\n<request-id> |%s\n", time, url, id);
+	}
+
+	private static byte[] records(int... fields) {
+		ByteBuffer records = ByteBuffer.allocate(fields.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+		for (int field : fields)
+			records.putInt(field);
+		return records.array();
+	}
+
+	/**
+	 * @param edges
+	 *            for each request, the first field of each of its edge records
+	 */
+	private static byte[] edges(int headerTag, int[]... edges) {
+		List<Integer> fields = new ArrayList<Integer>();
+		for (int request = 0; request < edges.length; request++) {
+			fields.addAll(Arrays.asList(headerTag, request, 0, 0));
+			for (int edge : edges[request])
+				fields.addAll(Arrays.asList(edge, edge + 1, edge + 2, edge + 3));
+		}
+		int array[] = new int[fields.size()];
+		for (int i = 0; i < array.length; i++)
+			array[i] = fields.get(i);
+		return records(array);
+	}
+
+	private ScriptDatasetFiles createSource(String name, String requests, byte[] edges) throws IOException {
+		ScriptDatasetFiles source = ScriptGraphDataFiles.Factory.construct(folder.newFolder(name));
+		Files.write(source.getRequestFile().toPath(), requests.getBytes());
+		if (edges != null)
+			Files.write(source.getRequestEdgeFile().toPath(), edges);
+		return source;
+	}
+
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()));
+	}
+
+	@Test
+	public void mergeOrdersRequestsByTime() throws IOException {
+		List<ScriptGraphDataFiles> sources = new ArrayList<ScriptGraphDataFiles>();
+		sources.add(createSource("first", request("0x10", "/a", "00000000") + request("0x3A", "/b", "00000001"),
+				edges(RUN_HEADER_TAG, new int[] { 0x100 }, new int[] { 0x200, 0x210 })));
+		sources.add(createSource("second", request("0x0", "/c", "00000000") + request("0x3a", "/d", "00000001")
+				+ request("0xFF", "/e", "00000002"), edges(RUN_HEADER_TAG, new int[0], new int[] { 0x300 },
+				new int[] { 0x400 })));
+		sources.add(createSource("third", request("0x20", "/f", "00000000"), edges(RUN_HEADER_TAG,
+				new int[] { 0x500, 0x510, 0x520 })));
+		ScriptDatasetFiles output = ScriptGraphDataFiles.Factory.construct(folder.newFolder("output"));
+
+		new RequestMerge(sources).merge(output);
+
+		/* the times are equal for /b and /d, so the earlier source goes first */
+		assertEquals(request("0x0", "/c", "00000000") + request("0x10", "/a", "00000001")
+				+ request("0x20", "/f", "00000002") + request("0x3a", "/b", "00000003")
+				+ request("0x3a", "/d", "00000004") + request("0xff", "/e", "00000005"),
+				read(output.getRequestFile()));
+		assertArrayEquals(edges(MERGED_HEADER_TAG, new int[0], new int[] { 0x100 }, new int[] { 0x500, 0x510, 0x520 },
+				new int[] { 0x200, 0x210 }, new int[] { 0x300 }, new int[] { 0x400 }),
+				Files.readAllBytes(output.getRequestEdgeFile().toPath()));
+
+		RequestEdgeIndex index = RequestEdgeIndex.load(output.getRequestEdgeFile());
+		int edgeCounts[] = { 0, 1, 3, 2, 1, 1 };
+		long offset = 0L;
+		assertEquals(edgeCounts.length, index.getRequestCount());
+		for (int request = 0; request < edgeCounts.length; request++) {
+			assertEquals(request, index.getRequestId(request));
+			assertEquals(edgeCounts[request], index.getEdgeCount(request));
+			assertEquals(offset, index.getHeaderOffset(request));
+			offset += (edgeCounts[request] + 1) * RequestEdgeIndex.RECORD_SIZE;
+		}
+	}
+
+	@Test
+	public void mergeReplacesExistingOutput() throws IOException {
+		List<ScriptGraphDataFiles> sources = new ArrayList<ScriptGraphDataFiles>();
+		sources.add(createSource("first", request("0x1", "/a", "00000000"), edges(RUN_HEADER_TAG,
+				new int[] { 0x100 })));
+		sources.add(createSource("second", request("0x2", "/b", "00000000"), edges(RUN_HEADER_TAG,
+				new int[] { 0x200 })));
+		ScriptDatasetFiles output = createSource("output", request("0x0", "/old", "00000000"), edges(
+				MERGED_HEADER_TAG, new int[] { 0x600, 0x610, 0x620, 0x630 }));
+
+		new RequestMerge(sources).merge(output);
+
+		assertEquals(request("0x1", "/a", "00000000") + request("0x2", "/b", "00000001"),
+				read(output.getRequestFile()));
+		assertArrayEquals(edges(MERGED_HEADER_TAG, new int[] { 0x100 }, new int[] { 0x200 }),
+				Files.readAllBytes(output.getRequestEdgeFile().toPath()));
+	}
+
+	@Test
+	public void mergeInPlace() throws IOException {
+		ScriptDatasetFiles output = createSource("output", request("0x1", "/a", "00000000"), edges(
+				MERGED_HEADER_TAG, new int[] { 0x100 }));
+		ScriptDatasetFiles run = createSource("run", request("0x0", "/b", "00000000"), edges(RUN_HEADER_TAG,
+				new int[] { 0x200 }));
+
+		new RequestMerge(output, run).merge(output);
+
+		assertEquals(request("0x0", "/b", "00000000") + request("0x1", "/a", "00000001"),
+				read(output.getRequestFile()));
+		assertArrayEquals(edges(MERGED_HEADER_TAG, new int[] { 0x200 }, new int[] { 0x100 }),
+				Files.readAllBytes(output.getRequestEdgeFile().toPath()));
+		assertFalse(new File(output.directory, output.getRequestFile().getName() + ".tmp").exists());
+		assertFalse(new File(output.directory, output.getRequestEdgeFile().getName() + ".tmp").exists());
+	}
+
+	@Test
+	public void requestIdKeepsLastDigits() throws IOException {
+		File input = folder.newFile("request.tab");
+		Files.write(input.toPath(), (request("0xABC", "/a", "7") + request("0x0", "/b", "00000001")).getBytes());
+		File outputFile = new File(folder.getRoot(), "merged.tab");
+
+		RequestParser parser = new RequestParser(input);
+		RequestFileOutput output = new RequestFileOutput(outputFile);
+		try {
+			parser.readRequestStart();
+			parser.writeNextRequest(123456789, output);
+			parser.readRequestStart();
+			parser.writeNextRequest(42, output);
+			parser.readRequestStart();
+			assertTrue(parser.eof);
+		} finally {
+			parser.close();
+			output.close();
+		}
+
+		assertEquals(request("0xabc", "/a", "23456789") + request("0x0", "/b", "00000042"), read(outputFile));
+	}
+}
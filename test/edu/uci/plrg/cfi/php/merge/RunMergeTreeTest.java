@@ -0,0 +1,98 @@
+package edu.uci.plrg.cfi.php.merge;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.uci.plrg.cfi.php.merge.graph.ScriptDataFilename;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptFlowGraph;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptGraphCloner;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptNode;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptRoutineGraph;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptGraphDataFiles;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptGraphLoader;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptRunFiles;
+
+/**
+ * Merging the runs of the `ScriptDatasetFixture` into its dataset through the tree must write the same cfg.set as
+ * merging the runs one at a time, with the dataset cloned into the left graph.
+ */
+public class RunMergeTreeTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ScriptDatasetFixture fixture;
+	private File catalog;
+	private File dataset;
+
+	@BeforeClass
+	public static void initNodes() {
+		ScriptNode.init();
+	}
+
+	@Before
+	public void createDataset() throws IOException {
+		fixture = new ScriptDatasetFixture(folder);
+		File datasetDirectory = folder.newFolder("dataset");
+		dataset = fixture.writeDataset(datasetDirectory);
+		catalog = ScriptDataFilename.ROUTINE_CATALOG.getFile(datasetDirectory);
+	}
+
+	private ScriptFlowGraph loadDataset(File datasetFile) throws IOException {
+		return ScriptDatasetFixture.loadDataset(datasetFile, catalog);
+	}
+
+	private byte[] mergeSequentially() throws IOException {
+		File output = folder.newFile("sequential.set");
+		Files.copy(dataset.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		for (ScriptRunFiles run : fixture.runs) {
+			ScriptFlowGraph right = loadDataset(output);
+			ScriptFlowGraph left = new ScriptGraphCloner().copyRoutines(right, new ScriptFlowGraph(
+					ScriptGraphDataFiles.Type.RUN, run.getDescription(), true));
+			new ScriptGraphLoader().loadGraph(run, left, DatasetMerge.Side.LEFT, false);
+			DatasetMerge merge = new DatasetMerge(left, right, true);
+			merge.merge();
+			new ScriptDatasetGenerator(merge, output).generateDataset();
+		}
+		return Files.readAllBytes(output.toPath());
+	}
+
+	private byte[] mergeTree(int threadCount) throws IOException {
+		File output = folder.newFile("tree-" + threadCount + ".set");
+		DatasetMerge merge = new RunMergeTree(fixture.runs, loadDataset(dataset), threadCount).merge();
+		new ScriptDatasetGenerator(merge, output).generateDataset();
+		return Files.readAllBytes(output.toPath());
+	}
+
+	@Test
+	public void treeMergeEqualsSequentialMerge() throws IOException {
+		byte[] expected = mergeSequentially();
+		ScriptFlowGraph merged = loadDataset(new File(folder.getRoot(), "sequential.set"));
+		int dynamicRoutineCount = 0;
+		for (ScriptRoutineGraph routine : merged.getRoutines()) {
+			if (ScriptRoutineGraph.isDynamicRoutine(routine.hash))
+				dynamicRoutineCount++;
+		}
+		assertEquals(4, dynamicRoutineCount); // the third run's eval routine is the same as the first run's
+		assertEquals(7, merged.getRoutineCount());
+
+		String expectedDescription = ScriptDatasetFixture.describe(merged);
+		for (int threadCount : new int[] { 1, 4 }) {
+			byte[] actual = mergeTree(threadCount);
+			assertEquals(expectedDescription, ScriptDatasetFixture.describe(loadDataset(new File(folder.getRoot(),
+					"tree-" + threadCount + ".set"))));
+			assertArrayEquals(expected, actual);
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package edu.uci.plrg.cfi.php.merge;
+
+import static edu.uci.plrg.cfi.php.merge.ScriptRunWriter.DO_FCALL;
+import static edu.uci.plrg.cfi.php.merge.ScriptRunWriter.ECHO;
+import static edu.uci.plrg.cfi.php.merge.ScriptRunWriter.INCLUDE_OR_EVAL;
+import static edu.uci.plrg.cfi.php.merge.ScriptRunWriter.JMPZ;
+import static edu.uci.plrg.cfi.php.merge.ScriptRunWriter.RETURN;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.rules.TemporaryFolder;
+
+import edu.uci.plrg.cfi.php.merge.graph.RoutineEdge;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptDataFilename;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptFlowGraph;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptNode;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptRoutineGraph;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptDatasetLoader;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptGraphDataFiles;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptGraphLoader;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptRunFiles;
+
+/**
+ * A dataset with two routines and two eval routines, and three runs to merge into it, for tests. Each run refers to the
+ * eval routines of the dataset by their dataset index, and numbers the eval routines it adds after them.
+ */
+public class ScriptDatasetFixture {
+
+	public static final int MAIN = 0x100, HELPER = 0x200, ADDED = 0x300;
+	public static final int EVAL_0 = ScriptRoutineGraph.constructDynamicHash(0);
+	public static final int EVAL_1 = ScriptRoutineGraph.constructDynamicHash(1);
+	public static final int EVAL_2 = ScriptRoutineGraph.constructDynamicHash(2);
+
+	private static final String CATALOG = "0x100 a.php|main()\n0x200 a.php|helper()\n0x300 a.php|added()\n";
+
+	public final List<ScriptRunFiles> runs = new ArrayList<ScriptRunFiles>();
+
+	private final DatasetMerge base;
+
+	/**
+	 * Writes the base run and the runs into new folders of `folder`.
+	 */
+	public ScriptDatasetFixture(TemporaryFolder folder) throws IOException {
+		ScriptRunWriter baseRun = new ScriptRunWriter();
+		baseRun.routine(MAIN, "a.php|main()", ECHO, INCLUDE_OR_EVAL, INCLUDE_OR_EVAL, DO_FCALL, RETURN);
+		baseRun.routine(HELPER, "a.php|helper()", JMPZ, ECHO, RETURN).opcodeEdge(HELPER, 0, 2, 3);
+		baseRun.routine(EVAL_0, null, ECHO, RETURN).routine(EVAL_1, null, ECHO, ECHO, RETURN);
+		baseRun.routineEdge(MAIN, 1, EVAL_0, 3).routineEdge(MAIN, 2, EVAL_1, 3).routineEdge(MAIN, 3, HELPER, 3);
+
+		ScriptFlowGraph left = new ScriptFlowGraph(ScriptGraphDataFiles.Type.RUN, "base", true);
+		new ScriptGraphLoader().loadGraph(bind(baseRun.write(folder.newFolder("base"))), left,
+				DatasetMerge.Side.LEFT, false);
+		base = new DatasetMerge(left, new ScriptFlowGraph(ScriptGraphDataFiles.Type.RUN, "empty", false), false);
+		base.merge();
+
+		/* calls a dataset eval routine without reporting its nodes, adds an eval routine and a routine */
+		ScriptRunWriter first = new ScriptRunWriter();
+		first.routine(MAIN, "a.php|main()", ECHO, INCLUDE_OR_EVAL, INCLUDE_OR_EVAL, DO_FCALL, RETURN);
+		first.routine(EVAL_2, null, ECHO, DO_FCALL, ECHO, RETURN).routine(ADDED, "a.php|added()", ECHO, RETURN);
+		first.routineEdge(MAIN, 2, EVAL_1, 1).routineEdge(MAIN, 1, EVAL_2, 2).routineEdge(MAIN, 3, ADDED, 2);
+		runs.add(bind(first.write(folder.newFolder("first"))));
+
+		/* only has edges from dataset routines, and adds a different eval routine under the same index */
+		ScriptRunWriter second = new ScriptRunWriter();
+		second.routine(HELPER, "a.php|helper()", JMPZ, ECHO, RETURN).opcodeEdge(HELPER, 0, 1, 0);
+		second.routine(EVAL_2, null, ECHO, RETURN, RETURN);
+		second.routineEdge(MAIN, 1, EVAL_0, 0).routineEdge(MAIN, 1, EVAL_2, 1);
+		runs.add(bind(second.write(folder.newFolder("second"))));
+
+		/* adds the same eval routine as the first run, from another call site */
+		ScriptRunWriter third = new ScriptRunWriter();
+		third.routine(MAIN, "a.php|main()", ECHO, INCLUDE_OR_EVAL, INCLUDE_OR_EVAL, DO_FCALL, RETURN);
+		third.routine(EVAL_2, null, ECHO, DO_FCALL, ECHO, RETURN);
+		third.routineEdge(MAIN, 2, EVAL_2, 0).routineEdge(MAIN, 2, EVAL_1, 0);
+		runs.add(bind(third.write(folder.newFolder("third"))));
+	}
+
+	/**
+	 * Write the base dataset and its routine catalog into `directory`.
+	 *
+	 * @return the cfg.set
+	 */
+	public File writeDataset(File directory) throws IOException {
+		Files.write(ScriptDataFilename.ROUTINE_CATALOG.getFile(directory).toPath(), CATALOG.getBytes());
+		File dataset = ScriptDataFilename.CFG.getFile(directory);
+		new ScriptDatasetGenerator(base, dataset).generateDataset();
+		return dataset;
+	}
+
+	public static ScriptRunFiles bind(File directory) throws IOException {
+		return (ScriptRunFiles) ScriptGraphDataFiles.Factory.bind(directory);
+	}
+
+	public static ScriptFlowGraph loadDataset(File dataset, File catalog) throws IOException {
+		ScriptFlowGraph graph = new ScriptFlowGraph(ScriptGraphDataFiles.Type.DATASET, "dataset", false);
+		new ScriptDatasetLoader().loadDataset(dataset, catalog, graph, false);
+		return graph;
+	}
+
+	/**
+	 * @return the routines of the graph with their nodes and outgoing edges, one line per routine in hash order
+	 */
+	public static String describe(ScriptFlowGraph graph) {
+		List<ScriptRoutineGraph> routines = new ArrayList<ScriptRoutineGraph>();
+		for (ScriptRoutineGraph routine : graph.getRoutines())
+			routines.add(routine);
+		Collections.sort(routines, new Comparator<ScriptRoutineGraph>() {
+			@Override
+			public int compare(ScriptRoutineGraph first, ScriptRoutineGraph second) {
+				return Long.compare(first.hash & 0xffffffffL, second.hash & 0xffffffffL);
+			}
+		});
+
+		StringBuilder description = new StringBuilder();
+		for (ScriptRoutineGraph routine : routines) {
+			description.append(String.format("0x%x:", routine.hash));
+			for (int i = 0; i < routine.getNodeCount(); i++) {
+				description.append(String.format(" %x/%d/%x", routine.getOpcode(i), routine.getNodeUserLevel(i),
+						routine.getBranchTargetIndex(i)));
+			}
+			List<String> edges = new ArrayList<String>();
+			for (ScriptNode node : routine.getNodes()) {
+				for (RoutineEdge edge : graph.edges.getOutgoingEdges(node)) {
+					edges.add(String.format(" %s->%s@%d", edge.printFromNode(), edge.printToNode(),
+							edge.getUserLevel()));
+				}
+			}
+			Collections.sort(edges);
+			for (String edge : edges)
+				description.append(edge);
+			description.append("\n");
+		}
+		return description.toString();
+	}
+}
@@ -0,0 +1,102 @@
+package edu.uci.plrg.cfi.php.merge;
+
+import static edu.uci.plrg.cfi.php.merge.ScriptRunWriter.DO_FCALL;
+import static edu.uci.plrg.cfi.php.merge.ScriptRunWriter.ECHO;
+import static edu.uci.plrg.cfi.php.merge.ScriptRunWriter.RETURN;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.uci.plrg.cfi.common.log.Log;
+import edu.uci.plrg.cfi.php.merge.graph.RoutineExceptionEdge;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptDataFilename;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptFlowGraph;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptNode;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptRoutineGraph;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptGraphDataFiles;
+import edu.uci.plrg.cfi.php.merge.graph.loader.ScriptGraphLoader;
+
+/**
+ * Reports the heap footprint per node of a loaded cfg.set. Before the type flags were held as int bits, each node also
+ * had its own `EnumSet` of flags and an empty thrown-exception `ArrayList`. Those are allocated here for every loaded
+ * node to measure what the old layout added.
+ */
+public class ScriptNodeFootprintTest {
+
+	private static final int ROUTINE_COUNT = 2000;
+	private static final int NODES_PER_ROUTINE = 100;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@BeforeClass
+	public static void initNodes() {
+		ScriptNode.init();
+	}
+
+	private static long getUsedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private File writeDataset() throws IOException {
+		ScriptRunWriter run = new ScriptRunWriter();
+		int opcodes[] = new int[NODES_PER_ROUTINE];
+		for (int i = 0; i < opcodes.length; i++)
+			opcodes[i] = (i == (opcodes.length - 1)) ? RETURN : ((i % 4) == 0 ? DO_FCALL : ECHO);
+		for (int i = 0; i < ROUTINE_COUNT; i++)
+			run.routine(0x1000 + i, String.format("a.php|routine%d()", i), opcodes);
+		File runDirectory = run.write(folder.newFolder("run"));
+
+		ScriptFlowGraph left = new ScriptFlowGraph(ScriptGraphDataFiles.Type.RUN, "run", true);
+		new ScriptGraphLoader().loadGraph(ScriptDatasetFixture.bind(runDirectory), left, DatasetMerge.Side.LEFT,
+				false);
+		DatasetMerge merge = new DatasetMerge(left, new ScriptFlowGraph(ScriptGraphDataFiles.Type.RUN, "empty",
+				false), false);
+		merge.merge();
+		File dataset = folder.newFile("cfg.set");
+		new ScriptDatasetGenerator(merge, dataset).generateDataset();
+		return dataset;
+	}
+
+	@Test
+	public void reportNodeFootprint() throws IOException {
+		File dataset = writeDataset();
+		File catalog = ScriptDataFilename.ROUTINE_CATALOG.getFile(new File(folder.getRoot(), "run"));
+
+		long start = getUsedMemory();
+		ScriptFlowGraph graph = ScriptDatasetFixture.loadDataset(dataset, catalog);
+		long loaded = getUsedMemory();
+
+		List<Object> oldFields = new ArrayList<Object>(2 * ROUTINE_COUNT * NODES_PER_ROUTINE);
+		long listed = getUsedMemory(); // the list of old fields is not part of the old layout
+		int nodeCount = 0;
+		for (ScriptRoutineGraph routine : graph.getRoutines()) {
+			for (ScriptNode node : routine.getNodes()) {
+				oldFields.add(ScriptNode.TypeFlag.decode(node.getTypeFlags()));
+				oldFields.add(new ArrayList<RoutineExceptionEdge>());
+				nodeCount++;
+			}
+		}
+		long old = getUsedMemory();
+
+		assertEquals(ROUTINE_COUNT * NODES_PER_ROUTINE, nodeCount);
+		double newBytesPerNode = (loaded - start) / (double) nodeCount;
+		double oldBytesPerNode = newBytesPerNode + ((old - listed) / (double) nodeCount);
+		Log.log("Loaded cfg.set with %d nodes: %.1f bytes per node, and %.1f bytes per node with the old flag set and "
+				+ "exception list", nodeCount, newBytesPerNode, oldBytesPerNode);
+		assertTrue(oldBytesPerNode > newBytesPerNode);
+		assertTrue(graph.getRoutineCount() > 0 && oldFields.size() == (2 * nodeCount)); // both stay reachable
+	}
+}
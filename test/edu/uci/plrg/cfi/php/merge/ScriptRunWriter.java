@@ -0,0 +1,82 @@
+package edu.uci.plrg.cfi.php.merge;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.uci.plrg.cfi.php.merge.graph.ScriptDataFilename;
+
+/**
+ * Writes the files of a small script run in the format of the runtime, for tests.
+ */
+public class ScriptRunWriter {
+
+	public static final int ECHO = 0x28;
+	public static final int JMPZ = 0x2b;
+	public static final int DO_FCALL = 0x3c;
+	public static final int RETURN = 0x3e;
+	public static final int INCLUDE_OR_EVAL = 0x49;
+	public static final int EVAL = 1; // extended value of INCLUDE_OR_EVAL
+
+	private final List<int[]> nodes = new ArrayList<int[]>();
+	private final List<int[]> opcodeEdges = new ArrayList<int[]>();
+	private final List<int[]> routineEdges = new ArrayList<int[]>();
+	private final List<String> catalog = new ArrayList<String>();
+
+	public ScriptRunWriter routine(int routineHash, String name, int... opcodes) {
+		if (name != null)
+			catalog.add(String.format("0x%x %s", routineHash, name));
+		for (int i = 0; i < opcodes.length; i++) {
+			int extendedValue = (opcodes[i] == INCLUDE_OR_EVAL) ? EVAL : 0;
+			nodes.add(new int[] { routineHash, opcodes[i] | (extendedValue << 8) | ((i + 1) << 16), i });
+		}
+		return this;
+	}
+
+	public ScriptRunWriter opcodeEdge(int routineHash, int fromIndex, int toIndex, int userLevel) {
+		opcodeEdges.add(new int[] { routineHash, fromIndex | (userLevel << 26), toIndex });
+		return this;
+	}
+
+	public ScriptRunWriter routineEdge(int fromRoutineHash, int fromIndex, int toRoutineHash, int userLevel) {
+		routineEdges.add(new int[] { fromRoutineHash, fromIndex | (userLevel << 26), toRoutineHash, 0 });
+		return this;
+	}
+
+	public File write(File directory) throws IOException {
+		directory.mkdirs();
+		write(ScriptDataFilename.NODE.getFile(directory), nodes);
+		write(ScriptDataFilename.OPCODE_EDGE.getFile(directory), opcodeEdges);
+		write(ScriptDataFilename.ROUTINE_EDGE.getFile(directory), routineEdges);
+		PrintWriter out = new PrintWriter(ScriptDataFilename.ROUTINE_CATALOG.getFile(directory));
+		try {
+			for (String entry : catalog)
+				out.println(entry);
+		} finally {
+			out.close();
+		}
+		return directory;
+	}
+
+	private static void write(File file, List<int[]> records) throws IOException {
+		int size = 0;
+		for (int[] record : records)
+			size += record.length * 4;
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		for (int[] record : records) {
+			for (int value : record)
+				buffer.putInt(value);
+		}
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(buffer.array());
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package edu.uci.plrg.cfi.php.merge.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Freezing a `GraphEdgeSet` into a `CompactGraphEdgeSet` must keep the answer of every query. The set has routine
+ * hashes on both sides of the sign bit, so the binary searches meet keys that sort differently as signed and unsigned
+ * values. It has a megamorphic node with more edges than `OUTGOING_EDGE_INDEX_THRESHOLD` (8), which the source set
+ * indexes by target, and edges whose user level was lowered after they were added, which lowers the minimum user
+ * level of their target.
+ */
+public class CompactGraphEdgeSetTest {
+
+	private static final int DO_FCALL = 0x3c;
+	private static final int MEGAMORPHIC_TARGET_COUNT = 20;
+
+	private static final int CALLER = 0x100, NEGATIVE_CALLER = 0x80000100, DYNAMIC_CALLER = ScriptRoutineGraph
+			.constructDynamicHash(3);
+	private static final int TARGETS[] = { 0x200, 0x90000200, 0x7fffffff, 0x80000000, ScriptRoutineGraph
+			.constructDynamicHash(0) };
+	private static final int UNKNOWN_TARGET = 0x300;
+
+	private final List<ScriptNode> nodes = new ArrayList<ScriptNode>();
+
+	@BeforeClass
+	public static void initNodes() {
+		ScriptNode.init();
+	}
+
+	private ScriptNode createNode(int routineHash, int index) {
+		ScriptNode node = new ScriptNode(routineHash, ScriptNode.identifyTypes(DO_FCALL, 0), DO_FCALL, index, index);
+		nodes.add(node);
+		return node;
+	}
+
+	private GraphEdgeSet createEdges() {
+		GraphEdgeSet edges = new GraphEdgeSet();
+		ScriptNode megamorphic = createNode(CALLER, 0);
+		for (int i = 0; i < MEGAMORPHIC_TARGET_COUNT; i++)
+			assertNotNull(edges.addCallEdge(CALLER, megamorphic, 0x1000 + i, 5));
+		for (int i = 0; i < MEGAMORPHIC_TARGET_COUNT; i += 3) // found through the index of the node
+			assertSame(GraphEdgeSet.AddEdgeResultType.LOWER_USER_LEVEL,
+					edges.addCallEdge(CALLER, megamorphic, 0x1000 + i, i % 5).type);
+
+		ScriptNode caller = createNode(CALLER, 1);
+		ScriptNode negativeCaller = createNode(NEGATIVE_CALLER, 0);
+		ScriptNode dynamicCaller = createNode(DYNAMIC_CALLER, 2);
+		for (int i = 0; i < TARGETS.length; i++) {
+			edges.addCallEdge(CALLER, caller, TARGETS[i], 4);
+			edges.addCallEdge(NEGATIVE_CALLER, negativeCaller, TARGETS[(i + 1) % TARGETS.length], 3);
+			edges.addExceptionEdge(DYNAMIC_CALLER, dynamicCaller, TARGETS[i], i, 6);
+			edges.addExceptionEdge(DYNAMIC_CALLER, dynamicCaller, TARGETS[i], i + 10, 6);
+		}
+		edges.addCallEdge(CALLER, caller, TARGETS[1], 2); // lowers the minimum of its target
+		edges.addExceptionEdge(DYNAMIC_CALLER, dynamicCaller, TARGETS[2], 12, 1);
+		edges.addCallEdge(NEGATIVE_CALLER, negativeCaller, TARGETS[2], 3); // duplicate
+
+		createNode(CALLER, 7); // no edges
+		return edges;
+	}
+
+	private static String describe(Iterable<RoutineEdge> edges) {
+		StringBuilder description = new StringBuilder();
+		for (RoutineEdge edge : edges) {
+			description.append(String.format("%s %s->%s@%d\n", edge.getEntryType(), edge.printFromNode(),
+					edge.printToNode(), edge.getUserLevel()));
+		}
+		return description.toString();
+	}
+
+	private List<Integer> getTargetHashes() {
+		List<Integer> targets = new ArrayList<Integer>();
+		for (int target : TARGETS)
+			targets.add(target);
+		for (int i = 0; i < MEGAMORPHIC_TARGET_COUNT; i++)
+			targets.add(0x1000 + i);
+		targets.add(UNKNOWN_TARGET);
+		return targets;
+	}
+
+	@Test
+	public void frozenQueriesEqualSourceQueries() {
+		GraphEdgeSet edges = createEdges();
+		GraphEdgeSet frozen = edges.freeze();
+
+		assertEquals(edges.getOutgoingEdgeCount(), frozen.getOutgoingEdgeCount());
+		for (ScriptNode node : nodes) {
+			assertEquals(describe(edges.getOutgoingEdges(node)), describe(frozen.getOutgoingEdges(node)));
+			assertEquals(edges.getOutgoingEdgeCount(node), frozen.getOutgoingEdgeCount(node));
+		}
+		assertEquals(MEGAMORPHIC_TARGET_COUNT, frozen.getOutgoingEdgeCount(nodes.get(0)));
+
+		List<String> sourceLists = new ArrayList<String>(), frozenLists = new ArrayList<String>();
+		for (List<RoutineEdge> nodeEdges : edges.getOutgoingEdges())
+			sourceLists.add(describe(nodeEdges));
+		for (List<RoutineEdge> nodeEdges : frozen.getOutgoingEdges())
+			frozenLists.add(describe(nodeEdges));
+		Collections.sort(sourceLists);
+		Collections.sort(frozenLists);
+		assertEquals(sourceLists, frozenLists);
+
+		for (int target : getTargetHashes()) {
+			assertEquals(describe(edges.getIncomingEdges(target)), describe(frozen.getIncomingEdges(target)));
+			assertEquals(edges.getIncomingEdgeCount(target), frozen.getIncomingEdgeCount(target));
+			assertEquals(edges.getMinUserLevel(target), frozen.getMinUserLevel(target));
+		}
+		assertEquals(2, frozen.getMinUserLevel(TARGETS[1]));
+		assertEquals(1, frozen.getMinUserLevel(TARGETS[2]));
+		assertEquals(0, frozen.getMinUserLevel(0x1000));
+		assertEquals(Integer.MAX_VALUE, frozen.getMinUserLevel(UNKNOWN_TARGET));
+	}
+
+	@Test
+	public void frozenEdgesAreCopies() {
+		GraphEdgeSet frozen = createEdges().freeze();
+		String outgoing = describe(frozen.getOutgoingEdges(nodes.get(1)));
+		String incoming = describe(frozen.getIncomingEdges(TARGETS[0]));
+
+		for (RoutineEdge edge : frozen.getOutgoingEdges(nodes.get(1)))
+			edge.setUserLevel(0);
+		for (RoutineEdge edge : frozen.getIncomingEdges(TARGETS[0]))
+			edge.setUserLevel(0);
+
+		assertEquals(outgoing, describe(frozen.getOutgoingEdges(nodes.get(1))));
+		assertEquals(incoming, describe(frozen.getIncomingEdges(TARGETS[0])));
+		assertSame(frozen, frozen.freeze());
+	}
+}
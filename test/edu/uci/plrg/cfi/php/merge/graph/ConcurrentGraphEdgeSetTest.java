@@ -0,0 +1,227 @@
+package edu.uci.plrg.cfi.php.merge.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Adds the same random edges to a `ConcurrentGraphEdgeSet` from several threads and to a `GraphEdgeSet` in sequence.
+ * The final edges, their user levels and the minimum user level of each routine must be the same. Every edge must be
+ * reported as `NEW_EDGE` exactly once, and its `LOWER_USER_LEVEL` results must form one strictly decreasing chain from
+ * the user level it was added with down to its final user level. The same edges must be found once linking is declared
+ * complete and the queries stop copying.
+ */
+public class ConcurrentGraphEdgeSetTest {
+
+	private static final int THREAD_COUNT = 8;
+	private static final int OPERATION_COUNT = 20000; // per thread
+	private static final int ROUTINE_COUNT = 20, NODE_COUNT = 10, TARGET_COUNT = 20; // ~13 adds per edge
+	private static final int DO_FCALL = 0x3c;
+
+	private static class Result {
+		final String edgeKey;
+		final GraphEdgeSet.AddEdgeResultType type;
+		final int fromUserLevel, toUserLevel;
+
+		Result(String edgeKey, GraphEdgeSet.AddEdgeResultType type, int fromUserLevel, int toUserLevel) {
+			this.edgeKey = edgeKey;
+			this.type = type;
+			this.fromUserLevel = fromUserLevel;
+			this.toUserLevel = toUserLevel;
+		}
+	}
+
+	private final ScriptNode nodes[][] = new ScriptNode[ROUTINE_COUNT][NODE_COUNT];
+	private final int operations[][][] = new int[THREAD_COUNT][OPERATION_COUNT][];
+
+	@BeforeClass
+	public static void initNodes() {
+		ScriptNode.init();
+	}
+
+	private static String getEdgeKey(int routine, int node, boolean isThrow, int to, int toIndex) {
+		return String.format("0x%x:%d -%s-> 0x%x:%d", routine, node, isThrow ? "throw" : "call", to, isThrow ? toIndex
+				: 0);
+	}
+
+	private static String getEdgeKey(RoutineEdge edge) {
+		boolean isThrow = (edge.getEntryType() == RoutineEdge.Type.THROW);
+		return getEdgeKey(edge.getFromRoutineHash(), edge.getFromRoutineIndex(), isThrow, edge.getToRoutineHash(),
+				isThrow ? ((RoutineExceptionEdge) edge).getToRoutineIndex() : 0);
+	}
+
+	/**
+	 * @return each edge with its user level, in key order
+	 */
+	private static SortedMap<String, Integer> getEdges(GraphEdgeSet edges) {
+		SortedMap<String, Integer> userLevels = new TreeMap<String, Integer>();
+		for (List<RoutineEdge> nodeEdges : edges.getOutgoingEdges()) {
+			for (RoutineEdge edge : nodeEdges)
+				assertEquals(null, userLevels.put(getEdgeKey(edge), edge.getUserLevel()));
+		}
+		return userLevels;
+	}
+
+	/**
+	 * Operation fields: from routine, from node, throw (1) or call (0), target routine, target index, user level
+	 */
+	private void createOperations() {
+		for (int routine = 0; routine < ROUTINE_COUNT; routine++) {
+			for (int node = 0; node < NODE_COUNT; node++)
+				nodes[routine][node] = new ScriptNode(routine, 0, DO_FCALL, 1, node);
+		}
+		Random random = new Random(7);
+		for (int thread = 0; thread < THREAD_COUNT; thread++) {
+			for (int i = 0; i < OPERATION_COUNT; i++) {
+				operations[thread][i] = new int[] { random.nextInt(ROUTINE_COUNT), random.nextInt(NODE_COUNT),
+						random.nextInt(2), random.nextInt(TARGET_COUNT), random.nextInt(2), random.nextInt(6) };
+			}
+		}
+	}
+
+	private Result addEdge(GraphEdgeSet edges, int operation[]) {
+		int routine = operation[0], node = operation[1], to = operation[3], toIndex = operation[4];
+		boolean isThrow = (operation[2] == 1);
+		GraphEdgeSet.AddEdgeResult result;
+		if (isThrow)
+			result = edges.addExceptionEdge(routine, nodes[routine][node], to, toIndex, operation[5]);
+		else
+			result = edges.addCallEdge(routine, nodes[routine][node], to, operation[5]);
+		if (result == null)
+			return null;
+
+		String edgeKey = getEdgeKey(routine, node, isThrow, to, toIndex);
+		if (result.type == GraphEdgeSet.AddEdgeResultType.NEW_EDGE)
+			return new Result(edgeKey, result.type, operation[5], operation[5]);
+		GraphEdgeSet.LowerUserLevelResult lowered = (GraphEdgeSet.LowerUserLevelResult) result;
+		return new Result(edgeKey, result.type, lowered.fromUserLevel, lowered.toUserLevel);
+	}
+
+	@Test
+	public void concurrentAddsEqualSequentialAdds() throws InterruptedException {
+		createOperations();
+
+		final ConcurrentGraphEdgeSet concurrent = new ConcurrentGraphEdgeSet();
+		final List<List<Result>> threadResults = new ArrayList<List<Result>>();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < THREAD_COUNT; i++) {
+			final int thread = i;
+			final List<Result> results = new ArrayList<Result>();
+			threadResults.add(results);
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int operation[] : operations[thread]) {
+						Result result = addEdge(concurrent, operation);
+						if (result != null)
+							results.add(result);
+						if (operation[5] == 0) { // reads among the writes
+							concurrent.getMinUserLevel(operation[3]);
+							concurrent.getIncomingEdges(operation[3]).iterator().hasNext();
+							concurrent.getOutgoingEdgeCount(nodes[operation[0]][operation[1]]);
+						}
+					}
+				}
+			});
+		}
+		for (Thread thread : threads)
+			thread.start();
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+
+		GraphEdgeSet sequential = new GraphEdgeSet();
+		for (int thread = 0; thread < THREAD_COUNT; thread++) {
+			for (int operation[] : operations[thread])
+				addEdge(sequential, operation);
+		}
+
+		SortedMap<String, Integer> expected = getEdges(sequential);
+		assertEquals(expected, getEdges(concurrent));
+		assertEquals(expected, getEdges(concurrent.freeze()));
+		assertEquals(sequential.getOutgoingEdgeCount(), concurrent.getOutgoingEdgeCount());
+		for (int to = 0; to < TARGET_COUNT; to++) {
+			assertEquals(sequential.getMinUserLevel(to), concurrent.getMinUserLevel(to));
+			assertEquals(sequential.getIncomingEdgeCount(to), concurrent.getIncomingEdgeCount(to));
+			int minUserLevel = Integer.MAX_VALUE;
+			for (RoutineEdge edge : concurrent.getIncomingEdges(to))
+				minUserLevel = Math.min(minUserLevel, edge.getUserLevel());
+			assertEquals(minUserLevel, concurrent.getMinUserLevel(to));
+		}
+
+		/* after linking, the queries return the lists of the set */
+		concurrent.completeLinking();
+		assertEquals(expected, getEdges(concurrent));
+		for (int to = 0; to < TARGET_COUNT; to++) {
+			int incomingEdgeCount = 0;
+			for (RoutineEdge edge : concurrent.getIncomingEdges(to)) {
+				assertEquals(to, edge.getToRoutineHash());
+				incomingEdgeCount++;
+			}
+			assertEquals(sequential.getIncomingEdgeCount(to), incomingEdgeCount);
+		}
+
+		Map<String, List<Result>> resultsByEdge = new HashMap<String, List<Result>>();
+		int loweredCount = 0;
+		for (List<Result> results : threadResults) {
+			for (Result result : results) {
+				if (result.type == GraphEdgeSet.AddEdgeResultType.LOWER_USER_LEVEL)
+					loweredCount++;
+				List<Result> edgeResults = resultsByEdge.get(result.edgeKey);
+				if (edgeResults == null) {
+					edgeResults = new ArrayList<Result>();
+					resultsByEdge.put(result.edgeKey, edgeResults);
+				}
+				edgeResults.add(result);
+			}
+		}
+		assertTrue(loweredCount > expected.size());
+		assertEquals(expected.keySet(), new TreeMap<String, List<Result>>(resultsByEdge).keySet());
+		for (Map.Entry<String, List<Result>> entry : resultsByEdge.entrySet())
+			checkResultChain(entry.getValue(), expected.get(entry.getKey()));
+	}
+
+	/**
+	 * Each lowering happens under the lock of the edge and strictly lowers its user level, so ordering the results by
+	 * descending user level recovers the order they were made in.
+	 */
+	private static void checkResultChain(List<Result> results, int finalUserLevel) {
+		Collections.sort(results, new Comparator<Result>() {
+			@Override
+			public int compare(Result first, Result second) {
+				if (first.type != second.type)
+					return (first.type == GraphEdgeSet.AddEdgeResultType.NEW_EDGE) ? -1 : 1;
+				return Integer.compare(second.toUserLevel, first.toUserLevel);
+			}
+		});
+		Result added = results.get(0);
+		assertEquals(GraphEdgeSet.AddEdgeResultType.NEW_EDGE, added.type);
+		int userLevel = added.toUserLevel;
+		for (Result lowered : results.subList(1, results.size())) {
+			assertEquals(GraphEdgeSet.AddEdgeResultType.LOWER_USER_LEVEL, lowered.type);
+			assertEquals(userLevel, lowered.fromUserLevel);
+			assertTrue(lowered.toUserLevel < lowered.fromUserLevel);
+			userLevel = lowered.toUserLevel;
+		}
+		assertEquals(finalUserLevel, userLevel);
+	}
+}
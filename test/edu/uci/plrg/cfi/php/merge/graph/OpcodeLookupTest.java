@@ -0,0 +1,229 @@
+package edu.uci.plrg.cfi.php.merge.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.uci.plrg.cfi.common.log.Log;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptNode.Opcode;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptNode.TypeFlag;
+
+/**
+ * The opcode lookup tables of `ScriptNode` must answer the same as the scans over the `Opcode` values and opcode sets
+ * that they replaced, which are kept here as the reference. On a synthetic mix of routines, the table lookups for
+ * each node must also take less time than the scans.
+ */
+public class OpcodeLookupTest {
+
+	private static final int ROUTINE_COUNT = 2000;
+	private static final int MAX_ROUTINE_LENGTH = 100;
+	private static final int ROUNDS = 10; // the fastest round of each is compared
+	private static final int INCLUDE = 2; // extended value of ZEND_INCLUDE_OR_EVAL, besides EVAL (1)
+
+	private static final int ASSIGN = 0x26, ECHO = 0x28; // not in `Opcode`
+
+	/* most nodes of a php routine have one of a few opcodes */
+	private static final int COMMON_OPCODES[] = { ASSIGN, ECHO, Opcode.ZEND_SEND_VAL.code, Opcode.ZEND_SEND_VAR.code,
+			Opcode.ZEND_INIT_FCALL.code, Opcode.ZEND_DO_FCALL.code, Opcode.ZEND_JMPZ.code, Opcode.ZEND_JMP.code,
+			Opcode.ZEND_FETCH_DIM_R.code, Opcode.ZEND_RETURN.code };
+
+	private static int routines[][];
+
+	@BeforeClass
+	public static void createRoutines() {
+		ScriptNode.init();
+
+		Opcode opcodes[] = Opcode.values();
+		Random random = new Random(5);
+		routines = new int[ROUTINE_COUNT][];
+		for (int i = 0; i < ROUTINE_COUNT; i++) {
+			routines[i] = new int[1 + random.nextInt(MAX_ROUTINE_LENGTH)];
+			for (int j = 0; j < routines[i].length; j++) {
+				int draw = random.nextInt(100);
+				if (draw < 70)
+					routines[i][j] = COMMON_OPCODES[random.nextInt(COMMON_OPCODES.length)];
+				else if (draw < 98)
+					routines[i][j] = opcodes[random.nextInt(opcodes.length)].code;
+				else
+					routines[i][j] = random.nextInt(0x100); // mostly unknown to `Opcode`
+			}
+		}
+	}
+
+	private static Opcode forCodeByScan(int code) {
+		for (Opcode opcode : Opcode.values()) {
+			if (opcode.code == code)
+				return opcode;
+		}
+		return Opcode.OTHER;
+	}
+
+	private static boolean isCallInitByScan(int code) {
+		for (Opcode opcode : ScriptNode.CALL_INIT_OPCODES) {
+			if (opcode.code == code)
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean isOpcodeCompatibleByScan(int first, int second) {
+		if (first == second)
+			return true;
+
+		Opcode firstOp = forCodeByScan(first);
+		Opcode secondOp = forCodeByScan(second);
+		for (EnumSet<Opcode> compatibleSet : ScriptNode.COMPATIBLE_OPCODE_SETS) {
+			if (compatibleSet.contains(firstOp) && compatibleSet.contains(secondOp))
+				return true;
+		}
+		return false;
+	}
+
+	private static int identifyTypesBySwitch(int opcodeValue, int extendedValue) {
+		Set<TypeFlag> flags = EnumSet.noneOf(TypeFlag.class);
+		Opcode opcode = forCodeByScan(opcodeValue);
+		switch (opcode) {
+			case ZEND_JMP:
+			case ZEND_JMPZ:
+			case ZEND_JMPNZ:
+			case ZEND_JMPNZ_EX:
+			case ZEND_JMPZ_EX:
+			case ZEND_JMPZNZ:
+			case ZEND_FE_RESET_R:
+			case ZEND_FE_FETCH_R:
+			case ZEND_CATCH:
+				flags.add(TypeFlag.BRANCH);
+				break;
+			default:
+		}
+		switch (opcode) {
+			case ZEND_NOP:
+			case ZEND_CONCAT:
+			case ZEND_ASSIGN_CONCAT:
+			case ZEND_CAST:
+			case ZEND_DO_FCALL:
+			case ZEND_INIT_FCALL:
+			case ZEND_DO_ICALL:
+			case ZEND_THROW:
+			case ZEND_NEW:
+			case ZEND_INIT_NS_FCALL_BY_NAME:
+			case ZEND_INCLUDE_OR_EVAL:
+			case ZEND_FE_RESET_R:
+			case ZEND_FE_FETCH_R:
+			case ZEND_FETCH_DIM_R:
+			case ZEND_FETCH_OBJ_R:
+			case ZEND_FETCH_DIM_W:
+			case ZEND_FETCH_OBJ_W:
+			case ZEND_FETCH_DIM_RW:
+			case ZEND_FETCH_OBJ_RW:
+			case ZEND_FETCH_DIM_IS:
+			case ZEND_FETCH_OBJ_IS:
+			case ZEND_FETCH_DIM_FUNC_ARG:
+			case ZEND_FETCH_OBJ_FUNC_ARG:
+			case ZEND_FETCH_DIM_UNSET:
+			case ZEND_FETCH_OBJ_UNSET:
+			case ZEND_FETCH_CONSTANT:
+			case ZEND_FETCH_CLASS:
+			case ZEND_INIT_METHOD_CALL:
+			case ZEND_INIT_STATIC_METHOD_CALL:
+			case ZEND_ISSET_ISEMPTY_DIM_OBJ:
+			case ZEND_ASSIGN_OBJ:
+			case ZEND_ADD_INTERFACE:
+			case ZEND_ADD_TRAIT:
+			case ZEND_DECLARE_INHERITED_CLASS:
+			case ZEND_ASSIGN_DIM:
+			case ZEND_ISSET_ISEMPTY_PROP_OBJ:
+			case ZEND_UNSET_OBJ:
+				flags.add(TypeFlag.CALL);
+				break;
+			default:
+		}
+		if (opcode == Opcode.ZEND_INCLUDE_OR_EVAL && extendedValue == 1)
+			flags.add(TypeFlag.EVAL);
+		return TypeFlag.encode(flags);
+	}
+
+	@Test
+	public void tablesEqualScans() {
+		for (int first = -1; first <= 0x100; first++) {
+			assertSame(forCodeByScan(first), Opcode.forCode(first));
+			assertEquals(isCallInitByScan(first), ScriptNode.isCallInit(first));
+			for (int extendedValue : new int[] { 1, INCLUDE }) {
+				assertEquals(identifyTypesBySwitch(first, extendedValue),
+						ScriptNode.identifyTypes(first, extendedValue));
+			}
+			for (int second = -1; second <= 0x100; second++)
+				assertEquals(isOpcodeCompatibleByScan(first, second), ScriptNode.isOpcodeCompatible(first, second));
+		}
+	}
+
+	/**
+	 * Each node is typed, checked for a call init, and compared with the node at the same index of the next routine,
+	 * like the node loader and the routine merge do. The two versions are kept in separate methods, so that each is
+	 * compiled for its own lookups.
+	 *
+	 * @return a checksum of the results, so that the work cannot be skipped
+	 */
+	private static int visitNodesByTable() {
+		int checksum = 0;
+		for (int i = 0; i < routines.length; i++) {
+			int routine[] = routines[i], next[] = routines[(i + 1) % routines.length];
+			for (int j = 0; j < routine.length; j++) {
+				int opcode = routine[j], extendedValue = (j & 1) == 0 ? 1 : INCLUDE;
+				checksum += ScriptNode.identifyTypes(opcode, extendedValue);
+				checksum += ScriptNode.isCallInit(opcode) ? 8 : 0;
+				checksum += ScriptNode.isOpcodeCompatible(opcode, next[j % next.length]) ? 16 : 0;
+			}
+		}
+		return checksum;
+	}
+
+	private static int visitNodesByScan() {
+		int checksum = 0;
+		for (int i = 0; i < routines.length; i++) {
+			int routine[] = routines[i], next[] = routines[(i + 1) % routines.length];
+			for (int j = 0; j < routine.length; j++) {
+				int opcode = routine[j], extendedValue = (j & 1) == 0 ? 1 : INCLUDE;
+				checksum += identifyTypesBySwitch(opcode, extendedValue);
+				checksum += isCallInitByScan(opcode) ? 8 : 0;
+				checksum += isOpcodeCompatibleByScan(opcode, next[j % next.length]) ? 16 : 0;
+			}
+		}
+		return checksum;
+	}
+
+	/**
+	 * @return the fastest of the rounds, in nanoseconds
+	 */
+	private static long timeNodes(boolean byTable, int expectedChecksum) {
+		long fastest = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			int checksum = byTable ? visitNodesByTable() : visitNodesByScan();
+			fastest = Math.min(fastest, System.nanoTime() - start);
+			assertEquals(expectedChecksum, checksum);
+		}
+		return fastest;
+	}
+
+	@Test
+	public void tablesAreFasterThanScans() {
+		int nodeCount = 0;
+		for (int routine[] : routines)
+			nodeCount += routine.length;
+		int checksum = visitNodesByScan();
+
+		long scanTime = timeNodes(false, checksum);
+		long tableTime = timeNodes(true, checksum);
+		Log.log("Opcode lookups for %d nodes: %.1f ns per node by scan, %.1f ns per node by table", nodeCount,
+				scanTime / (double) nodeCount, tableTime / (double) nodeCount);
+		assertTrue(tableTime < scanTime);
+	}
+}
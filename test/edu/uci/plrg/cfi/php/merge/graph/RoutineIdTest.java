@@ -0,0 +1,60 @@
+package edu.uci.plrg.cfi.php.merge.graph;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Loads routine catalogs into the shared `RoutineId.Cache`. The hashes are far from those of the other tests, which
+ * share the cache when they run in the same JVM.
+ */
+public class RoutineIdTest {
+
+	private static final int FIRST = 0x7e570001, SECOND = 0x7e570002, THIRD = 0x7e570003;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File writeCatalog(String name, String content) throws IOException {
+		File catalog = new File(folder.getRoot(), name);
+		Files.write(catalog.toPath(), content.getBytes());
+		return catalog;
+	}
+
+	@Test
+	public void loadCatalogsTogether() throws IOException {
+		File first = writeCatalog("first.catalog", "0x7e570001 test/batch.php|first()\n");
+		File second = writeCatalog("second.catalog", "0x7e570001 test/batch.php|first()\n"
+				+ "0x7e570002 test/batch.php|second()\n");
+
+		RoutineId.Cache.INSTANCE.load(Arrays.asList(first, second));
+
+		assertEquals("test/batch.php|first()", RoutineId.Cache.INSTANCE.getId(FIRST).getId());
+		assertEquals("test/batch.php|second()", RoutineId.Cache.INSTANCE.getId(SECOND).getId());
+		assertArrayEquals(new int[] { FIRST, SECOND },
+				RoutineId.Cache.INSTANCE.getRoutinesInFile(Paths.get("test/batch.php")));
+	}
+
+	@Test
+	public void reloadWhenOnlyTheLengthChanges() throws IOException {
+		File catalog = writeCatalog("rewritten.catalog", "0x7e570003 test/rewritten.php|before()\n");
+		long lastModified = catalog.lastModified();
+		RoutineId.Cache.INSTANCE.load(catalog);
+		assertEquals("before()", RoutineId.Cache.INSTANCE.getId(THIRD).name);
+
+		/* rewritten within the resolution of the file system clock */
+		writeCatalog("rewritten.catalog", "0x7e570003 test/rewritten.php|after(a, b)\n");
+		catalog.setLastModified(lastModified);
+		RoutineId.Cache.INSTANCE.load(catalog);
+		assertEquals("after(a, b)", RoutineId.Cache.INSTANCE.getId(THIRD).name);
+	}
+}
@@ -0,0 +1,102 @@
+package edu.uci.plrg.cfi.php.merge.graph.loader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.uci.plrg.cfi.php.merge.ScriptDatasetGenerator;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptFlowGraph;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptNode;
+import edu.uci.plrg.cfi.php.merge.graph.ScriptRoutineGraph;
+
+public class ScriptDatasetIndexTest {
+
+	private static final int ROUTINE_COUNT = 100;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@BeforeClass
+	public static void initNodes() {
+		ScriptNode.init();
+	}
+
+	private static ScriptRoutineGraph createRoutine(int routineHash) {
+		ScriptRoutineGraph routine = new ScriptRoutineGraph(routineHash, null, true);
+		routine.addNode(new ScriptNode(routineHash, 0, 0x28, 1, 0)); // ECHO
+		routine.addNode(new ScriptNode(routineHash, 0, 0x3e, 2, 1)); // RETURN
+		return routine;
+	}
+
+	private File generateDataset() throws IOException {
+		ScriptFlowGraph graph = new ScriptFlowGraph(ScriptGraphDataFiles.Type.DATASET, "test", false);
+		for (int i = 1; i <= ROUTINE_COUNT; i++)
+			graph.addRoutine(createRoutine(i * 0x1001));
+		graph.addRoutine(createRoutine(ScriptRoutineGraph.constructDynamicHash(0)));
+
+		File dataset = folder.newFile("cfg.set");
+		new ScriptDatasetGenerator(new ScriptDatasetGenerator.GraphDataSource(graph), dataset).generateDataset();
+		return dataset;
+	}
+
+	private static void assertRoutineOffsets(ScriptDatasetIndex index, IntBuffer data) {
+		for (int i = 1; i <= ROUTINE_COUNT; i++) {
+			int offset = index.getRoutineOffset(i * 0x1001);
+			assertTrue(offset > 0);
+			assertEquals(i * 0x1001, data.get(offset));
+		}
+		assertEquals(0, index.getRoutineOffset(0x7777));
+		int dynamicOffset = index.getRoutineOffset(ScriptRoutineGraph.constructDynamicHash(0));
+		assertEquals(ScriptRoutineGraph.constructDynamicHash(0), data.get(dynamicOffset));
+	}
+
+	@Test
+	public void datasetKeepsTheRuntimeLayout() throws IOException {
+		File dataset = generateDataset();
+		IntBuffer data = ScriptDatasetIndex.map(dataset);
+
+		int hashtableStart = data.get(0), dynamicRoutineCount = data.get(2);
+		int dynamicRoutineListStart = hashtableStart + 1 + (data.get(hashtableStart) + 1);
+		assertEquals(ROUTINE_COUNT, data.get(1));
+		assertEquals(1, dynamicRoutineCount);
+		assertEquals(dynamicRoutineCount, data.get(dynamicRoutineListStart));
+		assertEquals("cfg.set must end with the dynamic routine list", dynamicRoutineListStart + 1
+				+ dynamicRoutineCount, data.limit());
+		assertTrue(ScriptDatasetIndex.getIndexFile(dataset).exists());
+	}
+
+	@Test
+	public void lookupUsesTheCurrentIndex() throws IOException {
+		File dataset = generateDataset();
+		IntBuffer data = ScriptDatasetIndex.map(dataset);
+		ScriptDatasetIndex index = ScriptDatasetIndex.open(dataset, data);
+
+		assertTrue(index.hasRoutineIndex());
+		assertRoutineOffsets(index, data);
+	}
+
+	@Test
+	public void lookupFallsBackToTheHashtable() throws IOException {
+		File dataset = generateDataset();
+		assertTrue(dataset.setLastModified(dataset.lastModified() - 10000L));
+		IntBuffer data = ScriptDatasetIndex.map(dataset);
+		ScriptDatasetIndex index = ScriptDatasetIndex.open(dataset, data);
+
+		assertFalse("a dataset changed after its index was written must not use it", index.hasRoutineIndex());
+		assertRoutineOffsets(index, data);
+
+		assertTrue(ScriptDatasetIndex.getIndexFile(dataset).delete());
+		index = ScriptDatasetIndex.open(dataset, data);
+		assertFalse(index.hasRoutineIndex());
+		assertRoutineOffsets(index, data);
+	}
+}